@@ -0,0 +1,318 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static java.lang.String.format;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.util.AtomicFileWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestComment;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestCommentIterator;
+
+/**
+ * Per-job store of pull request comments already read from Bitbucket Server.
+ *
+ * <p>For every pull request, the store keeps the ID of the newest activity seen (the cursor) and
+ * the comments read up to that activity. Later reads only request activities newer than the
+ * cursor and add their comments to the stored ones. If any of the new activities edits, deletes or
+ * replies to a comment, or the plugin posts or deletes a comment itself, the entry for the pull
+ * request is discarded and the full history is read again.
+ *
+ * <p>Only what the build decisions need is kept for the stored comments: the IDs, authors and
+ * dates, the text of the comments recognized by the {@link StashCommentClassifier}, and the
+ * replies that are statuses of the job. As that depends on the trigger configuration, the stored
+ * comments are discarded when the configuration changes.
+ *
+ * <p>The store is loaded from the job directory on first use, and written back by {@link #save()}
+ * if it has changed.
+ */
+class StashActivityCursorStore {
+  private static final Logger logger =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  static final String FILE_NAME = "stash-pull-request-activities.json";
+
+  private static final int FORMAT_VERSION = 2;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final File file;
+  private final Supplier<String> configurationDigest;
+  private Contents contents;
+  private long invalidations;
+  private boolean dirty;
+
+  /**
+   * Creates the store, nothing is read until the store is used
+   *
+   * @param file store file
+   * @param configurationDigest provides a string that changes if the trigger configuration
+   *     affecting the build decisions changes
+   */
+  StashActivityCursorStore(@Nonnull File file, @Nonnull Supplier<String> configurationDigest) {
+    this.file = file;
+    this.configurationDigest = configurationDigest;
+  }
+
+  /**
+   * Gets all comments for a pull request, reading only the activities not stored yet
+   *
+   * @param pullRequestId pull request ID
+   * @param commentIterator creates an iterator over the pull request comments
+   * @param classifier recognizes the comments whose text is kept
+   * @return comments, the most recent first
+   * @throws StashApiException if the comments cannot be read
+   */
+  @Nonnull
+  List<StashPullRequestComment> getComments(
+      String pullRequestId,
+      Supplier<StashPullRequestCommentIterator> commentIterator,
+      StashCommentClassifier classifier)
+      throws StashApiException {
+    // Don't hold the lock during requests to the server, check for
+    // invalidations made in the meantime before storing the result instead.
+    Entry entry;
+    long generation;
+    synchronized (this) {
+      entry = getEntries().get(pullRequestId);
+      generation = invalidations;
+    }
+
+    StashPullRequestCommentIterator comments = commentIterator.get();
+    if (entry != null) {
+      comments.setCursor(entry.lastActivityId);
+    }
+    List<StashPullRequestComment> newComments = comments.remaining();
+
+    List<StashPullRequestComment> allComments;
+    if (entry == null || !comments.isCursorReached()) {
+      // The whole history has been read
+      allComments = newComments;
+    } else if (comments.hasModifiedComments()) {
+      logger.fine(format("Comments for pull request %s changed, reading all", pullRequestId));
+      comments = commentIterator.get();
+      allComments = comments.remaining();
+    } else if (comments.getNewestActivityId() == null) {
+      // Nothing new since the last read
+      return entry.toComments();
+    } else {
+      allComments = new ArrayList<>(newComments);
+      allComments.addAll(entry.toComments());
+    }
+
+    Long newestActivityId = comments.getNewestActivityId();
+    synchronized (this) {
+      if (generation != invalidations || newestActivityId == null) {
+        if (getEntries().remove(pullRequestId) != null) {
+          dirty = true;
+        }
+      } else {
+        getEntries().put(pullRequestId, Entry.of(newestActivityId, allComments, classifier));
+        dirty = true;
+      }
+    }
+
+    return allComments;
+  }
+
+  /**
+   * Discards the stored comments for a pull request
+   *
+   * @param pullRequestId pull request ID
+   */
+  synchronized void invalidate(String pullRequestId) {
+    invalidations++;
+    if (getEntries().remove(pullRequestId) != null) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Discards the stored comments for pull requests not in the list, such as closed ones
+   *
+   * @param pullRequestIds IDs of the pull requests to keep
+   */
+  synchronized void retainAll(Collection<String> pullRequestIds) {
+    if (getEntries().keySet().retainAll(pullRequestIds)) {
+      dirty = true;
+    }
+  }
+
+  /** Writes the store to disk if it has changed since it was loaded or saved. */
+  synchronized void save() {
+    if (!dirty) {
+      return;
+    }
+
+    try {
+      AtomicFileWriter writer = new AtomicFileWriter(file);
+      try {
+        writer.write(mapper.writeValueAsString(contents));
+        writer.commit();
+        dirty = false;
+      } finally {
+        writer.abort();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, format("Cannot write %s", file), e);
+    }
+  }
+
+  @Nonnull
+  private Map<String, Entry> getEntries() {
+    String digest = configurationDigest.get();
+    if (contents == null) {
+      contents = load();
+    }
+    if (!digest.equals(contents.configuration)) {
+      // The stored comments were trimmed for another configuration
+      if (!contents.pullRequests.isEmpty()) {
+        contents.pullRequests.clear();
+        dirty = true;
+      }
+      contents.configuration = digest;
+    }
+    return contents.pullRequests;
+  }
+
+  @Nonnull
+  private Contents load() {
+    Contents empty = new Contents();
+    if (!file.exists()) {
+      return empty;
+    }
+
+    try {
+      Contents loaded = mapper.readValue(file, Contents.class);
+      if (loaded == null || loaded.formatVersion != FORMAT_VERSION) {
+        logger.fine(format("Unknown format of %s, discarding it", file));
+        dirty = true;
+        return empty;
+      }
+      return loaded;
+    } catch (IOException e) {
+      // The store only saves requests to the server, starting over is always safe
+      logger.log(Level.WARNING, format("Cannot read %s, discarding it", file), e);
+      return empty;
+    }
+  }
+
+  /** Contents of the store file. */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  private static final class Contents {
+    @JsonProperty("formatVersion")
+    private int formatVersion = FORMAT_VERSION;
+
+    @JsonProperty("configuration")
+    private String configuration;
+
+    @JsonProperty("pullRequests")
+    private Map<String, Entry> pullRequests = new HashMap<>();
+  }
+
+  private static final class Entry {
+    @JsonProperty("lastActivityId")
+    private long lastActivityId;
+
+    @JsonProperty("comments")
+    private List<StoredComment> comments = new ArrayList<>();
+
+    @Nonnull
+    static Entry of(
+        long lastActivityId,
+        List<StashPullRequestComment> comments,
+        StashCommentClassifier classifier) {
+      Entry entry = new Entry();
+      entry.lastActivityId = lastActivityId;
+      for (StashPullRequestComment comment : comments) {
+        entry.comments.add(StoredComment.of(comment, classifier));
+      }
+      return entry;
+    }
+
+    @Nonnull
+    List<StashPullRequestComment> toComments() {
+      List<StashPullRequestComment> result = new ArrayList<>();
+      for (StoredComment comment : comments) {
+        result.add(comment.toComment());
+      }
+      return result;
+    }
+  }
+
+  /** Stored part of a comment. */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private static final class StoredComment {
+    @JsonProperty("id")
+    private Integer id;
+
+    @JsonProperty("author")
+    private String author;
+
+    @JsonProperty("createdDate")
+    private Long createdDate;
+
+    // Only kept for the comments the classifier recognizes
+    @JsonProperty("text")
+    private String text;
+
+    // Only the statuses of the job
+    @JsonProperty("replies")
+    private List<StoredComment> replies;
+
+    @Nonnull
+    static StoredComment of(StashPullRequestComment comment, StashCommentClassifier classifier) {
+      StoredComment stored = new StoredComment();
+      stored.id = comment.getCommentId();
+      stored.author = comment.getAuthorUsername();
+      stored.createdDate = comment.getCreatedDate();
+      if (classifier.classify(comment.getText()).isClassified()) {
+        stored.text = comment.getText();
+      }
+      if (comment.getReplies() != null) {
+        for (StashPullRequestComment reply : comment.getReplies()) {
+          if (classifier.isStatusMessage(reply.getText())) {
+            if (stored.replies == null) {
+              stored.replies = new ArrayList<>();
+            }
+            stored.replies.add(StoredComment.of(reply, classifier));
+          }
+        }
+      }
+      return stored;
+    }
+
+    @Nonnull
+    StashPullRequestComment toComment() {
+      StashPullRequestComment comment = new StashPullRequestComment(id, text);
+      if (author != null) {
+        StashPullRequestComment.Author commentAuthor = new StashPullRequestComment.Author();
+        commentAuthor.setName(author);
+        comment.setAuthor(commentAuthor);
+      }
+      comment.setCreatedDate(createdDate);
+      if (replies != null) {
+        List<StashPullRequestComment> commentReplies = new ArrayList<>();
+        for (StoredComment reply : replies) {
+          commentReplies.add(reply.toComment());
+        }
+        comment.setReplies(commentReplies);
+      }
+      return comment;
+    }
+  }
+}
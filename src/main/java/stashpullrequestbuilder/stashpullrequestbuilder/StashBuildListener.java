@@ -57,42 +57,63 @@ public class StashBuildListener extends RunListener<Run<?, ?>> {
 
     StashRepository repository = trigger.getRepository();
     PrintStream buildLogger = listener.getLogger();
-
-    // Delete the "Build Queued" comment, as it gets replaced with a "Build
-    // Started" comment that includes a link to the build. Failure to delete
-    // the comment is not fatal.
-    try {
-      repository.deletePullRequestComment(
-          cause.getPullRequestId(), cause.getBuildQueuedCommentId());
-    } catch (StashApiException e) {
-      buildLogger.println(
-          format(
-              "%s: cannot delete Build Queued comment for pull request %s",
-              run.getParent().getFullName(), cause.getPullRequestId()));
-      e.printStackTrace(buildLogger);
-    }
-
-    // Post a "Build Started" comment with a link to the build page.
     final String rootUrl =
         Objects.toString(Jenkins.getInstance().getRootUrl(), ROOT_URL_PLACEHOLDER);
     final String buildUrl = rootUrl + run.getUrl();
 
-    try {
-      String startedCommentId =
-          repository.postBuildStartedComment(
-              cause.getPullRequestId(),
-              cause.getSourceCommitHash(),
-              cause.getDestinationCommitHash(),
-              cause.getBuildCommandCommentId(),
-              buildUrl,
-              run.getNumber());
-      run.addAction(new StashBuildStartedAction(startedCommentId));
-    } catch (StashApiException e) {
-      buildLogger.println(
-          format(
-              "%s: cannot post Build Started comment for pull request %s",
-              run.getParent().getFullName(), cause.getPullRequestId()));
-      e.printStackTrace(buildLogger);
+    // No comment is posted for builds reported with build statuses, unless
+    // they were requested by a build command
+    if (cause.getBuildQueuedCommentId() != null) {
+      // Delete the "Build Queued" comment, as it gets replaced with a "Build
+      // Started" comment that includes a link to the build. Failure to delete
+      // the comment is not fatal.
+      try {
+        repository.deletePullRequestComment(
+            cause.getPullRequestId(), cause.getBuildQueuedCommentId());
+      } catch (StashApiException e) {
+        buildLogger.println(
+            format(
+                "%s: cannot delete Build Queued comment for pull request %s",
+                run.getParent().getFullName(), cause.getPullRequestId()));
+        e.printStackTrace(buildLogger);
+      }
+
+      // Post a "Build Started" comment with a link to the build page.
+      try {
+        String startedCommentId =
+            repository.postBuildStartedComment(
+                cause.getPullRequestId(),
+                cause.getSourceCommitHash(),
+                cause.getDestinationCommitHash(),
+                cause.getBuildCommandCommentId(),
+                buildUrl,
+                run.getNumber());
+        run.addAction(new StashBuildStartedAction(startedCommentId));
+      } catch (StashApiException e) {
+        buildLogger.println(
+            format(
+                "%s: cannot post Build Started comment for pull request %s",
+                run.getParent().getFullName(), cause.getPullRequestId()));
+        e.printStackTrace(buildLogger);
+      }
+    }
+
+    // Replace the "Build queued" status of the commit with a link to the
+    // build page
+    if (isReportingBuildStatus(cause, repository)) {
+      try {
+        repository.postBuildStartedStatus(
+            cause.getSourceCommitHash(),
+            cause.getDestinationCommitHash(),
+            buildUrl,
+            run.getNumber());
+      } catch (StashApiException e) {
+        buildLogger.println(
+            format(
+                "%s: cannot post Build Started status for pull request %s",
+                run.getParent().getFullName(), cause.getPullRequestId()));
+        e.printStackTrace(buildLogger);
+      }
     }
   }
 
@@ -125,17 +146,20 @@ public class StashBuildListener extends RunListener<Run<?, ?>> {
     // comment was never posted), as it gets replaced with a comment about
     // the build result. Failure to delete the comment is not fatal, it's
     // reported to the build log.
+    boolean hasStatusComments = cause.getBuildQueuedCommentId() != null;
     StashBuildStartedAction startedAction = run.getAction(StashBuildStartedAction.class);
     String commentToDelete =
         startedAction != null ? startedAction.getCommentId() : cause.getBuildQueuedCommentId();
-    try {
-      repository.deletePullRequestComment(cause.getPullRequestId(), commentToDelete);
-    } catch (StashApiException e) {
-      buildLogger.println(
-          format(
-              "%s: cannot delete Build Started comment for pull request %s",
-              run.getParent().getFullName(), cause.getPullRequestId()));
-      e.printStackTrace(buildLogger);
+    if (hasStatusComments) {
+      try {
+        repository.deletePullRequestComment(cause.getPullRequestId(), commentToDelete);
+      } catch (StashApiException e) {
+        buildLogger.println(
+            format(
+                "%s: cannot delete Build Started comment for pull request %s",
+                run.getParent().getFullName(), cause.getPullRequestId()));
+        e.printStackTrace(buildLogger);
+      }
     }
 
     String additionalComment = "";
@@ -164,16 +188,40 @@ public class StashBuildListener extends RunListener<Run<?, ?>> {
       }
     }
     String duration = run.getDurationString();
-    repository.postFinishedComment(
-        cause.getPullRequestId(),
-        cause.getSourceCommitHash(),
-        cause.getDestinationCommitHash(),
-        cause.getBuildCommandCommentId(),
-        result,
-        buildUrl,
-        run.getNumber(),
-        additionalComment,
-        duration);
+    if (hasStatusComments) {
+      repository.postFinishedComment(
+          cause.getPullRequestId(),
+          cause.getSourceCommitHash(),
+          cause.getDestinationCommitHash(),
+          cause.getBuildCommandCommentId(),
+          result,
+          buildUrl,
+          run.getNumber(),
+          additionalComment,
+          duration);
+    } else if (StringUtils.isNotBlank(additionalComment)) {
+      // The comment configured for the job is still posted, before the
+      // status, so that it's not taken for a new comment on the next poll
+      try {
+        repository.postPullRequestComment(cause.getPullRequestId(), additionalComment.trim());
+      } catch (StashApiException e) {
+        buildLogger.println(
+            format(
+                "%s: cannot post build result comment for pull request %s",
+                run.getParent().getFullName(), cause.getPullRequestId()));
+        e.printStackTrace(buildLogger);
+      }
+    }
+
+    if (isReportingBuildStatus(cause, repository)) {
+      repository.postFinishedStatus(
+          cause.getSourceCommitHash(),
+          cause.getDestinationCommitHash(),
+          result,
+          buildUrl,
+          run.getNumber(),
+          duration);
+    }
 
     // Request the server to merge the pull request on success if that option is
     // enabled. Log the result to the build log. Handle exceptions here, report
@@ -204,4 +252,14 @@ public class StashBuildListener extends RunListener<Run<?, ?>> {
       }
     }
   }
+
+  // The statuses are reported the way the build was queued, even if the
+  // setting has changed since. Builds queued before that was recorded
+  // follow the current setting.
+  private static boolean isReportingBuildStatus(StashCause cause, StashRepository repository) {
+    Boolean reportingBuildStatus = cause.getReportingBuildStatus();
+    return reportingBuildStatus != null
+        ? reportingBuildStatus
+        : repository.isReportingBuildStatus();
+  }
 }
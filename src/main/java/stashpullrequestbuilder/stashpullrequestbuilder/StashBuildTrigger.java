@@ -22,12 +22,21 @@ import hudson.util.ExceptionCatchingThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
 import java.lang.invoke.MethodHandles;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
@@ -61,16 +70,25 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   private boolean checkProbeMergeStatus = true;
   private boolean mergeOnSuccess;
   private boolean deletePreviousBuildFinishComments;
+  private boolean reportBuildStatus;
   private boolean cancelOutdatedJobsEnabled;
   private String ciSkipPhrases = DescriptorImpl.DEFAULT_CI_SKIP_PHRASES;
   private boolean onlyBuildOnComment;
   private String ciBuildPhrases = DescriptorImpl.DEFAULT_CI_BUILD_PHRASES;
   private String ignoredCommenters = "";
+  private int pullRequestConcurrency = DescriptorImpl.DEFAULT_PULL_REQUEST_CONCURRENCY;
 
   private transient StashRepository stashRepository;
   private transient StashPollingAction stashPollingAction;
 
   private transient AtomicBoolean checkAlreadyQueued;
+  // Pull requests with a check scheduled on notification that hasn't started yet
+  private transient Set<String> pendingPullRequests;
+  // Server the job is registered with in the poll bulkhead
+  private transient String pollHost;
+
+  // Compiled settings, replaced as a whole whenever a setting changes
+  private transient volatile StashTriggerConfig config;
 
   @DataBoundConstructor
   public StashBuildTrigger(
@@ -128,6 +146,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setIgnoreSsl(boolean ignoreSsl) {
     this.ignoreSsl = ignoreSsl;
+    config = null;
   }
 
   public String getTargetBranchesToBuild() {
@@ -137,6 +156,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setTargetBranchesToBuild(String targetBranchesToBuild) {
     this.targetBranchesToBuild = targetBranchesToBuild;
+    config = null;
   }
 
   public boolean getCheckDestinationCommit() {
@@ -146,6 +166,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setCheckDestinationCommit(boolean checkDestinationCommit) {
     this.checkDestinationCommit = checkDestinationCommit;
+    config = null;
   }
 
   public boolean getCheckNotConflicted() {
@@ -155,6 +176,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setCheckNotConflicted(boolean checkNotConflicted) {
     this.checkNotConflicted = checkNotConflicted;
+    config = null;
   }
 
   public boolean getCheckMergeable() {
@@ -164,6 +186,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setCheckMergeable(boolean checkMergeable) {
     this.checkMergeable = checkMergeable;
+    config = null;
   }
 
   public boolean getCheckProbeMergeStatus() {
@@ -173,6 +196,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setCheckProbeMergeStatus(boolean checkProbeMergeStatus) {
     this.checkProbeMergeStatus = checkProbeMergeStatus;
+    config = null;
   }
 
   public boolean getMergeOnSuccess() {
@@ -182,6 +206,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setMergeOnSuccess(boolean mergeOnSuccess) {
     this.mergeOnSuccess = mergeOnSuccess;
+    config = null;
   }
 
   public boolean getDeletePreviousBuildFinishComments() {
@@ -191,6 +216,17 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setDeletePreviousBuildFinishComments(boolean deletePreviousBuildFinishComments) {
     this.deletePreviousBuildFinishComments = deletePreviousBuildFinishComments;
+    config = null;
+  }
+
+  public boolean getReportBuildStatus() {
+    return reportBuildStatus;
+  }
+
+  @DataBoundSetter
+  public void setReportBuildStatus(boolean reportBuildStatus) {
+    this.reportBuildStatus = reportBuildStatus;
+    config = null;
   }
 
   public boolean getCancelOutdatedJobsEnabled() {
@@ -200,6 +236,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setCancelOutdatedJobsEnabled(boolean cancelOutdatedJobsEnabled) {
     this.cancelOutdatedJobsEnabled = cancelOutdatedJobsEnabled;
+    config = null;
   }
 
   public String getCiSkipPhrases() {
@@ -209,6 +246,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setCiSkipPhrases(String ciSkipPhrases) {
     this.ciSkipPhrases = ciSkipPhrases;
+    config = null;
   }
 
   public boolean getOnlyBuildOnComment() {
@@ -218,6 +256,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setOnlyBuildOnComment(boolean onlyBuildOnComment) {
     this.onlyBuildOnComment = onlyBuildOnComment;
+    config = null;
   }
 
   public String getCiBuildPhrases() {
@@ -227,6 +266,7 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setCiBuildPhrases(String ciBuildPhrases) {
     this.ciBuildPhrases = ciBuildPhrases;
+    config = null;
   }
 
   public String getIgnoredCommenters() {
@@ -236,12 +276,44 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   @DataBoundSetter
   public void setIgnoredCommenters(String ignoredCommenters) {
     this.ignoredCommenters = ignoredCommenters;
+    config = null;
+  }
+
+  /** @return number of pull requests checked in parallel during a poll, at least 1 */
+  public int getPullRequestConcurrency() {
+    // Configurations saved before the setting existed have 0
+    if (pullRequestConcurrency <= 0) {
+      return DescriptorImpl.DEFAULT_PULL_REQUEST_CONCURRENCY;
+    }
+    return Math.min(pullRequestConcurrency, DescriptorImpl.MAX_PULL_REQUEST_CONCURRENCY);
+  }
+
+  @DataBoundSetter
+  public void setPullRequestConcurrency(int pullRequestConcurrency) {
+    this.pullRequestConcurrency = pullRequestConcurrency;
+    config = null;
   }
 
   public String getGlobalIgnoredCommenters() {
     return ((DescriptorImpl) getDescriptor()).getGlobalIgnoredCommenters();
   }
 
+  /**
+   * Gets the settings used while polling, compiling them if needed
+   *
+   * @return compiled settings
+   */
+  @Nonnull
+  StashTriggerConfig getConfig() {
+    StashTriggerConfig current = config;
+    // The global settings can change without restarting the trigger
+    if (current == null || !current.isCurrent(getGlobalIgnoredCommenters())) {
+      current = StashTriggerConfig.of(this);
+      config = current;
+    }
+    return current;
+  }
+
   public StashPollingAction getStashPollingAction() {
     return stashPollingAction;
   }
@@ -250,12 +322,17 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   public void start(Job<?, ?> job, boolean newInstance) {
     super.start(job, newInstance);
     this.checkAlreadyQueued = new AtomicBoolean(false);
+    this.pendingPullRequests = ConcurrentHashMap.newKeySet();
 
     if (job == null) {
       logger.log(Level.SEVERE, "Can't start trigger: job is null");
       return;
     }
 
+    StashTriggerRegistry.getInstance().register(this);
+    pollHost = getStashHost();
+    descriptor.getPollBulkhead().register(pollHost);
+
     if (stashPollingAction == null) {
       stashPollingAction = new StashPollingAction(job);
     }
@@ -271,8 +348,10 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
       return;
     }
 
+    StashApiClient stashApiClient = null;
+    StashRepositorySnapshot snapshot = null;
     try {
-      StashApiClient stashApiClient =
+      stashApiClient =
           new StashApiClient(
               getStashHost(),
               credentials.getUsername(),
@@ -281,10 +360,22 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
               getRepositoryName(),
               getIgnoreSsl());
 
-      this.stashRepository = new StashRepository(job, this, stashApiClient, stashPollingAction);
+      snapshot =
+          StashRepositorySnapshot.acquire(
+              StashTriggerRegistry.Key.of(this), credentials.getUsername());
+      this.stashRepository =
+          new StashRepository(job, this, stashApiClient, stashPollingAction, snapshot);
     } catch (Throwable e) {
       logger.log(Level.SEVERE, "Can't start trigger", e);
       stashPollingAction.log("Can't start trigger", e);
+
+      // The repository would have released them when closed
+      if (snapshot != null) {
+        snapshot.release();
+      }
+      if (stashApiClient != null) {
+        stashApiClient.close();
+      }
     }
   }
 
@@ -306,19 +397,29 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
 
     if (checkAlreadyQueued.compareAndSet(false, true)) {
       logger.fine(format("Job not queued, adding %s", job.getFullName()));
-      descriptor
-          .getExecutorService()
-          .execute(
-              new Runnable() {
-                @Override
-                public void run() {
-                  try {
-                    stashRepository.pollRepository();
-                  } finally {
-                    checkAlreadyQueued.set(false);
-                  }
-                }
-              });
+      boolean queued = false;
+      try {
+        queued =
+            descriptor
+                .getPollBulkhead()
+                .execute(
+                    getStashHost(),
+                    this,
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        try {
+                          stashRepository.pollRepository();
+                        } finally {
+                          checkAlreadyQueued.set(false);
+                        }
+                      }
+                    });
+      } finally {
+        if (!queued) {
+          checkAlreadyQueued.set(false);
+        }
+      }
     } else {
       logger.fine(format("Job is already queued, skipping %s", job.getFullName()));
     }
@@ -326,8 +427,62 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
     getDescriptor().save();
   }
 
+  /**
+   * Schedules a check of a single pull request, such as one reported by a webhook
+   *
+   * @param pullRequestId pull request ID
+   */
+  public void pollPullRequest(String pullRequestId) {
+    StashRepository repository = this.stashRepository;
+    if (job == null || repository == null) {
+      logger.info("Not ready to check pull request.");
+      return;
+    }
+
+    if (!job.isBuildable()) {
+      logger.fine(
+          format("Job is not buildable, skipping PR #%s (%s).", pullRequestId, job.getFullName()));
+      return;
+    }
+
+    // A check that hasn't started yet will see the changes reported by the
+    // notification, so a burst of notifications leads to a single check
+    if (!pendingPullRequests.add(pullRequestId)) {
+      logger.fine(
+          format("PR #%s is already queued, skipping (%s).", pullRequestId, job.getFullName()));
+      return;
+    }
+
+    boolean queued = false;
+    try {
+      queued =
+          descriptor
+              .getPollBulkhead()
+              .execute(
+                  getStashHost(),
+                  new SimpleImmutableEntry<>(this, pullRequestId),
+                  () -> {
+                    // Notifications from now on may report changes the check misses
+                    pendingPullRequests.remove(pullRequestId);
+                    repository.pollPullRequest(pullRequestId);
+                  });
+    } finally {
+      if (!queued) {
+        pendingPullRequests.remove(pullRequestId);
+      }
+    }
+  }
+
   @Override
   public void stop() {
+    StashTriggerRegistry.getInstance().unregister(this);
+    if (pollHost != null) {
+      descriptor.getPollBulkhead().unregister(pollHost);
+      pollHost = null;
+    }
+    if (stashRepository != null) {
+      stashRepository.close();
+    }
     stashRepository = null;
     stashPollingAction = null;
     super.stop();
@@ -337,14 +492,28 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
   public static final class DescriptorImpl extends TriggerDescriptor {
     public static final String DEFAULT_CI_SKIP_PHRASES = "NO TEST";
     public static final String DEFAULT_CI_BUILD_PHRASES = "test this please";
+    public static final int DEFAULT_PULL_REQUEST_CONCURRENCY = 4;
+    public static final int MAX_PULL_REQUEST_CONCURRENCY = 32;
+    public static final int DEFAULT_REQUESTS_PER_SECOND = 50;
+    public static final int DEFAULT_REQUEST_BURST = 100;
+    public static final int DEFAULT_THREADS_PER_SERVER = 0;
     private final transient ExecutorService executorService;
+    private final transient StashPollBulkhead pollBulkhead;
+    private final transient ExecutorService evaluationExecutorService;
 
     private boolean enablePipelineSupport;
     private String numOfThreads = "10";
     private String globalIgnoredCommenters = "";
+    private int requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+    private int requestBurst = DEFAULT_REQUEST_BURST;
+    private boolean hedgeRequests;
+    private int threadsPerServer = DEFAULT_THREADS_PER_SERVER;
+    private Secret webhookSecret;
 
     public DescriptorImpl() {
       load();
+      StashApiClient.setRateLimit(requestsPerSecond, requestBurst);
+      StashApiClient.setHedgingEnabled(hedgeRequests);
       int intOfThreads = Integer.parseInt(numOfThreads);
       logger.info(format("Creating pool size %s", numOfThreads));
       executorService =
@@ -353,12 +522,40 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
               new ExceptionCatchingThreadFactory(
                   new NamingThreadFactory(
                       new DaemonThreadFactory(), "DescriptorImpl.DescriptorImpl")));
+      // The pool size only changes on restart
+      pollBulkhead =
+          new StashPollBulkhead(
+              executorService, intOfThreads, threadsPerServer, System::currentTimeMillis);
+      // Runs the checks of individual pull requests for the polls running in
+      // executorService. Nothing waits in a queue: when all threads are busy,
+      // the task is rejected, and the poll checks its pull requests itself.
+      evaluationExecutorService =
+          new ThreadPoolExecutor(
+              0,
+              Integer.getInteger(
+                  StashBuildTrigger.class.getName() + ".evaluationThreads",
+                  intOfThreads * (DEFAULT_PULL_REQUEST_CONCURRENCY + 1)),
+              60,
+              TimeUnit.SECONDS,
+              new SynchronousQueue<>(),
+              new ExceptionCatchingThreadFactory(
+                  new NamingThreadFactory(
+                      new DaemonThreadFactory(), "StashBuildTrigger.evaluation")));
     }
 
     public ExecutorService getExecutorService() {
       return executorService;
     }
 
+    /** @return shares the threads of {@link #getExecutorService()} between the servers */
+    StashPollBulkhead getPollBulkhead() {
+      return pollBulkhead;
+    }
+
+    public ExecutorService getEvaluationExecutorService() {
+      return evaluationExecutorService;
+    }
+
     public boolean getEnablePipelineSupport() {
       return enablePipelineSupport;
     }
@@ -386,6 +583,52 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
       this.globalIgnoredCommenters = globalIgnoredCommenters;
     }
 
+    public int getRequestsPerSecond() {
+      return requestsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setRequestsPerSecond(int requestsPerSecond) {
+      this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public int getRequestBurst() {
+      return requestBurst;
+    }
+
+    @DataBoundSetter
+    public void setRequestBurst(int requestBurst) {
+      this.requestBurst = requestBurst;
+    }
+
+    public boolean getHedgeRequests() {
+      return hedgeRequests;
+    }
+
+    @DataBoundSetter
+    public void setHedgeRequests(boolean hedgeRequests) {
+      this.hedgeRequests = hedgeRequests;
+    }
+
+    public int getThreadsPerServer() {
+      return threadsPerServer;
+    }
+
+    @DataBoundSetter
+    public void setThreadsPerServer(int threadsPerServer) {
+      this.threadsPerServer = threadsPerServer;
+    }
+
+    @CheckForNull
+    public Secret getWebhookSecret() {
+      return webhookSecret;
+    }
+
+    @DataBoundSetter
+    public void setWebhookSecret(Secret webhookSecret) {
+      this.webhookSecret = webhookSecret;
+    }
+
     @Override
     public boolean isApplicable(Item item) {
       if (enablePipelineSupport) {
@@ -403,10 +646,14 @@ public class StashBuildTrigger extends Trigger<Job<?, ?>> {
     @Override
     public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
       enablePipelineSupport = false;
+      hedgeRequests = false;
 
       req.bindJSON(this, json);
       save();
       logger.info(format("configuring numOfThreads to %s", numOfThreads));
+      StashApiClient.setRateLimit(requestsPerSecond, requestBurst);
+      StashApiClient.setHedgingEnabled(hedgeRequests);
+      pollBulkhead.setThreadsPerServer(threadsPerServer);
       return super.configure(req, json);
     }
 
@@ -3,6 +3,7 @@ package stashpullrequestbuilder.stashpullrequestbuilder;
 import hudson.model.Cause;
 import java.util.Map;
 import java.util.TreeMap;
+import javax.annotation.CheckForNull;
 
 /** Created by Nathan McCarthy */
 public class StashCause extends Cause {
@@ -19,6 +20,8 @@ public class StashCause extends Cause {
   private final String buildQueuedCommentId;
   private final Integer buildCommandCommentId;
   private final String pullRequestVersion;
+  // Null for builds queued before the reporting mode was recorded
+  private final Boolean reportingBuildStatus;
   private final String stashHost;
   private final Map<String, String> additionalParameters;
 
@@ -37,6 +40,7 @@ public class StashCause extends Cause {
       String buildQueuedCommentId,
       Integer buildCommandCommentId,
       String pullRequestVersion,
+      boolean reportingBuildStatus,
       Map<String, String> additionalParameters) {
     this.sourceBranch = sourceBranch;
     this.targetBranch = targetBranch;
@@ -51,6 +55,7 @@ public class StashCause extends Cause {
     this.buildQueuedCommentId = buildQueuedCommentId;
     this.buildCommandCommentId = buildCommandCommentId;
     this.pullRequestVersion = pullRequestVersion;
+    this.reportingBuildStatus = reportingBuildStatus;
     this.stashHost = stashHost.replaceAll("/$", "");
     this.additionalParameters = additionalParameters;
   }
@@ -107,6 +112,15 @@ public class StashCause extends Cause {
     return buildCommandCommentId;
   }
 
+  /**
+   * @return whether the build was queued to be reported with commit build statuses, null if that
+   *     wasn't recorded
+   */
+  @CheckForNull
+  public Boolean getReportingBuildStatus() {
+    return reportingBuildStatus;
+  }
+
   public Map<String, String> getAdditionalParameters() {
     return additionalParameters;
   }
@@ -0,0 +1,179 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Recognizes the comments that matter to a job.
+ *
+ * <p>The status markers posted by the job are found with a single pattern compiled for the job
+ * display name, rather than with a pattern compiled for every status and every comment. The
+ * phrases come precompiled with the {@link StashTriggerConfig}. The classifier is immutable and can
+ * be shared between threads. It's rebuilt when the display name or the trigger settings change.
+ */
+final class StashCommentClassifier {
+  static final String BUILD_QUEUED = "BuildQueued";
+  static final String BUILD_STARTED = "BuildStarted";
+  static final String BUILD_FINISHED = "BuildFinished";
+  static final String BUILD_CANCELED = "BuildCanceled";
+
+  // Status, job display name, source commit and destination commit
+  private static final String STATUS_MARKER_REGEX =
+      "\\[\\*(%s)\\* \\*\\*%s\\*\\*\\] ([0-9a-fA-F]+) into ([0-9a-fA-F]+)";
+
+  private final String displayName;
+  private final StashTriggerConfig config;
+  private final Pattern statusMarkerPattern;
+
+  StashCommentClassifier(@Nullable String displayName, @Nonnull StashTriggerConfig config) {
+    this.displayName = StringUtils.defaultString(displayName);
+    this.config = config;
+
+    String statuses = String.join("|", BUILD_QUEUED, BUILD_STARTED, BUILD_FINISHED, BUILD_CANCELED);
+    this.statusMarkerPattern =
+        Pattern.compile(
+            String.format(STATUS_MARKER_REGEX, statuses, Pattern.quote(this.displayName)),
+            Pattern.CASE_INSENSITIVE);
+  }
+
+  /**
+   * Checks whether the classifier was built for the given settings
+   *
+   * @param displayName job display name
+   * @param config trigger settings
+   * @return true if the classifier can be reused for the settings
+   */
+  boolean isFor(@Nullable String displayName, @Nonnull StashTriggerConfig config) {
+    return this.config == config && this.displayName.equals(StringUtils.defaultString(displayName));
+  }
+
+  /**
+   * Classifies a comment
+   *
+   * @param content comment text
+   * @return classification, the empty text has no classes
+   */
+  @Nonnull
+  Classification classify(@Nullable String content) {
+    if (StringUtils.isEmpty(content)) {
+      return new Classification("", null, false, false);
+    }
+    return new Classification(
+        content,
+        findStatusMarker(content),
+        isSkipPhrase(content),
+        StringUtils.startsWithIgnoreCase(content, config.getBuildPhrase()));
+  }
+
+  /**
+   * Checks whether the text is a status posted by the job
+   *
+   * @param content comment text
+   * @return true if the text has a status marker for the job
+   */
+  boolean isStatusMessage(@Nullable String content) {
+    return StringUtils.isNotEmpty(content) && findStatusMarker(content) != null;
+  }
+
+  /**
+   * Checks whether the text contains any skip phrase, ignoring case
+   *
+   * @param content text, such as a comment or a pull request title
+   * @return true if a skip phrase is found
+   */
+  boolean isSkipPhrase(@Nullable String content) {
+    return config.getSkipPhraseMatcher().matches(content);
+  }
+
+  @CheckForNull
+  private StatusMarker findStatusMarker(String content) {
+    Matcher matcher = statusMarkerPattern.matcher(content);
+    if (!matcher.find()) {
+      return null;
+    }
+    return new StatusMarker(matcher.group(1), matcher.group(2), matcher.group(3));
+  }
+
+  /** Build status marker found in a comment. */
+  static final class StatusMarker {
+    private final String status;
+    private final String sourceCommit;
+    private final String destinationCommit;
+
+    private StatusMarker(String status, String sourceCommit, String destinationCommit) {
+      this.status = status;
+      this.sourceCommit = sourceCommit;
+      this.destinationCommit = destinationCommit;
+    }
+
+    @Nonnull
+    String getStatus() {
+      return status;
+    }
+
+    @Nonnull
+    String getSourceCommit() {
+      return sourceCommit;
+    }
+
+    @Nonnull
+    String getDestinationCommit() {
+      return destinationCommit;
+    }
+
+    boolean isStatus(String expectedStatus) {
+      return status.equalsIgnoreCase(expectedStatus);
+    }
+  }
+
+  /** Classes of a comment, the parameters are parsed only when asked for. */
+  static final class Classification {
+    private final String content;
+    private final StatusMarker statusMarker;
+    private final boolean skipPhrase;
+    private final boolean buildPhrase;
+
+    private Classification(
+        String content,
+        @Nullable StatusMarker statusMarker,
+        boolean skipPhrase,
+        boolean buildPhrase) {
+      this.content = content;
+      this.statusMarker = statusMarker;
+      this.skipPhrase = skipPhrase;
+      this.buildPhrase = buildPhrase;
+    }
+
+    @CheckForNull
+    StatusMarker getStatusMarker() {
+      return statusMarker;
+    }
+
+    boolean isSkipPhrase() {
+      return skipPhrase;
+    }
+
+    boolean isBuildPhrase() {
+      return buildPhrase;
+    }
+
+    /** @return true if the comment has any class, so its text matters to the job */
+    boolean isClassified() {
+      return statusMarker != null || skipPhrase || buildPhrase;
+    }
+
+    @Nonnull
+    Map<String, String> getParameters() {
+      if (content.isEmpty()) {
+        return new TreeMap<>();
+      }
+      return StashRepository.getParametersFromContent(content);
+    }
+  }
+}
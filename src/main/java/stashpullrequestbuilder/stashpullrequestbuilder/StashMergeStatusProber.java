@@ -0,0 +1,257 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static java.lang.String.format;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestMergeableResponse;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValue;
+
+/**
+ * Merge status requests to a Bitbucket Server, remembered per pair of commits and rate limited.
+ *
+ * <p>Requesting the merge status of a pull request makes the server update its refs, which runs
+ * git on the server. The result only changes when the source or the target branch moves, so it's
+ * remembered for the commits of the pull request, and no job polling the server probes the pull
+ * request again until one of the commits changes. Probes are queued and sent in the background,
+ * one at a time and at most one every {@link #PROBE_INTERVAL_MILLIS} for each server. Merge
+ * statuses requested by the jobs directly are remembered the same way.
+ */
+final class StashMergeStatusProber {
+  private static final Logger logger =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  // Minimum time between two probes sent to the same server
+  static final long PROBE_INTERVAL_MILLIS =
+      Long.getLong(StashMergeStatusProber.class.getName() + ".probeIntervalMillis", 500);
+
+  // Number of pull request commits remembered for every server, the oldest
+  // are forgotten first
+  private static final int MAX_REMEMBERED = 10000;
+
+  // Threads sending the probes, shared by all servers. Every server has at
+  // most one probe scheduled at a time.
+  private static final int PROBE_THREADS = 2;
+
+  // Probers are kept for the lifetime of Jenkins, there is one per server
+  private static final Map<String, StashMergeStatusProber> probers = new HashMap<>();
+  private static ScheduledExecutorService sharedExecutor;
+
+  /** Request of the merge status from the server. */
+  interface Request {
+    @Nonnull
+    StashPullRequestMergeableResponse send() throws StashApiException;
+  }
+
+  private final ScheduledExecutorService executor;
+  private final long intervalMillis;
+  private final LongSupplier clock;
+
+  // Conflicted state by pull request commits
+  private final Map<Key, Boolean> remembered =
+      new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+          return size() > MAX_REMEMBERED;
+        }
+      };
+
+  // Probes waiting to be sent, in the order they were queued
+  private final Map<Key, Request> pending = new LinkedHashMap<>();
+  private boolean scheduled;
+  private long lastProbeMillis;
+
+  StashMergeStatusProber(
+      @Nonnull ScheduledExecutorService executor, long intervalMillis, LongSupplier clock) {
+    this.executor = executor;
+    this.intervalMillis = intervalMillis;
+    this.clock = clock;
+    this.lastProbeMillis = clock.getAsLong() - intervalMillis;
+  }
+
+  /**
+   * Gets the prober shared by all jobs polling a server
+   *
+   * @param stashHost Bitbucket Server URL
+   * @return prober
+   */
+  @Nonnull
+  static StashMergeStatusProber forHost(@Nullable String stashHost) {
+    String host =
+        StringUtils.stripEnd(
+            StringUtils.defaultString(stashHost).trim().toLowerCase(Locale.ROOT), "/");
+    synchronized (probers) {
+      if (sharedExecutor == null) {
+        sharedExecutor = createExecutor();
+      }
+      return probers.computeIfAbsent(
+          host,
+          h ->
+              new StashMergeStatusProber(
+                  sharedExecutor, PROBE_INTERVAL_MILLIS, System::currentTimeMillis));
+    }
+  }
+
+  @Nonnull
+  private static ScheduledExecutorService createExecutor() {
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(
+            PROBE_THREADS,
+            new ExceptionCatchingThreadFactory(
+                new NamingThreadFactory(new DaemonThreadFactory(), "StashMergeStatusProber")));
+    // Don't keep threads around while there is nothing to probe
+    executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Gets the conflicted state remembered for the commits of a pull request
+   *
+   * @param key pull request commits
+   * @return true if the pull request has conflicts, null if its merge status is not known for
+   *     these commits
+   */
+  @CheckForNull
+  synchronized Boolean getConflicted(@Nonnull Key key) {
+    return remembered.get(key);
+  }
+
+  /**
+   * Remembers the merge status requested for the commits of a pull request
+   *
+   * @param key pull request commits
+   * @param mergeStatus merge status
+   */
+  synchronized void remember(
+      @Nonnull Key key, @Nonnull StashPullRequestMergeableResponse mergeStatus) {
+    remembered.put(key, Boolean.TRUE.equals(mergeStatus.getConflicted()));
+  }
+
+  /**
+   * Queues a probe, unless the pull request has been probed or queued with the same commits
+   *
+   * <p>The probe is sent in the background. If it fails, it's not retried until the pull request is
+   * probed again.
+   *
+   * @param key pull request commits
+   * @param request sends the probe
+   * @return true if the probe was queued
+   */
+  synchronized boolean probe(@Nonnull Key key, @Nonnull Request request) {
+    if (remembered.containsKey(key) || pending.containsKey(key)) {
+      return false;
+    }
+    pending.put(key, request);
+    if (!scheduled) {
+      scheduled = true;
+      long delayMillis = Math.max(0, lastProbeMillis + intervalMillis - clock.getAsLong());
+      executor.schedule(this::probeNext, delayMillis, TimeUnit.MILLISECONDS);
+    }
+    return true;
+  }
+
+  /** @return number of probes waiting to be sent */
+  synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  private void probeNext() {
+    Map.Entry<Key, Request> next;
+    synchronized (this) {
+      Iterator<Map.Entry<Key, Request>> iterator = pending.entrySet().iterator();
+      next = iterator.next();
+      iterator.remove();
+    }
+
+    try {
+      remember(next.getKey(), next.getValue().send());
+    } catch (StashApiException | RuntimeException e) {
+      logger.log(Level.FINE, format("Cannot probe merge status of %s", next.getKey()), e);
+    } finally {
+      synchronized (this) {
+        lastProbeMillis = clock.getAsLong();
+        if (pending.isEmpty()) {
+          scheduled = false;
+        } else {
+          executor.schedule(this::probeNext, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+  }
+
+  /** Identifies a pull request by its repository, ID, source commit and destination commit. */
+  static final class Key {
+    private final StashTriggerRegistry.Key repositoryKey;
+    private final String pullRequestId;
+    private final String fromCommit;
+    private final String toCommit;
+
+    private Key(
+        StashTriggerRegistry.Key repositoryKey,
+        String pullRequestId,
+        String fromCommit,
+        String toCommit) {
+      this.repositoryKey = repositoryKey;
+      this.pullRequestId = pullRequestId;
+      this.fromCommit = fromCommit;
+      this.toCommit = toCommit;
+    }
+
+    @Nonnull
+    static Key of(
+        @Nonnull StashTriggerRegistry.Key repositoryKey,
+        @Nonnull StashPullRequestResponseValue pullRequest) {
+      return new Key(
+          repositoryKey,
+          pullRequest.getId(),
+          pullRequest.getFromRef().getLatestCommit(),
+          pullRequest.getToRef().getLatestCommit());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return repositoryKey.equals(other.repositoryKey)
+          && Objects.equals(pullRequestId, other.pullRequestId)
+          && Objects.equals(fromCommit, other.fromCommit)
+          && Objects.equals(toCommit, other.toCommit);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(repositoryKey, pullRequestId, fromCommit, toCommit);
+    }
+
+    @Override
+    public String toString() {
+      return format(
+          "%s pull request %s (%s into %s)", repositoryKey, pullRequestId, fromCommit, toCommit);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Finds whether a text contains any of a set of phrases, ignoring case.
+ *
+ * <p>The phrases are compiled into an Aho-Corasick automaton, so a text is scanned once no matter
+ * how many phrases there are. Characters are compared the way {@link
+ * String#regionMatches(boolean, int, String, int, int)} compares them when ignoring case. The
+ * matcher is immutable and can be shared between threads.
+ */
+final class StashPhraseMatcher {
+  private static final int ROOT = 0;
+
+  // An empty phrase is contained in any text
+  private final boolean matchesAnyText;
+
+  // Transitions of every state, sorted by character
+  private final char[][] transitionChars;
+  private final int[][] transitionStates;
+  private final int[] failureStates;
+  private final boolean[] matchingStates;
+
+  private StashPhraseMatcher(
+      boolean matchesAnyText,
+      char[][] transitionChars,
+      int[][] transitionStates,
+      int[] failureStates,
+      boolean[] matchingStates) {
+    this.matchesAnyText = matchesAnyText;
+    this.transitionChars = transitionChars;
+    this.transitionStates = transitionStates;
+    this.failureStates = failureStates;
+    this.matchingStates = matchingStates;
+  }
+
+  /**
+   * Compiles comma separated phrases, surrounding whitespace is not part of the phrases
+   *
+   * @param phrases comma separated phrases, may be empty
+   * @return matcher
+   */
+  @Nonnull
+  static StashPhraseMatcher compile(@Nullable String phrases) {
+    List<String> phraseList = new ArrayList<>();
+    if (StringUtils.isNotEmpty(phrases)) {
+      for (String phrase : phrases.split(",")) {
+        phraseList.add(phrase.trim());
+      }
+    }
+    return compile(phraseList);
+  }
+
+  /**
+   * Compiles the phrases
+   *
+   * @param phrases phrases
+   * @return matcher
+   */
+  @Nonnull
+  static StashPhraseMatcher compile(@Nonnull Collection<String> phrases) {
+    // Build the trie of the phrases
+    List<Map<Character, Integer>> transitions = new ArrayList<>();
+    List<Boolean> matching = new ArrayList<>();
+    transitions.add(new TreeMap<>());
+    matching.add(false);
+    boolean matchesAnyText = false;
+    for (String phrase : phrases) {
+      if (phrase.isEmpty()) {
+        matchesAnyText = true;
+        continue;
+      }
+      int state = ROOT;
+      for (int i = 0; i < phrase.length(); i++) {
+        Character c = fold(phrase.charAt(i));
+        Integer next = transitions.get(state).get(c);
+        if (next == null) {
+          next = transitions.size();
+          transitions.add(new TreeMap<>());
+          matching.add(false);
+          transitions.get(state).put(c, next);
+        }
+        state = next;
+      }
+      matching.set(state, true);
+    }
+
+    int stateCount = transitions.size();
+    char[][] transitionChars = new char[stateCount][];
+    int[][] transitionStates = new int[stateCount][];
+    boolean[] matchingStates = new boolean[stateCount];
+    for (int state = 0; state < stateCount; state++) {
+      Map<Character, Integer> stateTransitions = transitions.get(state);
+      transitionChars[state] = new char[stateTransitions.size()];
+      transitionStates[state] = new int[stateTransitions.size()];
+      int i = 0;
+      for (Map.Entry<Character, Integer> transition : stateTransitions.entrySet()) {
+        transitionChars[state][i] = transition.getKey();
+        transitionStates[state][i] = transition.getValue();
+        i++;
+      }
+      matchingStates[state] = matching.get(state);
+    }
+
+    StashPhraseMatcher matcher =
+        new StashPhraseMatcher(
+            matchesAnyText,
+            transitionChars,
+            transitionStates,
+            new int[stateCount],
+            matchingStates);
+    matcher.computeFailureStates();
+    return matcher;
+  }
+
+  /**
+   * Checks whether the text contains any phrase
+   *
+   * @param text text, such as a comment or a pull request title
+   * @return true if a phrase is found, false for the empty text
+   */
+  boolean matches(@Nullable String text) {
+    if (StringUtils.isEmpty(text)) {
+      return false;
+    }
+    if (matchesAnyText) {
+      return true;
+    }
+
+    int state = ROOT;
+    for (int i = 0; i < text.length(); i++) {
+      state = step(state, fold(text.charAt(i)));
+      if (matchingStates[state]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Links every state to the state for its longest proper suffix in the
+  // trie, states are visited breadth first so that the links of the shorter
+  // prefixes are known
+  private void computeFailureStates() {
+    Deque<Integer> queue = new ArrayDeque<>();
+    for (int next : transitionStates[ROOT]) {
+      failureStates[next] = ROOT;
+      queue.add(next);
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.remove();
+      for (int i = 0; i < transitionChars[state].length; i++) {
+        char c = transitionChars[state][i];
+        int next = transitionStates[state][i];
+        int failure = step(failureStates[state], c);
+        failureStates[next] = failure;
+        matchingStates[next] |= matchingStates[failure];
+        queue.add(next);
+      }
+    }
+  }
+
+  private int step(int state, char c) {
+    while (true) {
+      int index = Arrays.binarySearch(transitionChars[state], c);
+      if (index >= 0) {
+        return transitionStates[state][index];
+      }
+      if (state == ROOT) {
+        return ROOT;
+      }
+      state = failureStates[state];
+    }
+  }
+
+  private static char fold(char c) {
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+}
@@ -0,0 +1,292 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static java.lang.String.format;
+
+import java.lang.invoke.MethodHandles;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Shares the polling threads between the Bitbucket Servers polled by the jobs.
+ *
+ * <p>All polls run in the shared pool of {@link
+ * StashBuildTrigger.DescriptorImpl#getExecutorService()}. A thread is kept for every server polled
+ * by a job that has no poll running, so a server that stops responding can hold up its own polls,
+ * but never the first poll of any other server. The other threads go to whichever server needs
+ * them, up to an optional limit per server. Polls that cannot run yet wait in the queue of their
+ * server rather than in the pool, and a poll already waiting is not queued twice. A server with
+ * polls waiting for a thread is reported as saturated.
+ *
+ * <p>With a single server, all threads can be used by its polls.
+ */
+final class StashPollBulkhead {
+  private static final Logger logger =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  private final Executor executor;
+  private final int poolSize;
+  private final LongSupplier clock;
+
+  // Guarded by this
+  private int threadsPerServer;
+  private int running;
+  private final Map<String, Server> servers = new LinkedHashMap<>();
+
+  /**
+   * Creates a bulkhead for a pool
+   *
+   * @param executor shared pool
+   * @param poolSize number of threads in the shared pool
+   * @param threadsPerServer polls of a server that may run at the same time, 0 for no limit
+   * @param clock source of the current time in milliseconds
+   */
+  StashPollBulkhead(
+      @Nonnull Executor executor, int poolSize, int threadsPerServer, @Nonnull LongSupplier clock) {
+    this.executor = executor;
+    this.poolSize = Math.max(poolSize, 1);
+    this.threadsPerServer = Math.max(threadsPerServer, 0);
+    this.clock = clock;
+  }
+
+  @Nonnull
+  private static String normalizeHost(@Nullable String stashHost) {
+    return StringUtils.stripEnd(
+        StringUtils.defaultString(stashHost).trim().toLowerCase(Locale.ROOT), "/");
+  }
+
+  /**
+   * Changes the number of threads every server may use
+   *
+   * @param threadsPerServer polls of a server that may run at the same time, 0 for no limit
+   */
+  void setThreadsPerServer(int threadsPerServer) {
+    synchronized (this) {
+      this.threadsPerServer = Math.max(threadsPerServer, 0);
+    }
+    // Polls waiting for a thread may be able to run now
+    startWaiting();
+  }
+
+  /**
+   * Records a job polling a server, so that a thread is kept for the server
+   *
+   * @param stashHost Bitbucket Server URL
+   */
+  synchronized void register(@Nullable String stashHost) {
+    servers.computeIfAbsent(normalizeHost(stashHost), Server::new).jobs++;
+  }
+
+  /**
+   * Records a job no longer polling a server
+   *
+   * @param stashHost Bitbucket Server URL
+   */
+  void unregister(@Nullable String stashHost) {
+    synchronized (this) {
+      Server server = servers.get(normalizeHost(stashHost));
+      if (server == null) {
+        return;
+      }
+      server.jobs = Math.max(server.jobs - 1, 0);
+      removeIfUnused(server);
+    }
+    // The thread kept for the server can be used by other servers
+    startWaiting();
+  }
+
+  /**
+   * Runs a poll of a server in the shared pool, or queues it if it cannot run yet
+   *
+   * @param stashHost Bitbucket Server URL
+   * @param key identifies the poll, a poll with the same key already waiting makes it unnecessary
+   * @param task poll
+   * @return false if the same poll is already waiting, so the task was dropped
+   * @throws RejectedExecutionException if the pool does not accept the poll
+   */
+  boolean execute(@Nullable String stashHost, @Nonnull Object key, @Nonnull Runnable task) {
+    Server server;
+    synchronized (this) {
+      server = servers.computeIfAbsent(normalizeHost(stashHost), Server::new);
+      if (server.waiting.containsKey(key)) {
+        return false;
+      }
+      // Polls of a server run in the order they were requested
+      if (!server.waiting.isEmpty() || !canStart(server)) {
+        server.waiting.put(key, task);
+        if (server.saturatedSinceMillis == 0) {
+          server.saturatedSinceMillis = clock.getAsLong();
+        }
+        return true;
+      }
+      server.running++;
+      running++;
+    }
+    submit(server, task);
+    return true;
+  }
+
+  // Checks whether a poll of the server can take a thread now
+  private boolean canStart(Server server) {
+    if (running >= poolSize) {
+      return false;
+    }
+    if (threadsPerServer > 0 && server.running >= threadsPerServer) {
+      return false;
+    }
+    // The thread kept for the server
+    if (server.running == 0) {
+      return true;
+    }
+    return poolSize - running > getReservedFor(server);
+  }
+
+  // Counts the threads kept for the servers other than the given one
+  private int getReservedFor(Server server) {
+    int reserved = 0;
+    for (Server other : servers.values()) {
+      if (other != server && other.running == 0 && other.isPolled()) {
+        reserved++;
+      }
+    }
+    return reserved;
+  }
+
+  private void submit(Server server, Runnable task) {
+    try {
+      executor.execute(() -> runAndContinue(server, task));
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        server.running--;
+        running--;
+        removeIfUnused(server);
+      }
+      throw e;
+    }
+  }
+
+  // Runs a poll, then the polls that can use the thread it leaves
+  private void runAndContinue(Server server, Runnable task) {
+    try {
+      task.run();
+    } finally {
+      synchronized (this) {
+        server.running--;
+        running--;
+        removeIfUnused(server);
+      }
+      startWaiting();
+    }
+  }
+
+  // Starts the waiting polls that can run, taking turns between servers
+  private void startWaiting() {
+    List<Map.Entry<Server, Runnable>> polls = new ArrayList<>();
+    synchronized (this) {
+      Server next;
+      while ((next = findStartable()) != null) {
+        Iterator<Runnable> waiting = next.waiting.values().iterator();
+        polls.add(new SimpleImmutableEntry<>(next, waiting.next()));
+        waiting.remove();
+        if (next.waiting.isEmpty()) {
+          next.saturatedSinceMillis = 0;
+        }
+        next.running++;
+        running++;
+        // The server gets its next turn after the others
+        servers.remove(next.host);
+        servers.put(next.host, next);
+      }
+    }
+
+    for (Map.Entry<Server, Runnable> poll : polls) {
+      try {
+        submit(poll.getKey(), poll.getValue());
+      } catch (RejectedExecutionException e) {
+        logger.log(Level.FINE, format("Cannot run waiting poll of %s", poll.getKey().host), e);
+      }
+    }
+  }
+
+  private Server findStartable() {
+    for (Server server : servers.values()) {
+      if (!server.waiting.isEmpty() && canStart(server)) {
+        return server;
+      }
+    }
+    return null;
+  }
+
+  private void removeIfUnused(Server server) {
+    if (server.jobs == 0 && server.running == 0 && server.waiting.isEmpty()) {
+      servers.remove(server.host);
+    }
+  }
+
+  /** @return current state of all servers that have polls waiting for a thread */
+  @Nonnull
+  synchronized List<StashPollBulkheadStatus> getSaturated() {
+    List<StashPollBulkheadStatus> saturated = new ArrayList<>();
+    for (Server server : servers.values()) {
+      if (!server.waiting.isEmpty()) {
+        saturated.add(getStatus(server));
+      }
+    }
+    return saturated;
+  }
+
+  /**
+   * Gets the state of the polls of a server
+   *
+   * @param stashHost Bitbucket Server URL
+   * @return current state
+   */
+  @Nonnull
+  synchronized StashPollBulkheadStatus getStatus(@Nullable String stashHost) {
+    String host = normalizeHost(stashHost);
+    Server server = servers.get(host);
+    return getStatus(server != null ? server : new Server(host));
+  }
+
+  private StashPollBulkheadStatus getStatus(Server server) {
+    int limit = Math.max(poolSize - getReservedFor(server), 1);
+    if (threadsPerServer > 0) {
+      limit = Math.min(limit, threadsPerServer);
+    }
+    return new StashPollBulkheadStatus(
+        server.host,
+        limit,
+        server.running,
+        server.waiting.size(),
+        server.saturatedSinceMillis == 0 ? 0 : clock.getAsLong() - server.saturatedSinceMillis);
+  }
+
+  /** Polls of one server, guarded by the bulkhead. */
+  private static final class Server {
+    private final String host;
+    private int jobs;
+    private int running;
+    private final Map<Object, Runnable> waiting = new LinkedHashMap<>();
+    private long saturatedSinceMillis;
+
+    private Server(String host) {
+      this.host = host;
+    }
+
+    private boolean isPolled() {
+      return jobs > 0 || !waiting.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import hudson.Extension;
+import hudson.model.AdministrativeMonitor;
+import java.util.List;
+
+/** Shows a warning in "Manage Jenkins" while polls of a server wait for a polling thread. */
+@Extension
+public class StashPollBulkheadMonitor extends AdministrativeMonitor {
+
+  @Override
+  public String getDisplayName() {
+    return "Bitbucket Server polling threads";
+  }
+
+  @Override
+  public boolean isActivated() {
+    return !getSaturated().isEmpty();
+  }
+
+  public List<StashPollBulkheadStatus> getSaturated() {
+    return StashBuildTrigger.descriptor.getPollBulkhead().getSaturated();
+  }
+}
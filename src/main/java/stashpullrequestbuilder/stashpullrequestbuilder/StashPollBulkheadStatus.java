@@ -0,0 +1,64 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import hudson.Util;
+
+/** State of the polling threads used by the jobs polling a Bitbucket Server */
+public final class StashPollBulkheadStatus {
+  private final String host;
+  private final int limit;
+  private final int running;
+  private final int waiting;
+  private final long saturatedMillis;
+
+  StashPollBulkheadStatus(String host, int limit, int running, int waiting, long saturatedMillis) {
+    this.host = host;
+    this.limit = limit;
+    this.running = running;
+    this.waiting = waiting;
+    this.saturatedMillis = saturatedMillis;
+  }
+
+  /** @return server URL */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return number of polls of the server that may run at the same time now, which leaves a
+   *     thread for every other server that has no poll running
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /** @return number of polls of the server running now */
+  public int getRunning() {
+    return running;
+  }
+
+  /** @return number of polls of the server waiting for a thread */
+  public int getWaiting() {
+    return waiting;
+  }
+
+  /** @return true if polls of the server are waiting for a thread */
+  public boolean isSaturated() {
+    return waiting > 0;
+  }
+
+  /** @return time polls of the server have been waiting for a thread, 0 if none are waiting */
+  public long getSaturatedMillis() {
+    return saturatedMillis;
+  }
+
+  /** @return description of the state for the user interface */
+  @Override
+  public String toString() {
+    if (!isSaturated()) {
+      return String.format("%s: %d of %d polling threads in use", host, running, limit);
+    }
+    return String.format(
+        "%s: %d of %d polling threads in use, %d polls waiting for %s",
+        host, running, limit, waiting, Util.getTimeSpanString(saturatedMillis));
+  }
+}
@@ -5,6 +5,8 @@ import hudson.model.Action;
 import hudson.model.Job;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import javax.annotation.CheckForNull;
+import jenkins.model.ParameterizedJobMixIn;
 import org.apache.commons.jelly.XMLOutput;
 import org.slf4j.helpers.FormattingTuple;
 import org.slf4j.helpers.MessageFormatter;
@@ -14,13 +16,15 @@ import org.xml.sax.SAXException;
  * Add "Polling Log" item to the project menu.
  *
  * <p>The class provides a method to log messages and exceptions that supports slf4j
- * MessageFormatter patterns.
+ * MessageFormatter patterns. Messages logged by tasks running in parallel can be captured
+ * separately and added to the log in a fixed order.
  */
 public class StashPollingAction implements Action {
 
   private final Job<?, ?> owner;
   private StringWriter stringWriter;
   private PrintWriter printWriter;
+  private final ThreadLocal<PrintWriter> capturingWriter = new ThreadLocal<>();
 
   public StashPollingAction(final Job<?, ?> job) {
     this.owner = job;
@@ -47,18 +51,66 @@ public class StashPollingAction implements Action {
     return owner;
   }
 
+  /** @return state of the polling threads of the job's server if its polls are waiting, or null */
+  @CheckForNull
+  public StashPollBulkheadStatus getSaturatedServer() {
+    StashBuildTrigger trigger = ParameterizedJobMixIn.getTrigger(owner, StashBuildTrigger.class);
+    if (trigger == null) {
+      return null;
+    }
+    StashPollBulkheadStatus status =
+        StashBuildTrigger.descriptor.getPollBulkhead().getStatus(trigger.getStashHost());
+    return status.isSaturated() ? status : null;
+  }
+
   public void log(String pattern, Object... arguments) {
     FormattingTuple tuple = MessageFormatter.arrayFormat(pattern, arguments);
 
+    PrintWriter writer = capturingWriter.get();
+    if (writer == null) {
+      writer = printWriter;
+    }
+
     String logEntry = tuple.getMessage();
-    printWriter.println(logEntry);
+    writer.println(logEntry);
 
     Throwable throwable = tuple.getThrowable();
     if (throwable != null) {
-      Functions.printStackTrace(throwable, printWriter);
+      Functions.printStackTrace(throwable, writer);
     }
   }
 
+  /**
+   * Runs a task, keeping the messages it logs in the current thread out of the log
+   *
+   * @param task task to run
+   * @return messages logged by the task, to be added by {@link #appendCapturedLog(String)}
+   */
+  public String captureLog(Runnable task) {
+    PrintWriter previousWriter = capturingWriter.get();
+    StringWriter capturedLog = new StringWriter();
+    capturingWriter.set(new PrintWriter(capturedLog));
+    try {
+      task.run();
+    } finally {
+      if (previousWriter != null) {
+        capturingWriter.set(previousWriter);
+      } else {
+        capturingWriter.remove();
+      }
+    }
+    return capturedLog.toString();
+  }
+
+  /**
+   * Adds messages returned by {@link #captureLog(Runnable)} to the log
+   *
+   * @param capturedLog captured messages
+   */
+  public void appendCapturedLog(String capturedLog) {
+    printWriter.print(capturedLog);
+  }
+
   public void resetLog() {
     printWriter.flush();
     stringWriter.getBuffer().setLength(0);
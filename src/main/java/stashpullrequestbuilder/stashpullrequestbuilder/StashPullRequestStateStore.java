@@ -0,0 +1,293 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static java.lang.String.format;
+
+import hudson.util.AtomicFileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Per-job state of the pull requests, kept across Jenkins restarts.
+ *
+ * <p>For every open pull request, the store keeps the fingerprint recorded when the pull request
+ * was last found not to need a build, the fingerprint of its comments when they were last found
+ * not to ask for a build, and the IDs of the build command comments for which builds have been
+ * queued. The fingerprints are only valid for the trigger configuration they were
+ * recorded with, so they are discarded whenever the store is used after the configuration has
+ * changed, whether it changed while Jenkins was down or while the job is running.
+ *
+ * <p>The state is read from a compact binary file in the job directory on first use, and written
+ * back by {@link #save()} if it has changed.
+ */
+class StashPullRequestStateStore {
+  private static final Logger logger =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  static final String FILE_NAME = "stash-pull-request-state.bin";
+
+  private static final int MAGIC = 0x53505253; // "SPRS"
+  private static final int FORMAT_VERSION = 2;
+
+  private final File file;
+  private final Supplier<String> configurationDigest;
+  private Map<String, PullRequestState> states;
+  // Digest of the configuration the fingerprints were recorded with
+  private String configuration;
+  private boolean dirty;
+
+  /**
+   * Creates the store, nothing is read until the store is used
+   *
+   * @param file state file
+   * @param configurationDigest provides a string that changes if the trigger configuration
+   *     affecting the build decisions changes
+   */
+  StashPullRequestStateStore(@Nonnull File file, @Nonnull Supplier<String> configurationDigest) {
+    this.file = file;
+    this.configurationDigest = configurationDigest;
+  }
+
+  /**
+   * Checks whether the pull request was found not to need a build with the same fingerprint
+   *
+   * @param pullRequestId pull request ID
+   * @param fingerprint current fingerprint of the pull request
+   * @return true if the pull request is unchanged since the decision not to build it
+   */
+  synchronized boolean isUnchanged(String pullRequestId, String fingerprint) {
+    PullRequestState state = getStates().get(pullRequestId);
+    return state != null && fingerprint.equals(state.unchangedFingerprint);
+  }
+
+  /**
+   * Records the fingerprint of a pull request that doesn't need a build
+   *
+   * @param pullRequestId pull request ID
+   * @param fingerprint current fingerprint of the pull request
+   */
+  synchronized void setUnchanged(String pullRequestId, String fingerprint) {
+    PullRequestState state = getOrCreateState(pullRequestId);
+    if (!fingerprint.equals(state.unchangedFingerprint)) {
+      state.unchangedFingerprint = fingerprint;
+      dirty = true;
+    }
+  }
+
+  /**
+   * Forgets the fingerprints of a pull request, so that it's checked during the next poll
+   *
+   * @param pullRequestId pull request ID
+   */
+  synchronized void forgetUnchanged(String pullRequestId) {
+    PullRequestState state = getStates().get(pullRequestId);
+    if (state == null) {
+      return;
+    }
+    if (state.unchangedFingerprint != null || state.commentsFingerprint != null) {
+      state.unchangedFingerprint = null;
+      state.commentsFingerprint = null;
+      dirty = true;
+    }
+  }
+
+  /**
+   * Checks whether the comments were found not to ask for a build with the same fingerprint
+   *
+   * @param pullRequestId pull request ID
+   * @param commentsFingerprint current fingerprint of the pull request comments
+   * @return true if the comments are unchanged since the decision not to build the pull request
+   */
+  synchronized boolean isCommentsUnchanged(String pullRequestId, String commentsFingerprint) {
+    PullRequestState state = getStates().get(pullRequestId);
+    return state != null && commentsFingerprint.equals(state.commentsFingerprint);
+  }
+
+  /**
+   * Records the fingerprint of the comments of a pull request, forgotten with the other fingerprint
+   * by {@link #forgetUnchanged}
+   *
+   * @param pullRequestId pull request ID
+   * @param commentsFingerprint current fingerprint of the pull request comments
+   */
+  synchronized void setCommentsUnchanged(String pullRequestId, String commentsFingerprint) {
+    PullRequestState state = getOrCreateState(pullRequestId);
+    if (!commentsFingerprint.equals(state.commentsFingerprint)) {
+      state.commentsFingerprint = commentsFingerprint;
+      dirty = true;
+    }
+  }
+
+  /**
+   * Records that a build has been queued for a build command comment
+   *
+   * @param pullRequestId pull request ID
+   * @param commentId build command comment ID
+   */
+  synchronized void addHandledBuildCommand(String pullRequestId, int commentId) {
+    PullRequestState state = getOrCreateState(pullRequestId);
+    if (state.handledBuildCommands.add(commentId)) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Checks whether a build has been queued for a build command comment
+   *
+   * @param pullRequestId pull request ID
+   * @param commentId build command comment ID, may be null
+   * @return true if a build has been queued for the comment
+   */
+  synchronized boolean isHandledBuildCommand(String pullRequestId, @Nullable Integer commentId) {
+    PullRequestState state = getStates().get(pullRequestId);
+    return state != null && commentId != null && state.handledBuildCommands.contains(commentId);
+  }
+
+  /**
+   * Discards the state of pull requests not in the list, such as closed ones
+   *
+   * @param pullRequestIds IDs of the pull requests to keep
+   */
+  synchronized void retainAll(Collection<String> pullRequestIds) {
+    if (getStates().keySet().retainAll(pullRequestIds)) {
+      dirty = true;
+    }
+  }
+
+  /** Writes the state to disk if it has changed since it was loaded or saved. */
+  synchronized void save() {
+    if (!dirty) {
+      return;
+    }
+
+    try {
+      AtomicFileWriter writer = new AtomicFileWriter(file);
+      try {
+        // The state is binary, so it's written to the temporary file of the
+        // writer, which then replaces the state file as for the activity store
+        try (OutputStream outputStream = new FileOutputStream(writer.getTemporaryFile())) {
+          write(new DataOutputStream(new BufferedOutputStream(outputStream)));
+        }
+        writer.commit();
+        dirty = false;
+      } finally {
+        writer.abort();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, format("Cannot write %s", file), e);
+    }
+  }
+
+  @Nonnull
+  private Map<String, PullRequestState> getStates() {
+    String digest = configurationDigest.get();
+    if (states == null) {
+      states = load();
+    }
+    if (!digest.equals(configuration)) {
+      // The configuration has changed since the fingerprints were recorded
+      for (PullRequestState state : states.values()) {
+        if (state.unchangedFingerprint != null || state.commentsFingerprint != null) {
+          state.unchangedFingerprint = null;
+          state.commentsFingerprint = null;
+          dirty = true;
+        }
+      }
+      configuration = digest;
+    }
+    return states;
+  }
+
+  @Nonnull
+  private PullRequestState getOrCreateState(String pullRequestId) {
+    return getStates().computeIfAbsent(pullRequestId, id -> new PullRequestState());
+  }
+
+  @Nonnull
+  private Map<String, PullRequestState> load() {
+    Map<String, PullRequestState> loaded = new HashMap<>();
+    if (!file.exists()) {
+      return loaded;
+    }
+
+    try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+      int formatVersion = input.readInt() == MAGIC ? input.readInt() : -1;
+      if (formatVersion != FORMAT_VERSION) {
+        logger.warning(format("Unknown format of %s, discarding it", file));
+        return loaded;
+      }
+
+      String fileConfiguration = input.readUTF();
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        String pullRequestId = input.readUTF();
+        PullRequestState state = new PullRequestState();
+        state.unchangedFingerprint = input.readBoolean() ? input.readUTF() : null;
+        state.commentsFingerprint = input.readBoolean() ? input.readUTF() : null;
+        int handledCount = input.readInt();
+        for (int j = 0; j < handledCount; j++) {
+          state.handledBuildCommands.add(input.readInt());
+        }
+        loaded.put(pullRequestId, state);
+      }
+      configuration = fileConfiguration;
+      return loaded;
+    } catch (IOException e) {
+      // The store only saves requests to the server, starting over is safe
+      logger.log(Level.WARNING, format("Cannot read %s, discarding it", file), e);
+      return new HashMap<>();
+    }
+  }
+
+  private void write(DataOutputStream output) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(FORMAT_VERSION);
+    output.writeUTF(StringUtils.defaultString(configuration));
+    Map<String, PullRequestState> written = new HashMap<>(states);
+    written.remove(null);
+    output.writeInt(written.size());
+    for (Map.Entry<String, PullRequestState> entry : written.entrySet()) {
+      PullRequestState state = entry.getValue();
+      output.writeUTF(entry.getKey());
+      output.writeBoolean(state.unchangedFingerprint != null);
+      if (state.unchangedFingerprint != null) {
+        output.writeUTF(state.unchangedFingerprint);
+      }
+      output.writeBoolean(state.commentsFingerprint != null);
+      if (state.commentsFingerprint != null) {
+        output.writeUTF(state.commentsFingerprint);
+      }
+      output.writeInt(state.handledBuildCommands.size());
+      for (int commentId : state.handledBuildCommands) {
+        output.writeInt(commentId);
+      }
+    }
+    output.flush();
+  }
+
+  private static final class PullRequestState {
+    private String unchangedFingerprint;
+    private String commentsFingerprint;
+    private final Set<Integer> handledBuildCommands = new HashSet<>();
+  }
+}
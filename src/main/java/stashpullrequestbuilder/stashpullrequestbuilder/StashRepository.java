@@ -15,23 +15,37 @@ import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
+import java.io.File;
 import java.lang.invoke.MethodHandles;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import jenkins.model.Jenkins;
@@ -40,33 +54,42 @@ import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
 import org.apache.commons.lang.StringUtils;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.WriteSource;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashCommitBuildStats;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashCommitBuildStatus;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestActivityResponse;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestBuildTarget;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestComment;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestCommentIterator;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestMergeableResponse;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestProperties;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValue;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashRateLimiterStatistics;
 
 /** Created by Nathan McCarthy */
 public class StashRepository {
   private static final Logger logger =
       Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
-  private static final String BUILD_QUEUED_MESSAGE = "BuildQueued";
-  private static final String BUILD_START_MESSAGE = "BuildStarted";
-  private static final String BUILD_FINISH_MESSAGE = "BuildFinished";
-  private static final String BUILD_CANCEL_MESSAGE = "BuildCanceled";
-  private static final String[] BUILD_STATUSES = {
-    BUILD_QUEUED_MESSAGE, BUILD_START_MESSAGE, BUILD_FINISH_MESSAGE, BUILD_CANCEL_MESSAGE
-  };
+  private static final String BUILD_QUEUED_MESSAGE = StashCommentClassifier.BUILD_QUEUED;
+  private static final String BUILD_START_MESSAGE = StashCommentClassifier.BUILD_STARTED;
+  private static final String BUILD_FINISH_MESSAGE = StashCommentClassifier.BUILD_FINISHED;
+  private static final String BUILD_CANCEL_MESSAGE = StashCommentClassifier.BUILD_CANCELED;
   private static final String BUILD_MARKER = "[*%s* **%s**] %s into %s";
 
-  private static final String BUILD_STATUS_REGEX =
-      "\\[\\*%s\\* \\*\\*%s\\*\\*\\] ([0-9a-fA-F]+) into ([0-9a-fA-F]+)";
-
   private static final String BUILD_START_SENTENCE =
       " %n%n **[view build](%s)** - Build *&#x0023;%d*";
 
   private static final String BUILD_FINISH_SENTENCE =
       " %n%n **[%s](%s)** - Build *&#x0023;%d* which took *%s*";
 
+  // Build statuses record the commits as the markers in comments do
+  private static final String BUILD_STATUS_DESCRIPTION = "%s: %s into %s";
+  private static final Pattern BUILD_STATUS_COMMITS_PATTERN =
+      Pattern.compile(": ([0-9a-fA-F]+) into ([0-9a-fA-F]+)$");
+  private static final String BUILD_QUEUED_STATUS = "Build queued";
+  private static final String BUILD_STARTED_STATUS = "Build #%d started";
+  private static final String BUILD_FINISHED_STATUS = "%s - Build #%d which took %s";
+
   private static final String BUILD_SUCCESS_COMMENT = "✓ BUILD SUCCESS";
   private static final String BUILD_FAILURE_COMMENT = "✕ BUILD FAILURE";
   private static final String BUILD_UNSTABLE_COMMENT = "⁉ BUILD UNSTABLE";
@@ -76,6 +99,12 @@ public class StashRepository {
   private static final String ADDITIONAL_PARAMETER_REGEX = "^p:(([A-Za-z_0-9])+)=(.*)";
   private static final Pattern ADDITIONAL_PARAMETER_REGEX_PATTERN =
       Pattern.compile(ADDITIONAL_PARAMETER_REGEX);
+  private static final Pattern LINE_BREAK_PATTERN = Pattern.compile("\\r?\\n|\\r");
+
+  // Number of changed pull requests checked together. The build statuses of
+  // their commits are counted with one request, and their merge statuses are
+  // requested before the checks start.
+  private static final int CHECK_BATCH_SIZE = 100;
 
   private static final DateTimeFormatter TIMESTAMP_FORMATTER =
       DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss z");
@@ -84,42 +113,118 @@ public class StashRepository {
   private StashBuildTrigger trigger;
   private StashApiClient client;
   private StashPollingAction pollLog;
+  private StashActivityCursorStore activityStore;
+  private StashPullRequestStateStore stateStore;
+  private StashRepositorySnapshot snapshot;
+  private StashMergeStatusProber mergeStatusProber;
+  private volatile StashCommentClassifier commentClassifier;
+
+  // Serializes polls and single pull request checks, so that the same
+  // pull request is not evaluated twice at the same time
+  private final Object pollLock = new Object();
 
   public StashRepository(
       @Nonnull Job<?, ?> job,
       @Nonnull StashBuildTrigger trigger,
       StashApiClient client,
       StashPollingAction pollLog) {
+    this(job, trigger, client, pollLog, StashRepositorySnapshot.unshared());
+  }
+
+  StashRepository(
+      @Nonnull Job<?, ?> job,
+      @Nonnull StashBuildTrigger trigger,
+      StashApiClient client,
+      StashPollingAction pollLog,
+      @Nonnull StashRepositorySnapshot snapshot) {
+    this(
+        job,
+        trigger,
+        client,
+        pollLog,
+        snapshot,
+        StashMergeStatusProber.forHost(trigger.getStashHost()));
+  }
+
+  StashRepository(
+      @Nonnull Job<?, ?> job,
+      @Nonnull StashBuildTrigger trigger,
+      StashApiClient client,
+      StashPollingAction pollLog,
+      @Nonnull StashRepositorySnapshot snapshot,
+      @Nonnull StashMergeStatusProber mergeStatusProber) {
     this.job = job;
     this.trigger = trigger;
     this.client = client;
     this.pollLog = pollLog;
+    this.activityStore =
+        new StashActivityCursorStore(
+            new File(job.getRootDir(), StashActivityCursorStore.FILE_NAME),
+            this::getConfigurationDigest);
+    this.stateStore =
+        new StashPullRequestStateStore(
+            new File(job.getRootDir(), StashPullRequestStateStore.FILE_NAME),
+            this::getConfigurationDigest);
+    this.snapshot = snapshot;
+    this.mergeStatusProber = mergeStatusProber;
+  }
+
+  /** Releases the connection to the server, the repository cannot be polled afterwards. */
+  public void close() {
+    snapshot.release();
+    client.close();
   }
 
   public Collection<StashPullRequestResponseValue> getTargetPullRequests() {
+    List<StashPullRequestResponseValue> pullRequests = new ArrayList<>();
+    if (!forEachTargetPullRequest(pullRequests::add)) {
+      return new ArrayList<>();
+    }
+    return pullRequests;
+  }
+
+  /**
+   * Passes the open pull requests to the consumer as the pages of the list arrive
+   *
+   * @param consumer consumer of pull requests
+   * @return true if the whole list was fetched, false if fetching failed part way
+   */
+  private boolean forEachTargetPullRequest(Consumer<StashPullRequestResponseValue> consumer) {
     // Fetch "OPEN" pull requests from the server. Failure to get the list will
-    // prevent builds from being scheduled. However, the call will be retried
-    // during the next cycle, as determined by the cron settings.
+    // prevent builds from being scheduled for the pull requests not seen yet.
+    // However, the call will be retried during the next cycle, as determined
+    // by the cron settings.
+    List<String> pullRequestIds = new ArrayList<>();
     try {
-      return client.getPullRequests();
+      snapshot.forEachPullRequest(
+          pullRequest -> {
+            pullRequestIds.add(pullRequest.getId());
+            consumer.accept(pullRequest);
+          },
+          client::forEachPullRequest);
     } catch (StashApiException e) {
       pollLog.log("Cannot fetch pull request list", e);
       logger.log(Level.INFO, format("%s: cannot fetch pull request list", job.getFullName()), e);
-      return new ArrayList<>();
+      return false;
     }
+
+    // Forget pull requests that are no longer open
+    activityStore.retainAll(pullRequestIds);
+    stateStore.retainAll(pullRequestIds);
+    return true;
   }
 
-  private boolean shouldSkip(StashPullRequestResponseValue pullRequest) {
+  private boolean shouldSkip(StashPullRequestResponseValue pullRequest, StashTriggerConfig config) {
     if (!"OPEN".equals(pullRequest.getState())) {
       return true;
     }
 
-    if (isSkipBuild(pullRequest.getTitle())) {
+    if (config.getSkipPhraseMatcher().matches(pullRequest.getTitle())) {
       pollLog.log("Not building PR #{}, its title contains the skip phrase", pullRequest.getId());
       return true;
     }
 
-    if (!isForTargetBranch(pullRequest)) {
+    if (!config.isTargetBranch(pullRequest.getToRef().getBranch().getName())) {
       pollLog.log(
           "Not building PR #{} as it targets branch {}",
           pullRequest.getId(),
@@ -127,15 +232,23 @@ public class StashRepository {
       return true;
     }
 
+    return false;
+  }
+
+  private boolean shouldSkipForMergeStatus(
+      StashPullRequestResponseValue pullRequest,
+      StashTriggerConfig config,
+      @Nullable CompletableFuture<StashPullRequestMergeableResponse> mergeStatus) {
     // Check whether the pull request can be merged and whether it's in the
     // "conflicted" state. If that information cannot be retrieved, don't build
     // the pull request in this cycle.
     try {
-      if (!isPullRequestMergeable(pullRequest)) {
+      if (!isPullRequestMergeable(pullRequest, config, mergeStatus)) {
         pollLog.log("Not building PR #{} as it cannot be merged", pullRequest.getId());
         return true;
       }
     } catch (StashApiException e) {
+      forgetFingerprint(pullRequest);
       pollLog.log("Cannot determine if PR #{} can be merged, not building", pullRequest.getId(), e);
       logger.log(
           Level.INFO,
@@ -149,52 +262,238 @@ public class StashRepository {
     return false;
   }
 
-  private boolean isStatusMessage(String content) {
-    String escapedBuildName = Pattern.quote(job.getDisplayName());
-    for (String buildStatus : BUILD_STATUSES) {
-      String buildStatusMessage = String.format(BUILD_STATUS_REGEX, buildStatus, escapedBuildName);
-      Matcher matcher =
-          Pattern.compile(buildStatusMessage, Pattern.CASE_INSENSITIVE).matcher(content);
-      if (matcher.find()) {
-        return true;
-      }
+  /**
+   * Gets the comment classifier for the job settings, building it if they changed
+   *
+   * @param config trigger settings
+   * @return comment classifier
+   */
+  @Nonnull
+  private StashCommentClassifier getCommentClassifier(StashTriggerConfig config) {
+    String displayName = job.getDisplayName();
+    StashCommentClassifier classifier = commentClassifier;
+    if (classifier == null || !classifier.isFor(displayName, config)) {
+      classifier = new StashCommentClassifier(displayName, config);
+      commentClassifier = classifier;
     }
-    return false;
+    return classifier;
+  }
+
+  /**
+   * Computes the values that change whenever anything affecting the build decision changes
+   *
+   * <p>Bitbucket Server updates the pull request version when its metadata changes and the update
+   * date on any activity, including new comments. The commits account for the mergeability.
+   *
+   * @param pullRequest pull request
+   * @return fingerprint
+   */
+  @Nonnull
+  static String getFingerprint(StashPullRequestResponseValue pullRequest) {
+    return String.join(
+        "\n",
+        String.valueOf(pullRequest.getVersion()),
+        String.valueOf(pullRequest.getFromRef().getLatestCommit()),
+        String.valueOf(pullRequest.getToRef().getLatestCommit()),
+        String.valueOf(pullRequest.getUpdatedDate()));
+  }
+
+  /**
+   * Computes the values that change whenever the comments affecting the build decision change
+   *
+   * <p>The comment count in the pull request list includes replies, so it changes when comments
+   * are added or deleted. Comments are not built on for other commits, so the commits are part of
+   * the fingerprint too.
+   *
+   * @param pullRequest pull request
+   * @return fingerprint, or null if the server doesn't report the comment count
+   */
+  @CheckForNull
+  static String getCommentsFingerprint(StashPullRequestResponseValue pullRequest) {
+    Integer commentCount = pullRequest.getCommentCount();
+    if (commentCount == null) {
+      return null;
+    }
+    return String.join(
+        "\n",
+        String.valueOf(pullRequest.getFromRef().getLatestCommit()),
+        String.valueOf(pullRequest.getToRef().getLatestCommit()),
+        String.valueOf(commentCount));
+  }
+
+  /**
+   * Checks whether the pull request is known not to need a build
+   *
+   * @param pullRequest pull request
+   * @return true if the pull request didn't need a build and hasn't changed since then
+   */
+  boolean isUnchanged(StashPullRequestResponseValue pullRequest) {
+    return stateStore.isUnchanged(pullRequest.getId(), getFingerprint(pullRequest));
+  }
+
+  private void forgetFingerprint(StashPullRequestResponseValue pullRequest) {
+    stateStore.forgetUnchanged(pullRequest.getId());
+  }
+
+  /**
+   * Describes the configuration affecting the build decisions
+   *
+   * <p>Remembered decisions are discarded if this changes between Jenkins restarts.
+   *
+   * @return configuration digest
+   */
+  @Nonnull
+  private String getConfigurationDigest() {
+    StashTriggerConfig config = trigger.getConfig();
+    return Arrays.asList(
+            job.getDisplayName(),
+            config.getTargetBranchesToBuild(),
+            config.getCiSkipPhrases(),
+            config.getCiBuildPhrases(),
+            config.getOnlyBuildOnComment(),
+            config.getIgnoredCommenters(),
+            config.getGlobalIgnoredCommenters(),
+            config.getCheckDestinationCommit(),
+            config.getCheckMergeable(),
+            config.getCheckNotConflicted(),
+            config.getCancelOutdatedJobsEnabled(),
+            config.getReportBuildStatus())
+        .toString();
   }
 
   protected List<StashPullRequestBuildTarget> getBuildTargets(
       StashPullRequestResponseValue pullRequest) {
-    if (shouldSkip(pullRequest)) {
+    return getBuildTargets(pullRequest, false, null);
+  }
+
+  /**
+   * Decides which builds a pull request needs
+   *
+   * @param pullRequest pull request
+   * @param hasNoBuildStatuses true if the source commit is known to have no build statuses at all,
+   *     so that the status of the job doesn't need to be looked up
+   * @param mergeStatus merge status requested in advance by {@link #readMergeStatusAsync}, null
+   *     to request it if needed
+   * @return build targets
+   */
+  private List<StashPullRequestBuildTarget> getBuildTargets(
+      StashPullRequestResponseValue pullRequest,
+      boolean hasNoBuildStatuses,
+      @Nullable CompletableFuture<StashPullRequestMergeableResponse> mergeStatus) {
+    // Remember the pull request as not needing a build until it changes. The
+    // fingerprint is forgotten if the pull request is to be built, or if the
+    // decision is made without complete information because of errors.
+    stateStore.setUnchanged(pullRequest.getId(), getFingerprint(pullRequest));
+    List<StashPullRequestBuildTarget> buildTargets;
+    try {
+      buildTargets = evaluateBuildTargets(pullRequest, hasNoBuildStatuses, mergeStatus);
+    } finally {
+      if (mergeStatus != null) {
+        // Not needed if the pull request was skipped before its merge status
+        mergeStatus.cancel(false);
+      }
+    }
+    if (!buildTargets.isEmpty()) {
+      forgetFingerprint(pullRequest);
+    }
+    return buildTargets;
+  }
+
+  private List<StashPullRequestBuildTarget> evaluateBuildTargets(
+      StashPullRequestResponseValue pullRequest,
+      boolean hasNoBuildStatuses,
+      @Nullable CompletableFuture<StashPullRequestMergeableResponse> mergeStatus) {
+    // Use the same settings for the whole check
+    StashTriggerConfig config = trigger.getConfig();
+    if (shouldSkip(pullRequest, config)) {
       return new ArrayList<>();
     }
 
-    String owner = pullRequest.getToRef().getRepository().getProjectName();
-    String repositoryName = pullRequest.getToRef().getRepository().getRepositoryName();
+    // With build statuses, a single lookup tells whether the source commit
+    // has been built. The comments are only read if there is no status yet,
+    // or for the comments added since the status.
+    StashCommitBuildStatus buildStatus = null;
+    if (isBuildStatusNeeded(config) && !hasNoBuildStatuses) {
+      try {
+        buildStatus = getBuildStatus(pullRequest, config);
+      } catch (StashApiException e) {
+        forgetFingerprint(pullRequest);
+        pollLog.log("Cannot read build status for PR #{}, not building", pullRequest.getId(), e);
+        logger.log(Level.INFO, format("%s: cannot read commit build status", job.getFullName()), e);
+        return new ArrayList<>();
+      }
+      if (buildStatus != null && !isUpdatedSince(pullRequest, buildStatus.getDateAdded())) {
+        return new ArrayList<>();
+      }
+    }
+
+    // If the comments didn't ask for a build when they were last read, and
+    // neither the commits nor the number of comments has changed, they still
+    // don't, and there is no need to read them again
+    String commentsFingerprint = getCommentsFingerprint(pullRequest);
+    boolean commentsUnchanged =
+        commentsFingerprint != null
+            && stateStore.isCommentsUnchanged(pullRequest.getId(), commentsFingerprint);
+
+    // The merge status and the comments don't depend on each other, so start
+    // reading the comments while the merge status is being requested. Probes
+    // are sent in the background, so there is nothing to wait for.
+    CompletableFuture<StashPullRequestActivityResponse> firstActivityPage =
+        isMergeStatusRequestNeeded(pullRequest, config)
+                && !isMergeStatusProbeOnly(config)
+                && !commentsUnchanged
+            ? readActivityPageAsync(pullRequest, 0)
+            : null;
+    if (shouldSkipForMergeStatus(pullRequest, config, mergeStatus)) {
+      if (firstActivityPage != null) {
+        // The comments are not needed after all
+        firstActivityPage.cancel(false);
+      }
+      return new ArrayList<>();
+    }
+    if (commentsUnchanged) {
+      return new ArrayList<>();
+    }
 
-    String id = pullRequest.getId();
+    // Like the other fingerprint, this one is forgotten if the comments ask
+    // for a build or cannot be read
+    if (commentsFingerprint != null) {
+      stateStore.setCommentsUnchanged(pullRequest.getId(), commentsFingerprint);
+    }
 
-    // Fetch all comments for the pull request. If it fails, don't build the
-    // pull request in this cycle, as it cannot be determined if it should be
-    // built without checking the comments.
-    List<StashPullRequestComment> comments;
+    // Without "only build on comment", comments are fetched page by page,
+    // the most recent first, only as long as they are needed. Otherwise, all
+    // comments are needed, and only the activities added since the previous
+    // poll are fetched. If that fails, don't build the pull request in this
+    // cycle, as it cannot be determined if it should be built without
+    // checking the comments.
+    List<StashPullRequestBuildTarget> buildTargets;
     try {
-      comments = client.getPullRequestComments(owner, repositoryName, id);
+      if (buildStatus != null) {
+        return getBuildTargetsSinceBuildStatus(
+            pullRequest,
+            getCommentIterator(pullRequest, firstActivityPage),
+            buildStatus.getDateAdded(),
+            config);
+      }
+      if (!config.getOnlyBuildOnComment()) {
+        return getBuildTargetsWithoutOnlyBuildOnCommentLogic(
+            pullRequest, getCommentIterator(pullRequest, firstActivityPage), config);
+      }
+      buildTargets =
+          getBuildTargetsWithOnlyBuildOnCommentLogic(
+              pullRequest,
+              filterIgnoredCommenters(
+                  getAllComments(pullRequest, firstActivityPage, config), config),
+              config);
     } catch (StashApiException e) {
+      forgetFingerprint(pullRequest);
       pollLog.log("Cannot read comments for PR #{}, not building", pullRequest.getId(), e);
       logger.log(Level.INFO, format("%s: cannot read pull request comments", job.getFullName()), e);
       return new ArrayList<>();
     }
 
-    comments = filterIgnoredCommenters(comments);
-
-    boolean isOnlyBuildOnComment = trigger.getOnlyBuildOnComment();
-    if (!isOnlyBuildOnComment) {
-      return getBuildTargetsWithoutOnlyBuildOnCommentLogic(pullRequest, comments);
-    }
-    List<StashPullRequestBuildTarget> buildTargets =
-        getBuildTargetsWithOnlyBuildOnCommentLogic(pullRequest, comments);
-
-    if (!trigger.getCancelOutdatedJobsEnabled()) {
+    if (!config.getCancelOutdatedJobsEnabled()) {
       return buildTargets;
     }
     buildTargets.sort(
@@ -208,6 +507,7 @@ public class StashRepository {
         postBuildCancelComment(pullRequest, buildTarget.getBuildCommandCommentId());
       }
     } catch (StashApiException e) {
+      forgetFingerprint(pullRequest);
       pollLog.log(
           "Cannot post \\\"BuildCanceled\\\" comment for PR #{}, not building",
           pullRequest.getId(),
@@ -224,85 +524,334 @@ public class StashRepository {
   }
 
   private List<StashPullRequestBuildTarget> getBuildTargetsWithOnlyBuildOnCommentLogic(
-      StashPullRequestResponseValue pullRequest, List<StashPullRequestComment> comments) {
+      StashPullRequestResponseValue pullRequest,
+      List<StashPullRequestComment> comments,
+      StashTriggerConfig config) {
     List<StashPullRequestBuildTarget> buildTargets = new ArrayList<>();
 
     // Start with least recent comments
     comments.sort(Comparator.naturalOrder());
 
+    StashCommentClassifier classifier = getCommentClassifier(config);
     for (StashPullRequestComment comment : comments) {
       String content = comment.getText();
       if (StringUtils.isEmpty(content)) {
         continue;
       }
 
-      if (isPhrasesStartsWith(content, this.trigger.getCiBuildPhrases())) {
+      StashCommentClassifier.Classification classification = classifier.classify(content);
+      if (classification.isBuildPhrase()) {
         if (comment.getReplies() != null
-            && !comment.getReplies().isEmpty()
-            && comment.getReplies().stream().anyMatch(reply -> isStatusMessage(reply.getText()))) {
+            && comment.getReplies().stream()
+                .anyMatch(reply -> classifier.isStatusMessage(reply.getText()))) {
+          continue;
+        }
+
+        // The status reply may be missing briefly while the "BuildQueued"
+        // comment is being replaced with "BuildStarted"
+        if (stateStore.isHandledBuildCommand(pullRequest.getId(), comment.getCommentId())) {
           continue;
         }
 
         buildTargets.add(
             new StashPullRequestBuildTarget(
-                pullRequest, getAdditionalParameters(comment), comment.getCommentId()));
+                pullRequest, classification.getParameters(), comment.getCommentId()));
       }
     }
     return buildTargets;
   }
 
   private List<StashPullRequestBuildTarget> getBuildTargetsWithoutOnlyBuildOnCommentLogic(
-      StashPullRequestResponseValue pullRequest, List<StashPullRequestComment> comments) {
+      StashPullRequestResponseValue pullRequest,
+      StashPullRequestCommentIterator comments,
+      StashTriggerConfig config)
+      throws StashApiException {
     String sourceCommit = pullRequest.getFromRef().getLatestCommit();
     String destinationCommit = pullRequest.getToRef().getLatestCommit();
+    StashCommentClassifier classifier = getCommentClassifier(config);
 
-    // Start with most recent comments
-    comments.sort(Comparator.reverseOrder());
+    // Start with most recent comments, stop as soon as the decision is made
+    while (comments.hasNext()) {
+      StashPullRequestComment comment = comments.next();
+      if (config.isIgnoredCommenter(comment.getAuthorUsername())) {
+        continue;
+      }
 
-    for (StashPullRequestComment comment : comments) {
       String content = comment.getText();
       if (StringUtils.isEmpty(content)) {
         continue;
       }
 
       // Match any build status comment to check commits
-      String escapedBuildName = Pattern.quote(job.getDisplayName());
-      Matcher statusMatcher = null;
-      for (String status : BUILD_STATUSES) {
-        String regex = String.format(BUILD_STATUS_REGEX, status, escapedBuildName);
-        Matcher m = Pattern.compile(regex, Pattern.CASE_INSENSITIVE).matcher(content);
-        if (m.find()) {
-          statusMatcher = m;
-          break;
-        }
-      }
-
-      if (statusMatcher != null) {
-        String sourceCommitMatch = statusMatcher.group(1);
-        String destinationCommitMatch = statusMatcher.group(2);
-
+      StashCommentClassifier.Classification classification = classifier.classify(content);
+      StashCommentClassifier.StatusMarker statusMarker = classification.getStatusMarker();
+      if (statusMarker != null) {
         // first check source commit -- if it doesn't match, just move on. If it does,
         // investigate further.
-        if (sourceCommitMatch.equalsIgnoreCase(sourceCommit)) {
+        if (statusMarker.getSourceCommit().equalsIgnoreCase(sourceCommit)) {
           // if we're checking destination commits, and if this doesn't match, then move on.
-          if (this.trigger.getCheckDestinationCommit()
-              && (!destinationCommitMatch.equalsIgnoreCase(destinationCommit))) {
+          if (config.getCheckDestinationCommit()
+              && (!statusMarker.getDestinationCommit().equalsIgnoreCase(destinationCommit))) {
             continue;
           }
           return new ArrayList<>();
         }
       }
-      if (isSkipBuild(content)) {
+      if (classification.isSkipPhrase()) {
         return new ArrayList<>();
       }
-      if (isPhrasesStartsWith(content, this.trigger.getCiBuildPhrases())) {
+      if (classification.isBuildPhrase()) {
         return Collections.singletonList(
-            new StashPullRequestBuildTarget(pullRequest, getAdditionalParameters(comment)));
+            new StashPullRequestBuildTarget(pullRequest, classification.getParameters()));
       }
     }
     return Collections.singletonList(new StashPullRequestBuildTarget(pullRequest));
   }
 
+  private List<StashPullRequestBuildTarget> getBuildTargetsSinceBuildStatus(
+      StashPullRequestResponseValue pullRequest,
+      StashPullRequestCommentIterator comments,
+      long buildStatusDate,
+      StashTriggerConfig config)
+      throws StashApiException {
+    StashCommentClassifier classifier = getCommentClassifier(config);
+
+    // Start with most recent comments, stop at the first one older than the
+    // build status, as the commit has been built since then
+    while (comments.hasNext()) {
+      StashPullRequestComment comment = comments.next();
+      Long createdDate = comment.getCreatedDate();
+      if (createdDate == null || createdDate <= buildStatusDate) {
+        break;
+      }
+      if (config.isIgnoredCommenter(comment.getAuthorUsername())) {
+        continue;
+      }
+
+      StashCommentClassifier.Classification classification = classifier.classify(comment.getText());
+      if (classification.isSkipPhrase()) {
+        return new ArrayList<>();
+      }
+      if (classification.isBuildPhrase()) {
+        return Collections.singletonList(
+            new StashPullRequestBuildTarget(pullRequest, classification.getParameters()));
+      }
+    }
+    return new ArrayList<>();
+  }
+
+  private static boolean isBuildStatusNeeded(StashTriggerConfig config) {
+    return config.getReportBuildStatus() && !config.getOnlyBuildOnComment();
+  }
+
+  /**
+   * Finds the source commits that have no build statuses at all, with as few requests as possible
+   *
+   * <p>Failure to get the numbers is not fatal, the statuses are then looked up for every commit.
+   *
+   * @param pullRequests pull requests
+   * @return source commit hashes without build statuses
+   */
+  @Nonnull
+  private Set<String> getCommitsWithoutBuildStatuses(
+      List<StashPullRequestResponseValue> pullRequests) {
+    Set<String> commits = new LinkedHashSet<>();
+    for (StashPullRequestResponseValue pullRequest : pullRequests) {
+      commits.add(pullRequest.getFromRef().getLatestCommit());
+    }
+    commits.remove(null);
+
+    Map<String, StashCommitBuildStats> stats;
+    try {
+      stats = client.getCommitBuildStats(commits);
+    } catch (StashApiException e) {
+      pollLog.log("Cannot read build statistics of {} commits", commits.size(), e);
+      logger.log(
+          Level.INFO, format("%s: cannot read commit build statistics", job.getFullName()), e);
+      return new HashSet<>();
+    }
+
+    Set<String> commitsWithoutStatuses = new HashSet<>();
+    for (String commit : commits) {
+      StashCommitBuildStats commitStats = stats.get(commit);
+      if (commitStats == null || commitStats.getTotal() == 0) {
+        commitsWithoutStatuses.add(commit);
+      }
+    }
+    return commitsWithoutStatuses;
+  }
+
+  /** @return key of the build statuses posted by the job */
+  @Nonnull
+  private String getBuildStatusKey() {
+    return job.getFullName();
+  }
+
+  /**
+   * Finds the status posted by the job for the pull request commits
+   *
+   * @param pullRequest pull request
+   * @param config trigger settings
+   * @return build status, or null if the source commit hasn't been built, or it has been built
+   *     with another destination commit and the destination commit is checked
+   * @throws StashApiException if the build status cannot be fetched
+   */
+  @Nullable
+  private StashCommitBuildStatus getBuildStatus(
+      StashPullRequestResponseValue pullRequest, StashTriggerConfig config)
+      throws StashApiException {
+    StashCommitBuildStatus buildStatus =
+        client
+            .getCommitBuildStatus(pullRequest.getFromRef().getLatestCommit(), getBuildStatusKey())
+            .orElse(null);
+    if (buildStatus == null || buildStatus.getDateAdded() == null) {
+      return null;
+    }
+    if (config.getCheckDestinationCommit()) {
+      String description = StringUtils.defaultString(buildStatus.getDescription());
+      Matcher matcher = BUILD_STATUS_COMMITS_PATTERN.matcher(description);
+      String destinationCommit = pullRequest.getToRef().getLatestCommit();
+      if (!matcher.find() || !matcher.group(2).equalsIgnoreCase(destinationCommit)) {
+        return null;
+      }
+    }
+    return buildStatus;
+  }
+
+  // Bitbucket Server updates the pull request update date when comments are
+  // added. If the date cannot be compared, assume there are new comments.
+  private static boolean isUpdatedSince(
+      StashPullRequestResponseValue pullRequest, long buildStatusDate) {
+    try {
+      return Long.parseLong(pullRequest.getUpdatedDate()) > buildStatusDate;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  private void postBuildStatus(
+      String sourceCommit,
+      String destinationCommit,
+      String state,
+      String url,
+      String message,
+      WriteSource source)
+      throws StashApiException {
+    String description = format(BUILD_STATUS_DESCRIPTION, message, sourceCommit, destinationCommit);
+    client.postCommitBuildStatus(
+        sourceCommit,
+        new StashCommitBuildStatus(
+            state, getBuildStatusKey(), job.getDisplayName(), url, description),
+        source);
+  }
+
+  /**
+   * Post "Build queued" status for the pull request source commit
+   *
+   * @param pullRequest pull request
+   * @param url URL to the job page in Jenkins
+   * @throws StashApiException if posting the status fails
+   */
+  private void postBuildQueuedStatus(StashPullRequestResponseValue pullRequest, String url)
+      throws StashApiException {
+    postBuildStatus(
+        pullRequest.getFromRef().getLatestCommit(),
+        pullRequest.getToRef().getLatestCommit(),
+        StashCommitBuildStatus.INPROGRESS,
+        url,
+        BUILD_QUEUED_STATUS,
+        WriteSource.POLL);
+  }
+
+  // The build page is not known until the build starts
+  @Nonnull
+  private String getJobUrl() {
+    String rootUrl = Jenkins.getInstance().getRootUrl();
+    return StringUtils.defaultString(rootUrl) + job.getUrl();
+  }
+
+  /** @return true if the builds are reported as commit build statuses */
+  public boolean isReportingBuildStatus() {
+    return trigger.getConfig().getReportBuildStatus();
+  }
+
+  /**
+   * Post "Build started" status with a link to the build page
+   *
+   * @param sourceCommit source commit hash
+   * @param destinationCommit destination commit hash
+   * @param buildUrl URL to the build page in Jenkins
+   * @param buildNumber build number
+   * @throws StashApiException if posting the status fails
+   */
+  public void postBuildStartedStatus(
+      String sourceCommit, String destinationCommit, String buildUrl, int buildNumber)
+      throws StashApiException {
+    postBuildStatus(
+        sourceCommit,
+        destinationCommit,
+        StashCommitBuildStatus.INPROGRESS,
+        buildUrl,
+        format(BUILD_STARTED_STATUS, buildNumber),
+        WriteSource.BUILD);
+  }
+
+  /**
+   * Post the build result as the status of the source commit
+   *
+   * <p>Failure to post the status is logged, it can lead to scheduling another build for the pull
+   * request unnecessarily.
+   *
+   * @param sourceCommit source commit hash
+   * @param destinationCommit destination commit hash
+   * @param buildResult build result
+   * @param buildUrl URL to the build page in Jenkins
+   * @param buildNumber build number
+   * @param duration build duration
+   */
+  public void postFinishedStatus(
+      String sourceCommit,
+      String destinationCommit,
+      Result buildResult,
+      String buildUrl,
+      int buildNumber,
+      String duration) {
+    String state =
+        buildResult == Result.SUCCESS
+            ? StashCommitBuildStatus.SUCCESSFUL
+            : StashCommitBuildStatus.FAILED;
+    String message =
+        format(
+            BUILD_FINISHED_STATUS, getMessageForBuildResult(buildResult), buildNumber, duration);
+    try {
+      postBuildStatus(
+          sourceCommit, destinationCommit, state, buildUrl, message, WriteSource.BUILD);
+    } catch (StashApiException e) {
+      logger.log(
+          Level.WARNING,
+          format(
+              "%s: cannot post Build Finished status for commit %s",
+              job.getFullName(), sourceCommit),
+          e);
+    }
+  }
+
+  /**
+   * Post a comment that is not a build status marker
+   *
+   * @param pullRequestId pull request ID
+   * @param comment comment text
+   * @throws StashApiException if posting the comment fails
+   */
+  public void postPullRequestComment(String pullRequestId, String comment)
+      throws StashApiException {
+    try {
+      this.client.postPullRequestComment(pullRequestId, comment);
+    } finally {
+      invalidateComments(pullRequestId);
+    }
+  }
+
   /**
    * Post "BuildQueued" comment to Bitbucket Server
    *
@@ -357,8 +906,13 @@ public class StashRepository {
                 sourceCommit,
                 destinationCommit)
             + format(BUILD_START_SENTENCE, buildUrl, buildNumber);
-    StashPullRequestComment commentResponse =
-        this.client.postPullRequestComment(pullRequestId, comment, buildCommandCommentId);
+    StashPullRequestComment commentResponse;
+    try {
+      commentResponse =
+          this.client.postPullRequestComment(pullRequestId, comment, buildCommandCommentId);
+    } finally {
+      invalidateComments(pullRequestId);
+    }
     return commentResponse.getCommentId().toString();
   }
 
@@ -370,8 +924,13 @@ public class StashRepository {
     String comment =
         format(BUILD_MARKER, buildMessage, job.getDisplayName(), sourceCommit, destinationCommit);
     StashPullRequestComment commentResponse;
-    commentResponse =
-        this.client.postPullRequestComment(pullRequest.getId(), comment, buildCommandCommentId);
+    try {
+      commentResponse =
+          this.client.postPullRequestComment(
+              pullRequest.getId(), comment, buildCommandCommentId, WriteSource.POLL);
+    } finally {
+      invalidateComments(pullRequest.getId());
+    }
     return commentResponse.getCommentId().toString();
   }
 
@@ -391,7 +950,7 @@ public class StashRepository {
 
   static Map<String, String> getParametersFromContent(String content) {
     Map<String, String> result = new TreeMap<>();
-    String[] lines = content.split("\\r?\\n|\\r");
+    String[] lines = LINE_BREAK_PATTERN.split(content);
     for (String line : lines) {
       AbstractMap.SimpleEntry<String, String> parameter = getParameter(line);
       if (parameter != null) {
@@ -402,14 +961,6 @@ public class StashRepository {
     return result;
   }
 
-  Map<String, String> getAdditionalParameters(StashPullRequestComment comment) {
-    if (comment != null) {
-      return getParametersFromContent(comment.getText());
-    } else {
-      return new TreeMap<>();
-    }
-  }
-
   private boolean hasCauseFromTheSamePullRequest(
       @Nullable List<Cause> causes, @Nullable StashCause pullRequestCause) {
     if (causes != null && pullRequestCause != null) {
@@ -493,7 +1044,7 @@ public class StashRepository {
   public Queue.Item startJob(StashCause cause) {
     List<ParameterValue> values = getParameters(cause);
 
-    if (trigger.getCancelOutdatedJobsEnabled()) {
+    if (trigger.getConfig().getCancelOutdatedJobsEnabled()) {
       cancelPreviousJobsInQueueThatMatch(cause);
       abortRunningJobsThatMatch(cause);
     }
@@ -506,12 +1057,13 @@ public class StashRepository {
     StashPullRequestResponseValue pullRequest = buildTarget.getPullRequest();
     Map<String, String> additionalParameters = buildTarget.getAdditionalParameters();
     Integer buildCommandCommentId = buildTarget.getBuildCommandCommentId();
+    StashTriggerConfig config = trigger.getConfig();
 
     // Delete comments about previous build results, if that option is
     // enabled. Run the build even if those comments cannot be deleted.
-    if (trigger.getDeletePreviousBuildFinishComments()) {
+    if (config.getDeletePreviousBuildFinishComments()) {
       try {
-        deletePreviousBuildFinishedComments(pullRequest);
+        deletePreviousBuildFinishedComments(pullRequest, config);
       } catch (StashApiException e) {
         pollLog.log(
             "Cannot delete old \"BuildFinished\" comments for PR #{}", pullRequest.getId(), e);
@@ -524,30 +1076,52 @@ public class StashRepository {
       }
     }
 
-    // Post a comment indicating the build has been queued. The build will
-    // start after the quiet time expires and there are executors available.
-    // Failure to post the comment prevents the build for safety reasons. If
-    // the plugin cannot post this comment, chances are it won't be able to
+    // Post a status or a comment indicating the build has been queued. The
+    // build will start after the quiet time expires and there are executors
+    // available. Failure to post it prevents the build for safety reasons. If
+    // the plugin cannot post this status, chances are it won't be able to
     // post the build results, which would trigger the build again and again,
     // wasting Jenkins resources.
-    String buildQueuedCommentId;
-    try {
-      buildQueuedCommentId = postBuildQueuedComment(pullRequest, buildCommandCommentId);
-    } catch (StashApiException e) {
-      pollLog.log(
-          "Cannot post \"BuildQueued\" comment for PR #{}, not building", pullRequest.getId(), e);
-      logger.log(
-          Level.INFO,
-          format(
-              "%s: cannot post Build Queued comment for pull request %s, not building",
-              job.getFullName(), pullRequest.getId()),
-          e);
-      return;
+    if (config.getReportBuildStatus()) {
+      try {
+        postBuildQueuedStatus(pullRequest, getJobUrl());
+      } catch (StashApiException e) {
+        pollLog.log(
+            "Cannot post \"BuildQueued\" status for PR #{}, not building", pullRequest.getId(), e);
+        logger.log(
+            Level.INFO,
+            format(
+                "%s: cannot post Build Queued status for pull request %s, not building",
+                job.getFullName(), pullRequest.getId()),
+            e);
+        return;
+      }
+    }
+
+    // Build commands are answered with comments even with build statuses, as
+    // the replies mark the commands as handled
+    String buildQueuedCommentId = null;
+    if (!config.getReportBuildStatus() || buildCommandCommentId != null) {
+      try {
+        buildQueuedCommentId = postBuildQueuedComment(pullRequest, buildCommandCommentId);
+      } catch (StashApiException e) {
+        pollLog.log(
+            "Cannot post \"BuildQueued\" comment for PR #{}, not building",
+            pullRequest.getId(),
+            e);
+        logger.log(
+            Level.INFO,
+            format(
+                "%s: cannot post Build Queued comment for pull request %s, not building",
+                job.getFullName(), pullRequest.getId()),
+            e);
+        return;
+      }
     }
 
     StashCause cause =
         new StashCause(
-            trigger.getStashHost(),
+            config.getStashHost(),
             pullRequest.getFromRef().getBranch().getName(),
             pullRequest.getToRef().getBranch().getName(),
             pullRequest.getFromRef().getRepository().getProjectName(),
@@ -561,8 +1135,13 @@ public class StashRepository {
             buildQueuedCommentId,
             buildCommandCommentId,
             pullRequest.getVersion(),
+            config.getReportBuildStatus(),
             additionalParameters);
 
+    if (buildCommandCommentId != null) {
+      stateStore.addHandledBuildCommand(pullRequest.getId(), buildCommandCommentId);
+    }
+
     Queue.Item item = startJob(cause);
     if (item != null) {
       pollLog.log("Queued job for PR #{}", pullRequest.getId());
@@ -583,7 +1162,16 @@ public class StashRepository {
    */
   public void deletePullRequestComment(String pullRequestId, String commentId)
       throws StashApiException {
-    this.client.deletePullRequestComment(pullRequestId, commentId);
+    deletePullRequestComment(pullRequestId, commentId, WriteSource.BUILD);
+  }
+
+  private void deletePullRequestComment(
+      String pullRequestId, String commentId, WriteSource source) throws StashApiException {
+    try {
+      this.client.deletePullRequestComment(pullRequestId, commentId, source);
+    } finally {
+      invalidateComments(pullRequestId);
+    }
   }
 
   private String getMessageForBuildResult(Result result) {
@@ -636,6 +1224,8 @@ public class StashRepository {
               "%s: cannot post Build Finished comment for pull request %s",
               job.getFullName(), pullRequestId),
           e);
+    } finally {
+      invalidateComments(pullRequestId);
     }
   }
 
@@ -653,33 +1243,47 @@ public class StashRepository {
     return this.client.mergePullRequest(pullRequestId, version);
   }
 
+  private static boolean isMergeStatusNeeded(StashTriggerConfig config) {
+    return config.getCheckMergeable()
+        || config.getCheckNotConflicted()
+        || config.getCheckProbeMergeStatus();
+  }
+
   /**
    * Inquiries Bitbucket Server whether the pull request can be merged
    *
    * @param pullRequest pull request
+   * @param config trigger settings
    * @return true if the merge is allowed, false otherwise
    * @throws StashApiException if cannot communicate to the server
    */
-  private boolean isPullRequestMergeable(StashPullRequestResponseValue pullRequest)
-      throws StashApiException {
-    if (trigger.getCheckMergeable()
-        || trigger.getCheckNotConflicted()
-        || trigger.getCheckProbeMergeStatus()) {
-      /* Request PR status from Stash, and consult our configuration
-       * toggles on whether we care about certain verdicts in that
-       * JSON answer, parsed into fields of the "response" object.
-       * See example in StashApiClientTest.java.
-       */
-      StashPullRequestMergeableResponse mergeable =
-          client.getPullRequestMergeStatus(pullRequest.getId());
-      boolean res = true;
-      if (trigger.getCheckMergeable()) {
-        res &= mergeable.getCanMerge();
-      }
+  // Only "canMerge" needs the server to check the merge conditions, such as
+  // approvals. A merge outcome already in the pull request is enough to tell
+  // conflicts, and means the server has updated its refs for the current
+  // commits, so probing isn't needed either.
+  private static boolean isMergeStatusRequestNeeded(
+      StashPullRequestResponseValue pullRequest, StashTriggerConfig config) {
+    return isMergeStatusNeeded(config)
+        && (config.getCheckMergeable() || pullRequest.getMergeOutcome() == null);
+  }
 
-      if (trigger.getCheckNotConflicted()) {
-        res &= !mergeable.getConflicted();
-      }
+  // Probing makes the server update the refs, the answer doesn't matter
+  private static boolean isMergeStatusProbeOnly(StashTriggerConfig config) {
+    return !config.getCheckMergeable() && !config.getCheckNotConflicted();
+  }
+
+  private boolean isPullRequestMergeable(
+      StashPullRequestResponseValue pullRequest,
+      StashTriggerConfig config,
+      @Nullable CompletableFuture<StashPullRequestMergeableResponse> mergeStatus)
+      throws StashApiException {
+    if (isMergeStatusNeeded(config) && !isMergeStatusRequestNeeded(pullRequest, config)) {
+      return !config.getCheckNotConflicted()
+          || !StashPullRequestProperties.MERGE_CONFLICTED.equals(pullRequest.getMergeOutcome());
+    }
+    if (isMergeStatusNeeded(config)) {
+      String pullRequestId = pullRequest.getId();
+      StashMergeStatusProber.Key probeKey = getProbeKey(pullRequest);
 
       /* The trigger.isCheckProbeMergeStatus() consulted above
        * is for when a user wants to just probe the Stash REST API
@@ -693,129 +1297,547 @@ public class StashRepository {
        *
        * See https://issues.jenkins-ci.org/browse/JENKINS-35219 and
        * https://community.atlassian.com/t5/Bitbucket-questions/Change-pull-request-refs-after-Commit-instead-of-after-Approval/qaq-p/194702
+       *
+       * The answer doesn't matter then, so the probe is sent in the
+       * background, and only once for the current commits.
+       */
+      if (isMergeStatusProbeOnly(config)) {
+        mergeStatusProber.probe(probeKey, () -> client.getPullRequestMergeStatus(pullRequestId));
+        return true;
+      }
+
+      // Conflicts only depend on the commits, so a known answer is reused
+      if (!config.getCheckMergeable()) {
+        Boolean conflicted = mergeStatusProber.getConflicted(probeKey);
+        if (conflicted != null) {
+          return !conflicted;
+        }
+      }
+
+      /* Request PR status from Stash, and consult our configuration
+       * toggles on whether we care about certain verdicts in that
+       * JSON answer, parsed into fields of the "response" object.
+       * See example in StashApiClientTest.java.
        */
+      StashPullRequestMergeableResponse mergeable =
+          mergeStatus != null
+              ? getMergeStatus(mergeStatus)
+              : client.getPullRequestMergeStatus(pullRequestId);
+      mergeStatusProber.remember(probeKey, mergeable);
+      boolean res = true;
+      if (config.getCheckMergeable()) {
+        res &= mergeable.getCanMerge();
+        // Approvals and builds from other servers can lift the veto without
+        // changing the pull request, so check it again during the next poll.
+        // Conflicts are only resolved by new commits.
+        if (!mergeable.getCanMerge() && !Boolean.TRUE.equals(mergeable.getConflicted())) {
+          forgetFingerprint(pullRequest);
+        }
+      }
+
+      if (config.getCheckNotConflicted()) {
+        res &= !mergeable.getConflicted();
+      }
 
       return res;
     }
     return true;
   }
 
-  private void deletePreviousBuildFinishedComments(StashPullRequestResponseValue pullRequest)
+  private StashMergeStatusProber.Key getProbeKey(StashPullRequestResponseValue pullRequest) {
+    return StashMergeStatusProber.Key.of(StashTriggerRegistry.Key.of(trigger), pullRequest);
+  }
+
+  /**
+   * Requests the merge status that {@link #isPullRequestMergeable} is going to wait for
+   *
+   * <p>No thread is held while the request waits for the rate limit or for the server, so the
+   * merge statuses of many pull requests can be requested while only a few are being checked.
+   *
+   * @param pullRequest changed pull request
+   * @param config trigger settings
+   * @return merge status, null if the check doesn't need to wait for it
+   */
+  @CheckForNull
+  private CompletableFuture<StashPullRequestMergeableResponse> readMergeStatusAsync(
+      StashPullRequestResponseValue pullRequest, StashTriggerConfig config) {
+    // Pull requests rejected by shouldSkip() don't need it. Probes are sent
+    // in the background anyway, and a known conflict is reused.
+    if (!"OPEN".equals(pullRequest.getState())
+        || config.getSkipPhraseMatcher().matches(pullRequest.getTitle())
+        || !config.isTargetBranch(pullRequest.getToRef().getBranch().getName())
+        || !isMergeStatusRequestNeeded(pullRequest, config)
+        || isMergeStatusProbeOnly(config)
+        || (!config.getCheckMergeable()
+            && mergeStatusProber.getConflicted(getProbeKey(pullRequest)) != null)) {
+      return null;
+    }
+    return client.getPullRequestMergeStatusAsync(pullRequest.getId());
+  }
+
+  @Nullable
+  private static StashPullRequestMergeableResponse getMergeStatus(
+      CompletableFuture<StashPullRequestMergeableResponse> mergeStatus)
       throws StashApiException {
+    try {
+      return mergeStatus.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StashApiException("Interrupted while reading merge status", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StashApiException) {
+        throw (StashApiException) e.getCause();
+      }
+      throw new StashApiException("Cannot read merge status", e.getCause());
+    }
+  }
+
+  /**
+   * Creates an iterator over the pull request comments
+   *
+   * @param pullRequest pull request
+   * @param firstActivityPage first page of activities if it's being read already, null otherwise
+   * @return comment iterator
+   */
+  @Nonnull
+  private StashPullRequestCommentIterator getCommentIterator(
+      StashPullRequestResponseValue pullRequest,
+      @Nullable CompletableFuture<StashPullRequestActivityResponse> firstActivityPage) {
+    return new StashPullRequestCommentIterator(
+        start ->
+            start == 0 && firstActivityPage != null
+                ? getActivityPage(firstActivityPage)
+                : readActivityPage(pullRequest, start));
+  }
 
+  @Nonnull
+  private StashPullRequestActivityResponse readActivityPage(
+      StashPullRequestResponseValue pullRequest, int start) throws StashApiException {
     String owner = pullRequest.getToRef().getRepository().getProjectName();
     String repositoryName = pullRequest.getToRef().getRepository().getRepositoryName();
-    String id = pullRequest.getId();
+    String pullRequestId = pullRequest.getId();
+    return snapshot.getActivityPage(
+        pullRequestId,
+        start,
+        () -> client.getPullRequestActivityPage(owner, repositoryName, pullRequestId, start));
+  }
 
-    List<StashPullRequestComment> comments =
-        client.getPullRequestComments(owner, repositoryName, id);
+  @Nonnull
+  private CompletableFuture<StashPullRequestActivityResponse> readActivityPageAsync(
+      StashPullRequestResponseValue pullRequest, int start) {
+    String owner = pullRequest.getToRef().getRepository().getProjectName();
+    String repositoryName = pullRequest.getToRef().getRepository().getRepositoryName();
+    String pullRequestId = pullRequest.getId();
+    return snapshot.getActivityPageAsync(
+        pullRequestId,
+        start,
+        () -> client.getPullRequestActivityPageAsync(owner, repositoryName, pullRequestId, start));
+  }
 
-    for (StashPullRequestComment comment : comments) {
-      String content = comment.getText();
-      if (StringUtils.isEmpty(content)) {
-        continue;
+  @Nonnull
+  private static StashPullRequestActivityResponse getActivityPage(
+      CompletableFuture<StashPullRequestActivityResponse> page) throws StashApiException {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StashApiException("Interrupted while reading comments", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StashApiException) {
+        throw (StashApiException) e.getCause();
       }
+      throw new StashApiException("Cannot read comments", e.getCause());
+    }
+  }
 
-      String project_build_finished =
-          format(BUILD_STATUS_REGEX, BUILD_FINISH_MESSAGE, job.getDisplayName());
-      Matcher finishMatcher =
-          Pattern.compile(project_build_finished, Pattern.CASE_INSENSITIVE).matcher(content);
+  /**
+   * Discards the comments read for a pull request, after the plugin has changed them
+   *
+   * @param pullRequestId pull request ID
+   */
+  private void invalidateComments(String pullRequestId) {
+    activityStore.invalidate(pullRequestId);
+    snapshot.invalidate(pullRequestId);
+  }
 
-      if (finishMatcher.find()) {
-        deletePullRequestComment(pullRequest.getId(), comment.getCommentId().toString());
-      }
-    }
+  /**
+   * Gets all comments for the pull request, only fetching activities added since the last call
+   *
+   * @param pullRequest pull request
+   * @param config trigger settings
+   * @return comments, the most recent first
+   * @throws StashApiException if the comments cannot be fetched
+   */
+  @Nonnull
+  private List<StashPullRequestComment> getAllComments(
+      StashPullRequestResponseValue pullRequest, StashTriggerConfig config)
+      throws StashApiException {
+    return getAllComments(pullRequest, null, config);
   }
 
-  private boolean isForTargetBranch(StashPullRequestResponseValue pullRequest) {
-    String targetBranchesToBuild = this.trigger.getTargetBranchesToBuild();
-    if (StringUtils.isEmpty(targetBranchesToBuild)) {
-      return true;
-    }
+  @Nonnull
+  private List<StashPullRequestComment> getAllComments(
+      StashPullRequestResponseValue pullRequest,
+      @Nullable CompletableFuture<StashPullRequestActivityResponse> firstActivityPage,
+      StashTriggerConfig config)
+      throws StashApiException {
+    return activityStore.getComments(
+        pullRequest.getId(),
+        () -> getCommentIterator(pullRequest, firstActivityPage),
+        getCommentClassifier(config));
+  }
 
-    String[] branches = targetBranchesToBuild.split(",");
-    for (String branch : branches) {
-      if (pullRequest.getToRef().getBranch().getName().matches(branch.trim())) {
-        return true;
+  private void deletePreviousBuildFinishedComments(
+      StashPullRequestResponseValue pullRequest, StashTriggerConfig config)
+      throws StashApiException {
+
+    List<StashPullRequestComment> comments = getAllComments(pullRequest, config);
+    StashCommentClassifier classifier = getCommentClassifier(config);
+
+    for (StashPullRequestComment comment : comments) {
+      StashCommentClassifier.StatusMarker statusMarker =
+          classifier.classify(comment.getText()).getStatusMarker();
+      if (statusMarker != null && statusMarker.isStatus(BUILD_FINISH_MESSAGE)) {
+        deletePullRequestComment(
+            pullRequest.getId(), comment.getCommentId().toString(), WriteSource.POLL);
       }
     }
-    return false;
   }
 
   private List<StashPullRequestComment> filterIgnoredCommenters(
-      List<StashPullRequestComment> comments) {
-    String jobIgnoredCommenters = this.trigger.getIgnoredCommenters();
-    String globalIgnoredCommenters = this.trigger.getGlobalIgnoredCommenters();
-
-    if (StringUtils.isEmpty(jobIgnoredCommenters) && StringUtils.isEmpty(globalIgnoredCommenters)) {
+      List<StashPullRequestComment> comments, StashTriggerConfig config) {
+    if (!config.hasIgnoredCommenters()) {
       return comments;
     }
 
     List<StashPullRequestComment> filtered = new ArrayList<>();
     for (StashPullRequestComment comment : comments) {
-      String username = comment.getAuthorUsername();
-      if (!isIgnoredCommenter(username, jobIgnoredCommenters)
-          && !isIgnoredCommenter(username, globalIgnoredCommenters)) {
+      if (!config.isIgnoredCommenter(comment.getAuthorUsername())) {
         filtered.add(comment);
       }
     }
     return filtered;
   }
 
-  private boolean isIgnoredCommenter(String username, String ignoredCommentersRegex) {
-    if (StringUtils.isEmpty(username) || StringUtils.isEmpty(ignoredCommentersRegex)) {
-      return false;
+  public void pollRepository() {
+    synchronized (pollLock) {
+      pollAllPullRequests();
     }
-    return username.matches(ignoredCommentersRegex);
   }
 
-  private boolean isSkipBuild(String pullRequestContentString) {
-    String skipPhrases = this.trigger.getCiSkipPhrases();
-    if (StringUtils.isNotEmpty(skipPhrases)) {
-      String[] phrases = skipPhrases.split(",");
-      for (String phrase : phrases) {
-        if (isPhrasesContain(pullRequestContentString, phrase)) {
-          return true;
-        }
+  /**
+   * Checks a single pull request and queues builds for it as needed
+   *
+   * <p>The pull request is fetched from the server rather than taken from the notification that
+   * caused the check, so untrusted notifications cannot affect the build decisions.
+   *
+   * @param pullRequestId pull request ID
+   */
+  public void pollPullRequest(String pullRequestId) {
+    synchronized (pollLock) {
+      pollLog.log(
+          "{}: checking PR #{} on notification",
+          ZonedDateTime.now().format(TIMESTAMP_FORMATTER),
+          pullRequestId);
+
+      // The notification means the pull request has changed since the
+      // comments shared with other jobs were read
+      snapshot.invalidate(pullRequestId);
+
+      StashPullRequestResponseValue pullRequest;
+      try {
+        pullRequest = client.getPullRequest(pullRequestId);
+      } catch (StashApiException e) {
+        pollLog.log("Cannot fetch PR #{}", pullRequestId, e);
+        logger.log(
+            Level.INFO,
+            format("%s: cannot fetch pull request %s", job.getFullName(), pullRequestId),
+            e);
+        return;
+      }
+
+      List<StashPullRequestBuildTarget> buildTargets = getBuildTargets(pullRequest);
+      for (StashPullRequestBuildTarget buildTarget : buildTargets) {
+        addFutureBuildTask(buildTarget);
       }
+      activityStore.save();
+      stateStore.save();
     }
-    return false;
   }
 
-  private boolean isPhrasesContain(String text, String phrase) {
-    if (StringUtils.isEmpty(text)) {
-      return false;
+  /**
+   * Moves the pull requests from the list to the build queue in stages
+   *
+   * <p>Pull requests are passed in as the pages of the list arrive. The changed ones are checked,
+   * several at a time if the trigger allows it, and their builds are scheduled in the order of the
+   * list as soon as the checks complete. Bounded queues between the stages make the list wait if
+   * the checks or the scheduling fall behind, so only a limited number of pull requests is held at
+   * any time.
+   *
+   * <p>Messages logged while checking each pull request are kept together and added to the polling
+   * log in the order of the pull requests.
+   */
+  private final class PollPipeline {
+    private final CompletableFuture<PullRequestCheck> endOfList = new CompletableFuture<>();
+
+    private final StashTriggerConfig config;
+
+    // Changed pull requests waiting for the build statuses of their commits
+    // to be counted together and for their merge statuses to be requested,
+    // null if neither is needed
+    private final List<StashPullRequestResponseValue> pendingBatch;
+    private final boolean lookUpBuildStatuses;
+
+    // Limit the checks running at the same time, and the checks either
+    // running or waiting for their builds to be scheduled
+    private final Semaphore runningChecks;
+    private final Semaphore pendingChecks;
+    private final BlockingQueue<CompletableFuture<PullRequestCheck>> checks =
+        new LinkedBlockingQueue<>();
+    private final CompletableFuture<Void> scheduler;
+
+    private int openPullRequests;
+    private int unchangedPullRequests;
+    private final AtomicInteger buildTargets = new AtomicInteger();
+
+    private PollPipeline(StashTriggerConfig config) {
+      this.config = config;
+      int concurrency = config.getPullRequestConcurrency();
+      runningChecks = new Semaphore(concurrency);
+      pendingChecks = new Semaphore(2 * concurrency);
+      scheduler = concurrency > 1 ? startScheduler() : null;
+      lookUpBuildStatuses = isBuildStatusNeeded(config);
+      pendingBatch =
+          lookUpBuildStatuses || (isMergeStatusNeeded(config) && !isMergeStatusProbeOnly(config))
+              ? new ArrayList<>()
+              : null;
+    }
+
+    @Nullable
+    private CompletableFuture<Void> startScheduler() {
+      try {
+        return CompletableFuture.runAsync(
+            this::scheduleBuilds, StashBuildTrigger.descriptor.getEvaluationExecutorService());
+      } catch (RejectedExecutionException e) {
+        logger.log(Level.INFO, format("%s: checking pull requests serially", job.getFullName()), e);
+        return null;
+      }
+    }
+
+    private void accept(StashPullRequestResponseValue pullRequest) {
+      openPullRequests++;
+      if (isUnchanged(pullRequest)) {
+        unchangedPullRequests++;
+        return;
+      }
+
+      if (pendingBatch != null) {
+        pendingBatch.add(pullRequest);
+        if (pendingBatch.size() >= CHECK_BATCH_SIZE) {
+          checkPendingBatch();
+        }
+        return;
+      }
+      check(pullRequest, false, null);
+    }
+
+    // Commits without any build statuses haven't been built by the job, so
+    // the status lookup is skipped for them. The merge statuses of the whole
+    // batch are requested up front, so that the requests in flight are not
+    // limited by the threads checking the pull requests.
+    private void checkPendingBatch() {
+      if (pendingBatch == null || pendingBatch.isEmpty()) {
+        return;
+      }
+      List<StashPullRequestResponseValue> pullRequests = new ArrayList<>(pendingBatch);
+      pendingBatch.clear();
+
+      Set<String> commitsWithoutStatuses =
+          lookUpBuildStatuses
+              ? getCommitsWithoutBuildStatuses(pullRequests)
+              : Collections.emptySet();
+      List<CompletableFuture<StashPullRequestMergeableResponse>> mergeStatuses =
+          new ArrayList<>();
+      for (StashPullRequestResponseValue pullRequest : pullRequests) {
+        mergeStatuses.add(readMergeStatusAsync(pullRequest, config));
+      }
+      for (int i = 0; i < pullRequests.size(); i++) {
+        StashPullRequestResponseValue pullRequest = pullRequests.get(i);
+        check(
+            pullRequest,
+            commitsWithoutStatuses.contains(pullRequest.getFromRef().getLatestCommit()),
+            mergeStatuses.get(i));
+      }
+    }
+
+    private void check(
+        StashPullRequestResponseValue pullRequest,
+        boolean hasNoBuildStatuses,
+        @Nullable CompletableFuture<StashPullRequestMergeableResponse> mergeStatus) {
+      if (scheduler == null) {
+        addBuildTasks(getBuildTargets(pullRequest, hasNoBuildStatuses, mergeStatus));
+        return;
+      }
+
+      pendingChecks.acquireUninterruptibly();
+      runningChecks.acquireUninterruptibly();
+      CompletableFuture<PullRequestCheck> check = new CompletableFuture<>();
+      checks.add(check);
+      try {
+        StashBuildTrigger.descriptor
+            .getEvaluationExecutorService()
+            .execute(
+                () -> {
+                  try {
+                    check.complete(
+                        checkPullRequest(pullRequest, hasNoBuildStatuses, mergeStatus));
+                  } catch (Throwable e) {
+                    check.completeExceptionally(e);
+                  } finally {
+                    runningChecks.release();
+                  }
+                });
+      } catch (RejectedExecutionException e) {
+        runningChecks.release();
+        check.complete(checkPullRequest(pullRequest, hasNoBuildStatuses, mergeStatus));
+      }
+    }
+
+    /** Waits until the builds are scheduled for all the pull requests passed in. */
+    private void finish() {
+      try {
+        checkPendingBatch();
+      } finally {
+        if (scheduler != null) {
+          checks.add(endOfList);
+          scheduler.join();
+        }
+      }
+    }
+
+    private void scheduleBuilds() {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          CompletableFuture<PullRequestCheck> check;
+          try {
+            check = checks.take();
+          } catch (InterruptedException e) {
+            // The list is waiting for the scheduled builds, keep going
+            interrupted = true;
+            continue;
+          }
+          if (check == endOfList) {
+            return;
+          }
+
+          try {
+            PullRequestCheck result = check.join();
+            pollLog.appendCapturedLog(result.log);
+            addBuildTasks(result.buildTargets);
+          } catch (RuntimeException e) {
+            logger.log(
+                Level.WARNING, format("%s: cannot check pull request", job.getFullName()), e);
+          } finally {
+            pendingChecks.release();
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
     }
 
-    return StringUtils.containsIgnoreCase(text, phrase.trim());
+    private void addBuildTasks(List<StashPullRequestBuildTarget> targets) {
+      for (StashPullRequestBuildTarget target : targets) {
+        buildTargets.incrementAndGet();
+        addFutureBuildTask(target);
+      }
+    }
   }
 
-  private boolean isPhrasesStartsWith(String text, String phrase) {
-    if (StringUtils.isEmpty(text)) {
-      return false;
+  @Nonnull
+  private PullRequestCheck checkPullRequest(
+      StashPullRequestResponseValue pullRequest,
+      boolean hasNoBuildStatuses,
+      @Nullable CompletableFuture<StashPullRequestMergeableResponse> mergeStatus) {
+    List<StashPullRequestBuildTarget> buildTargets = new ArrayList<>();
+    String log =
+        pollLog.captureLog(
+            () ->
+                buildTargets.addAll(
+                    getBuildTargets(pullRequest, hasNoBuildStatuses, mergeStatus)));
+    return new PullRequestCheck(buildTargets, log);
+  }
+
+  /** Result of checking a pull request in parallel with others. */
+  private static final class PullRequestCheck {
+    private final List<StashPullRequestBuildTarget> buildTargets;
+    private final String log;
+
+    private PullRequestCheck(List<StashPullRequestBuildTarget> buildTargets, String log) {
+      this.buildTargets = buildTargets;
+      this.log = log;
     }
+  }
 
-    return StringUtils.startsWithIgnoreCase(text, phrase.trim());
+  // The statistics cover the requests of all jobs polling the same server
+  private void logRateLimitStatistics(
+      StashTriggerConfig config, StashRateLimiterStatistics rateLimitBefore) {
+    StashRateLimiterStatistics rateLimitAfter =
+        StashApiClient.getRateLimiterStatistics(config.getStashHost());
+    long delayed = rateLimitAfter.getDelayedCount() - rateLimitBefore.getDelayedCount();
+    if (delayed <= 0) {
+      return;
+    }
+    pollLog.log(
+        "Requests delayed by the rate limit during the poll: {} of {}, waiting {} in total",
+        delayed,
+        rateLimitAfter.getAcquiredCount() - rateLimitBefore.getAcquiredCount(),
+        Util.getTimeSpanString(rateLimitAfter.getWaitMillis() - rateLimitBefore.getWaitMillis()));
+    pollLog.log(
+        "Requests waiting for the rate limit: {} writes and {} reads, at most {} at once so far",
+        rateLimitAfter.getWaitingWrites(),
+        rateLimitAfter.getWaitingReads(),
+        rateLimitAfter.getMaxQueueDepth());
   }
 
-  public void pollRepository() {
+  private void pollAllPullRequests() {
     long pollStartTime = System.currentTimeMillis();
     pollLog.resetLog();
     pollLog.log("{}: poll started", ZonedDateTime.now().format(TIMESTAMP_FORMATTER));
     logger.finest(format("poll started for %s", job.getFullName()));
 
-    Collection<StashPullRequestResponseValue> targetPullRequests = getTargetPullRequests();
-    pollLog.log("Number of open pull requests: {}", targetPullRequests.size());
+    StashTriggerConfig config = trigger.getConfig();
+    long unavailableMillis = StashApiClient.getServerUnavailableMillis(config.getStashHost());
+    if (unavailableMillis > 0) {
+      // Every request would fail without reaching the server
+      pollLog.log(
+          "Poll skipped, requests to the server are suspended after repeated failures for {}",
+          Util.getTimeSpanString(unavailableMillis));
+      return;
+    }
 
-    List<StashPullRequestBuildTarget> buildTargets = new ArrayList<>();
-    for (StashPullRequestResponseValue pullRequest : targetPullRequests) {
-      buildTargets.addAll(getBuildTargets(pullRequest));
+    StashRateLimiterStatistics rateLimitBefore =
+        StashApiClient.getRateLimiterStatistics(config.getStashHost());
+    PollPipeline pipeline = new PollPipeline(config);
+    try {
+      forEachTargetPullRequest(pipeline::accept);
+    } finally {
+      pipeline.finish();
     }
 
-    pollLog.log("Number of build targets to be built: {}", buildTargets.size());
-    for (StashPullRequestBuildTarget buildTarget : buildTargets) {
-      addFutureBuildTask(buildTarget);
+    pollLog.log("Number of open pull requests: {}", pipeline.openPullRequests);
+    if (pipeline.unchangedPullRequests > 0) {
+      pollLog.log(
+          "Number of pull requests unchanged since last check: {}",
+          pipeline.unchangedPullRequests);
     }
+    pollLog.log("Number of build targets to be built: {}", pipeline.buildTargets.get());
+    logRateLimitStatistics(config, rateLimitBefore);
+    activityStore.save();
+    stateStore.save();
 
     pollLog.log(
         "{}: poll completed in {}",
@@ -0,0 +1,366 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static java.lang.String.format;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestActivityResponse;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValue;
+
+/**
+ * Recent state of a repository shared by all jobs polling it.
+ *
+ * <p>The first job to poll fetches the list of pull requests, and the other jobs polling the same
+ * repository with the same user reuse it until it's older than {@link #MAX_AGE_MILLIS}. Activity
+ * pages read by any job are reused the same way until the list is fetched again. Every job still
+ * applies its own settings to the shared data.
+ *
+ * <p>When a job posts or deletes a comment, the pages for that pull request are discarded, so that
+ * no job makes decisions without seeing the comments posted by the plugin.
+ */
+class StashRepositorySnapshot {
+  private static final Logger logger =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  // Maximum age of the shared data. Polling more often than that reuses the
+  // data, so the changes on the server may be noticed up to that much later.
+  static final long MAX_AGE_MILLIS =
+      TimeUnit.SECONDS.toMillis(
+          Long.getLong(StashRepositorySnapshot.class.getName() + ".maxAgeSeconds", 60));
+
+  private static final Map<Key, StashRepositorySnapshot> snapshots = new HashMap<>();
+
+  /** Source of data for the snapshot. */
+  interface Loader<T> {
+    @Nonnull
+    T load() throws StashApiException;
+  }
+
+  /** Source of the pull request list for the snapshot. */
+  interface Lister {
+    void forEachPullRequest(Consumer<StashPullRequestResponseValue> consumer)
+        throws StashApiException;
+  }
+
+  private final Key key;
+  private final long maxAgeMillis;
+  private int references;
+
+  // Guarded by this
+  private Generation generation;
+  private long invalidations;
+
+  private StashRepositorySnapshot(@CheckForNull Key key, long maxAgeMillis) {
+    this.key = key;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Gets the snapshot shared by the jobs polling a repository as the same user
+   *
+   * @param repositoryKey repository
+   * @param username user polling the repository
+   * @return snapshot, to be released by {@link #release()} when no longer needed
+   */
+  @Nonnull
+  static StashRepositorySnapshot acquire(
+      @Nonnull StashTriggerRegistry.Key repositoryKey, @Nonnull String username) {
+    Key key = new Key(repositoryKey, username);
+    synchronized (snapshots) {
+      StashRepositorySnapshot snapshot =
+          snapshots.computeIfAbsent(key, k -> new StashRepositorySnapshot(k, MAX_AGE_MILLIS));
+      snapshot.references++;
+      return snapshot;
+    }
+  }
+
+  /**
+   * Creates a snapshot for a single job, which passes all requests through
+   *
+   * @return snapshot
+   */
+  @Nonnull
+  static StashRepositorySnapshot unshared() {
+    return new StashRepositorySnapshot(null, 0);
+  }
+
+  /** Releases a snapshot obtained from {@link #acquire}. */
+  void release() {
+    if (key == null) {
+      return;
+    }
+    synchronized (snapshots) {
+      if (--references == 0) {
+        snapshots.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Passes the open pull requests to the consumer, fetching the list if it's missing or outdated
+   *
+   * <p>While the list is being fetched, the pull requests are passed on as the pages arrive, both
+   * to the job fetching the list and to the other jobs polling the repository. No lock is held
+   * while the consumer runs, so the jobs go through the list at their own pace.
+   *
+   * @param consumer consumer of pull requests
+   * @param lister fetches the list from the server
+   * @throws StashApiException if the list cannot be fetched, some pull requests may have been
+   *     passed to the consumer already
+   */
+  void forEachPullRequest(
+      @Nonnull Consumer<StashPullRequestResponseValue> consumer, @Nonnull Lister lister)
+      throws StashApiException {
+    if (maxAgeMillis <= 0) {
+      lister.forEachPullRequest(consumer);
+      return;
+    }
+
+    Generation current;
+    boolean fetching = false;
+    synchronized (this) {
+      // Jobs polling while the list is being fetched use that list rather
+      // than fetching it again
+      if (generation == null || generation.isStale()) {
+        generation = new Generation();
+        fetching = true;
+      }
+      current = generation;
+    }
+
+    if (!fetching) {
+      current.replay(consumer);
+      return;
+    }
+
+    boolean fetched = false;
+    try {
+      lister.forEachPullRequest(
+          pullRequest -> {
+            current.add(pullRequest);
+            consumer.accept(pullRequest);
+          });
+      fetched = true;
+    } finally {
+      int count = current.finish(fetched);
+      if (fetched) {
+        logger.finest(format("%s: fetched %d pull requests", key, count));
+      }
+    }
+  }
+
+  /**
+   * Gets a page of pull request activities, fetching it if it's not in the snapshot
+   *
+   * @param pullRequestId pull request ID
+   * @param start index of the first activity on the page
+   * @param loader fetches the page from the server
+   * @return activity page
+   * @throws StashApiException if the page cannot be fetched
+   */
+  @Nonnull
+  StashPullRequestActivityResponse getActivityPage(
+      String pullRequestId, int start, @Nonnull Loader<StashPullRequestActivityResponse> loader)
+      throws StashApiException {
+    Generation current;
+    long currentInvalidations;
+    synchronized (this) {
+      current = getCurrentGeneration();
+      currentInvalidations = invalidations;
+      if (current != null) {
+        StashPullRequestActivityResponse page = current.getPage(pullRequestId, start);
+        if (page != null) {
+          return page;
+        }
+      }
+    }
+
+    StashPullRequestActivityResponse page = loader.load();
+    keepPage(current, currentInvalidations, pullRequestId, start, page);
+    return page;
+  }
+
+  /**
+   * Gets a page of pull request activities without blocking, fetching it if it's not in the
+   * snapshot
+   *
+   * @param pullRequestId pull request ID
+   * @param start index of the first activity on the page
+   * @param loader starts fetching the page from the server
+   * @return activity page, cancelling it cancels the future returned by the loader
+   */
+  @Nonnull
+  CompletableFuture<StashPullRequestActivityResponse> getActivityPageAsync(
+      String pullRequestId,
+      int start,
+      @Nonnull Supplier<CompletableFuture<StashPullRequestActivityResponse>> loader) {
+    Generation current;
+    long currentInvalidations;
+    synchronized (this) {
+      current = getCurrentGeneration();
+      currentInvalidations = invalidations;
+      if (current != null) {
+        StashPullRequestActivityResponse page = current.getPage(pullRequestId, start);
+        if (page != null) {
+          return CompletableFuture.completedFuture(page);
+        }
+      }
+    }
+
+    CompletableFuture<StashPullRequestActivityResponse> page = loader.get();
+    page.thenAccept(
+        loaded -> keepPage(current, currentInvalidations, pullRequestId, start, loaded));
+    return page;
+  }
+
+  // Guarded by this
+  @CheckForNull
+  private Generation getCurrentGeneration() {
+    return generation != null && !generation.isExpired() ? generation : null;
+  }
+
+  // Don't keep the page if a comment was posted while it was being read
+  private synchronized void keepPage(
+      @CheckForNull Generation current,
+      long currentInvalidations,
+      String pullRequestId,
+      int start,
+      StashPullRequestActivityResponse page) {
+    if (current != null && current == generation && currentInvalidations == invalidations) {
+      current.putPage(pullRequestId, start, page);
+    }
+  }
+
+  /**
+   * Discards the activity pages for a pull request
+   *
+   * @param pullRequestId pull request ID
+   */
+  synchronized void invalidate(String pullRequestId) {
+    invalidations++;
+    if (generation != null) {
+      generation.pages.remove(pullRequestId);
+    }
+  }
+
+  /**
+   * Data fetched after the list of pull requests started being fetched.
+   *
+   * <p>The list grows as its pages arrive, and jobs waiting for it are notified of every pull
+   * request added. The activity pages are guarded by the snapshot.
+   */
+  private final class Generation {
+    private final long createdMillis = System.currentTimeMillis();
+    private final Map<String, Map<Integer, StashPullRequestActivityResponse>> pages =
+        new HashMap<>();
+
+    // Guarded by this
+    private final List<StashPullRequestResponseValue> pullRequests = new ArrayList<>();
+    private boolean finished;
+    private boolean failed;
+
+    private boolean isExpired() {
+      return System.currentTimeMillis() - createdMillis >= maxAgeMillis;
+    }
+
+    // A list that failed to be fetched is fetched again by the next job
+    private synchronized boolean isStale() {
+      return failed || (finished && isExpired());
+    }
+
+    private synchronized void add(StashPullRequestResponseValue pullRequest) {
+      pullRequests.add(pullRequest);
+      notifyAll();
+    }
+
+    private synchronized int finish(boolean fetched) {
+      finished = true;
+      failed = !fetched;
+      notifyAll();
+      return pullRequests.size();
+    }
+
+    /**
+     * Passes the pull requests to the consumer, waiting for the ones not fetched yet
+     *
+     * @param consumer consumer of pull requests
+     * @throws StashApiException if the list cannot be fetched
+     */
+    private void replay(Consumer<StashPullRequestResponseValue> consumer)
+        throws StashApiException {
+      int index = 0;
+      while (true) {
+        StashPullRequestResponseValue pullRequest;
+        synchronized (this) {
+          while (index == pullRequests.size() && !finished) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new StashApiException("Interrupted while waiting for pull request list", e);
+            }
+          }
+          if (index == pullRequests.size()) {
+            if (failed) {
+              throw new StashApiException("Cannot fetch pull request list");
+            }
+            return;
+          }
+          pullRequest = pullRequests.get(index++);
+        }
+        consumer.accept(pullRequest);
+      }
+    }
+
+    @CheckForNull
+    private StashPullRequestActivityResponse getPage(String pullRequestId, int start) {
+      Map<Integer, StashPullRequestActivityResponse> pullRequestPages = pages.get(pullRequestId);
+      return pullRequestPages != null ? pullRequestPages.get(start) : null;
+    }
+
+    private void putPage(String pullRequestId, int start, StashPullRequestActivityResponse page) {
+      pages.computeIfAbsent(pullRequestId, id -> new HashMap<>()).put(start, page);
+    }
+  }
+
+  private static final class Key {
+    private final StashTriggerRegistry.Key repositoryKey;
+    private final String username;
+
+    private Key(StashTriggerRegistry.Key repositoryKey, String username) {
+      this.repositoryKey = repositoryKey;
+      this.username = username;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return repositoryKey.equals(other.repositoryKey) && username.equals(other.username);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(repositoryKey, username);
+    }
+
+    @Override
+    public String toString() {
+      return username + "@" + repositoryKey;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Trigger settings used while polling, with the patterns and phrases compiled.
+ *
+ * <p>The configuration is immutable, so checking a pull request with it gives consistent results
+ * even if the settings change meanwhile. {@link StashBuildTrigger#getConfig()} replaces it as a
+ * whole when the settings change.
+ */
+final class StashTriggerConfig {
+  private final String stashHost;
+  private final String targetBranchesToBuild;
+  private final String ciSkipPhrases;
+  private final String ciBuildPhrases;
+  private final String ignoredCommenters;
+  private final String globalIgnoredCommenters;
+  private final boolean onlyBuildOnComment;
+  private final boolean checkDestinationCommit;
+  private final boolean checkMergeable;
+  private final boolean checkNotConflicted;
+  private final boolean checkProbeMergeStatus;
+  private final boolean cancelOutdatedJobsEnabled;
+  private final boolean deletePreviousBuildFinishComments;
+  private final boolean reportBuildStatus;
+  private final int pullRequestConcurrency;
+
+  private final CompiledRegex targetBranchRegex;
+  private final CompiledRegex ignoredCommentersRegex;
+  private final CompiledRegex globalIgnoredCommentersRegex;
+  private final StashPhraseMatcher skipPhraseMatcher;
+  private final String buildPhrase;
+
+  private StashTriggerConfig(StashBuildTrigger trigger) {
+    this.stashHost = trigger.getStashHost();
+    this.targetBranchesToBuild = trigger.getTargetBranchesToBuild();
+    this.ciSkipPhrases = trigger.getCiSkipPhrases();
+    this.ciBuildPhrases = trigger.getCiBuildPhrases();
+    this.ignoredCommenters = trigger.getIgnoredCommenters();
+    this.globalIgnoredCommenters = trigger.getGlobalIgnoredCommenters();
+    this.onlyBuildOnComment = trigger.getOnlyBuildOnComment();
+    this.checkDestinationCommit = trigger.getCheckDestinationCommit();
+    this.checkMergeable = trigger.getCheckMergeable();
+    this.checkNotConflicted = trigger.getCheckNotConflicted();
+    this.checkProbeMergeStatus = trigger.getCheckProbeMergeStatus();
+    this.cancelOutdatedJobsEnabled = trigger.getCancelOutdatedJobsEnabled();
+    this.deletePreviousBuildFinishComments = trigger.getDeletePreviousBuildFinishComments();
+    this.reportBuildStatus = trigger.getReportBuildStatus();
+    this.pullRequestConcurrency = trigger.getPullRequestConcurrency();
+
+    this.targetBranchRegex = compileTargetBranches(targetBranchesToBuild);
+    this.ignoredCommentersRegex = CompiledRegex.compile(ignoredCommenters);
+    this.globalIgnoredCommentersRegex = CompiledRegex.compile(globalIgnoredCommenters);
+    this.skipPhraseMatcher = StashPhraseMatcher.compile(ciSkipPhrases);
+    this.buildPhrase = StringUtils.defaultString(ciBuildPhrases).trim();
+  }
+
+  /**
+   * Compiles the current settings of a trigger
+   *
+   * @param trigger trigger
+   * @return configuration
+   */
+  @Nonnull
+  static StashTriggerConfig of(@Nonnull StashBuildTrigger trigger) {
+    return new StashTriggerConfig(trigger);
+  }
+
+  /**
+   * Checks whether the global settings changed since the configuration was compiled
+   *
+   * @param globalIgnoredCommenters current global ignored commenters
+   * @return true if the configuration is still current
+   */
+  boolean isCurrent(@Nullable String globalIgnoredCommenters) {
+    return StringUtils.equals(this.globalIgnoredCommenters, globalIgnoredCommenters);
+  }
+
+  // All branch patterns are combined into one, so that a branch is matched
+  // against all of them at once
+  @Nonnull
+  private static CompiledRegex compileTargetBranches(@Nullable String targetBranchesToBuild) {
+    if (StringUtils.isEmpty(targetBranchesToBuild)) {
+      return CompiledRegex.compile(null);
+    }
+    List<String> alternatives = new ArrayList<>();
+    for (String branch : targetBranchesToBuild.split(",")) {
+      alternatives.add("(?:" + branch.trim() + ")");
+    }
+    return CompiledRegex.compile(String.join("|", alternatives));
+  }
+
+  /**
+   * Checks whether a pull request targeting the branch should be built
+   *
+   * @param branchName target branch name
+   * @return true if no target branches are set or one of them matches the whole name
+   * @throws PatternSyntaxException if the target branches are not valid regular expressions
+   */
+  boolean isTargetBranch(String branchName) {
+    return targetBranchRegex.isEmpty() || targetBranchRegex.matches(branchName);
+  }
+
+  /**
+   * Checks whether the comments of a user are ignored by the job or globally
+   *
+   * @param username comment author
+   * @return true if the comments are ignored
+   * @throws PatternSyntaxException if the ignored commenters are not a valid regular expression
+   */
+  boolean isIgnoredCommenter(@Nullable String username) {
+    if (StringUtils.isEmpty(username)) {
+      return false;
+    }
+    return ignoredCommentersRegex.matches(username)
+        || globalIgnoredCommentersRegex.matches(username);
+  }
+
+  /** @return true if comments may be ignored because of their author */
+  boolean hasIgnoredCommenters() {
+    return !ignoredCommentersRegex.isEmpty() || !globalIgnoredCommentersRegex.isEmpty();
+  }
+
+  @Nonnull
+  StashPhraseMatcher getSkipPhraseMatcher() {
+    return skipPhraseMatcher;
+  }
+
+  /** @return build phrase without surrounding whitespace */
+  @Nonnull
+  String getBuildPhrase() {
+    return buildPhrase;
+  }
+
+  String getStashHost() {
+    return stashHost;
+  }
+
+  String getTargetBranchesToBuild() {
+    return targetBranchesToBuild;
+  }
+
+  String getCiSkipPhrases() {
+    return ciSkipPhrases;
+  }
+
+  String getCiBuildPhrases() {
+    return ciBuildPhrases;
+  }
+
+  String getIgnoredCommenters() {
+    return ignoredCommenters;
+  }
+
+  String getGlobalIgnoredCommenters() {
+    return globalIgnoredCommenters;
+  }
+
+  boolean getOnlyBuildOnComment() {
+    return onlyBuildOnComment;
+  }
+
+  boolean getCheckDestinationCommit() {
+    return checkDestinationCommit;
+  }
+
+  boolean getCheckMergeable() {
+    return checkMergeable;
+  }
+
+  boolean getCheckNotConflicted() {
+    return checkNotConflicted;
+  }
+
+  boolean getCheckProbeMergeStatus() {
+    return checkProbeMergeStatus;
+  }
+
+  boolean getCancelOutdatedJobsEnabled() {
+    return cancelOutdatedJobsEnabled;
+  }
+
+  boolean getDeletePreviousBuildFinishComments() {
+    return deletePreviousBuildFinishComments;
+  }
+
+  boolean getReportBuildStatus() {
+    return reportBuildStatus;
+  }
+
+  int getPullRequestConcurrency() {
+    return pullRequestConcurrency;
+  }
+
+  /**
+   * Regular expression compiled once.
+   *
+   * <p>An invalid expression is reported when it's used rather than when the configuration is
+   * compiled, as it was before the expressions were compiled in advance.
+   */
+  private static final class CompiledRegex {
+    private final Pattern pattern;
+    private final PatternSyntaxException error;
+
+    private CompiledRegex(@Nullable Pattern pattern, @Nullable PatternSyntaxException error) {
+      this.pattern = pattern;
+      this.error = error;
+    }
+
+    @Nonnull
+    static CompiledRegex compile(@CheckForNull String regex) {
+      if (StringUtils.isEmpty(regex)) {
+        return new CompiledRegex(null, null);
+      }
+      try {
+        return new CompiledRegex(Pattern.compile(regex), null);
+      } catch (PatternSyntaxException e) {
+        return new CompiledRegex(null, e);
+      }
+    }
+
+    boolean isEmpty() {
+      return pattern == null && error == null;
+    }
+
+    boolean matches(String text) {
+      if (error != null) {
+        throw new PatternSyntaxException(
+            error.getDescription(), error.getPattern(), error.getIndex());
+      }
+      return pattern != null && pattern.matcher(text).matches();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Index of the started triggers by the repository they poll.
+ *
+ * <p>Triggers are added in {@link StashBuildTrigger#start} and removed in {@link
+ * StashBuildTrigger#stop}, so the index can be used to find the jobs watching a repository
+ * without walking all jobs. Updates and lookups can happen concurrently, such as while the
+ * configuration is being reloaded.
+ */
+class StashTriggerRegistry {
+  private static final StashTriggerRegistry instance = new StashTriggerRegistry();
+
+  private final Map<Key, Set<StashBuildTrigger>> triggers = new ConcurrentHashMap<>();
+
+  // The same triggers by repository on any server, keyed without the host
+  private final Map<Key, Set<StashBuildTrigger>> triggersByRepository = new ConcurrentHashMap<>();
+
+  @Nonnull
+  static StashTriggerRegistry getInstance() {
+    return instance;
+  }
+
+  /**
+   * Adds a started trigger
+   *
+   * @param trigger trigger
+   */
+  void register(@Nonnull StashBuildTrigger trigger) {
+    Key key = Key.of(trigger);
+    add(triggers, key, trigger);
+    add(triggersByRepository, key.withoutHost(), trigger);
+  }
+
+  private static void add(
+      Map<Key, Set<StashBuildTrigger>> index, Key key, StashBuildTrigger trigger) {
+    index.compute(
+        key,
+        (indexKey, keyTriggers) -> {
+          Set<StashBuildTrigger> updated =
+              keyTriggers != null ? keyTriggers : ConcurrentHashMap.newKeySet();
+          updated.add(trigger);
+          return updated;
+        });
+  }
+
+  /**
+   * Removes a stopped trigger, does nothing if the trigger is not registered
+   *
+   * @param trigger trigger
+   */
+  void unregister(@Nonnull StashBuildTrigger trigger) {
+    Key key = Key.of(trigger);
+    remove(triggers, key, trigger);
+    remove(triggersByRepository, key.withoutHost(), trigger);
+  }
+
+  private static void remove(
+      Map<Key, Set<StashBuildTrigger>> index, Key key, StashBuildTrigger trigger) {
+    // Sets are only changed inside compute methods, so that an empty set
+    // cannot be dropped while another trigger is being added to it
+    index.computeIfPresent(
+        key,
+        (indexKey, keyTriggers) -> {
+          keyTriggers.remove(trigger);
+          return keyTriggers.isEmpty() ? null : keyTriggers;
+        });
+  }
+
+  /**
+   * Gets the triggers polling a repository
+   *
+   * @param key repository key
+   * @return triggers, empty if there are none
+   */
+  @Nonnull
+  List<StashBuildTrigger> getTriggers(@Nonnull Key key) {
+    Set<StashBuildTrigger> keyTriggers = triggers.get(key);
+    return keyTriggers != null ? new ArrayList<>(keyTriggers) : Collections.emptyList();
+  }
+
+  /**
+   * Gets the triggers polling a repository on any server
+   *
+   * <p>This is for notifications that don't identify the server reliably.
+   *
+   * @param projectCode project key
+   * @param repositoryName repository slug
+   * @return triggers, empty if there are none
+   */
+  @Nonnull
+  List<StashBuildTrigger> getTriggers(String projectCode, String repositoryName) {
+    Set<StashBuildTrigger> repositoryTriggers =
+        triggersByRepository.get(new Key(null, projectCode, repositoryName));
+    return repositoryTriggers != null
+        ? new ArrayList<>(repositoryTriggers)
+        : Collections.emptyList();
+  }
+
+  /**
+   * Identifies a repository on a Bitbucket Server instance.
+   *
+   * <p>The host is compared without the trailing slashes, the host, project and repository names
+   * are compared ignoring case, as Bitbucket Server does.
+   */
+  static final class Key {
+    private final String stashHost;
+    private final String projectCode;
+    private final String repositoryName;
+
+    Key(@Nullable String stashHost, @Nullable String projectCode, @Nullable String repositoryName) {
+      this.stashHost = StringUtils.stripEnd(normalize(stashHost), "/");
+      this.projectCode = normalize(projectCode);
+      this.repositoryName = normalize(repositoryName);
+    }
+
+    @Nonnull
+    static Key of(@Nonnull StashBuildTrigger trigger) {
+      return new Key(
+          trigger.getStashHost(), trigger.getProjectCode(), trigger.getRepositoryName());
+    }
+
+    @Nonnull
+    private Key withoutHost() {
+      return new Key(null, projectCode, repositoryName);
+    }
+
+    @Nonnull
+    private static String normalize(@Nullable String value) {
+      return StringUtils.defaultString(value).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private boolean isSameRepository(Key other) {
+      return projectCode.equals(other.projectCode) && repositoryName.equals(other.repositoryName);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return stashHost.equals(other.stashHost) && isSameRepository(other);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(stashHost, projectCode, repositoryName);
+    }
+
+    @Override
+    public String toString() {
+      return stashHost + "/" + projectCode + "/" + repositoryName;
+    }
+  }
+}
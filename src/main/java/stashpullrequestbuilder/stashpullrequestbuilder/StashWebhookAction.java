@@ -0,0 +1,295 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static java.lang.String.format;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.Extension;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.util.Secret;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValue;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValueRepositoryRepository;
+
+/**
+ * Receives pull request webhooks from Bitbucket Server.
+ *
+ * <p>A webhook with the URL {@code <Jenkins URL>/stash-pullrequest-builder/notify} and pull request
+ * events can be added to the repository settings in Bitbucket Server. Every event makes the jobs
+ * polling the repository check the pull request right away, without fetching the list of all pull
+ * requests. Polling still catches any events that are lost.
+ *
+ * <p>The endpoint is not authenticated, so the payload is only used to find the pull request. The
+ * pull request itself is fetched from the server by every job using its own credentials. If a
+ * webhook secret is set in the global configuration, only webhooks signed with it are accepted.
+ * Without a secret, anyone can post to the endpoint, so a pull request is checked at most once per
+ * interval because of unsigned webhooks.
+ */
+@Extension
+public class StashWebhookAction implements UnprotectedRootAction {
+  private static final Logger logger =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  static final String URL_NAME = "stash-pullrequest-builder";
+
+  static final Set<String> PULL_REQUEST_EVENTS =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "pr:opened",
+                  "pr:from_ref_updated",
+                  "pr:comment:added",
+                  "pr:declined",
+                  "pr:merged")));
+
+  static final String SIGNATURE_HEADER = "X-Hub-Signature";
+  private static final String SIGNATURE_PREFIX = "sha256=";
+  private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+
+  // Minimum time between two checks of the same pull request caused by
+  // unsigned webhooks
+  static final long UNSIGNED_INTERVAL_MILLIS =
+      Long.getLong(StashWebhookAction.class.getName() + ".unsignedIntervalMillis", 10000);
+
+  // Number of pull requests whose last unsigned webhook is remembered, the
+  // oldest are forgotten first
+  private static final int MAX_REMEMBERED = 10000;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  // Time of the last unsigned webhook acted on, by pull request
+  private static final Map<String, Long> unsignedNotifications =
+      new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return size() > MAX_REMEMBERED;
+        }
+      };
+
+  @Override
+  public String getIconFileName() {
+    return null;
+  }
+
+  @Override
+  public String getDisplayName() {
+    return null;
+  }
+
+  @Override
+  public String getUrlName() {
+    return URL_NAME;
+  }
+
+  @RequirePOST
+  public HttpResponse doNotify(StaplerRequest request) throws IOException {
+    byte[] payload;
+    try (InputStream inputStream = request.getInputStream()) {
+      payload = IOUtils.toByteArray(inputStream);
+    }
+
+    Secret secret = StashBuildTrigger.descriptor.getWebhookSecret();
+    boolean signed = !Secret.toString(secret).isEmpty();
+    if (!isSignatureValid(payload, request.getHeader(SIGNATURE_HEADER), secret)) {
+      logger.fine("Ignoring webhook with missing or invalid signature");
+      return HttpResponses.error(HttpServletResponse.SC_FORBIDDEN, "Invalid signature");
+    }
+
+    Event event;
+    try {
+      event = parseEvent(new ByteArrayInputStream(payload));
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Cannot parse webhook payload", e);
+      return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, "Cannot parse payload");
+    }
+
+    // Bitbucket Server sends the event key in both the header and the payload
+    String eventKey = StringUtils.defaultIfEmpty(event.eventKey, request.getHeader("X-Event-Key"));
+    if (!PULL_REQUEST_EVENTS.contains(eventKey)) {
+      logger.fine(format("Ignoring webhook event %s", eventKey));
+      return HttpResponses.ok();
+    }
+
+    StashPullRequestResponseValue pullRequest = event.pullRequest;
+    StashPullRequestResponseValueRepositoryRepository repository = getTargetRepository(pullRequest);
+    if (repository == null
+        || StringUtils.isEmpty(repository.getProjectName())
+        || StringUtils.isEmpty(repository.getRepositoryName())
+        || StringUtils.isEmpty(pullRequest.getId())) {
+      return HttpResponses.error(
+          HttpServletResponse.SC_BAD_REQUEST, "No pull request in " + eventKey + " payload");
+    }
+
+    // The payload doesn't identify the server reliably, check the
+    // repository on all servers, fetching the pull request will fail if
+    // the server doesn't have it
+    List<StashBuildTrigger> triggers =
+        StashTriggerRegistry.getInstance()
+            .getTriggers(repository.getProjectName(), repository.getRepositoryName());
+    logger.fine(
+        format(
+            "Webhook event %s for PR #%s in %s/%s, checking %d job(s)",
+            eventKey,
+            pullRequest.getId(),
+            repository.getProjectName(),
+            repository.getRepositoryName(),
+            triggers.size()));
+    if (!signed
+        && !triggers.isEmpty()
+        && !isUnsignedNotificationDue(
+            repository.getProjectName(),
+            repository.getRepositoryName(),
+            pullRequest.getId(),
+            System.currentTimeMillis())) {
+      logger.fine(format("Ignoring repeated unsigned webhook for PR #%s", pullRequest.getId()));
+      return HttpResponses.ok();
+    }
+    for (StashBuildTrigger trigger : triggers) {
+      trigger.pollPullRequest(pullRequest.getId());
+    }
+    return HttpResponses.ok();
+  }
+
+  /**
+   * Checks the signature Bitbucket Server adds to webhooks with a secret
+   *
+   * @param payload request body
+   * @param signature {@code X-Hub-Signature} header, {@code sha256=} followed by the hex HMAC of
+   *     the body
+   * @param secret webhook secret, null or empty if webhooks are not signed
+   * @return true if no secret is set or the signature matches the body
+   */
+  static boolean isSignatureValid(
+      @Nonnull byte[] payload, @Nullable String signature, @Nullable Secret secret) {
+    String key = Secret.toString(secret);
+    if (key.isEmpty()) {
+      return true;
+    }
+    if (signature == null || !signature.startsWith(SIGNATURE_PREFIX)) {
+      return false;
+    }
+
+    byte[] expected;
+    try {
+      Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+      mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), SIGNATURE_ALGORITHM));
+      expected = mac.doFinal(payload);
+    } catch (GeneralSecurityException e) {
+      logger.log(Level.WARNING, "Cannot check webhook signature", e);
+      return false;
+    }
+
+    byte[] actual;
+    try {
+      actual = Hex.decodeHex(signature.substring(SIGNATURE_PREFIX.length()).toCharArray());
+    } catch (DecoderException e) {
+      return false;
+    }
+    // Takes the same time wherever the signatures differ
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  /**
+   * Limits the checks of a pull request caused by unsigned webhooks, which anyone could send
+   *
+   * @param projectCode project key
+   * @param repositoryName repository slug
+   * @param pullRequestId pull request ID
+   * @param nowMillis current time
+   * @return true if the pull request can be checked, false if it was checked too recently
+   */
+  static boolean isUnsignedNotificationDue(
+      String projectCode, String repositoryName, String pullRequestId, long nowMillis) {
+    String key =
+        (projectCode + "/" + repositoryName + "/" + pullRequestId).toLowerCase(Locale.ROOT);
+    synchronized (unsignedNotifications) {
+      Long last = unsignedNotifications.get(key);
+      if (last != null && nowMillis - last < UNSIGNED_INTERVAL_MILLIS) {
+        return false;
+      }
+      // Moved to the end, so that the oldest notifications are forgotten first
+      unsignedNotifications.remove(key);
+      unsignedNotifications.put(key, nowMillis);
+      return true;
+    }
+  }
+
+  @Nonnull
+  static Event parseEvent(InputStream inputStream) throws IOException {
+    Event event = mapper.readValue(inputStream, Event.class);
+    if (event == null) {
+      throw new IOException("Empty payload");
+    }
+    return event;
+  }
+
+  @CheckForNull
+  private static StashPullRequestResponseValueRepositoryRepository getTargetRepository(
+      @Nullable StashPullRequestResponseValue pullRequest) {
+    if (pullRequest == null || pullRequest.getToRef() == null) {
+      return null;
+    }
+    return pullRequest.getToRef().getRepository();
+  }
+
+  /** Fields of the webhook payload used by the plugin. */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  static class Event {
+    @JsonProperty("eventKey")
+    String eventKey;
+
+    @JsonProperty("pullRequest")
+    StashPullRequestResponseValue pullRequest;
+  }
+
+  /** Lets Bitbucket Server post to the endpoint without a crumb. */
+  @Extension
+  public static class CrumbExclusionImpl extends CrumbExclusion {
+    @Override
+    public boolean process(
+        HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      String pathInfo = request.getPathInfo();
+      if (pathInfo != null && pathInfo.startsWith("/" + URL_NAME + "/")) {
+        chain.doFilter(request, response);
+        return true;
+      }
+      return false;
+    }
+  }
+}
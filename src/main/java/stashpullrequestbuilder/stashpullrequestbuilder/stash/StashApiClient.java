@@ -2,17 +2,33 @@ package stashpullrequestbuilder.stashpullrequestbuilder.stash;
 
 import static java.lang.String.format;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import hudson.Util;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
@@ -24,43 +40,59 @@ import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.util.EntityUtils;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashRateLimiter.Priority;
 
 /** Created by Nathan McCarthy */
 public class StashApiClient {
 
-  // Connection timeout: maximum time for connecting to the HTTP server.
-  private static final int HTTP_CONNECTION_TIMEOUT_SECONDS = 15;
-
-  // Socket timeout: maximum period of inactivity between two data packets
-  // arriving to the client once the connection is established.
-  private static final int HTTP_SOCKET_TIMEOUT_SECONDS = 30;
-
   private static final Logger logger =
       Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
   private static final ObjectMapper mapper = new ObjectMapper();
 
+  // Parsers of GET responses, also identifying the requests shared by the coalescer
+  private static final ResponseParser<HttpResponse, String> RESPONSE_TEXT =
+      StashApiClient::logGetResponse;
+  private static final ResponseParser<HttpResponse, StashPullRequestResponse> PULL_REQUEST_PAGE =
+      StashApiClient::readPullRequestPage;
+
   private String apiBaseUrl;
+  private String buildStatusBaseUrl;
 
   private String project;
   private String repositoryName;
   private Credentials credentials;
-  private boolean ignoreSsl;
+  private String credentialsDigest;
+
+  private StashHttpClientPool.Lease httpClientLease;
+  private StashRateLimiter rateLimiter;
+  private StashRetryPolicy retryPolicy;
+  private StashCircuitBreaker circuitBreaker;
+  private StashRequestCoalescer coalescer;
+  private StashRequestHedger hedger;
 
-  private HttpClientBuilder httpClientBuilder;
+  /**
+   * Reason for a write. When requests wait for the rate limit, the writes reporting builds go
+   * first, then the writes made while polling, then the reads.
+   */
+  public enum WriteSource {
+    /** Comments and statuses reporting a build, posted by the build listener */
+    BUILD,
+    /** Comments and statuses posted while polling, such as the build queued comment */
+    POLL
+  }
 
   public StashApiClient(
       String stashHost,
@@ -70,88 +102,208 @@ public class StashApiClient {
       String repositoryName,
       boolean ignoreSsl)
       throws StashApiException {
+    this(
+        stashHost,
+        username,
+        password,
+        project,
+        repositoryName,
+        ignoreSsl,
+        StashRetryPolicy.DEFAULT,
+        StashCircuitBreaker.forHost(stashHost));
+  }
+
+  StashApiClient(
+      String stashHost,
+      String username,
+      String password,
+      String project,
+      String repositoryName,
+      boolean ignoreSsl,
+      StashRetryPolicy retryPolicy,
+      StashCircuitBreaker circuitBreaker)
+      throws StashApiException {
     this.credentials = new UsernamePasswordCredentials(username, password);
+    this.credentialsDigest = StashRequestCoalescer.digestCredentials(username, password);
     this.project = project;
     this.repositoryName = repositoryName;
     this.apiBaseUrl = stashHost.replaceAll("/$", "") + "/rest/api/1.0/projects/";
-    this.ignoreSsl = ignoreSsl;
-    this.httpClientBuilder = getHttpClientBuilder();
+    this.buildStatusBaseUrl = stashHost.replaceAll("/$", "") + "/rest/build-status/1.0/commits/";
+    this.httpClientLease = StashHttpClientPool.acquire(stashHost, ignoreSsl);
+    this.rateLimiter = StashRateLimiter.forHost(stashHost);
+    this.retryPolicy = retryPolicy;
+    this.circuitBreaker = circuitBreaker;
+    this.coalescer = StashRequestCoalescer.SHARED;
+    this.hedger = StashRequestHedger.forHost(stashHost);
+  }
+
+  /**
+   * Limits the rate of requests to every Bitbucket Server, for all clients together
+   *
+   * @param requestsPerSecond requests per second to every server, 0 or less for no limit
+   * @param burst number of requests that can be sent at once after a quiet period
+   */
+  public static void setRateLimit(int requestsPerSecond, int burst) {
+    StashRateLimiter.configure(requestsPerSecond, burst);
+  }
+
+  /**
+   * Gets the statistics of the requests sent to a Bitbucket Server by all clients
+   *
+   * @param stashHost Bitbucket Server URL
+   * @return statistics
+   */
+  @Nonnull
+  public static StashRateLimiterStatistics getRateLimiterStatistics(String stashHost) {
+    return StashRateLimiter.forHost(stashHost).getStatistics();
+  }
+
+  /**
+   * Enables sending a second copy of the GET requests that take longer than usual
+   *
+   * @param enabled true to hedge slow GET requests to all servers
+   */
+  public static void setHedgingEnabled(boolean enabled) {
+    StashRequestHedger.configure(enabled);
+  }
+
+  /**
+   * Gets the time remaining until requests to a Bitbucket Server are let through again
+   *
+   * <p>Requests are suspended for a while after the server fails repeatedly. Requests made
+   * meanwhile fail without reaching the server.
+   *
+   * @param stashHost Bitbucket Server URL
+   * @return remaining time in milliseconds, 0 if requests are let through
+   */
+  public static long getServerUnavailableMillis(String stashHost) {
+    return StashCircuitBreaker.forHost(stashHost).getRemainingOpenMillis();
   }
 
   @Nonnull
   public List<StashPullRequestResponseValue> getPullRequests() throws StashApiException {
     List<StashPullRequestResponseValue> pullRequestResponseValues = new ArrayList<>();
-    try {
-      boolean isLastPage = false;
-      int start = 0;
-      while (!isLastPage) {
-        String response = getRequest(pullRequestsPath(start));
-        StashPullRequestResponse parsedResponse =
-            mapper.readValue(response, StashPullRequestResponse.class);
-        isLastPage = parsedResponse.getIsLastPage();
-        if (!isLastPage) {
-          start = parsedResponse.getNextPageStart();
+    forEachPullRequest(pullRequestResponseValues::add);
+    return pullRequestResponseValues;
+  }
+
+  /**
+   * Passes open pull requests to the consumer one by one, in the order returned by the server
+   *
+   * <p>Every page of the list is parsed directly from the HTTP response stream, and the pull
+   * request fields not used by the plugin are skipped by the parser. The next page is fetched while
+   * the consumer goes through the current one, so at most two pages are kept in memory at a time.
+   *
+   * @param consumer consumer of pull requests
+   * @throws StashApiException if the list cannot be retrieved, some pull requests may have been
+   *     passed to the consumer already
+   */
+  public void forEachPullRequest(Consumer<StashPullRequestResponseValue> consumer)
+      throws StashApiException {
+    StashPullRequestResponse page = getRequest(pullRequestsPath(0), PULL_REQUEST_PAGE);
+    while (true) {
+      CompletableFuture<StashPullRequestResponse> nextPage =
+          page.getIsLastPage() ? null : getPullRequestPageAsync(page.getNextPageStart());
+      try {
+        page.getPrValues().forEach(consumer);
+      } catch (RuntimeException | Error e) {
+        if (nextPage != null) {
+          nextPage.cancel(false);
         }
-        pullRequestResponseValues.addAll(parsedResponse.getPrValues());
+        throw e;
       }
-      return pullRequestResponseValues;
-    } catch (IOException e) {
-      throw new StashApiException("Cannot read list of pull requests", e);
+      if (nextPage == null) {
+        return;
+      }
+      page = await(nextPage, "Cannot read list of pull requests");
     }
   }
 
+  /**
+   * Gets a single page of open pull requests without blocking the caller
+   *
+   * <p>The request is sent like {@link #getPullRequestActivityPageAsync}. The page is parsed the
+   * same way as by {@link #forEachPullRequest}.
+   *
+   * @param start index of the first pull request on the page
+   * @return pull request page, completed exceptionally with StashApiException if it cannot be
+   *     fetched
+   */
+  @Nonnull
+  public CompletableFuture<StashPullRequestResponse> getPullRequestPageAsync(int start) {
+    return getRequestAsync(pullRequestsPath(start), PULL_REQUEST_PAGE);
+  }
+
   @Nonnull
   public List<StashPullRequestComment> getPullRequestComments(
       String projectCode, String commentRepositoryName, String pullRequestId)
       throws StashApiException {
+    boolean isLastPage = false;
+    int start = 0;
+    List<StashPullRequestComment> comments = new ArrayList<>();
+    while (!isLastPage) {
+      String response =
+          getRequest(
+              pullRequestActivitiesPath(projectCode, commentRepositoryName, pullRequestId, start));
+      StashPullRequestActivityResponse parsedResponse =
+          parseActivityPage(response, projectCode, commentRepositoryName, pullRequestId);
+      addComments(parsedResponse, comments);
 
-    try {
-      boolean isLastPage = false;
-      int start = 0;
-      List<StashPullRequestComment> comments = new ArrayList<>();
-      while (!isLastPage) {
-        String response =
-            getRequest(
-                apiBaseUrl
-                    + projectCode
-                    + "/repos/"
-                    + commentRepositoryName
-                    + "/pull-requests/"
-                    + pullRequestId
-                    + "/activities?start="
-                    + start);
-        StashPullRequestActivityResponse parsedResponse =
-            mapper.readValue(response, StashPullRequestActivityResponse.class);
-
-        List<StashPullRequestActivity> prValues = parsedResponse.getPrValues();
-        if (prValues != null) {
-          for (StashPullRequestActivity activity : prValues) {
-            if (activity != null && activity.getComment() != null) {
-              comments.add(activity.getComment());
-            }
-          }
-        }
-
-        isLastPage = parsedResponse.getIsLastPage();
-        if (!isLastPage) {
-          start = parsedResponse.getNextPageStart();
-        }
+      isLastPage = parsedResponse.getIsLastPage();
+      if (!isLastPage) {
+        start = parsedResponse.getNextPageStart();
       }
-
-      return comments;
-    } catch (IOException e) {
-      throw new StashApiException(
-          format(
-              "%s/%s: cannot read comments for pull request %s",
-              projectCode, commentRepositoryName, pullRequestId),
-          e);
     }
+
+    return comments;
+  }
+
+  /**
+   * Creates a lazy iterator over pull request comments, most recent first
+   *
+   * <p>No requests are made until the iterator is used. Activity pages are requested one by one
+   * as the caller consumes the comments.
+   *
+   * @param projectCode project key
+   * @param commentRepositoryName repository slug
+   * @param pullRequestId pull request ID
+   * @return comment iterator
+   */
+  @Nonnull
+  public StashPullRequestCommentIterator getPullRequestCommentIterator(
+      String projectCode, String commentRepositoryName, String pullRequestId) {
+    return new StashPullRequestCommentIterator(
+        start ->
+            getPullRequestActivityPage(projectCode, commentRepositoryName, pullRequestId, start));
+  }
+
+  /**
+   * Gets a single page of pull request activities, most recent first
+   *
+   * @param projectCode project key
+   * @param commentRepositoryName repository slug
+   * @param pullRequestId pull request ID
+   * @param start index of the first activity on the page
+   * @return activity page
+   * @throws StashApiException if the page cannot be fetched
+   */
+  @Nonnull
+  public StashPullRequestActivityResponse getPullRequestActivityPage(
+      String projectCode, String commentRepositoryName, String pullRequestId, int start)
+      throws StashApiException {
+    String path =
+        pullRequestActivitiesPath(projectCode, commentRepositoryName, pullRequestId, start);
+    return parseActivityPage(getRequest(path), projectCode, commentRepositoryName, pullRequestId);
   }
 
   public void deletePullRequestComment(String pullRequestId, String commentId)
       throws StashApiException {
-    String path = pullRequestPath(pullRequestId) + "/comments/" + commentId + "?version=0";
-    deleteRequest(path);
+    deletePullRequestComment(pullRequestId, commentId, WriteSource.BUILD);
+  }
+
+  public void deletePullRequestComment(String pullRequestId, String commentId, WriteSource source)
+      throws StashApiException {
+    deleteRequest(pullRequestCommentPath(pullRequestId, commentId), getPriority(source));
   }
 
   @Nullable
@@ -163,14 +315,279 @@ public class StashApiClient {
   @Nullable
   public StashPullRequestComment postPullRequestComment(
       String pullRequestId, String comment, Integer replyCommentId) throws StashApiException {
+    return postPullRequestComment(pullRequestId, comment, replyCommentId, WriteSource.BUILD);
+  }
+
+  @Nullable
+  public StashPullRequestComment postPullRequestComment(
+      String pullRequestId, String comment, Integer replyCommentId, WriteSource source)
+      throws StashApiException {
     String path = pullRequestPath(pullRequestId) + "/comments";
+    String response =
+        postRequest(
+            path,
+            commentPayload(comment, replyCommentId),
+            getPriority(source),
+            false,
+            StashApiClient::logPostResponse);
+    return parseComment(response);
+  }
+
+  /**
+   * Gets a single pull request
+   *
+   * @param pullRequestId pull request ID
+   * @return pull request
+   * @throws StashApiException if the pull request cannot be fetched
+   */
+  @Nonnull
+  public StashPullRequestResponseValue getPullRequest(String pullRequestId)
+      throws StashApiException {
+    return parsePullRequest(getRequest(pullRequestPath(pullRequestId)));
+  }
+
+  @Nullable
+  public StashPullRequestMergeableResponse getPullRequestMergeStatus(String pullRequestId)
+      throws StashApiException {
+    String path = pullRequestPath(pullRequestId) + "/merge";
+    return parseMergeStatus(getRequest(path));
+  }
+
+  /**
+   * Gets the merge status of a pull request without blocking the caller
+   *
+   * <p>The request is sent like {@link #getPullRequestActivityPageAsync}, and is shared with a
+   * blocking {@link #getPullRequestMergeStatus} call for the same pull request in flight.
+   *
+   * @param pullRequestId pull request ID
+   * @return merge status, completed exceptionally with StashApiException if it cannot be fetched
+   */
+  @Nonnull
+  public CompletableFuture<StashPullRequestMergeableResponse> getPullRequestMergeStatusAsync(
+      String pullRequestId) {
+    String path = pullRequestPath(pullRequestId) + "/merge";
+    return thenParse(getRequestAsync(path, RESPONSE_TEXT), StashApiClient::parseMergeStatus);
+  }
+
+  @Nonnull
+  public Optional<String> mergePullRequest(String pullRequestId, String version)
+      throws StashApiException {
+    String path = pullRequestPath(pullRequestId) + "/merge?version=" + version;
+    return parseMergeResponse(postRequest(path, null));
+  }
+
+  /**
+   * Posts a build status for a commit
+   *
+   * <p>The status replaces any status posted for the commit with the same key before.
+   *
+   * @param commit commit hash
+   * @param status build status
+   * @throws StashApiException if the status cannot be posted
+   */
+  public void postCommitBuildStatus(String commit, StashCommitBuildStatus status)
+      throws StashApiException {
+    postCommitBuildStatus(commit, status, WriteSource.BUILD);
+  }
+
+  /**
+   * Posts a build status for a commit
+   *
+   * @param commit commit hash
+   * @param status build status
+   * @param source reason for posting the status
+   * @throws StashApiException if the status cannot be posted
+   */
+  public void postCommitBuildStatus(
+      String commit, StashCommitBuildStatus status, WriteSource source) throws StashApiException {
+    ObjectNode payload = mapper.valueToTree(status);
+    // The status replaces the one posted before, so posting it twice does no harm
+    postRequest(
+        commitBuildStatusPath(commit),
+        payload,
+        getPriority(source),
+        true,
+        httpResponse -> {
+          // The server replies with no content
+          EntityUtils.consumeQuietly(httpResponse.getEntity());
+          return null;
+        });
+  }
+
+  /**
+   * Finds the build status of a commit with the given key
+   *
+   * <p>The status pages are requested only until the status is found, which is usually the first
+   * one, as commits seldom have many statuses.
+   *
+   * @param commit commit hash
+   * @param key build status key
+   * @return build status, or empty optional if there is no status with the key
+   * @throws StashApiException if the statuses cannot be fetched
+   */
+  @Nonnull
+  public Optional<StashCommitBuildStatus> getCommitBuildStatus(String commit, String key)
+      throws StashApiException {
+    boolean isLastPage = false;
+    int start = 0;
+    while (!isLastPage) {
+      StashCommitBuildStatusResponse parsedResponse =
+          parseCommitBuildStatusPage(getRequest(commitBuildStatusPath(commit, start)), commit);
+      if (parsedResponse.getValues() != null) {
+        for (StashCommitBuildStatus status : parsedResponse.getValues()) {
+          if (status != null && key.equals(status.getKey())) {
+            return Optional.of(status);
+          }
+        }
+      }
+
+      isLastPage =
+          !Boolean.FALSE.equals(parsedResponse.getIsLastPage())
+              || parsedResponse.getNextPageStart() == null;
+      if (!isLastPage) {
+        start = parsedResponse.getNextPageStart();
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Gets the numbers of build statuses of several commits with a single request
+   *
+   * <p>The numbers include the statuses posted by any job or tool, the statuses themselves are not
+   * returned.
+   *
+   * @param commits commit hashes
+   * @return build status numbers by commit hash, commits without statuses may be missing
+   * @throws StashApiException if the numbers cannot be fetched
+   */
+  @Nonnull
+  public Map<String, StashCommitBuildStats> getCommitBuildStats(Collection<String> commits)
+      throws StashApiException {
+    ArrayNode payload = mapper.getNodeFactory().arrayNode();
+    commits.forEach(payload::add);
+    // The statistics are read with a POST, but they are a read all the same
+    return parseCommitBuildStats(
+        postRequest(
+            commitBuildStatsPath(), payload, Priority.READ, true, StashApiClient::logPostResponse));
+  }
+
+  /**
+   * Gets a single page of pull request activities without blocking the caller
+   *
+   * <p>The request waits for the rate limit, is retried and may be hedged like the blocking
+   * requests, and is shared with identical requests in flight, but no thread is held while it
+   * waits or while the server responds. Cancelling the future abandons the request if no other
+   * caller is waiting for it.
+   *
+   * @param projectCode project key
+   * @param commentRepositoryName repository slug
+   * @param pullRequestId pull request ID
+   * @param start index of the first activity on the page
+   * @return activity page, completed exceptionally with StashApiException if it cannot be fetched
+   */
+  @Nonnull
+  public CompletableFuture<StashPullRequestActivityResponse> getPullRequestActivityPageAsync(
+      String projectCode, String commentRepositoryName, String pullRequestId, int start) {
+    String path =
+        pullRequestActivitiesPath(projectCode, commentRepositoryName, pullRequestId, start);
+    return thenParse(
+        getRequestAsync(path, RESPONSE_TEXT),
+        response -> parseActivityPage(response, projectCode, commentRepositoryName, pullRequestId));
+  }
+
+  @Nonnull
+  private static ObjectNode commentPayload(String comment, @Nullable Integer replyCommentId) {
     ObjectNode payload = mapper.getNodeFactory().objectNode();
     payload.put("text", comment);
     if (replyCommentId != null) {
       ObjectNode parentValue = payload.putObject("parent");
       parentValue.put("id", replyCommentId);
     }
-    String response = postRequest(path, payload);
+    return payload;
+  }
+
+  @Nonnull
+  private static StashPullRequestResponse readPullRequestPage(HttpResponse httpResponse)
+      throws StashApiException {
+    // Closing the stream consumes the rest of the response, so that the
+    // connection can be reused.
+    try (InputStream content = getEntity(httpResponse).getContent()) {
+      return parsePullRequestPage(content);
+    } catch (IOException e) {
+      throw new StashApiException("Cannot read list of pull requests", e);
+    }
+  }
+
+  @Nonnull
+  private static StashPullRequestResponse parsePullRequestPage(InputStream content)
+      throws IOException {
+    StashPullRequestResponse parsedResponse = new StashPullRequestResponse();
+    List<StashPullRequestResponseValue> prValues = new ArrayList<>();
+    parsedResponse.setPrValues(prValues);
+
+    try (JsonParser parser = mapper.getFactory().createParser(content)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException(parser, "Pull request list is not a JSON object");
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if ("values".equals(fieldName) && token == JsonToken.START_ARRAY) {
+          for (token = parser.nextToken();
+              token != JsonToken.END_ARRAY;
+              token = parser.nextToken()) {
+            if (token == null) {
+              throw new JsonParseException(parser, "Unexpected end of pull request list");
+            }
+            if (token == JsonToken.START_OBJECT) {
+              prValues.add(mapper.readValue(parser, StashPullRequestResponseValue.class));
+            } else {
+              parser.skipChildren();
+            }
+          }
+        } else if ("isLastPage".equals(fieldName)) {
+          parsedResponse.setIsLastPage(parser.getValueAsBoolean());
+        } else if ("nextPageStart".equals(fieldName)) {
+          parsedResponse.setNextPageStart(parser.getValueAsInt());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+
+    return parsedResponse;
+  }
+
+  @Nonnull
+  private static StashPullRequestActivityResponse parseActivityPage(
+      String response, String projectCode, String commentRepositoryName, String pullRequestId)
+      throws StashApiException {
+    try {
+      return mapper.readValue(response, StashPullRequestActivityResponse.class);
+    } catch (IOException e) {
+      throw new StashApiException(
+          format(
+              "%s/%s: cannot read comments for pull request %s",
+              projectCode, commentRepositoryName, pullRequestId),
+          e);
+    }
+  }
+
+  private static void addComments(
+      StashPullRequestActivityResponse parsedResponse, List<StashPullRequestComment> comments) {
+    List<StashPullRequestActivity> prValues = parsedResponse.getPrValues();
+    if (prValues != null) {
+      for (StashPullRequestActivity activity : prValues) {
+        if (activity != null && activity.getComment() != null) {
+          comments.add(activity.getComment());
+        }
+      }
+    }
+  }
+
+  private static StashPullRequestComment parseComment(String response) throws StashApiException {
     try {
       return mapper.readValue(response, StashPullRequestComment.class);
     } catch (IOException e) {
@@ -178,11 +595,23 @@ public class StashApiClient {
     }
   }
 
-  @Nullable
-  public StashPullRequestMergeableResponse getPullRequestMergeStatus(String pullRequestId)
+  @Nonnull
+  private static StashPullRequestResponseValue parsePullRequest(String response)
+      throws StashApiException {
+    try {
+      StashPullRequestResponseValue pullRequest =
+          mapper.readValue(response, StashPullRequestResponseValue.class);
+      if (pullRequest == null) {
+        throw new StashApiException("Empty pull request");
+      }
+      return pullRequest;
+    } catch (IOException e) {
+      throw new StashApiException("Cannot parse pull request", e);
+    }
+  }
+
+  private static StashPullRequestMergeableResponse parseMergeStatus(String response)
       throws StashApiException {
-    String path = pullRequestPath(pullRequestId) + "/merge";
-    String response = getRequest(path);
     try {
       return mapper.readValue(response, StashPullRequestMergeableResponse.class);
     } catch (IOException e) {
@@ -191,11 +620,37 @@ public class StashApiClient {
   }
 
   @Nonnull
-  public Optional<String> mergePullRequest(String pullRequestId, String version)
+  private static StashCommitBuildStatusResponse parseCommitBuildStatusPage(
+      String response, String commit) throws StashApiException {
+    try {
+      StashCommitBuildStatusResponse parsedResponse =
+          mapper.readValue(response, StashCommitBuildStatusResponse.class);
+      if (parsedResponse == null) {
+        throw new StashApiException("Empty build status list for commit " + commit);
+      }
+      return parsedResponse;
+    } catch (IOException e) {
+      throw new StashApiException("Cannot parse build statuses for commit " + commit, e);
+    }
+  }
+
+  @Nonnull
+  private static Map<String, StashCommitBuildStats> parseCommitBuildStats(String response)
       throws StashApiException {
-    String path = pullRequestPath(pullRequestId) + "/merge?version=" + version;
-    String response = postRequest(path, null);
+    try {
+      Map<String, StashCommitBuildStats> stats =
+          mapper.readValue(response, new TypeReference<Map<String, StashCommitBuildStats>>() {});
+      if (stats == null) {
+        throw new StashApiException("Empty commit build statistics");
+      }
+      return stats;
+    } catch (IOException e) {
+      throw new StashApiException("Cannot parse commit build statistics", e);
+    }
+  }
 
+  @Nonnull
+  private static Optional<String> parseMergeResponse(String response) throws StashApiException {
     try {
       StashPullRequestResponseValue parsedResponse =
           mapper.readValue(response, StashPullRequestResponseValue.class);
@@ -212,41 +667,32 @@ public class StashApiClient {
     return Optional.of(response);
   }
 
-  private HttpClientBuilder getHttpClientBuilder() throws StashApiException {
-    HttpClientBuilder httpClientBuilder = HttpClientBuilder.create().useSystemProperties();
-
-    if (this.ignoreSsl) {
-      try {
-        SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
-
-        sslContextBuilder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
-        SSLConnectionSocketFactory sslConnectionSocketFactory =
-            new SSLConnectionSocketFactory(
-                sslContextBuilder.build(), NoopHostnameVerifier.INSTANCE);
-        httpClientBuilder.setSSLSocketFactory(sslConnectionSocketFactory);
-      } catch (KeyManagementException | KeyStoreException | NoSuchAlgorithmException e) {
-        throw new StashApiException("Failed to setup the SSLConnectionFactory", e);
-      }
-    }
-
-    RequestConfig.Builder requestBuilder =
-        RequestConfig.custom()
-            .setConnectTimeout(HTTP_CONNECTION_TIMEOUT_SECONDS * 1000)
-            .setSocketTimeout(HTTP_SOCKET_TIMEOUT_SECONDS * 1000);
-    httpClientBuilder.setDefaultRequestConfig(requestBuilder.build());
-    return httpClientBuilder;
+  /**
+   * Releases the shared HTTP client
+   *
+   * <p>The client must not be used after it has been closed. Connections to the server are closed
+   * once no other client uses the same host.
+   */
+  public void close() {
+    httpClientLease.close();
   }
 
   private CloseableHttpClient getHttpClient() {
-    return httpClientBuilder.build();
+    return httpClientLease.getHttpClient();
   }
 
   @Nonnull
-  private static String entityAsString(HttpResponse httpResponse) throws StashApiException {
+  private static HttpEntity getEntity(HttpResponse httpResponse) throws StashApiException {
     HttpEntity entity = httpResponse.getEntity();
     if (entity == null) {
       throw new StashApiException("No HTTP entity found in response");
     }
+    return entity;
+  }
+
+  @Nonnull
+  private static String entityAsString(HttpResponse httpResponse) throws StashApiException {
+    HttpEntity entity = getEntity(httpResponse);
 
     try {
       return Util.fixNull(EntityUtils.toString(entity, Consts.UTF_8));
@@ -256,69 +702,102 @@ public class StashApiClient {
   }
 
   @Nonnull
-  private String getRequest(String path) throws StashApiException {
-    logger.log(Level.FINEST, "PR-GET-REQUEST:" + path);
-    CloseableHttpClient client = getHttpClient();
-
-    HttpGet request = new HttpGet(path);
-    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html; section 14.10.
-    // tells the server that we want it to close the connection when it has sent the response.
-    // address large amount of close_wait sockets client and fin sockets server side
-    request.addHeader("Connection", "close");
+  private static String logGetResponse(HttpResponse httpResponse) throws StashApiException {
+    String response = entityAsString(httpResponse);
+    logger.log(Level.FINEST, "PR-GET-RESPONSE:" + response);
+    return response;
+  }
 
-    try {
-      request.addHeader(new BasicScheme().authenticate(credentials, request, null));
-      HttpResponse httpResponse = client.execute(request);
-      int responseCode = httpResponse.getStatusLine().getStatusCode();
-      if (!validResponseCode(responseCode)) {
-        logger.log(Level.SEVERE, "Failing to get response from Stash PR GET " + request.getURI());
-        throw new StashApiException(
-            "Didn't get a 200 response from Stash PR GET! Response; '"
-                + responseCode
-                + "' with message; "
-                + httpResponse.getStatusLine().getReasonPhrase());
-      }
+  @Nonnull
+  private static String logPostResponse(HttpResponse httpResponse) throws StashApiException {
+    String response = entityAsString(httpResponse);
+    logger.log(Level.FINEST, "PR-POST-RESPONSE:" + response);
+    return response;
+  }
 
-      String response = entityAsString(httpResponse);
-      logger.log(Level.FINEST, "PR-GET-RESPONSE:" + response);
-      return response;
-    } catch (AuthenticationException | IOException e) {
-      throw new StashApiException("Exception in GET request", e);
-    } finally {
-      request.releaseConnection();
+  private static void checkResponseCode(
+      HttpUriRequest request, HttpResponse httpResponse, String method)
+      throws StashApiException {
+    int responseCode = httpResponse.getStatusLine().getStatusCode();
+    if (!validResponseCode(responseCode)) {
+      // Drain the body so that the connection can be reused
+      EntityUtils.consumeQuietly(httpResponse.getEntity());
+      logger.log(
+          Level.SEVERE, "Failing to get response from Stash PR " + method + " " + request.getURI());
+      throw new StashApiException(
+          "Didn't get a 200 response from Stash PR "
+              + method
+              + "! Response; '"
+              + responseCode
+              + "' with message; "
+              + httpResponse.getStatusLine().getReasonPhrase());
     }
   }
 
-  private void deleteRequest(String path) throws StashApiException {
-    CloseableHttpClient client = getHttpClient();
+  @Nonnull
+  private String getRequest(String path) throws StashApiException {
+    return getRequest(path, RESPONSE_TEXT);
+  }
 
-    HttpDelete request = new HttpDelete(path);
-    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html; section 14.10.
-    // tells the server that we want it to close the connection when it has sent the response.
-    // address large amount of close_wait sockets client and fin sockets server side
-    request.setHeader("Connection", "close");
+  /**
+   * Sends a GET request, or waits for an identical one in flight and shares its result
+   *
+   * @param path URL
+   * @param parser one of the parser constants, only requests with the same parser are shared
+   * @return parsed response
+   * @throws StashApiException if the request fails or the response cannot be parsed
+   */
+  @Nonnull
+  private <T> T getRequest(String path, ResponseParser<HttpResponse, T> parser)
+      throws StashApiException {
+    StashRequestCoalescer.Key key = new StashRequestCoalescer.Key(path, credentialsDigest, parser);
+    return coalescer.execute(key, () -> sendGetRequest(path, parser));
+  }
 
-    try {
-      request.addHeader(new BasicScheme().authenticate(credentials, request, null));
-      int response = client.execute(request).getStatusLine().getStatusCode();
-      logger.log(Level.FINE, "Delete comment {" + path + "} returned result code; " + response);
-    } catch (AuthenticationException | IOException e) {
-      throw new StashApiException("Exception in DELETE request", e);
-    } finally {
-      request.releaseConnection();
-    }
+  @Nonnull
+  private <T> T sendGetRequest(String path, ResponseParser<HttpResponse, T> parser)
+      throws StashApiException {
+    logger.log(Level.FINEST, "PR-GET-REQUEST:" + path);
+    HttpGet request = new HttpGet(path);
+    return execute(
+        request,
+        Priority.READ,
+        true,
+        httpResponse -> {
+          checkResponseCode(request, httpResponse, "GET");
+          return parser.parse(httpResponse);
+        });
+  }
+
+  @Nonnull
+  private static Priority getPriority(WriteSource source) {
+    return source == WriteSource.POLL ? Priority.POLL_WRITE : Priority.WRITE;
+  }
+
+  private void deleteRequest(String path, Priority priority) throws StashApiException {
+    execute(
+        new HttpDelete(path),
+        priority,
+        true,
+        httpResponse -> {
+          logDeleteResponse(path, httpResponse);
+          return null;
+        });
+  }
+
+  private static void logDeleteResponse(String path, HttpResponse httpResponse) {
+    // Drain the body so that the connection can be reused
+    EntityUtils.consumeQuietly(httpResponse.getEntity());
+    int response = httpResponse.getStatusLine().getStatusCode();
+    logger.log(Level.FINE, "Delete comment {" + path + "} returned result code; " + response);
   }
 
   @Nonnull
-  private String postRequest(String path, ObjectNode payload) throws StashApiException {
+  private HttpPost createPostRequest(String path, @Nullable JsonNode payload)
+      throws StashApiException {
     logger.log(Level.FINEST, "PR-POST-REQUEST:" + path + " with: " + payload);
-    CloseableHttpClient client = getHttpClient();
 
     HttpPost request = new HttpPost(path);
-    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html; section 14.10.
-    // tells the server that we want it to close the connection when it has sent the response.
-    // address large amount of close_wait sockets client and fin sockets server side
-    request.setHeader("Connection", "close");
     request.setHeader("X-Atlassian-Token", "no-check"); // xsrf
 
     if (payload != null) {
@@ -331,30 +810,555 @@ public class StashApiClient {
       }
     }
 
+    return request;
+  }
+
+  @Nonnull
+  private String postRequest(String path, JsonNode payload) throws StashApiException {
+    return postRequest(path, payload, Priority.WRITE, false, StashApiClient::logPostResponse);
+  }
+
+  private <T> T postRequest(
+      String path,
+      JsonNode payload,
+      Priority priority,
+      boolean idempotent,
+      ResponseParser<HttpResponse, T> parser)
+      throws StashApiException {
+    HttpPost request = createPostRequest(path, payload);
+    return execute(
+        request,
+        priority,
+        idempotent,
+        httpResponse -> {
+          checkResponseCode(request, httpResponse, "POST");
+          return parser.parse(httpResponse);
+        });
+  }
+
+  /**
+   * Sends a request, retrying it after failures that are likely to be temporary
+   *
+   * <p>Every attempt waits for the rate limiter and is counted by the circuit breaker of the
+   * server. The retries follow the retry policy of the client.
+   *
+   * @param request request to send
+   * @param priority request priority for the rate limiter
+   * @param idempotent true if sending the request twice has the same effect as sending it once
+   * @param parser parser of the final response, which checks its status code
+   * @return parsed response
+   * @throws StashApiException if the request fails or the response cannot be parsed
+   */
+  private <T> T execute(
+      HttpRequestBase request,
+      Priority priority,
+      boolean idempotent,
+      ResponseParser<HttpResponse, T> parser)
+      throws StashApiException {
+    String method = request.getMethod();
     try {
       request.addHeader(new BasicScheme().authenticate(credentials, request, null));
-      HttpResponse httpResponse = client.execute(request);
-      int responseCode = httpResponse.getStatusLine().getStatusCode();
-      if (!validResponseCode(responseCode)) {
-        logger.log(Level.SEVERE, "Failing to get response from Stash PR POST " + request.getURI());
-        throw new StashApiException(
-            "Didn't get a 200 response from Stash PR POST! Response; '"
-                + responseCode
-                + "' with message; "
-                + httpResponse.getStatusLine().getReasonPhrase());
-      }
+    } catch (AuthenticationException e) {
+      throw new StashApiException("Exception in " + method + " request", e);
+    }
 
-      String response = entityAsString(httpResponse);
-      logger.log(Level.FINEST, "PR-POST-RESPONSE:" + response);
-      return response;
-    } catch (AuthenticationException | IOException e) {
-      throw new StashApiException("Exception in POST request", e);
+    try {
+      for (int attempt = 0; ; attempt++) {
+        if (attempt > 0) {
+          // The previous attempt may have been aborted by a hedged copy
+          request.reset();
+        }
+        // Don't spend a token on a request that won't be sent
+        checkCircuitBreaker();
+        try {
+          acquirePermit(priority);
+        } catch (StashApiException e) {
+          circuitBreaker.onCancel();
+          throw e;
+        }
+
+        CloseableHttpResponse httpResponse;
+        try {
+          httpResponse = send(request);
+        } catch (IOException e) {
+          circuitBreaker.onFailure();
+          if (!retryPolicy.mayRetry(attempt, idempotent, e)) {
+            throw new StashApiException("Exception in " + method + " request", e);
+          }
+          waitBeforeRetry(request, e.toString(), retryPolicy.getDelayMillis(attempt));
+          continue;
+        } catch (RuntimeException e) {
+          // Such as a client closed by the plugin, which says nothing about the server
+          circuitBreaker.onCancel();
+          throw e;
+        }
+
+        long delayMillis;
+        int responseCode;
+        try (CloseableHttpResponse response = httpResponse) {
+          responseCode = response.getStatusLine().getStatusCode();
+          if (!StashRetryPolicy.isRetryableStatus(responseCode)) {
+            circuitBreaker.onSuccess();
+            return parser.parse(response);
+          }
+
+          circuitBreaker.onFailure();
+          delayMillis = retryPolicy.getDelayMillis(attempt, response);
+          if (delayMillis < 0 || !retryPolicy.mayRetry(attempt, idempotent, responseCode)) {
+            // The parser reports the failure
+            return parser.parse(response);
+          }
+          // Drain the body so that the connection can be reused
+          EntityUtils.consumeQuietly(response.getEntity());
+        } catch (IOException e) {
+          throw new StashApiException("Exception in " + method + " request", e);
+        }
+        waitBeforeRetry(request, "response code " + responseCode, delayMillis);
+      }
     } finally {
       request.releaseConnection();
     }
   }
 
-  private boolean validResponseCode(int responseCode) {
+  // Sends a request once, hedging the GET requests if enabled
+  private CloseableHttpResponse send(HttpRequestBase request) throws IOException {
+    if (!(request instanceof HttpGet) || !StashRequestHedger.isEnabled()) {
+      return getHttpClient().execute(request);
+    }
+
+    long startNanos = System.nanoTime();
+    long delayMillis = hedger.getHedgeDelayMillis();
+    CloseableHttpResponse httpResponse =
+        delayMillis < 0
+            ? getHttpClient().execute(request)
+            : sendHedged((HttpGet) request, delayMillis);
+    hedger.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return httpResponse;
+  }
+
+  /**
+   * Sends a GET request, and a copy of it if there is no response after a delay
+   *
+   * <p>The first response is returned, and the other request is aborted. The copy is not sent if
+   * the hedge budget is spent, if the rate limit is reached or if the server is failing.
+   *
+   * @param request request to send
+   * @param delayMillis time to wait for the response before sending the copy
+   * @return first response
+   * @throws IOException if the request fails before the copy gets a response
+   */
+  private CloseableHttpResponse sendHedged(HttpGet request, long delayMillis) throws IOException {
+    CloseableHttpClient client = getHttpClient();
+    HttpGet hedge = new HttpGet(request.getURI());
+    hedge.setHeaders(request.getAllHeaders());
+    AtomicBoolean decided = new AtomicBoolean();
+    CompletableFuture<CloseableHttpResponse> hedgeResponse = new CompletableFuture<>();
+
+    ScheduledFuture<?> timer =
+        StashRequestHedger.getExecutor()
+            .schedule(
+                () -> {
+                  if (decided.get()
+                      || circuitBreaker.getState() != StashCircuitBreaker.State.CLOSED
+                      || !rateLimiter.tryAcquire()
+                      || !hedger.tryAcquireHedge()) {
+                    return;
+                  }
+                  logger.log(Level.FINE, "Hedging GET " + request.getURI());
+                  try {
+                    CloseableHttpResponse response = client.execute(hedge);
+                    if (decided.compareAndSet(false, true)) {
+                      hedger.recordHedgeWin();
+                      // Make the original request give up before it's
+                      // released, so that it can be reset for a retry
+                      request.abort();
+                      hedgeResponse.complete(response);
+                    } else {
+                      response.close();
+                    }
+                  } catch (IOException e) {
+                    // Aborted, or failed on its own, the original request decides
+                    logger.log(Level.FINEST, "Hedged GET failed", e);
+                  }
+                },
+                delayMillis,
+                TimeUnit.MILLISECONDS);
+
+    try {
+      CloseableHttpResponse response = client.execute(request);
+      if (decided.compareAndSet(false, true)) {
+        timer.cancel(false);
+        hedge.abort();
+        return response;
+      }
+      response.close();
+    } catch (IOException e) {
+      if (decided.compareAndSet(false, true)) {
+        timer.cancel(false);
+        hedge.abort();
+        throw e;
+      }
+    }
+
+    // The copy got its response first
+    return hedgeResponse.join();
+  }
+
+  private void checkCircuitBreaker() throws StashApiException {
+    if (!circuitBreaker.allowRequest()) {
+      throw new StashApiException(
+          "Requests to Bitbucket Server are suspended after repeated failures, retrying in "
+              + Util.getTimeSpanString(circuitBreaker.getRemainingOpenMillis()));
+    }
+  }
+
+  private static void logRetry(HttpRequestBase request, String reason, long delayMillis) {
+    logger.log(
+        Level.FINE,
+        format(
+            "Retrying %s %s in %d ms after %s",
+            request.getMethod(), request.getURI(), delayMillis, reason));
+  }
+
+  private static void waitBeforeRetry(HttpRequestBase request, String reason, long delayMillis)
+      throws StashApiException {
+    logRetry(request, reason, delayMillis);
+    try {
+      Thread.sleep(delayMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StashApiException("Interrupted while waiting to retry the request", e);
+    }
+  }
+
+  // Waits for the rate limiter to let the request through
+  private void acquirePermit(Priority priority) throws StashApiException {
+    try {
+      rateLimiter.acquire(priority);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StashApiException("Interrupted while waiting for the request rate limit", e);
+    }
+  }
+
+  /**
+   * Sends a GET request without blocking, or joins an identical one in flight
+   *
+   * @param path URL
+   * @param parser one of the parser constants, only requests with the same parser are shared
+   * @return parsed response
+   */
+  @Nonnull
+  private <T> CompletableFuture<T> getRequestAsync(
+      String path, ResponseParser<HttpResponse, T> parser) {
+    StashRequestCoalescer.Key key = new StashRequestCoalescer.Key(path, credentialsDigest, parser);
+    return coalescer.executeAsync(key, () -> new AsyncGet<>(path, parser).start());
+  }
+
+  /**
+   * GET request sent by the non-blocking client, retried like the blocking requests
+   *
+   * <p>Every attempt is let through by the circuit breaker, then waits for the rate limiter. The
+   * waits for a token and before a retry are timers, so no thread is held by the request. Only
+   * I/O errors and retryable status codes count as failures of the server.
+   */
+  private final class AsyncGet<T> {
+    private final String path;
+    private final ResponseParser<HttpResponse, T> parser;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private int attempt;
+
+    // Step in progress: waiting for a token, for the response or for the next attempt
+    private volatile Future<?> pending;
+
+    private AsyncGet(String path, ResponseParser<HttpResponse, T> parser) {
+      this.path = path;
+      this.parser = parser;
+      // Stop waiting, or abort the request, if the caller is no longer interested
+      result.whenComplete(
+          (value, error) -> {
+            Future<?> step = pending;
+            if (result.isCancelled() && step != null) {
+              step.cancel(false);
+            }
+          });
+    }
+
+    private CompletableFuture<T> start() {
+      logger.log(Level.FINEST, "PR-GET-REQUEST:" + path);
+      // Don't spend a token on a request that won't be sent
+      try {
+        checkCircuitBreaker();
+      } catch (StashApiException e) {
+        result.completeExceptionally(e);
+        return result;
+      }
+      CompletableFuture<Void> permit = rateLimiter.acquireAsync(Priority.READ);
+      setPending(permit);
+      permit.whenComplete(
+          (ignored, error) -> {
+            if (error != null) {
+              circuitBreaker.onCancel();
+              result.completeExceptionally(
+                  new StashApiException("Cannot wait for the request rate limit", error));
+            } else {
+              send();
+            }
+          });
+      return result;
+    }
+
+    private void setPending(Future<?> step) {
+      pending = step;
+      if (result.isCancelled()) {
+        step.cancel(false);
+      }
+    }
+
+    // Sends the request let through by the circuit breaker in start()
+    private void send() {
+      if (result.isDone()) {
+        circuitBreaker.onCancel();
+        return;
+      }
+      HttpGet request = new HttpGet(path);
+      CompletableFuture<HttpResponse> response;
+      try {
+        request.addHeader(new BasicScheme().authenticate(credentials, request, null));
+        response = sendAsync(httpClientLease.getAsyncHttpClient(), request);
+      } catch (AuthenticationException e) {
+        circuitBreaker.onCancel();
+        result.completeExceptionally(new StashApiException("Exception in GET request", e));
+        return;
+      } catch (StashApiException | RuntimeException e) {
+        circuitBreaker.onCancel();
+        result.completeExceptionally(e);
+        return;
+      }
+      setPending(response);
+      response.whenComplete((httpResponse, error) -> onResponse(request, httpResponse, error));
+    }
+
+    private void onResponse(HttpGet request, HttpResponse httpResponse, Throwable error) {
+      if (error instanceof CancellationException) {
+        circuitBreaker.onCancel();
+        result.cancel(false);
+        return;
+      }
+      if (error != null) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (!(cause instanceof IOException)) {
+          // Such as a client closed by the plugin, which says nothing about the server
+          circuitBreaker.onCancel();
+          result.completeExceptionally(new StashApiException("Exception in GET request", cause));
+          return;
+        }
+        circuitBreaker.onFailure();
+        if (retryPolicy.mayRetry(attempt, true, (IOException) cause)) {
+          retry(request, cause.toString(), retryPolicy.getDelayMillis(attempt));
+        } else {
+          result.completeExceptionally(new StashApiException("Exception in GET request", cause));
+        }
+        return;
+      }
+
+      int responseCode = httpResponse.getStatusLine().getStatusCode();
+      if (!StashRetryPolicy.isRetryableStatus(responseCode)) {
+        circuitBreaker.onSuccess();
+      } else {
+        circuitBreaker.onFailure();
+        long delayMillis = retryPolicy.getDelayMillis(attempt, httpResponse);
+        if (delayMillis >= 0 && retryPolicy.mayRetry(attempt, true, responseCode)) {
+          EntityUtils.consumeQuietly(httpResponse.getEntity());
+          retry(request, "response code " + responseCode, delayMillis);
+          return;
+        }
+        // The parser reports the failure
+      }
+      try {
+        checkResponseCode(request, httpResponse, "GET");
+        result.complete(parser.parse(httpResponse));
+      } catch (StashApiException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    private void retry(HttpGet request, String reason, long delayMillis) {
+      logRetry(request, reason, delayMillis);
+      attempt++;
+      try {
+        // The timer of the hedges is shared, it doesn't block on anything
+        setPending(
+            StashRequestHedger.getExecutor()
+                .schedule(this::start, delayMillis, TimeUnit.MILLISECONDS));
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(new StashApiException("Cannot retry GET request", e));
+      }
+    }
+  }
+
+  /**
+   * Sends a GET request once with the non-blocking client, and a copy of it if hedging is enabled
+   * and there is no response after a delay
+   *
+   * <p>The first response is used, and the other request is aborted, as for the blocking requests.
+   *
+   * @param client non-blocking client
+   * @param request request to send
+   * @return response, completed exceptionally with the cause of the failure
+   */
+  @Nonnull
+  private CompletableFuture<HttpResponse> sendAsync(
+      CloseableHttpAsyncClient client, HttpGet request) {
+    if (!StashRequestHedger.isEnabled()) {
+      return exchangeAsync(client, request);
+    }
+
+    long startNanos = System.nanoTime();
+    long delayMillis = hedger.getHedgeDelayMillis();
+    CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    CompletableFuture<HttpResponse> original = exchangeAsync(client, request);
+    original.whenComplete(
+        (httpResponse, error) -> {
+          if (error != null) {
+            // Cancelled by the copy, or failed on its own
+            response.completeExceptionally(error);
+          } else if (!response.complete(httpResponse)) {
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+          }
+        });
+
+    if (delayMillis >= 0) {
+      ScheduledFuture<?> timer =
+          StashRequestHedger.getExecutor()
+              .schedule(
+                  () -> sendHedgeAsync(client, request, original, response),
+                  delayMillis,
+                  TimeUnit.MILLISECONDS);
+      response.whenComplete((httpResponse, error) -> timer.cancel(false));
+    }
+
+    response.whenComplete(
+        (httpResponse, error) -> {
+          if (response.isCancelled()) {
+            original.cancel(false);
+          } else if (error == null) {
+            hedger.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+          }
+        });
+    return response;
+  }
+
+  // Sends the copy of a slow GET request, if the budget, the rate limit and the server allow it
+  private void sendHedgeAsync(
+      CloseableHttpAsyncClient client,
+      HttpGet request,
+      CompletableFuture<HttpResponse> original,
+      CompletableFuture<HttpResponse> response) {
+    if (response.isDone()
+        || circuitBreaker.getState() != StashCircuitBreaker.State.CLOSED
+        || !rateLimiter.tryAcquire()
+        || !hedger.tryAcquireHedge()) {
+      return;
+    }
+    logger.log(Level.FINE, "Hedging GET " + request.getURI());
+    HttpGet hedge = new HttpGet(request.getURI());
+    hedge.setHeaders(request.getAllHeaders());
+    CompletableFuture<HttpResponse> copy = exchangeAsync(client, hedge);
+    copy.whenComplete(
+        (httpResponse, error) -> {
+          if (error != null) {
+            // Aborted, or failed on its own, the original request decides
+            logger.log(Level.FINEST, "Hedged GET failed", error);
+          } else if (response.complete(httpResponse)) {
+            hedger.recordHedgeWin();
+            original.cancel(false);
+          } else {
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+          }
+        });
+    response.whenComplete((httpResponse, error) -> copy.cancel(false));
+  }
+
+  // Sends a request with the non-blocking client, cancelling the result aborts the exchange
+  @Nonnull
+  private static CompletableFuture<HttpResponse> exchangeAsync(
+      CloseableHttpAsyncClient client, HttpUriRequest request) {
+    CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+    Future<HttpResponse> execution =
+        client.execute(
+            request,
+            new FutureCallback<HttpResponse>() {
+              @Override
+              public void completed(HttpResponse httpResponse) {
+                result.complete(httpResponse);
+              }
+
+              @Override
+              public void failed(Exception e) {
+                result.completeExceptionally(e);
+              }
+
+              @Override
+              public void cancelled() {
+                result.cancel(false);
+              }
+            });
+    result.whenComplete(
+        (httpResponse, error) -> {
+          if (result.isCancelled()) {
+            execution.cancel(true);
+          }
+        });
+    return result;
+  }
+
+  /** Parses a response, failures to do so are reported as StashApiException */
+  @FunctionalInterface
+  private interface ResponseParser<S, T> {
+    T parse(S response) throws StashApiException;
+  }
+
+  @Nonnull
+  private static <S, T> CompletableFuture<T> thenParse(
+      CompletableFuture<S> response, ResponseParser<S, T> parser) {
+    CompletableFuture<T> parsed =
+        response.thenApply(
+            value -> {
+              try {
+                return parser.parse(value);
+              } catch (StashApiException e) {
+                throw new CompletionException(e);
+              }
+            });
+    // Cancelling the parsed response cancels the response it waits for
+    parsed.whenComplete(
+        (value, error) -> {
+          if (parsed.isCancelled()) {
+            response.cancel(false);
+          }
+        });
+    return parsed;
+  }
+
+  /** Waits for a response fetched without blocking, failures are reported as StashApiException */
+  private static <T> T await(CompletableFuture<T> response, String message)
+      throws StashApiException {
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      response.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new StashApiException("Interrupted while waiting for the response", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StashApiException) {
+        throw (StashApiException) e.getCause();
+      }
+      throw new StashApiException(message, e.getCause());
+    }
+  }
+
+  private static boolean validResponseCode(int responseCode) {
     return responseCode == HttpStatus.SC_OK
         || responseCode == HttpStatus.SC_ACCEPTED
         || responseCode == HttpStatus.SC_CREATED
@@ -371,6 +1375,34 @@ public class StashApiClient {
     return pullRequestsPath() + pullRequestId;
   }
 
+  private String pullRequestCommentPath(String pullRequestId, String commentId) {
+    return pullRequestPath(pullRequestId) + "/comments/" + commentId + "?version=0";
+  }
+
+  private String pullRequestActivitiesPath(
+      String projectCode, String commentRepositoryName, String pullRequestId, int start) {
+    return apiBaseUrl
+        + projectCode
+        + "/repos/"
+        + commentRepositoryName
+        + "/pull-requests/"
+        + pullRequestId
+        + "/activities?start="
+        + start;
+  }
+
+  private String commitBuildStatusPath(String commit) {
+    return buildStatusBaseUrl + commit;
+  }
+
+  private String commitBuildStatsPath() {
+    return buildStatusBaseUrl + "stats";
+  }
+
+  private String commitBuildStatusPath(String commit, int start) {
+    return commitBuildStatusPath(commit) + "?start=" + start;
+  }
+
   private String pullRequestsPath(int start) {
     String basePath = pullRequestsPath();
     return basePath.substring(0, basePath.length() - 1) + "?start=" + start;
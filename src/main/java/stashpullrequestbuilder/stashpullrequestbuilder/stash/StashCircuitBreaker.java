@@ -0,0 +1,154 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import javax.annotation.Nonnull;
+
+/**
+ * Circuit breaker suspending the requests to one Bitbucket Server while it's unhealthy.
+ *
+ * <p>The breaker opens after {@link #FAILURE_THRESHOLD} requests in a row fail with a network error
+ * or a status code of an overloaded or unavailable server. While it's open, requests fail at once
+ * without reaching the server. Once the open period is over, a single trial request is let through:
+ * if it succeeds, the breaker closes, otherwise it opens again for twice as long, up to {@link
+ * #MAX_OPEN_MILLIS}. The breaker is shared by all clients of the server.
+ */
+final class StashCircuitBreaker {
+
+  // Failures in a row that open the breaker
+  static final int FAILURE_THRESHOLD =
+      Integer.getInteger(StashCircuitBreaker.class.getName() + ".failureThreshold", 5);
+
+  // Time the breaker stays open after it opens for the first time
+  static final long OPEN_MILLIS =
+      Long.getLong(StashCircuitBreaker.class.getName() + ".openMillis", 30000);
+
+  // Longest time the breaker stays open after failed trials
+  static final long MAX_OPEN_MILLIS = 600000;
+
+  // Breakers are kept for the lifetime of Jenkins, there is one per server
+  private static final Map<String, StashCircuitBreaker> breakers = new HashMap<>();
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+  private final LongSupplier clock;
+
+  // Guarded by this
+  private State state = State.CLOSED;
+  private int failures;
+  private long currentOpenMillis;
+  private long openedMillis;
+  private boolean trialSent;
+
+  StashCircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+    this.failureThreshold = Math.max(failureThreshold, 1);
+    this.openMillis = openMillis;
+    this.clock = clock;
+    this.currentOpenMillis = openMillis;
+  }
+
+  /**
+   * Gets the breaker shared by all clients of a server
+   *
+   * @param stashHost Bitbucket Server URL
+   * @return breaker
+   */
+  @Nonnull
+  static StashCircuitBreaker forHost(String stashHost) {
+    synchronized (breakers) {
+      return breakers.computeIfAbsent(
+          StashRateLimiter.normalizeHost(stashHost),
+          host ->
+              new StashCircuitBreaker(FAILURE_THRESHOLD, OPEN_MILLIS, System::currentTimeMillis));
+    }
+  }
+
+  /**
+   * Checks whether a request can be sent to the server
+   *
+   * <p>Every request let through must be followed by a call to {@link #onSuccess()}, {@link
+   * #onFailure()} or {@link #onCancel()}.
+   *
+   * @return true if the request can be sent, false if it must fail without being sent
+   */
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (getRemainingOpenMillis() > 0) {
+          return false;
+        }
+        state = State.HALF_OPEN;
+        trialSent = true;
+        return true;
+      case HALF_OPEN:
+      default:
+        // Only one trial request is sent at a time
+        if (trialSent) {
+          return false;
+        }
+        trialSent = true;
+        return true;
+    }
+  }
+
+  /** Records a response showing that the server is healthy. */
+  synchronized void onSuccess() {
+    state = State.CLOSED;
+    failures = 0;
+    currentOpenMillis = openMillis;
+    trialSent = false;
+  }
+
+  /** Records a failed request. */
+  synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      currentOpenMillis = Math.min(currentOpenMillis * 2, Math.max(MAX_OPEN_MILLIS, openMillis));
+      open();
+      return;
+    }
+    failures++;
+    if (state == State.CLOSED && failures >= failureThreshold) {
+      open();
+    }
+  }
+
+  /** Records a request that was let through but not completed, such as a cancelled one. */
+  synchronized void onCancel() {
+    if (state == State.HALF_OPEN) {
+      trialSent = false;
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openedMillis = clock.getAsLong();
+    trialSent = false;
+  }
+
+  @Nonnull
+  synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Gets the time remaining until requests are let through again
+   *
+   * @return remaining time in milliseconds, 0 if requests are let through or a trial request can
+   *     be sent
+   */
+  synchronized long getRemainingOpenMillis() {
+    if (state != State.OPEN) {
+      return 0;
+    }
+    return Math.max(0, openedMillis + currentOpenMillis - clock.getAsLong());
+  }
+}
@@ -0,0 +1,40 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/** Numbers of build statuses of a commit by state */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class StashCommitBuildStats {
+  private int successful;
+  private int inProgress;
+  private int failed;
+
+  public int getSuccessful() {
+    return successful;
+  }
+
+  public void setSuccessful(int successful) {
+    this.successful = successful;
+  }
+
+  public int getInProgress() {
+    return inProgress;
+  }
+
+  public void setInProgress(int inProgress) {
+    this.inProgress = inProgress;
+  }
+
+  public int getFailed() {
+    return failed;
+  }
+
+  public void setFailed(int failed) {
+    this.failed = failed;
+  }
+
+  /** @return total number of build statuses */
+  public int getTotal() {
+    return successful + inProgress + failed;
+  }
+}
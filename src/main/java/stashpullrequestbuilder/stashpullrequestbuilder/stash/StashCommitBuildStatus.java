@@ -0,0 +1,86 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Build status of a commit
+ *
+ * <p>Bitbucket Server keeps the latest status for every key, so a job posting its statuses with
+ * the same key replaces its previous status for the commit.
+ * https://docs.atlassian.com/bitbucket-server/rest/5.16.0/bitbucket-build-rest.html
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StashCommitBuildStatus {
+  public static final String INPROGRESS = "INPROGRESS";
+  public static final String SUCCESSFUL = "SUCCESSFUL";
+  public static final String FAILED = "FAILED";
+
+  private String state;
+  private String key;
+  private String name;
+  private String url;
+  private String description;
+  private Long dateAdded;
+
+  public StashCommitBuildStatus() {}
+
+  public StashCommitBuildStatus(
+      String state, String key, String name, String url, String description) {
+    this.state = state;
+    this.key = key;
+    this.name = name;
+    this.url = url;
+    this.description = description;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public void setState(String state) {
+    this.state = state;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public void setUrl(String url) {
+    this.url = url;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public void setDescription(String description) {
+    this.description = description;
+  }
+
+  /** @return time the status was posted, in milliseconds since the epoch */
+  public Long getDateAdded() {
+    return dateAdded;
+  }
+
+  public void setDateAdded(Long dateAdded) {
+    this.dateAdded = dateAdded;
+  }
+}
@@ -0,0 +1,38 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.util.List;
+
+/** Page of build statuses of a commit */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class StashCommitBuildStatusResponse {
+  private List<StashCommitBuildStatus> values;
+
+  private Boolean isLastPage;
+
+  private Integer nextPageStart;
+
+  public List<StashCommitBuildStatus> getValues() {
+    return values;
+  }
+
+  public void setValues(List<StashCommitBuildStatus> values) {
+    this.values = values;
+  }
+
+  public Boolean getIsLastPage() {
+    return isLastPage;
+  }
+
+  public void setIsLastPage(Boolean isLastPage) {
+    this.isLastPage = isLastPage;
+  }
+
+  public Integer getNextPageStart() {
+    return nextPageStart;
+  }
+
+  public void setNextPageStart(Integer nextPageStart) {
+    this.nextPageStart = nextPageStart;
+  }
+}
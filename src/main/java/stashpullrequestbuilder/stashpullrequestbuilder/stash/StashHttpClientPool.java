@@ -0,0 +1,290 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.net.ssl.SSLContext;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.ssl.SSLContextBuilder;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+
+/**
+ * Process-wide registry of pooled HTTP clients, one per Bitbucket Server host and SSL mode.
+ *
+ * <p>All {@link StashApiClient} instances talking to the same server share one keep-alive
+ * connection pool, so that polling many jobs doesn't pay for a TCP and TLS handshake on every
+ * request. The non-blocking client used by the asynchronous API is created on first use and
+ * shared the same way. Clients are reference counted. The last {@link Lease#close()} for a host
+ * shuts down its connection pools.
+ */
+final class StashHttpClientPool {
+  private static final Logger logger =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  // Connection timeout: maximum time for connecting to the HTTP server.
+  private static final int HTTP_CONNECTION_TIMEOUT_SECONDS = 15;
+
+  // Socket timeout: maximum period of inactivity between two data packets
+  // arriving to the client once the connection is established.
+  private static final int HTTP_SOCKET_TIMEOUT_SECONDS = 30;
+
+  // Maximum number of connections kept open to a single Bitbucket Server.
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 20;
+
+  // Maximum number of connections across all routes of a single client.
+  // Several routes are only possible with proxies or with redirects.
+  private static final int MAX_CONNECTIONS_TOTAL = 40;
+
+  // Connections idle for longer than that are closed by a background thread.
+  private static final int IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
+
+  // Pooled connections idle for longer than that are checked for staleness
+  // before being reused, in case the server has closed them.
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLISECONDS = 2000;
+
+  private static final Map<Key, SharedClient> clients = new HashMap<>();
+
+  private StashHttpClientPool() {}
+
+  /**
+   * Gets a shared HTTP client for the given host, creating it if necessary
+   *
+   * @param stashHost Bitbucket Server URL
+   * @param ignoreSsl whether to accept self-signed certificates and mismatching host names
+   * @return lease that must be closed when the client is no longer needed
+   * @throws StashApiException if the SSL context cannot be created
+   */
+  @Nonnull
+  static Lease acquire(String stashHost, boolean ignoreSsl) throws StashApiException {
+    Key key = new Key(stashHost, ignoreSsl);
+    synchronized (clients) {
+      SharedClient sharedClient = clients.get(key);
+      if (sharedClient == null) {
+        sharedClient = new SharedClient(key, createHttpClient(ignoreSsl));
+        clients.put(key, sharedClient);
+        logger.fine(format("Created HTTP connection pool for %s", key));
+      }
+      sharedClient.references++;
+      return new Lease(sharedClient);
+    }
+  }
+
+  private static void release(SharedClient sharedClient) {
+    synchronized (clients) {
+      if (--sharedClient.references > 0) {
+        return;
+      }
+      clients.remove(sharedClient.key);
+    }
+
+    logger.fine(format("Closing HTTP connection pool for %s", sharedClient.key));
+    sharedClient.close();
+  }
+
+  @Nonnull
+  private static CloseableHttpClient createHttpClient(boolean ignoreSsl)
+      throws StashApiException {
+    Registry<ConnectionSocketFactory> socketFactoryRegistry =
+        RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", getSslConnectionSocketFactory(ignoreSsl))
+            .build();
+
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+    connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+    connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLISECONDS);
+
+    return HttpClientBuilder.create()
+        .useSystemProperties()
+        .setConnectionManager(connectionManager)
+        .evictExpiredConnections()
+        .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .setDefaultRequestConfig(createRequestConfig())
+        .build();
+  }
+
+  @Nonnull
+  private static CloseableHttpAsyncClient createAsyncHttpClient(boolean ignoreSsl)
+      throws StashApiException {
+    SchemeIOSessionStrategy sslStrategy =
+        ignoreSsl
+            ? new SSLIOSessionStrategy(createTrustingSslContext(), NoopHostnameVerifier.INSTANCE)
+            : SSLIOSessionStrategy.getSystemDefaultStrategy();
+
+    // Idle pooled connections are watched by the I/O reactor, so connections
+    // closed by the server are noticed without a separate eviction thread.
+    CloseableHttpAsyncClient asyncHttpClient =
+        HttpAsyncClientBuilder.create()
+            .useSystemProperties()
+            .setSSLStrategy(sslStrategy)
+            .setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+            .setMaxConnTotal(MAX_CONNECTIONS_TOTAL)
+            .setDefaultRequestConfig(createRequestConfig())
+            .build();
+    asyncHttpClient.start();
+    return asyncHttpClient;
+  }
+
+  @Nonnull
+  private static RequestConfig createRequestConfig() {
+    return RequestConfig.custom()
+        .setConnectTimeout(HTTP_CONNECTION_TIMEOUT_SECONDS * 1000)
+        .setConnectionRequestTimeout(HTTP_CONNECTION_TIMEOUT_SECONDS * 1000)
+        .setSocketTimeout(HTTP_SOCKET_TIMEOUT_SECONDS * 1000)
+        .build();
+  }
+
+  @Nonnull
+  private static SSLConnectionSocketFactory getSslConnectionSocketFactory(boolean ignoreSsl)
+      throws StashApiException {
+    if (!ignoreSsl) {
+      return SSLConnectionSocketFactory.getSystemSocketFactory();
+    }
+
+    return new SSLConnectionSocketFactory(
+        createTrustingSslContext(), NoopHostnameVerifier.INSTANCE);
+  }
+
+  @Nonnull
+  private static SSLContext createTrustingSslContext() throws StashApiException {
+    try {
+      SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
+      sslContextBuilder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
+      return sslContextBuilder.build();
+    } catch (KeyManagementException | KeyStoreException | NoSuchAlgorithmException e) {
+      throw new StashApiException("Failed to setup the SSLConnectionFactory", e);
+    }
+  }
+
+  /** Reference to a shared HTTP client, released by {@link #close()}. */
+  static final class Lease {
+    private final SharedClient sharedClient;
+    private boolean closed;
+
+    private Lease(SharedClient sharedClient) {
+      this.sharedClient = sharedClient;
+    }
+
+    @Nonnull
+    CloseableHttpClient getHttpClient() {
+      return sharedClient.httpClient;
+    }
+
+    @Nonnull
+    CloseableHttpAsyncClient getAsyncHttpClient() throws StashApiException {
+      return sharedClient.getAsyncHttpClient();
+    }
+
+    /** Releases the client, closing its connection pools if no other leases remain. */
+    void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      release(sharedClient);
+    }
+  }
+
+  private static final class SharedClient {
+    private final Key key;
+    private final CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient asyncHttpClient;
+    private int references;
+    private boolean closed;
+
+    private SharedClient(Key key, CloseableHttpClient httpClient) {
+      this.key = key;
+      this.httpClient = httpClient;
+    }
+
+    @Nonnull
+    private synchronized CloseableHttpAsyncClient getAsyncHttpClient() throws StashApiException {
+      // A client created now would never be closed
+      if (closed) {
+        throw new StashApiException(format("HTTP connection pool for %s is closed", key));
+      }
+      if (asyncHttpClient == null) {
+        asyncHttpClient = createAsyncHttpClient(key.ignoreSsl);
+        logger.fine(format("Created asynchronous HTTP connection pool for %s", key));
+      }
+      return asyncHttpClient;
+    }
+
+    private synchronized void close() {
+      closed = true;
+      try {
+        httpClient.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, format("Cannot close HTTP connection pool for %s", key), e);
+      }
+      if (asyncHttpClient != null) {
+        try {
+          asyncHttpClient.close();
+        } catch (IOException e) {
+          logger.log(
+              Level.WARNING,
+              format("Cannot close asynchronous HTTP connection pool for %s", key),
+              e);
+        }
+      }
+    }
+  }
+
+  private static final class Key {
+    private final String stashHost;
+    private final boolean ignoreSsl;
+
+    private Key(String stashHost, boolean ignoreSsl) {
+      this.stashHost = StashRateLimiter.normalizeHost(stashHost);
+      this.ignoreSsl = ignoreSsl;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return ignoreSsl == other.ignoreSsl && stashHost.equals(other.stashHost);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(stashHost, ignoreSsl);
+    }
+
+    @Override
+    public String toString() {
+      return stashHost + (ignoreSsl ? " (ignoring SSL errors)" : "");
+    }
+  }
+}
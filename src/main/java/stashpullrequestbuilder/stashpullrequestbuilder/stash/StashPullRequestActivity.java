@@ -5,8 +5,26 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 /** Created by Nathan on 20/03/2015. */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class StashPullRequestActivity {
+  private Long id;
+  private String commentAction;
   private StashPullRequestComment comment;
 
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public String getCommentAction() {
+    return commentAction;
+  }
+
+  public void setCommentAction(String commentAction) {
+    this.commentAction = commentAction;
+  }
+
   public StashPullRequestComment getComment() {
     return comment;
   }
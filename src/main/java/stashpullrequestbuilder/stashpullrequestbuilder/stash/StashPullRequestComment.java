@@ -25,6 +25,7 @@ public class StashPullRequestComment implements Comparable<StashPullRequestComme
   private Integer commentId;
   private String text;
   private Author author;
+  private Long createdDate;
   private List<StashPullRequestComment> replies;
 
   public StashPullRequestComment() {}
@@ -68,6 +69,15 @@ public class StashPullRequestComment implements Comparable<StashPullRequestComme
     return author != null ? author.getName() : null;
   }
 
+  /** @return time the comment was created, in milliseconds since the epoch */
+  public Long getCreatedDate() {
+    return createdDate;
+  }
+
+  public void setCreatedDate(Long createdDate) {
+    this.createdDate = createdDate;
+  }
+
   @JsonProperty("comments")
   public List<StashPullRequestComment> getReplies() {
     return replies;
@@ -0,0 +1,183 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+
+/**
+ * Lazy iterator over pull request comments, most recent first
+ *
+ * <p>Bitbucket Server returns pull request activities newest first. The next page of activities
+ * is only requested once the comments from the previous pages have been consumed, so a caller
+ * that stops after the first few comments doesn't page through the whole history of the pull
+ * request. Comments within a page are ordered by decreasing ID.
+ *
+ * <p>If a cursor is set, reading stops at the first activity not newer than the cursor, so that
+ * only the activities added since an earlier read are returned.
+ */
+public class StashPullRequestCommentIterator {
+  private static final String COMMENT_ADDED = "ADDED";
+
+  /** Source of pull request activity pages. */
+  public interface PageReader {
+    /**
+     * Reads a page of activities
+     *
+     * @param start index of the first activity on the page
+     * @return parsed page
+     * @throws StashApiException if the page cannot be retrieved
+     */
+    @Nonnull
+    StashPullRequestActivityResponse read(int start) throws StashApiException;
+  }
+
+  private final PageReader pageReader;
+  private final Deque<StashPullRequestComment> comments = new ArrayDeque<>();
+  private boolean isLastPage;
+  private int nextPageStart;
+  private int pageCount;
+  private Long cursor;
+  private boolean cursorReached;
+  private Long newestActivityId;
+  private boolean commentsModified;
+
+  public StashPullRequestCommentIterator(@Nonnull PageReader pageReader) {
+    this.pageReader = pageReader;
+  }
+
+  /**
+   * Sets the ID of the newest activity already known to the caller
+   *
+   * <p>Must be called before any comments are read.
+   *
+   * @param cursor activity ID, the iteration stops before that activity
+   */
+  public void setCursor(@Nullable Long cursor) {
+    if (pageCount > 0) {
+      throw new IllegalStateException("Cursor must be set before reading comments");
+    }
+    this.cursor = cursor;
+  }
+
+  /** @return true if the iteration has stopped at the activity set as the cursor, or older */
+  public boolean isCursorReached() {
+    return cursorReached;
+  }
+
+  /** @return ID of the newest activity read so far, null if no activities have IDs */
+  @Nullable
+  public Long getNewestActivityId() {
+    return newestActivityId;
+  }
+
+  /**
+   * Checks whether existing comments have been edited, deleted or replied to
+   *
+   * <p>Only activities read so far are considered.
+   *
+   * @return true if any activity other than adding a comment has been read
+   */
+  public boolean hasModifiedComments() {
+    return commentsModified;
+  }
+
+  /**
+   * Checks whether more comments are available, fetching the next page if necessary
+   *
+   * @return true if {@link #next()} will return a comment
+   * @throws StashApiException if the next page cannot be retrieved
+   */
+  public boolean hasNext() throws StashApiException {
+    while (comments.isEmpty() && !isLastPage) {
+      readNextPage();
+    }
+    return !comments.isEmpty();
+  }
+
+  /**
+   * Returns the next comment, fetching the next page if necessary
+   *
+   * @return next comment
+   * @throws StashApiException if the next page cannot be retrieved
+   * @throws NoSuchElementException if there are no more comments
+   */
+  @Nonnull
+  public StashPullRequestComment next() throws StashApiException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return comments.removeFirst();
+  }
+
+  /**
+   * Fetches all remaining comments
+   *
+   * @return list of comments not returned by {@link #next()} yet
+   * @throws StashApiException if any page cannot be retrieved
+   */
+  @Nonnull
+  public List<StashPullRequestComment> remaining() throws StashApiException {
+    List<StashPullRequestComment> remaining = new ArrayList<>();
+    while (hasNext()) {
+      remaining.add(comments.removeFirst());
+    }
+    return remaining;
+  }
+
+  /** @return number of activity pages requested so far */
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  private void readNextPage() throws StashApiException {
+    StashPullRequestActivityResponse page = pageReader.read(nextPageStart);
+    pageCount++;
+
+    List<StashPullRequestComment> pageComments = new ArrayList<>();
+    List<StashPullRequestActivity> activities = page.getPrValues();
+    if (activities != null) {
+      for (StashPullRequestActivity activity : activities) {
+        if (activity == null) {
+          continue;
+        }
+
+        Long activityId = activity.getId();
+        if (cursor != null && activityId != null && activityId <= cursor) {
+          cursorReached = true;
+          break;
+        }
+        if (activityId != null && (newestActivityId == null || activityId > newestActivityId)) {
+          newestActivityId = activityId;
+        }
+
+        if (activity.getComment() != null) {
+          pageComments.add(activity.getComment());
+          String commentAction = activity.getCommentAction();
+          if (commentAction != null && !COMMENT_ADDED.equals(commentAction)) {
+            commentsModified = true;
+          }
+        }
+      }
+    }
+    pageComments.sort(
+        Comparator.comparing(
+            StashPullRequestComment::getCommentId,
+            Comparator.nullsLast(Comparator.reverseOrder())));
+    comments.addAll(pageComments);
+
+    // Treat a page without a continuation as the last one rather than
+    // requesting the same page again.
+    Integer pageStart = page.getNextPageStart();
+    isLastPage =
+        cursorReached || !Boolean.FALSE.equals(page.getIsLastPage()) || pageStart == null;
+    if (!isLastPage) {
+      nextPageStart = pageStart;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/** Properties of a pull request computed by Bitbucket Server */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class StashPullRequestProperties {
+  public static final String MERGE_CLEAN = "CLEAN";
+  public static final String MERGE_CONFLICTED = "CONFLICTED";
+
+  /** Result of the last merge of the pull request computed by the server */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public static class MergeResult {
+    private String outcome;
+    private Boolean current;
+
+    /** @return "CLEAN", "CONFLICTED" or "UNKNOWN" */
+    public String getOutcome() {
+      return outcome;
+    }
+
+    public void setOutcome(String outcome) {
+      this.outcome = outcome;
+    }
+
+    /** @return false if the result was computed for other commits than the current ones */
+    public Boolean getCurrent() {
+      return current;
+    }
+
+    public void setCurrent(Boolean current) {
+      this.current = current;
+    }
+  }
+
+  private MergeResult mergeResult;
+
+  private Integer commentCount;
+
+  public MergeResult getMergeResult() {
+    return mergeResult;
+  }
+
+  public void setMergeResult(MergeResult mergeResult) {
+    this.mergeResult = mergeResult;
+  }
+
+  /** @return number of comments on the pull request, null if the server doesn't report it */
+  public Integer getCommentCount() {
+    return commentCount;
+  }
+
+  public void setCommentCount(Integer commentCount) {
+    this.commentCount = commentCount;
+  }
+}
@@ -62,7 +62,15 @@ public class StashPullRequestResponse {
     return isLastPage;
   }
 
+  public void setIsLastPage(boolean isLastPage) {
+    this.isLastPage = isLastPage;
+  }
+
   public int getNextPageStart() {
     return nextPageStart;
   }
+
+  public void setNextPageStart(int nextPageStart) {
+    this.nextPageStart = nextPageStart;
+  }
 }
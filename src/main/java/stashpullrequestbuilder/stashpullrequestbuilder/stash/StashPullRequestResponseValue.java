@@ -1,12 +1,12 @@
 package stashpullrequestbuilder.stashpullrequestbuilder.stash;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /** Created by Nathan McCarthy */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class StashPullRequestResponseValue {
-  private String description;
   private Boolean locked;
 
   private String title;
@@ -25,13 +25,7 @@ public class StashPullRequestResponseValue {
 
   private String version;
 
-  public String getDescription() {
-    return description;
-  }
-
-  public void setDescription(String description) {
-    this.description = description;
-  }
+  private StashPullRequestProperties properties;
 
   @JsonProperty("version")
   public String getVersion() {
@@ -122,4 +116,44 @@ public class StashPullRequestResponseValue {
   public void setId(String id) {
     this.id = id;
   }
+
+  public StashPullRequestProperties getProperties() {
+    return properties;
+  }
+
+  public void setProperties(StashPullRequestProperties properties) {
+    this.properties = properties;
+  }
+
+  /**
+   * Gets the number of comments, including replies, as reported in the pull request list
+   *
+   * @return comment count, or null if the server doesn't report it
+   */
+  @JsonIgnore
+  public Integer getCommentCount() {
+    return properties != null ? properties.getCommentCount() : null;
+  }
+
+  /**
+   * Gets the merge outcome the server has already computed for the current commits
+   *
+   * @return "CLEAN" or "CONFLICTED", or null if the outcome is not known
+   */
+  @JsonIgnore
+  public String getMergeOutcome() {
+    if (properties == null || properties.getMergeResult() == null) {
+      return null;
+    }
+    StashPullRequestProperties.MergeResult mergeResult = properties.getMergeResult();
+    if (Boolean.FALSE.equals(mergeResult.getCurrent())) {
+      return null;
+    }
+    String outcome = mergeResult.getOutcome();
+    if (StashPullRequestProperties.MERGE_CLEAN.equals(outcome)
+        || StashPullRequestProperties.MERGE_CONFLICTED.equals(outcome)) {
+      return outcome;
+    }
+    return null;
+  }
 }
@@ -0,0 +1,394 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import javax.annotation.Nonnull;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Token bucket limiting the rate of requests to one Bitbucket Server, shared by all clients.
+ *
+ * <p>Tokens are added at the configured rate up to the burst size, and every request takes one.
+ * When the bucket is empty, requests wait in line for their turn. Writes of the build listener,
+ * such as the build started and finished comments and statuses, go first, then the writes of the
+ * polls, then the reads, so that reporting build results is not held up by polls. The rate and the
+ * burst size are the same for all servers.
+ *
+ * <p>Asynchronous requests wait in the same line without holding a thread. A timer lets them
+ * through when their token is due.
+ */
+final class StashRateLimiter {
+
+  static final int DEFAULT_REQUESTS_PER_SECOND = 50;
+  static final int DEFAULT_BURST = 100;
+
+  private static final Map<String, StashRateLimiter> limiters = new HashMap<>();
+  private static int requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+  private static int burst = DEFAULT_BURST;
+
+  // Lets the asynchronous requests through when their tokens are due
+  private static ScheduledExecutorService timer;
+
+  /** Requests waiting for tokens are served by priority, then in the order they came. */
+  enum Priority {
+    /** Writes reporting builds, sent by the build listener */
+    WRITE,
+    /** Writes made while polling, such as the build queued comments and statuses */
+    POLL_WRITE,
+    READ
+  }
+
+  private final LongSupplier nanoClock;
+  private final ScheduledExecutorService asyncTimer;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final Deque<Object> waitingWrites = new ArrayDeque<>();
+  private final Deque<Object> waitingPollWrites = new ArrayDeque<>();
+  private final Deque<Object> waitingReads = new ArrayDeque<>();
+
+  // Guarded by lock
+  private boolean unlimited;
+  private double tokensPerNano;
+  private double capacity;
+  private double tokens;
+  private long refilledNanos;
+  private ScheduledFuture<?> asyncWakeup;
+
+  // Statistics, guarded by lock
+  private long acquiredCount;
+  private long delayedCount;
+  private long waitNanos;
+  private int maxQueueDepth;
+
+  StashRateLimiter(int requestsPerSecond, int burst, LongSupplier nanoClock) {
+    this(requestsPerSecond, burst, nanoClock, getTimer());
+  }
+
+  StashRateLimiter(
+      int requestsPerSecond,
+      int burst,
+      LongSupplier nanoClock,
+      ScheduledExecutorService asyncTimer) {
+    this.nanoClock = nanoClock;
+    this.asyncTimer = asyncTimer;
+    this.refilledNanos = nanoClock.getAsLong();
+    setRate(requestsPerSecond, burst);
+    this.tokens = capacity;
+  }
+
+  /**
+   * Gets the limiter shared by all clients of a server
+   *
+   * @param stashHost Bitbucket Server URL
+   * @return limiter
+   */
+  @Nonnull
+  static StashRateLimiter forHost(String stashHost) {
+    synchronized (limiters) {
+      // Limiters are kept for the lifetime of Jenkins, there is one per server
+      return limiters.computeIfAbsent(
+          normalizeHost(stashHost),
+          host -> new StashRateLimiter(requestsPerSecond, burst, System::nanoTime));
+    }
+  }
+
+  /**
+   * Changes the rate limit of all servers
+   *
+   * @param requestsPerSecond requests per second to every server, 0 or less for no limit
+   * @param burst number of requests that can be sent at once after a quiet period
+   */
+  static void configure(int requestsPerSecond, int burst) {
+    synchronized (limiters) {
+      StashRateLimiter.requestsPerSecond = requestsPerSecond;
+      StashRateLimiter.burst = burst;
+      for (StashRateLimiter limiter : limiters.values()) {
+        limiter.setRate(requestsPerSecond, burst);
+      }
+    }
+  }
+
+  @Nonnull
+  static String normalizeHost(String stashHost) {
+    return StringUtils.stripEnd(
+        StringUtils.defaultString(stashHost).trim().toLowerCase(Locale.ROOT), "/");
+  }
+
+  private void setRate(int requestsPerSecond, int burst) {
+    lock.lock();
+    try {
+      refill();
+      unlimited = requestsPerSecond <= 0;
+      tokensPerNano = Math.max(requestsPerSecond, 0) / (double) TimeUnit.SECONDS.toNanos(1);
+      capacity = Math.max(burst, 1);
+      tokens = Math.min(tokens, capacity);
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    serveAsyncWaiters();
+  }
+
+  /**
+   * Waits until a request can be sent
+   *
+   * @param priority request priority
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  void acquire(@Nonnull Priority priority) throws InterruptedException {
+    if (tryAcquire()) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      Object ticket = new Object();
+      Deque<Object> queue = getQueue(priority);
+      queue.addLast(ticket);
+      maxQueueDepth = Math.max(maxQueueDepth, getQueueDepth());
+      long startNanos = nanoClock.getAsLong();
+      try {
+        while (!unlimited) {
+          if (isNext(ticket)) {
+            refill();
+            if (takeToken()) {
+              break;
+            }
+            changed.awaitNanos(getNanosUntilToken());
+          } else {
+            changed.await();
+          }
+        }
+      } finally {
+        queue.remove(ticket);
+        changed.signalAll();
+      }
+      acquiredCount++;
+      delayedCount++;
+      waitNanos += nanoClock.getAsLong() - startNanos;
+    } finally {
+      lock.unlock();
+    }
+    // An asynchronous request may be next in line
+    serveAsyncWaiters();
+  }
+
+  /**
+   * Waits in line until a request can be sent, without blocking the caller
+   *
+   * @param priority request priority
+   * @return future completed when the request can be sent, cancelling it leaves the line
+   */
+  @Nonnull
+  CompletableFuture<Void> acquireAsync(@Nonnull Priority priority) {
+    if (tryAcquire()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    AsyncTicket ticket = new AsyncTicket(priority);
+    lock.lock();
+    try {
+      ticket.startNanos = nanoClock.getAsLong();
+      getQueue(priority).addLast(ticket);
+      maxQueueDepth = Math.max(maxQueueDepth, getQueueDepth());
+    } finally {
+      lock.unlock();
+    }
+    ticket.future.whenComplete(
+        (result, error) -> {
+          if (ticket.future.isCancelled()) {
+            leave(ticket);
+          }
+        });
+    serveAsyncWaiters();
+    return ticket.future;
+  }
+
+  private void leave(AsyncTicket ticket) {
+    lock.lock();
+    try {
+      if (getQueue(ticket.priority).remove(ticket)) {
+        changed.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    serveAsyncWaiters();
+  }
+
+  // Lets through the asynchronous requests at the head of the line, then sets the timer for the
+  // next one. The futures are completed outside the lock, as they run the requests.
+  private void serveAsyncWaiters() {
+    List<AsyncTicket> served = new ArrayList<>();
+    lock.lock();
+    try {
+      Object next;
+      while ((next = peekNext()) instanceof AsyncTicket) {
+        AsyncTicket ticket = (AsyncTicket) next;
+        refill();
+        if (!unlimited && !takeToken()) {
+          scheduleAsyncWakeup(getNanosUntilToken());
+          break;
+        }
+        getQueue(ticket.priority).removeFirst();
+        acquiredCount++;
+        delayedCount++;
+        waitNanos += nanoClock.getAsLong() - ticket.startNanos;
+        served.add(ticket);
+      }
+      if (!served.isEmpty()) {
+        // A blocked request may be next in line now
+        changed.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    for (AsyncTicket ticket : served) {
+      ticket.future.complete(null);
+    }
+  }
+
+  private void scheduleAsyncWakeup(long nanos) {
+    if (asyncWakeup != null) {
+      asyncWakeup.cancel(false);
+    }
+    try {
+      asyncWakeup = asyncTimer.schedule(this::serveAsyncWaiters, nanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // Jenkins is shutting down, nobody will send the request
+      asyncWakeup = null;
+      Object next;
+      while ((next = peekNext()) instanceof AsyncTicket) {
+        AsyncTicket ticket = (AsyncTicket) next;
+        getQueue(ticket.priority).removeFirst();
+        ticket.future.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Lets a request through only if it can be sent without waiting
+   *
+   * @return true if the request can be sent
+   */
+  boolean tryAcquire() {
+    lock.lock();
+    try {
+      refill();
+      if (unlimited || (getQueueDepth() == 0 && takeToken())) {
+        acquiredCount++;
+        return true;
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Nonnull
+  private static ScheduledExecutorService getTimer() {
+    synchronized (limiters) {
+      if (timer == null) {
+        timer =
+            Executors.newSingleThreadScheduledExecutor(
+                new ExceptionCatchingThreadFactory(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "StashRateLimiter")));
+      }
+      return timer;
+    }
+  }
+
+  /** @return current statistics of the requests to the server */
+  @Nonnull
+  StashRateLimiterStatistics getStatistics() {
+    lock.lock();
+    try {
+      return new StashRateLimiterStatistics(
+          waitingWrites.size() + waitingPollWrites.size(),
+          waitingReads.size(),
+          maxQueueDepth,
+          acquiredCount,
+          delayedCount,
+          TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Deque<Object> getQueue(Priority priority) {
+    switch (priority) {
+      case WRITE:
+        return waitingWrites;
+      case POLL_WRITE:
+        return waitingPollWrites;
+      default:
+        return waitingReads;
+    }
+  }
+
+  private int getQueueDepth() {
+    return waitingWrites.size() + waitingPollWrites.size() + waitingReads.size();
+  }
+
+  // Listener writes go first, then poll writes, then reads, each in the order they came
+  private Object peekNext() {
+    if (!waitingWrites.isEmpty()) {
+      return waitingWrites.peekFirst();
+    }
+    if (!waitingPollWrites.isEmpty()) {
+      return waitingPollWrites.peekFirst();
+    }
+    return waitingReads.peekFirst();
+  }
+
+  private boolean isNext(Object ticket) {
+    return peekNext() == ticket;
+  }
+
+  private void refill() {
+    long now = nanoClock.getAsLong();
+    tokens = Math.min(capacity, tokens + (now - refilledNanos) * tokensPerNano);
+    refilledNanos = now;
+  }
+
+  private boolean takeToken() {
+    if (tokens < 1) {
+      return false;
+    }
+    tokens -= 1;
+    return true;
+  }
+
+  private long getNanosUntilToken() {
+    return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+  }
+
+  /** Place in line of an asynchronous request */
+  private static final class AsyncTicket {
+    private final Priority priority;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private long startNanos;
+
+    private AsyncTicket(Priority priority) {
+      this.priority = priority;
+    }
+  }
+}
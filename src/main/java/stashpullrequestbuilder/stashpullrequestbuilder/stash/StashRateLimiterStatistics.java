@@ -0,0 +1,56 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+/** Statistics of the requests to a Bitbucket Server passed through its rate limiter */
+public final class StashRateLimiterStatistics {
+  private final int waitingWrites;
+  private final int waitingReads;
+  private final int maxQueueDepth;
+  private final long acquiredCount;
+  private final long delayedCount;
+  private final long waitMillis;
+
+  StashRateLimiterStatistics(
+      int waitingWrites,
+      int waitingReads,
+      int maxQueueDepth,
+      long acquiredCount,
+      long delayedCount,
+      long waitMillis) {
+    this.waitingWrites = waitingWrites;
+    this.waitingReads = waitingReads;
+    this.maxQueueDepth = maxQueueDepth;
+    this.acquiredCount = acquiredCount;
+    this.delayedCount = delayedCount;
+    this.waitMillis = waitMillis;
+  }
+
+  /** @return number of writes waiting to be sent now */
+  public int getWaitingWrites() {
+    return waitingWrites;
+  }
+
+  /** @return number of reads waiting to be sent now */
+  public int getWaitingReads() {
+    return waitingReads;
+  }
+
+  /** @return largest number of requests that have been waiting at the same time */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  /** @return number of requests let through */
+  public long getAcquiredCount() {
+    return acquiredCount;
+  }
+
+  /** @return number of requests that had to wait */
+  public long getDelayedCount() {
+    return delayedCount;
+  }
+
+  /** @return total time the requests have waited */
+  public long getWaitMillis() {
+    return waitMillis;
+  }
+}
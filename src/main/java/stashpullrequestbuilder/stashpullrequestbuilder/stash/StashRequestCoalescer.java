@@ -0,0 +1,282 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import org.apache.commons.lang.StringUtils;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+
+/**
+ * Table of the GET requests in flight, shared by all clients.
+ *
+ * <p>Many jobs poll at the same time after the minute changes, and several of them often ask for
+ * the same data, such as the merge status of a pull request. When a request is made while an
+ * identical one is in flight, it waits for the response to the first one instead of being sent,
+ * and both get the same parsed result. Requests are identical if they have the same URL, the same
+ * credentials and the same parser, so no client ever gets data fetched with the credentials of
+ * another. The credentials are compared by a digest rather than kept in the table. Nothing is kept
+ * once the request completes.
+ *
+ * <p>Asynchronous requests share the table with the blocking ones. An asynchronous request is
+ * abandoned only when every caller waiting for it has cancelled its future.
+ */
+final class StashRequestCoalescer {
+
+  static final StashRequestCoalescer SHARED = new StashRequestCoalescer();
+
+  // Salt of the credentials digests, which only need to last as long as the table
+  private static final byte[] SALT = newSalt();
+
+  /** Sends a request and parses its response. */
+  interface Call<T> {
+    T call() throws StashApiException;
+  }
+
+  // Guarded by inFlight
+  private final Map<Key, Flight> inFlight = new HashMap<>();
+  private long coalescedCount;
+
+  /**
+   * Makes a call, or waits for an identical call in flight
+   *
+   * @param key identifies the call
+   * @param call makes the call
+   * @return result of the call
+   * @throws StashApiException if the call fails, or the thread is interrupted while waiting for it
+   */
+  @SuppressWarnings("unchecked")
+  <T> T execute(@Nonnull Key key, @Nonnull Call<T> call) throws StashApiException {
+    Flight flight;
+    boolean first = false;
+    synchronized (inFlight) {
+      flight = inFlight.get(key);
+      if (flight == null) {
+        flight = new Flight(key);
+        inFlight.put(key, flight);
+        first = true;
+      } else {
+        coalescedCount++;
+      }
+      // Blocking callers never give up on the call
+      flight.callers++;
+    }
+
+    if (first) {
+      try {
+        T result = call.call();
+        flight.result.complete(result);
+        return result;
+      } catch (StashApiException | RuntimeException | Error e) {
+        flight.result.completeExceptionally(e);
+        throw e;
+      } finally {
+        synchronized (inFlight) {
+          inFlight.remove(key, flight);
+        }
+      }
+    }
+
+    try {
+      return (T) flight.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StashApiException("Interrupted while waiting for identical request", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      // Wrapped, so that the stack trace shows the waiting thread as well
+      throw new StashApiException(cause.getMessage(), cause);
+    }
+  }
+
+  /**
+   * Makes an asynchronous call, or joins an identical call in flight
+   *
+   * @param key identifies the call
+   * @param call makes the call
+   * @return result of the call, cancelling it abandons the call if no one else waits for it
+   */
+  @Nonnull
+  @SuppressWarnings("unchecked")
+  <T> CompletableFuture<T> executeAsync(
+      @Nonnull Key key, @Nonnull Supplier<CompletableFuture<T>> call) {
+    Flight flight;
+    boolean first = false;
+    synchronized (inFlight) {
+      flight = inFlight.get(key);
+      if (flight == null) {
+        flight = new Flight(key);
+        inFlight.put(key, flight);
+        first = true;
+      } else {
+        coalescedCount++;
+      }
+      flight.callers++;
+    }
+
+    if (first) {
+      Flight started = flight;
+      CompletableFuture<T> sent;
+      try {
+        sent = call.get();
+      } catch (RuntimeException e) {
+        sent = new CompletableFuture<>();
+        sent.completeExceptionally(e);
+      }
+      synchronized (inFlight) {
+        started.call = sent;
+      }
+      sent.whenComplete(
+          (result, error) -> {
+            synchronized (inFlight) {
+              inFlight.remove(key, started);
+            }
+            if (error != null) {
+              started.result.completeExceptionally(error);
+            } else {
+              started.result.complete(result);
+            }
+          });
+    }
+
+    // Every caller gets its own future, so that cancelling it affects no one else
+    Flight joined = flight;
+    CompletableFuture<T> result = joined.result.thenApply(value -> (T) value);
+    result.whenComplete(
+        (value, error) -> {
+          if (result.isCancelled()) {
+            joined.leave();
+          }
+        });
+    return result;
+  }
+
+  /** @return number of calls in flight */
+  int getInFlightCount() {
+    synchronized (inFlight) {
+      return inFlight.size();
+    }
+  }
+
+  /** @return number of calls that waited for an identical call instead of being made */
+  long getCoalescedCount() {
+    synchronized (inFlight) {
+      return coalescedCount;
+    }
+  }
+
+  /** Call in flight and the callers waiting for it. */
+  private final class Flight {
+    private final Key key;
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    // Guarded by inFlight
+    private int callers;
+    private CompletableFuture<?> call;
+
+    private Flight(Key key) {
+      this.key = key;
+    }
+
+    // Abandons the call once all the callers have cancelled their futures
+    private void leave() {
+      CompletableFuture<?> abandoned = null;
+      synchronized (inFlight) {
+        if (--callers == 0 && call != null) {
+          abandoned = call;
+          // Later callers make the call again
+          inFlight.remove(key, this);
+        }
+      }
+      if (abandoned != null) {
+        abandoned.cancel(false);
+      }
+    }
+  }
+
+  @Nonnull
+  private static byte[] newSalt() {
+    byte[] salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    return salt;
+  }
+
+  /**
+   * Computes the digest of a user's credentials, so that requests can be compared by credentials
+   * without keeping the password in the table
+   *
+   * @param username user name
+   * @param password password
+   * @return digest, salted for this JVM
+   */
+  @Nonnull
+  static String digestCredentials(String username, String password) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(SALT);
+      // The length keeps the user name and the password apart
+      String credentials = username == null ? "" : username.length() + ":" + username;
+      digest.update(credentials.getBytes(StandardCharsets.UTF_8));
+      digest.update(StringUtils.defaultString(password).getBytes(StandardCharsets.UTF_8));
+      return Base64.getEncoder().encodeToString(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Identifies a GET request by its URL, its credentials and the parser of its response.
+   *
+   * <p>The parser is a token given by the caller, such as a constant holding the parser, and is
+   * compared by identity, so requests whose responses are parsed differently are never shared.
+   */
+  static final class Key {
+    private final String url;
+    private final String credentialsDigest;
+    private final Object parser;
+
+    /**
+     * Creates a key
+     *
+     * @param url request URL
+     * @param credentialsDigest digest from {@link #digestCredentials}
+     * @param parser token identifying the parser of the response
+     */
+    Key(@Nonnull String url, @Nonnull String credentialsDigest, @Nonnull Object parser) {
+      this.url = url;
+      this.credentialsDigest = credentialsDigest;
+      this.parser = parser;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return url.equals(other.url)
+          && credentialsDigest.equals(other.credentialsDigest)
+          && parser == other.parser;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(url, credentialsDigest, System.identityHashCode(parser));
+    }
+  }
+}
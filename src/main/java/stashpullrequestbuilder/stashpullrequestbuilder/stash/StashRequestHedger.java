@@ -0,0 +1,181 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * Decides when to send a second copy of a slow GET request to one Bitbucket Server.
+ *
+ * <p>The latencies of the recent GET requests to the server are kept, and a request still waiting
+ * for its response after the {@link #PERCENTILE}th percentile of them is sent again. Whichever copy
+ * gets a response first is used. The extra copies are limited to {@link #MAX_HEDGE_RATIO} of the
+ * requests: every request earns a fraction of a hedge, and a hedge is only sent if a whole one has
+ * been earned. No hedges are sent until enough latencies are known.
+ *
+ * <p>Hedging is disabled unless it's enabled in the global settings.
+ */
+final class StashRequestHedger {
+
+  // Percentile of the recent latencies after which a request is hedged
+  static final int PERCENTILE =
+      Integer.getInteger(StashRequestHedger.class.getName() + ".percentile", 95);
+
+  // Largest part of the requests that may be hedged
+  static final double MAX_HEDGE_RATIO = 0.1;
+
+  // Latencies kept for every server, and the number needed before hedging
+  static final int WINDOW_SIZE = 200;
+  static final int MIN_SAMPLES = 20;
+
+  // Hedges that can be sent in a row after a quiet period
+  private static final double MAX_BUDGET = 10;
+
+  // Shortest hedge delay, so that fast servers don't get every request twice
+  private static final long MIN_DELAY_MILLIS = 10;
+
+  // Threads sending the hedges, shared by all servers. Hedges are rare, so a
+  // few threads are enough, and hedges that wait for a thread are seldom
+  // still needed.
+  private static final int HEDGE_THREADS = 4;
+
+  // Hedgers are kept for the lifetime of Jenkins, there is one per server
+  private static final Map<String, StashRequestHedger> hedgers = new HashMap<>();
+  private static boolean enabled;
+  private static ScheduledExecutorService sharedExecutor;
+
+  private final int percentile;
+  private final double maxHedgeRatio;
+
+  // Guarded by this
+  private final long[] latencies = new long[WINDOW_SIZE];
+  private int sampleCount;
+  private int nextSample;
+  private long cachedDelayMillis = -1;
+  private double budget;
+  private long hedgeCount;
+  private long hedgeWinCount;
+
+  StashRequestHedger(int percentile, double maxHedgeRatio) {
+    this.percentile = Math.min(Math.max(percentile, 1), 100);
+    this.maxHedgeRatio = maxHedgeRatio;
+  }
+
+  /**
+   * Gets the hedger shared by all clients of a server
+   *
+   * @param stashHost Bitbucket Server URL
+   * @return hedger
+   */
+  @Nonnull
+  static StashRequestHedger forHost(String stashHost) {
+    synchronized (hedgers) {
+      return hedgers.computeIfAbsent(
+          StashRateLimiter.normalizeHost(stashHost),
+          host -> new StashRequestHedger(PERCENTILE, MAX_HEDGE_RATIO));
+    }
+  }
+
+  /**
+   * Enables or disables hedging for all servers
+   *
+   * @param enabled true to hedge slow requests
+   */
+  static void configure(boolean enabled) {
+    synchronized (hedgers) {
+      StashRequestHedger.enabled = enabled;
+    }
+  }
+
+  static boolean isEnabled() {
+    synchronized (hedgers) {
+      return enabled;
+    }
+  }
+
+  @Nonnull
+  static ScheduledExecutorService getExecutor() {
+    synchronized (hedgers) {
+      if (sharedExecutor == null) {
+        ScheduledThreadPoolExecutor executor =
+            new ScheduledThreadPoolExecutor(
+                HEDGE_THREADS,
+                new ExceptionCatchingThreadFactory(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "StashRequestHedger")));
+        // Cancelled hedges are the common case, don't keep them in the queue
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+        executor.allowCoreThreadTimeOut(true);
+        sharedExecutor = executor;
+      }
+      return sharedExecutor;
+    }
+  }
+
+  /**
+   * Records the time a GET request took to get its response
+   *
+   * @param latencyMillis latency in milliseconds
+   */
+  synchronized void recordLatency(long latencyMillis) {
+    latencies[nextSample] = latencyMillis;
+    nextSample = (nextSample + 1) % latencies.length;
+    sampleCount = Math.min(sampleCount + 1, latencies.length);
+    cachedDelayMillis = -1;
+    budget = Math.min(budget + maxHedgeRatio, MAX_BUDGET);
+  }
+
+  /**
+   * Gets the time after which a request is hedged
+   *
+   * @return delay in milliseconds, or -1 if not enough latencies are known
+   */
+  synchronized long getHedgeDelayMillis() {
+    if (sampleCount < MIN_SAMPLES) {
+      return -1;
+    }
+    if (cachedDelayMillis < 0) {
+      long[] sorted = Arrays.copyOf(latencies, sampleCount);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+      cachedDelayMillis = Math.max(sorted[Math.max(index, 0)], MIN_DELAY_MILLIS);
+    }
+    return cachedDelayMillis;
+  }
+
+  /**
+   * Takes a hedge from the budget
+   *
+   * @return true if a hedge can be sent
+   */
+  synchronized boolean tryAcquireHedge() {
+    if (budget < 1) {
+      return false;
+    }
+    budget -= 1;
+    hedgeCount++;
+    return true;
+  }
+
+  /** Records a hedge that got its response before the original request. */
+  synchronized void recordHedgeWin() {
+    hedgeWinCount++;
+  }
+
+  /** @return number of hedges sent */
+  synchronized long getHedgeCount() {
+    return hedgeCount;
+  }
+
+  /** @return number of hedges that got their response first */
+  synchronized long getHedgeWinCount() {
+    return hedgeWinCount;
+  }
+}
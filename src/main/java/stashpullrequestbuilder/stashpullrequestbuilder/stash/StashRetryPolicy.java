@@ -0,0 +1,151 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.annotation.Nonnull;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides whether and when a failed request is sent again.
+ *
+ * <p>Requests failing with a network error or with a status code of an overloaded or unavailable
+ * server are retried up to {@link #getMaxRetries()} times. The delay before every retry is random,
+ * up to a limit that doubles with every attempt, so that the clients of a recovering server don't
+ * all come back at once. A delay asked for by the server in {@code Retry-After} is used instead, or
+ * the request is not retried if the server asks to wait longer than the longest delay.
+ *
+ * <p>Requests that are not idempotent, such as posting a comment, are only retried if the server
+ * cannot have processed them: the connection could not be established, or the server turned the
+ * request away because of its rate limit.
+ */
+final class StashRetryPolicy {
+
+  static final StashRetryPolicy DEFAULT =
+      new StashRetryPolicy(
+          Integer.getInteger(StashRetryPolicy.class.getName() + ".maxRetries", 2),
+          Long.getLong(StashRetryPolicy.class.getName() + ".baseDelayMillis", 500),
+          Long.getLong(StashRetryPolicy.class.getName() + ".maxDelayMillis", 10000));
+
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final LongSupplier clock;
+
+  StashRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+    this(maxRetries, baseDelayMillis, maxDelayMillis, System::currentTimeMillis);
+  }
+
+  StashRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis, LongSupplier clock) {
+    this.maxRetries = Math.max(maxRetries, 0);
+    this.baseDelayMillis = Math.max(baseDelayMillis, 0);
+    this.maxDelayMillis = Math.max(maxDelayMillis, 0);
+    this.clock = clock;
+  }
+
+  int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Checks whether a status code means the server is overloaded or unavailable
+   *
+   * @param statusCode HTTP status code
+   * @return true for 429, 502, 503 and 504
+   */
+  static boolean isRetryableStatus(int statusCode) {
+    return statusCode == SC_TOO_MANY_REQUESTS
+        || statusCode == 502
+        || statusCode == 503
+        || statusCode == 504;
+  }
+
+  /**
+   * Checks whether a request failing with a status code can be sent again
+   *
+   * @param attempt number of retries made already
+   * @param idempotent true if sending the request twice has the same effect as sending it once
+   * @param statusCode HTTP status code of the response
+   * @return true if the request can be retried
+   */
+  boolean mayRetry(int attempt, boolean idempotent, int statusCode) {
+    return attempt < maxRetries
+        && isRetryableStatus(statusCode)
+        && (idempotent || statusCode == SC_TOO_MANY_REQUESTS);
+  }
+
+  /**
+   * Checks whether a request failing with a network error can be sent again
+   *
+   * @param attempt number of retries made already
+   * @param idempotent true if sending the request twice has the same effect as sending it once
+   * @param error network error
+   * @return true if the request can be retried
+   */
+  boolean mayRetry(int attempt, boolean idempotent, @Nonnull IOException error) {
+    return attempt < maxRetries && (idempotent || isNotSent(error));
+  }
+
+  // The request has not reached the server
+  private static boolean isNotSent(IOException error) {
+    return error instanceof ConnectException
+        || error instanceof ConnectTimeoutException
+        || error instanceof UnknownHostException;
+  }
+
+  /**
+   * Gets the delay before a retry
+   *
+   * @param attempt number of retries made already
+   * @return delay in milliseconds
+   */
+  long getDelayMillis(int attempt) {
+    long limit = Math.min(baseDelayMillis << Math.min(attempt, 30), maxDelayMillis);
+    return ThreadLocalRandom.current().nextLong(limit + 1);
+  }
+
+  /**
+   * Gets the delay before retrying a request the server turned away
+   *
+   * @param attempt number of retries made already
+   * @param httpResponse response of the server
+   * @return delay in milliseconds, or -1 if the server asks to wait longer than the longest delay
+   */
+  long getDelayMillis(int attempt, @Nonnull HttpResponse httpResponse) {
+    Header retryAfter = httpResponse.getFirstHeader(HttpHeaders.RETRY_AFTER);
+    if (retryAfter == null) {
+      return getDelayMillis(attempt);
+    }
+
+    long delayMillis = parseRetryAfter(retryAfter.getValue());
+    if (delayMillis < 0) {
+      return getDelayMillis(attempt);
+    }
+    return delayMillis <= maxDelayMillis ? delayMillis : -1;
+  }
+
+  // Retry-After holds either a number of seconds or an HTTP date, -1 if it's
+  // neither
+  private long parseRetryAfter(String value) {
+    String trimmed = value.trim();
+    try {
+      return TimeUnit.SECONDS.toMillis(Math.max(Long.parseLong(trimmed), 0));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(trimmed);
+      if (date == null) {
+        return -1;
+      }
+      return Math.max(date.getTime() - clock.getAsLong(), 0);
+    }
+  }
+}
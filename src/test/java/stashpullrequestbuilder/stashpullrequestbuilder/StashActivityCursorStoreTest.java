@@ -0,0 +1,231 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestActivity;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestActivityResponse;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestComment;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestCommentIterator;
+
+public class StashActivityCursorStoreTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File file;
+  private String configurationDigest = "config";
+  private StashActivityCursorStore store;
+
+  private final StashCommentClassifier classifier =
+      new StashCommentClassifier("Job", makeConfig("skip ci", "build"));
+
+  // Activities on the server, the most recent first
+  private List<StashPullRequestActivity> activities;
+
+  // Number of activities returned to the store
+  private int activitiesRead;
+
+  @Before
+  public void before() throws Exception {
+    file = new File(temporaryFolder.getRoot(), StashActivityCursorStore.FILE_NAME);
+    store = newStore();
+    activities = new ArrayList<>();
+  }
+
+  private static StashTriggerConfig makeConfig(String skipPhrases, String buildPhrases) {
+    StashBuildTrigger trigger = mock(StashBuildTrigger.class);
+    when(trigger.getCiSkipPhrases()).thenReturn(skipPhrases);
+    when(trigger.getCiBuildPhrases()).thenReturn(buildPhrases);
+    return StashTriggerConfig.of(trigger);
+  }
+
+  private StashActivityCursorStore newStore() {
+    return new StashActivityCursorStore(file, () -> configurationDigest);
+  }
+
+  private void addActivity(long id, String commentAction, int commentId, String text) {
+    StashPullRequestActivity activity = new StashPullRequestActivity();
+    activity.setId(id);
+    activity.setCommentAction(commentAction);
+    activity.setComment(new StashPullRequestComment(commentId, text));
+    activities.add(0, activity);
+  }
+
+  // Serves the activities in pages of two
+  private StashPullRequestCommentIterator commentIterator() {
+    return new StashPullRequestCommentIterator(
+        start -> {
+          int end = Math.min(start + 2, activities.size());
+          StashPullRequestActivityResponse page = new StashPullRequestActivityResponse();
+          page.setPrValues(new ArrayList<>(activities.subList(start, end)));
+          page.setIsLastPage(end == activities.size());
+          page.setNextPageStart(end);
+          activitiesRead += end - start;
+          return page;
+        });
+  }
+
+  private List<String> getCommentTexts(StashActivityCursorStore store) throws Exception {
+    return store.getComments("1", this::commentIterator, classifier).stream()
+        .map(StashPullRequestComment::getText)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void getComments_reads_all_activities_first() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    addActivity(11, "ADDED", 2, "build second");
+    addActivity(12, "ADDED", 3, "build third");
+
+    assertThat(getCommentTexts(store), contains("build third", "build second", "build first"));
+    assertThat(activitiesRead, is(3));
+  }
+
+  @Test
+  public void getComments_reads_only_new_activities() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    addActivity(11, "ADDED", 2, "build second");
+    addActivity(12, "ADDED", 3, "build third");
+    getCommentTexts(store);
+
+    addActivity(13, "ADDED", 4, "build fourth");
+    activitiesRead = 0;
+
+    assertThat(
+        getCommentTexts(store),
+        contains("build fourth", "build third", "build second", "build first"));
+    assertThat(activitiesRead, is(2)); // The new activity and the cursor on the same page
+  }
+
+  @Test
+  public void getComments_rereads_all_activities_after_edit() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    addActivity(11, "ADDED", 2, "build second");
+    getCommentTexts(store);
+
+    activities.get(1).getComment().setText("build first, edited");
+    addActivity(12, "EDITED", 1, "build first, edited");
+    activitiesRead = 0;
+
+    assertThat(
+        getCommentTexts(store),
+        contains("build second", "build first, edited", "build first, edited"));
+    assertThat(activitiesRead, is(5)); // 1 new, 1 cursor, then full history of 3
+  }
+
+  @Test
+  public void getComments_keeps_entries_across_instances() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    getCommentTexts(store);
+    store.save();
+
+    activitiesRead = 0;
+    StashActivityCursorStore reloaded = newStore();
+
+    assertThat(getCommentTexts(reloaded), contains("build first"));
+    assertThat(activitiesRead, is(1)); // Just the cursor
+  }
+
+  @Test
+  public void invalidate_discards_entry() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    addActivity(11, "ADDED", 2, "build second");
+    addActivity(12, "ADDED", 3, "build third");
+    getCommentTexts(store);
+
+    store.invalidate("1");
+    activitiesRead = 0;
+
+    assertThat(getCommentTexts(store), contains("build third", "build second", "build first"));
+    assertThat(activitiesRead, is(3));
+  }
+
+  @Test
+  public void retainAll_discards_other_entries() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    addActivity(11, "ADDED", 2, "build second");
+    addActivity(12, "ADDED", 3, "build third");
+    getCommentTexts(store);
+
+    store.retainAll(Collections.singletonList("2"));
+    activitiesRead = 0;
+
+    assertThat(getCommentTexts(store), contains("build third", "build second", "build first"));
+    assertThat(activitiesRead, is(3));
+  }
+
+  @Test
+  public void getComments_ignores_unreadable_file() throws Exception {
+    Files.write(file.toPath(), Arrays.asList("not json"));
+    StashActivityCursorStore broken = newStore();
+
+    assertThat(getCommentTexts(broken), is(empty()));
+  }
+
+  @Test
+  public void getComments_keeps_only_text_of_recognized_comments() throws Exception {
+    addActivity(10, "ADDED", 1, "looks good");
+    addActivity(11, "ADDED", 2, "build please");
+    StashPullRequestComment unrecognized = activities.get(1).getComment();
+    unrecognized.setReplies(
+        Arrays.asList(
+            new StashPullRequestComment(3, "thanks"),
+            new StashPullRequestComment(4, "[*BuildStarted* **Job**] abc into def")));
+    getCommentTexts(store);
+    store.save();
+
+    List<StashPullRequestComment> comments =
+        newStore().getComments("1", this::commentIterator, classifier);
+
+    assertThat(comments.get(0).getCommentId(), is(2));
+    assertThat(comments.get(0).getText(), is("build please"));
+    assertThat(comments.get(1).getCommentId(), is(1));
+    assertThat(comments.get(1).getText(), is(nullValue()));
+    assertThat(comments.get(1).getReplies().size(), is(1));
+    assertThat(comments.get(1).getReplies().get(0).getCommentId(), is(4));
+  }
+
+  @Test
+  public void getComments_rereads_all_activities_after_configuration_change() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    addActivity(11, "ADDED", 2, "build second");
+    getCommentTexts(store);
+
+    configurationDigest = "other config";
+    activitiesRead = 0;
+
+    assertThat(getCommentTexts(store), contains("build second", "build first"));
+    assertThat(activitiesRead, is(2));
+  }
+
+  @Test
+  public void save_writes_only_changed_store() throws Exception {
+    addActivity(10, "ADDED", 1, "build first");
+    getCommentTexts(store);
+
+    assertThat(file.exists(), is(false));
+
+    store.save();
+    assertThat(file.setLastModified(1000000000000L), is(true));
+    getCommentTexts(store);
+    store.save();
+
+    assertThat(file.lastModified(), is(1000000000000L));
+  }
+}
@@ -62,6 +62,7 @@ public class StashBuildEnvironmentContributorTest {
             "BuildStartCommentId",
             null,
             "PullRequestVersion",
+            false,
             null);
   }
 
@@ -5,9 +5,11 @@ import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.matchesPattern;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -80,6 +82,7 @@ public class StashBuildListenerTest {
             "BuildQueuedCommentId",
             null,
             "PullRequestVersion",
+            false,
             null);
   }
 
@@ -204,6 +207,58 @@ public class StashBuildListenerTest {
             eq(duration));
   }
 
+  @Test
+  public void onCompleted_posts_finished_status_if_queued_with_statuses() throws Exception {
+    stashCause =
+        new StashCause(
+            "StashHost",
+            "SourceBranch",
+            "TargetBranch",
+            "SourceRepositoryOwner",
+            "SourceRepositoryName",
+            "PullRequestId",
+            "DestinationRepositoryOwner",
+            "DestinationRepositoryName",
+            "PullRequestTitle",
+            "SourceCommitHash",
+            "DestinationCommitHash",
+            null,
+            null,
+            "PullRequestVersion",
+            true,
+            null);
+    StashRepository repository = setup_onCompleted(false);
+
+    when(build.getDurationString()).thenReturn("2 seconds");
+    when(build.getNumber()).thenReturn(123);
+
+    stashBuildListener.onCompleted(build, taskListener);
+
+    verify(repository, times(1))
+        .postFinishedStatus(
+            eq("SourceCommitHash"),
+            eq("DestinationCommitHash"),
+            eq(Result.SUCCESS),
+            startsWith("http://localhost"),
+            eq(123),
+            eq("2 seconds"));
+    verify(repository, never()).deletePullRequestComment(any(), any());
+    verify(repository, never())
+        .postFinishedComment(any(), any(), any(), any(), any(), any(), anyInt(), any(), any());
+  }
+
+  @Test
+  public void onCompleted_posts_no_status_if_queued_without_statuses() throws Exception {
+    StashRepository repository = setup_onCompleted(false);
+
+    // Enabled after the build was queued
+    lenient().when(repository.isReportingBuildStatus()).thenReturn(true);
+
+    stashBuildListener.onCompleted(build, taskListener);
+
+    verify(repository, never()).postFinishedStatus(any(), any(), any(), any(), anyInt(), any());
+  }
+
   @Test
   public void onCompleted_writes_to_build_log_if_cannot_post_finished_comment() throws Exception {
     StashRepository repository = setup_onCompleted(false);
@@ -122,10 +122,12 @@ public class StashBuildTriggerTest {
             "checkProbeMergeStatus",
             "mergeOnSuccess",
             "deletePreviousBuildFinishComments",
+            "reportBuildStatus",
             "cancelOutdatedJobsEnabled",
             "ciSkipPhrases",
             "onlyBuildOnComment",
-            "ciBuildPhrases");
+            "ciBuildPhrases",
+            "pullRequestConcurrency");
 
     for (String property : properties) {
       PropertyType propertyType = descriptor.getPropertyType(property);
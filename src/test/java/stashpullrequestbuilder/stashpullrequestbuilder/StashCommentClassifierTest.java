@@ -0,0 +1,81 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import stashpullrequestbuilder.stashpullrequestbuilder.StashCommentClassifier.Classification;
+import stashpullrequestbuilder.stashpullrequestbuilder.StashCommentClassifier.StatusMarker;
+
+public class StashCommentClassifierTest {
+
+  private final StashTriggerConfig config = makeConfig("NO TEST, skip ci", "test this please");
+  private final StashCommentClassifier classifier =
+      new StashCommentClassifier("Job (PR) #1", config);
+
+  private static StashTriggerConfig makeConfig(String skipPhrases, String buildPhrases) {
+    StashBuildTrigger trigger = mock(StashBuildTrigger.class);
+    when(trigger.getCiSkipPhrases()).thenReturn(skipPhrases);
+    when(trigger.getCiBuildPhrases()).thenReturn(buildPhrases);
+    return StashTriggerConfig.of(trigger);
+  }
+
+  @Test
+  public void classify_parses_status_marker_for_job() throws Exception {
+    StatusMarker marker =
+        classifier
+            .classify("[*BuildFinished* **job (pr) #1**] ABC123 into def456\n\nBuild #3")
+            .getStatusMarker();
+
+    assertThat(marker, is(notNullValue()));
+    assertThat(marker.isStatus(StashCommentClassifier.BUILD_FINISHED), is(true));
+    assertThat(marker.getSourceCommit(), is("ABC123"));
+    assertThat(marker.getDestinationCommit(), is("def456"));
+  }
+
+  @Test
+  public void classify_ignores_status_marker_for_other_jobs() throws Exception {
+    assertThat(
+        classifier.classify("[*BuildStarted* **Job XPRX #1**] abc into def").getStatusMarker(),
+        is(nullValue()));
+    assertThat(classifier.isStatusMessage("[*BuildStarted* **Other**] abc into def"), is(false));
+    assertThat(
+        classifier.isStatusMessage("[*BuildStarted* **Job (PR) #1**] abc into def"), is(true));
+  }
+
+  @Test
+  public void classify_finds_phrases_and_parameters() throws Exception {
+    Classification build = classifier.classify("Test this please\np:key=value");
+    assertThat(build.isBuildPhrase(), is(true));
+    assertThat(build.isSkipPhrase(), is(false));
+    assertThat(build.getParameters(), hasEntry("key", "value"));
+
+    Classification skip = classifier.classify("Please SKIP CI for now");
+    assertThat(skip.isBuildPhrase(), is(false));
+    assertThat(skip.isSkipPhrase(), is(true));
+    assertThat(skip.getParameters(), is(anEmptyMap()));
+  }
+
+  @Test
+  public void classify_gives_no_classes_to_empty_comment() throws Exception {
+    Classification empty = classifier.classify(null);
+
+    assertThat(empty.getStatusMarker(), is(nullValue()));
+    assertThat(empty.isSkipPhrase(), is(false));
+    assertThat(empty.isBuildPhrase(), is(false));
+  }
+
+  @Test
+  public void isFor_compares_settings() throws Exception {
+    assertThat(classifier.isFor("Job (PR) #1", config), is(true));
+    assertThat(classifier.isFor("Job (PR) #2", config), is(false));
+    assertThat(
+        classifier.isFor("Job (PR) #1", makeConfig("NO TEST", "test this please")), is(false));
+  }
+}
@@ -0,0 +1,142 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.mockito.quality.Strictness;
+import stashpullrequestbuilder.stashpullrequestbuilder.StashMergeStatusProber.Key;
+import stashpullrequestbuilder.stashpullrequestbuilder.StashMergeStatusProber.Request;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestMergeableResponse;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValue;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValueRepository;
+
+public class StashMergeStatusProberTest {
+
+  @Rule public MockitoRule rule = MockitoJUnit.rule().strictness(Strictness.STRICT_STUBS);
+
+  @Mock private ScheduledExecutorService executor;
+  @Mock private Request request;
+
+  private final StashTriggerRegistry.Key repositoryKey =
+      new StashTriggerRegistry.Key("http://stash.example.com", "PROJ", "repo");
+  private long now = 10000;
+  private StashMergeStatusProber prober;
+  private StashPullRequestMergeableResponse mergeStatus;
+
+  @Before
+  public void before() throws Exception {
+    prober = new StashMergeStatusProber(executor, 500, () -> now);
+    mergeStatus = new StashPullRequestMergeableResponse();
+    mergeStatus.setConflicted(true);
+  }
+
+  private Key makeKey(String id, String fromCommit, String toCommit) {
+    StashPullRequestResponseValueRepository fromRef = new StashPullRequestResponseValueRepository();
+    fromRef.setLatestCommit(fromCommit);
+    StashPullRequestResponseValueRepository toRef = new StashPullRequestResponseValueRepository();
+    toRef.setLatestCommit(toCommit);
+    StashPullRequestResponseValue pullRequest = new StashPullRequestResponseValue();
+    pullRequest.setId(id);
+    pullRequest.setFromRef(fromRef);
+    pullRequest.setToRef(toRef);
+    return Key.of(repositoryKey, pullRequest);
+  }
+
+  private Runnable captureScheduled(long delayMillis) {
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(captor.capture(), eq(delayMillis), eq(TimeUnit.MILLISECONDS));
+    return captor.getValue();
+  }
+
+  @Test
+  public void probe_sends_request_once_per_commits() throws Exception {
+    when(request.send()).thenReturn(mergeStatus);
+
+    assertThat(prober.probe(makeKey("1", "abc", "def"), request), is(true));
+    assertThat(prober.probe(makeKey("1", "abc", "def"), request), is(false));
+    captureScheduled(0).run();
+
+    assertThat(prober.probe(makeKey("1", "abc", "def"), request), is(false));
+    assertThat(prober.getConflicted(makeKey("1", "abc", "def")), is(true));
+    assertThat(prober.getPendingCount(), is(0));
+    verify(request, times(1)).send();
+  }
+
+  @Test
+  public void probe_is_queued_again_when_a_commit_changes() throws Exception {
+    when(request.send()).thenReturn(mergeStatus);
+    prober.probe(makeKey("1", "abc", "def"), request);
+    captureScheduled(0).run();
+
+    assertThat(prober.probe(makeKey("1", "abc", "fed"), request), is(true));
+    assertThat(prober.probe(makeKey("1", "cba", "def"), request), is(true));
+    assertThat(prober.getConflicted(makeKey("1", "cba", "def")), is(nullValue()));
+  }
+
+  @Test
+  public void probe_sends_one_request_per_interval() throws Exception {
+    when(request.send()).thenReturn(mergeStatus);
+    prober.probe(makeKey("1", "abc", "def"), request);
+    prober.probe(makeKey("2", "abc", "def"), request);
+
+    // Only one probe is scheduled at a time
+    Runnable first = captureScheduled(0);
+    first.run();
+    Runnable second = captureScheduled(500);
+    second.run();
+    verify(request, times(2)).send();
+
+    // A probe queued soon after the last one waits for the rest of the interval
+    now += 200;
+    prober.probe(makeKey("3", "abc", "def"), request);
+    captureScheduled(300);
+  }
+
+  @Test
+  public void probe_is_not_scheduled_while_another_is_waiting() throws Exception {
+    prober.probe(makeKey("1", "abc", "def"), request);
+    prober.probe(makeKey("2", "abc", "def"), request);
+    prober.probe(makeKey("3", "abc", "def"), request);
+
+    verify(executor, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    assertThat(prober.getPendingCount(), is(3));
+  }
+
+  @Test
+  public void failed_probe_is_not_remembered() throws Exception {
+    when(request.send()).thenThrow(new StashApiException("Unavailable"));
+    prober.probe(makeKey("1", "abc", "def"), request);
+    captureScheduled(0).run();
+
+    assertThat(prober.getConflicted(makeKey("1", "abc", "def")), is(nullValue()));
+    assertThat(prober.probe(makeKey("1", "abc", "def"), request), is(true));
+  }
+
+  @Test
+  public void remember_makes_probe_unnecessary() throws Exception {
+    mergeStatus.setConflicted(false);
+    prober.remember(makeKey("1", "abc", "def"), mergeStatus);
+
+    assertThat(prober.getConflicted(makeKey("1", "abc", "def")), is(false));
+    assertThat(prober.probe(makeKey("1", "abc", "def"), request), is(false));
+    verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+}
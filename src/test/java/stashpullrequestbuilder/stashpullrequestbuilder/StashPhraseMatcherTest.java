@@ -0,0 +1,54 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class StashPhraseMatcherTest {
+
+  @Test
+  public void matches_any_phrase_ignoring_case() throws Exception {
+    StashPhraseMatcher matcher = StashPhraseMatcher.compile("NO TEST, skip ci,[WIP]");
+
+    assertThat(matcher.matches("Please do no test this"), is(true));
+    assertThat(matcher.matches("SKIP CI"), is(true));
+    assertThat(matcher.matches("[wip] Add feature"), is(true));
+    assertThat(matcher.matches("Add feature"), is(false));
+  }
+
+  @Test
+  public void matches_overlapping_phrases() throws Exception {
+    StashPhraseMatcher matcher = StashPhraseMatcher.compile(Arrays.asList("he", "she", "hers"));
+
+    assertThat(matcher.matches("ushers"), is(true));
+    assertThat(matcher.matches("sh"), is(false));
+  }
+
+  @Test
+  public void matches_phrase_after_partial_match_of_another() throws Exception {
+    StashPhraseMatcher matcher = StashPhraseMatcher.compile(Arrays.asList("abcd", "bcx"));
+
+    assertThat(matcher.matches("abcx"), is(true));
+    assertThat(matcher.matches("abcabcd"), is(true));
+    assertThat(matcher.matches("abcab"), is(false));
+  }
+
+  @Test
+  public void matches_nothing_without_phrases() throws Exception {
+    StashPhraseMatcher matcher = StashPhraseMatcher.compile("");
+
+    assertThat(matcher.matches("anything"), is(false));
+    assertThat(StashPhraseMatcher.compile((String) null).matches("anything"), is(false));
+  }
+
+  @Test
+  public void empty_phrase_matches_any_text_but_empty() throws Exception {
+    StashPhraseMatcher matcher = StashPhraseMatcher.compile("NO TEST, ,skip");
+
+    assertThat(matcher.matches("anything"), is(true));
+    assertThat(matcher.matches(""), is(false));
+    assertThat(matcher.matches(null), is(false));
+  }
+}
@@ -0,0 +1,238 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+
+public class StashPollBulkheadTest {
+
+  private static final String SLOW = "http://slow";
+  private static final String FAST = "http://fast";
+
+  private long now = 10000;
+  private final List<String> polled = new ArrayList<>();
+
+  // Pool whose tasks run when the test says so
+  private final Deque<Runnable> pool = new ArrayDeque<>();
+  private final Executor executor = pool::addLast;
+  private final StashPollBulkhead bulkhead = new StashPollBulkhead(executor, 4, 0, () -> now);
+
+  private Runnable poll(String name) {
+    return () -> polled.add(name);
+  }
+
+  // Queues polls of a server that never finish, as if the server hung
+  private void hang(String host, int polls) {
+    for (int i = 0; i < polls; i++) {
+      bulkhead.execute(host, new Object(), poll(host));
+    }
+  }
+
+  private void runAll() {
+    while (!pool.isEmpty()) {
+      pool.removeFirst().run();
+    }
+  }
+
+  @Test
+  public void single_server_uses_all_threads() throws Exception {
+    bulkhead.register(SLOW);
+
+    hang(SLOW, 5);
+
+    assertThat(pool.size(), is(4));
+    StashPollBulkheadStatus status = bulkhead.getStatus(SLOW);
+    assertThat(status.getRunning(), is(4));
+    assertThat(status.getWaiting(), is(1));
+    assertThat(status.isSaturated(), is(true));
+  }
+
+  @Test
+  public void thread_is_kept_for_every_other_server() throws Exception {
+    bulkhead.register(SLOW);
+    bulkhead.register(FAST);
+    bulkhead.register("http://third");
+
+    hang(SLOW, 10);
+
+    assertThat(pool.size(), is(2));
+    assertThat(bulkhead.getStatus(SLOW).getLimit(), is(2));
+
+    bulkhead.execute(FAST, "fast", poll("fast"));
+    bulkhead.execute("http://third", "third", poll("third"));
+
+    assertThat(pool.size(), is(4));
+    pool.removeLast().run();
+    pool.removeLast().run();
+    assertThat(polled, contains("third", "fast"));
+  }
+
+  @Test
+  public void two_hung_servers_do_not_block_a_third_one() throws Exception {
+    bulkhead.register(SLOW);
+    bulkhead.register("http://also-slow");
+    bulkhead.register(FAST);
+
+    hang(SLOW, 10);
+    hang("http://also-slow", 10);
+    bulkhead.execute(FAST, "fast", poll("fast"));
+
+    assertThat(pool.size(), is(4));
+    pool.removeLast().run();
+    assertThat(polled, contains("fast"));
+  }
+
+  @Test
+  public void waiting_polls_run_as_polls_finish() throws Exception {
+    bulkhead.register(SLOW);
+    for (int i = 0; i < 6; i++) {
+      bulkhead.execute(SLOW, i, poll("poll" + i));
+    }
+
+    pool.removeFirst().run();
+
+    assertThat(polled, contains("poll0"));
+    assertThat(pool.size(), is(4));
+    assertThat(bulkhead.getStatus(SLOW).getWaiting(), is(1));
+
+    runAll();
+
+    assertThat(polled, contains("poll0", "poll1", "poll2", "poll3", "poll4", "poll5"));
+    assertThat(bulkhead.getStatus(SLOW).getRunning(), is(0));
+    assertThat(bulkhead.getStatus(SLOW).isSaturated(), is(false));
+  }
+
+  @Test
+  public void freed_thread_goes_to_server_with_nothing_running() throws Exception {
+    bulkhead.register(SLOW);
+    hang(SLOW, 10);
+    bulkhead.register(FAST);
+    bulkhead.execute(FAST, "fast", poll("fast"));
+
+    assertThat(bulkhead.getStatus(FAST).getWaiting(), is(1));
+
+    pool.removeFirst().run();
+
+    assertThat(bulkhead.getStatus(FAST).getRunning(), is(1));
+    assertThat(bulkhead.getStatus(SLOW).getRunning(), is(3));
+  }
+
+  @Test
+  public void same_waiting_poll_is_queued_once() throws Exception {
+    hang(SLOW, 4);
+
+    assertThat(bulkhead.execute(SLOW, "job", poll("first")), is(true));
+    assertThat(bulkhead.execute(SLOW, "job", poll("second")), is(false));
+    runAll();
+
+    assertThat(polled, contains(SLOW, SLOW, SLOW, SLOW, "first"));
+  }
+
+  @Test
+  public void threads_per_server_limits_polls_of_a_server() throws Exception {
+    bulkhead.setThreadsPerServer(2);
+
+    hang(SLOW, 3);
+
+    assertThat(pool.size(), is(2));
+    assertThat(bulkhead.getStatus(SLOW).getLimit(), is(2));
+
+    bulkhead.setThreadsPerServer(0);
+
+    assertThat(pool.size(), is(3));
+  }
+
+  @Test
+  public void saturated_status_reports_waiting_time() throws Exception {
+    hang(SLOW, 5);
+    now += 120000;
+
+    StashPollBulkheadStatus status = bulkhead.getStatus(SLOW);
+
+    assertThat(status.getSaturatedMillis(), is(120000L));
+    assertThat(status.toString(), containsString("http://slow: 4 of 4 polling threads in use"));
+  }
+
+  @Test
+  public void failed_poll_releases_its_thread() throws Exception {
+    bulkhead.execute(
+        SLOW,
+        "failing",
+        () -> {
+          throw new IllegalStateException("Poll failed");
+        });
+    hang(SLOW, 4);
+
+    assertThrows(IllegalStateException.class, () -> pool.removeFirst().run());
+    runAll();
+
+    assertThat(polled.size(), is(4));
+    assertThat(bulkhead.getStatus(SLOW).getRunning(), is(0));
+  }
+
+  @Test
+  public void rejected_poll_releases_its_thread() throws Exception {
+    StashPollBulkhead rejecting =
+        new StashPollBulkhead(
+            task -> {
+              throw new RejectedExecutionException("Shut down");
+            },
+            4,
+            0,
+            () -> now);
+
+    assertThrows(RejectedExecutionException.class, () -> rejecting.execute(SLOW, "x", poll("x")));
+
+    assertThat(rejecting.getStatus(SLOW).getRunning(), is(0));
+  }
+
+  @Test
+  public void hosts_are_compared_ignoring_case_and_trailing_slash() throws Exception {
+    bulkhead.register("http://Shared.example/");
+
+    hang("http://shared.example", 5);
+
+    assertThat(bulkhead.getStatus("HTTP://SHARED.EXAMPLE/").getWaiting(), is(1));
+  }
+
+  @Test
+  public void unregistered_server_no_longer_keeps_a_thread() throws Exception {
+    bulkhead.register(SLOW);
+    bulkhead.register(FAST);
+    hang(SLOW, 4);
+
+    assertThat(pool.size(), is(3));
+
+    bulkhead.unregister(FAST);
+
+    assertThat(pool.size(), is(4));
+  }
+
+  @Test
+  public void getSaturated_lists_only_servers_with_waiting_polls() throws Exception {
+    bulkhead.register(SLOW);
+    bulkhead.register(FAST);
+    hang(SLOW, 4);
+    bulkhead.execute(FAST, "fast", poll("fast"));
+
+    List<StashPollBulkheadStatus> saturated = bulkhead.getSaturated();
+
+    assertThat(saturated.size(), is(1));
+    assertThat(saturated.get(0).getHost(), is(SLOW));
+
+    runAll();
+
+    assertThat(bulkhead.getSaturated(), is(empty()));
+  }
+}
@@ -103,6 +103,20 @@ public class StashPollingActionTest {
     assertThat(logLines[0], is(equalTo("Second message")));
   }
 
+  @Test
+  public void captureLog_keeps_messages_out_of_log_until_appended() {
+    stashPollingAction.log("First message");
+    String captured = stashPollingAction.captureLog(() -> stashPollingAction.log("Captured"));
+    stashPollingAction.log("Second message");
+    stashPollingAction.appendCapturedLog(captured);
+
+    String[] logLines = stashPollingAction.toString().split("\\r?\\n|\\r");
+    assertThat(logLines.length, is(equalTo(3)));
+    assertThat(logLines[0], is(equalTo("First message")));
+    assertThat(logLines[1], is(equalTo("Second message")));
+    assertThat(logLines[2], is(equalTo("Captured")));
+  }
+
   @Test
   public void writeLogTo_writes_log_without_escaping() throws Exception {
     XMLOutput xmlOut = mock(XMLOutput.class);
@@ -0,0 +1,148 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StashPullRequestStateStoreTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File file;
+  private StashPullRequestStateStore store;
+
+  @Before
+  public void before() throws Exception {
+    file = new File(temporaryFolder.getRoot(), StashPullRequestStateStore.FILE_NAME);
+    store = new StashPullRequestStateStore(file, () -> "config");
+  }
+
+  @Test
+  public void isUnchanged_compares_fingerprints() throws Exception {
+    store.setUnchanged("1", "fingerprint");
+
+    assertThat(store.isUnchanged("1", "fingerprint"), is(true));
+    assertThat(store.isUnchanged("1", "other"), is(false));
+    assertThat(store.isUnchanged("2", "fingerprint"), is(false));
+
+    store.forgetUnchanged("1");
+    assertThat(store.isUnchanged("1", "fingerprint"), is(false));
+  }
+
+  @Test
+  public void isCommentsUnchanged_compares_fingerprints_until_forgotten() throws Exception {
+    store.setCommentsUnchanged("1", "comments");
+
+    assertThat(store.isCommentsUnchanged("1", "comments"), is(true));
+    assertThat(store.isCommentsUnchanged("1", "other"), is(false));
+
+    store.forgetUnchanged("1");
+    assertThat(store.isCommentsUnchanged("1", "comments"), is(false));
+  }
+
+  @Test
+  public void save_keeps_state_across_instances() throws Exception {
+    store.setUnchanged("1", "fingerprint");
+    store.setCommentsUnchanged("1", "comments");
+    store.addHandledBuildCommand("2", 42);
+    store.save();
+
+    StashPullRequestStateStore reloaded = new StashPullRequestStateStore(file, () -> "config");
+    assertThat(reloaded.isUnchanged("1", "fingerprint"), is(true));
+    assertThat(reloaded.isCommentsUnchanged("1", "comments"), is(true));
+    assertThat(reloaded.isHandledBuildCommand("2", 42), is(true));
+    assertThat(reloaded.isHandledBuildCommand("2", 43), is(false));
+    assertThat(reloaded.isHandledBuildCommand("2", null), is(false));
+  }
+
+  @Test
+  public void configuration_change_discards_fingerprints_only() throws Exception {
+    store.setUnchanged("1", "fingerprint");
+    store.addHandledBuildCommand("1", 42);
+    store.save();
+
+    StashPullRequestStateStore reloaded =
+        new StashPullRequestStateStore(file, () -> "new config");
+    assertThat(reloaded.isUnchanged("1", "fingerprint"), is(false));
+    assertThat(reloaded.isHandledBuildCommand("1", 42), is(true));
+  }
+
+  @Test
+  public void configuration_change_while_running_discards_fingerprints() throws Exception {
+    AtomicReference<String> configuration = new AtomicReference<>("config");
+    StashPullRequestStateStore running = new StashPullRequestStateStore(file, configuration::get);
+    running.setUnchanged("1", "fingerprint");
+    running.setCommentsUnchanged("1", "comments");
+    running.addHandledBuildCommand("1", 42);
+
+    configuration.set("new config");
+
+    assertThat(running.isUnchanged("1", "fingerprint"), is(false));
+    assertThat(running.isCommentsUnchanged("1", "comments"), is(false));
+    assertThat(running.isHandledBuildCommand("1", 42), is(true));
+
+    // Fingerprints recorded afterwards are saved with the new configuration
+    running.setUnchanged("1", "new fingerprint");
+    running.save();
+    StashPullRequestStateStore reloaded =
+        new StashPullRequestStateStore(file, () -> "new config");
+    assertThat(reloaded.isUnchanged("1", "new fingerprint"), is(true));
+  }
+
+  @Test
+  public void retainAll_discards_closed_pull_requests() throws Exception {
+    store.setUnchanged("1", "fingerprint");
+    store.setUnchanged("2", "fingerprint");
+    store.retainAll(Collections.singletonList("2"));
+    store.save();
+
+    StashPullRequestStateStore reloaded = new StashPullRequestStateStore(file, () -> "config");
+    assertThat(reloaded.isUnchanged("1", "fingerprint"), is(false));
+    assertThat(reloaded.isUnchanged("2", "fingerprint"), is(true));
+  }
+
+  @Test
+  public void save_does_nothing_without_changes() throws Exception {
+    store.save();
+
+    assertThat(file.exists(), is(false));
+  }
+
+  @Test
+  public void unreadable_file_is_discarded() throws Exception {
+    Files.write(file.toPath(), Arrays.asList("not a state file"));
+
+    StashPullRequestStateStore reloaded = new StashPullRequestStateStore(file, () -> "config");
+    assertThat(reloaded.isUnchanged("1", "fingerprint"), is(false));
+  }
+
+  @Test
+  public void file_with_other_format_version_is_discarded() throws Exception {
+    try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+      output.writeInt(0x53505253);
+      output.writeInt(1);
+      output.writeUTF("config");
+      output.writeInt(1);
+      output.writeUTF("1");
+      output.writeBoolean(true);
+      output.writeUTF("fingerprint");
+      output.writeInt(1);
+      output.writeInt(42);
+    }
+
+    StashPullRequestStateStore reloaded = new StashPullRequestStateStore(file, () -> "config");
+    assertThat(reloaded.isUnchanged("1", "fingerprint"), is(false));
+    assertThat(reloaded.isHandledBuildCommand("1", 42), is(false));
+  }
+}
@@ -0,0 +1,204 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestActivityResponse;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValue;
+
+public class StashRepositorySnapshotTest {
+
+  private final StashTriggerRegistry.Key repositoryKey =
+      new StashTriggerRegistry.Key("https://stash/", "PROJ", "SnapshotRepo");
+
+  private StashRepositorySnapshot snapshot1;
+  private StashRepositorySnapshot snapshot2;
+  private int loads;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @Before
+  public void before() throws Exception {
+    snapshot1 = StashRepositorySnapshot.acquire(repositoryKey, "user");
+    snapshot2 = StashRepositorySnapshot.acquire(repositoryKey, "user");
+  }
+
+  @After
+  public void after() throws Exception {
+    snapshot1.release();
+    snapshot2.release();
+    executor.shutdownNow();
+  }
+
+  private void listPullRequests(Consumer<StashPullRequestResponseValue> consumer) {
+    loads++;
+    consumer.accept(new StashPullRequestResponseValue());
+  }
+
+  private StashPullRequestActivityResponse loadPage() {
+    loads++;
+    return new StashPullRequestActivityResponse();
+  }
+
+  @Test
+  public void acquire_shares_snapshot_between_jobs_of_same_user() throws Exception {
+    assertThat(snapshot2, is(sameInstance(snapshot1)));
+
+    StashRepositorySnapshot other = StashRepositorySnapshot.acquire(repositoryKey, "other");
+    assertThat(other, is(not(sameInstance(snapshot1))));
+    other.release();
+  }
+
+  @Test
+  public void release_discards_snapshot_when_unused() throws Exception {
+    snapshot1.release();
+    snapshot2.release();
+
+    StashRepositorySnapshot reacquired = StashRepositorySnapshot.acquire(repositoryKey, "user");
+    assertThat(reacquired, is(not(sameInstance(snapshot1))));
+
+    // Balance the releases in after()
+    snapshot1 = reacquired;
+    snapshot2 = StashRepositorySnapshot.acquire(repositoryKey, "user");
+  }
+
+  @Test
+  public void forEachPullRequest_fetches_list_once() throws Exception {
+    List<StashPullRequestResponseValue> list1 = new ArrayList<>();
+    List<StashPullRequestResponseValue> list2 = new ArrayList<>();
+    snapshot1.forEachPullRequest(list1::add, this::listPullRequests);
+    snapshot2.forEachPullRequest(list2::add, this::listPullRequests);
+
+    assertThat(loads, is(1));
+    assertThat(list1, hasSize(1));
+    assertThat(list2, is(list1));
+  }
+
+  @Test
+  public void forEachPullRequest_passes_list_to_other_jobs_while_first_job_goes_through_it()
+      throws Exception {
+    CountDownLatch firstJobBusy = new CountDownLatch(1);
+    CountDownLatch secondJobDone = new CountDownLatch(1);
+    Future<?> firstJob =
+        executor.submit(
+            () -> {
+              snapshot1.forEachPullRequest(
+                  pullRequest -> {
+                    firstJobBusy.countDown();
+                    try {
+                      secondJobDone.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                  },
+                  this::listPullRequests);
+              return null;
+            });
+    assertThat(firstJobBusy.await(10, TimeUnit.SECONDS), is(true));
+
+    // The second job sees the pull request while the first job still holds it
+    Future<?> secondJob =
+        executor.submit(
+            () -> {
+              snapshot2.forEachPullRequest(
+                  pullRequest -> secondJobDone.countDown(), this::listPullRequests);
+              return null;
+            });
+    assertThat(secondJobDone.await(10, TimeUnit.SECONDS), is(true));
+
+    firstJob.get(10, TimeUnit.SECONDS);
+    secondJob.get(10, TimeUnit.SECONDS);
+    assertThat(loads, is(1));
+  }
+
+  @Test
+  public void forEachPullRequest_fetches_list_again_after_failure() throws Exception {
+    assertThrows(
+        StashApiException.class,
+        () ->
+            snapshot1.forEachPullRequest(
+                pullRequest -> {},
+                consumer -> {
+                  throw new StashApiException("Unavailable");
+                }));
+
+    List<StashPullRequestResponseValue> list = new ArrayList<>();
+    snapshot2.forEachPullRequest(list::add, this::listPullRequests);
+
+    assertThat(loads, is(1));
+    assertThat(list, hasSize(1));
+  }
+
+  @Test
+  public void getActivityPage_fetches_page_once() throws Exception {
+    snapshot1.forEachPullRequest(pullRequest -> {}, this::listPullRequests);
+    loads = 0;
+
+    StashPullRequestActivityResponse page = snapshot1.getActivityPage("1", 0, this::loadPage);
+    assertThat(snapshot2.getActivityPage("1", 0, this::loadPage), is(sameInstance(page)));
+    snapshot2.getActivityPage("1", 25, this::loadPage);
+    snapshot2.getActivityPage("2", 0, this::loadPage);
+
+    assertThat(loads, is(3));
+  }
+
+  @Test
+  public void getActivityPageAsync_shares_page_with_blocking_reads() throws Exception {
+    snapshot1.forEachPullRequest(pullRequest -> {}, this::listPullRequests);
+    loads = 0;
+    CompletableFuture<StashPullRequestActivityResponse> loading = new CompletableFuture<>();
+
+    CompletableFuture<StashPullRequestActivityResponse> page =
+        snapshot1.getActivityPageAsync("1", 0, () -> loading);
+    assertThat(page.isDone(), is(false));
+    loading.complete(loadPage());
+
+    assertThat(snapshot2.getActivityPage("1", 0, this::loadPage), is(sameInstance(page.get())));
+    assertThat(
+        snapshot2.getActivityPageAsync("1", 0, () -> loading).get(),
+        is(sameInstance(page.get())));
+    assertThat(loads, is(1));
+  }
+
+  @Test
+  public void invalidate_discards_pages_of_pull_request() throws Exception {
+    snapshot1.forEachPullRequest(pullRequest -> {}, this::listPullRequests);
+    snapshot1.getActivityPage("1", 0, this::loadPage);
+    snapshot1.getActivityPage("2", 0, this::loadPage);
+    loads = 0;
+
+    snapshot2.invalidate("1");
+    snapshot1.getActivityPage("1", 0, this::loadPage);
+    snapshot1.getActivityPage("2", 0, this::loadPage);
+
+    assertThat(loads, is(1));
+  }
+
+  @Test
+  public void unshared_snapshot_passes_requests_through() throws Exception {
+    StashRepositorySnapshot unshared = StashRepositorySnapshot.unshared();
+
+    unshared.forEachPullRequest(pullRequest -> {}, this::listPullRequests);
+    unshared.forEachPullRequest(pullRequest -> {}, this::listPullRequests);
+    unshared.getActivityPage("1", 0, this::loadPage);
+    unshared.getActivityPage("1", 0, this::loadPage);
+
+    assertThat(loads, is(4));
+  }
+}
@@ -10,14 +10,18 @@ import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.emptyArray;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -40,12 +44,19 @@ import hudson.model.Result;
 import hudson.model.StringParameterDefinition;
 import hudson.model.StringParameterValue;
 import hudson.util.RunList;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import jenkins.model.Jenkins;
 import org.junit.Before;
 import org.junit.Rule;
@@ -59,8 +70,15 @@ import org.mockito.junit.MockitoRule;
 import org.mockito.quality.Strictness;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.WriteSource;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashCommitBuildStats;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashCommitBuildStatus;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestActivity;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestActivityResponse;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestBuildTarget;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestComment;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestMergeableResponse;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestProperties;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValue;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValueRepository;
 import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashPullRequestResponseValueRepositoryBranch;
@@ -83,12 +101,54 @@ public class StashRepositoryTest {
   @Mock private StashBuildTrigger trigger;
   @Mock private StashApiClient stashApiClient;
   @Mock private ParametersDefinitionProperty parametersDefinitionProperty;
+  @Mock private ScheduledExecutorService probeExecutor;
 
   @Before
   public void before() throws Exception {
     project = spy(jenkinsRule.createFreeStyleProject());
     pollLog = new StashPollingAction(project);
-    stashRepository = new StashRepository(project, trigger, stashApiClient, pollLog);
+    stashRepository =
+        new StashRepository(
+            project,
+            trigger,
+            stashApiClient,
+            pollLog,
+            StashRepositorySnapshot.unshared(),
+            new StashMergeStatusProber(probeExecutor, 500, () -> 0));
+    lenient().when(trigger.getConfig()).thenAnswer(invocation -> StashTriggerConfig.of(trigger));
+    // The first activity page is read in the background, with the same stubs as the other pages
+    lenient()
+        .when(stashApiClient.getPullRequestActivityPageAsync(any(), any(), any(), anyInt()))
+        .thenAnswer(
+            invocation -> {
+              CompletableFuture<StashPullRequestActivityResponse> page = new CompletableFuture<>();
+              try {
+                page.complete(
+                    stashApiClient.getPullRequestActivityPage(
+                        invocation.getArgument(0),
+                        invocation.getArgument(1),
+                        invocation.getArgument(2),
+                        invocation.getArgument(3)));
+              } catch (StashApiException e) {
+                page.completeExceptionally(e);
+              }
+              return page;
+            });
+    // Merge statuses are requested in advance during the polls, with the same stubs
+    lenient()
+        .when(stashApiClient.getPullRequestMergeStatusAsync(any()))
+        .thenAnswer(
+            invocation -> {
+              CompletableFuture<StashPullRequestMergeableResponse> mergeStatus =
+                  new CompletableFuture<>();
+              try {
+                mergeStatus.complete(
+                    stashApiClient.getPullRequestMergeStatus(invocation.getArgument(0)));
+              } catch (StashApiException e) {
+                mergeStatus.completeExceptionally(e);
+              }
+              return mergeStatus;
+            });
 
     StashPullRequestResponseValueRepositoryBranch branch =
         new StashPullRequestResponseValueRepositoryBranch();
@@ -127,6 +187,7 @@ public class StashRepositoryTest {
         "BuildStartCommentId",
         null,
         "PullRequestVersion",
+        false,
         additionalParameters);
   }
 
@@ -137,6 +198,52 @@ public class StashRepositoryTest {
         .thenReturn(Arrays.asList(parameterDefinitions));
   }
 
+  private StashPullRequestActivityResponse makeActivityPage(
+      List<StashPullRequestComment> comments, Integer nextPageStart) {
+    List<StashPullRequestActivity> activities = new ArrayList<>();
+    for (StashPullRequestComment comment : comments) {
+      StashPullRequestActivity activity = new StashPullRequestActivity();
+      activity.setComment(comment);
+      activities.add(activity);
+    }
+
+    StashPullRequestActivityResponse page = new StashPullRequestActivityResponse();
+    page.setPrValues(activities);
+    page.setIsLastPage(nextPageStart == null);
+    page.setNextPageStart(nextPageStart);
+    return page;
+  }
+
+  private void stubComments(List<StashPullRequestComment> comments) {
+    when(stashApiClient.getPullRequestActivityPage(any(), any(), any(), anyInt()))
+        .thenAnswer(invocation -> makeActivityPage(comments, null));
+  }
+
+  private void stubPullRequests(List<StashPullRequestResponseValue> pullRequests)
+      throws Exception {
+    doAnswer(
+            invocation -> {
+              Consumer<StashPullRequestResponseValue> consumer = invocation.getArgument(0);
+              pullRequests.forEach(consumer);
+              return null;
+            })
+        .when(stashApiClient)
+        .forEachPullRequest(any());
+  }
+
+  private StashPullRequestComment makeCommentCreatedAt(Integer id, String text, long date) {
+    StashPullRequestComment comment = new StashPullRequestComment(id, text);
+    comment.setCreatedDate(date);
+    return comment;
+  }
+
+  private void stubBuildStatus(String commit, String description, long date) throws Exception {
+    StashCommitBuildStatus status =
+        new StashCommitBuildStatus("SUCCESSFUL", "MyProject", "MyProject", "url", description);
+    status.setDateAdded(date);
+    when(stashApiClient.getCommitBuildStatus(commit, "MyProject")).thenReturn(Optional.of(status));
+  }
+
   private List<ParameterValue> captureBuildParameters() {
     Queue.Item item = stashRepository.startJob(cause);
     assertThat(item, is(notNullValue()));
@@ -149,14 +256,14 @@ public class StashRepositoryTest {
 
   @Test
   public void getTargetPullRequests_returns_empty_list_for_no_pull_requests() throws Exception {
-    when(stashApiClient.getPullRequests()).thenReturn(Collections.emptyList());
+    stubPullRequests(Collections.emptyList());
 
     assertThat(stashRepository.getTargetPullRequests(), empty());
   }
 
   @Test
   public void getTargetPullRequests_accepts_open_pull_requests() throws Exception {
-    when(stashApiClient.getPullRequests()).thenReturn(pullRequestList);
+    stubPullRequests(pullRequestList);
 
     assertThat(stashRepository.getTargetPullRequests(), contains(pullRequest));
   }
@@ -236,7 +343,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(new StashPullRequestComment("NO TEST"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
   }
@@ -251,13 +358,33 @@ public class StashRepositoryTest {
     List<StashPullRequestComment> comments =
         Arrays.asList(
             new StashPullRequestComment(1, "NO TEST"), new StashPullRequestComment(2, "DO TEST"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
         allOf(hasSize(1), contains(hasProperty("pullRequest", equalTo(pullRequest)))));
   }
 
+  @Test
+  public void getBuildTargets_notBuildOnlyOnComment_stops_reading_after_decision()
+      throws Exception {
+    when(trigger.getOnlyBuildOnComment()).thenReturn(false);
+    when(trigger.getCiSkipPhrases()).thenReturn("NO TEST");
+    when(project.getFullName()).thenReturn("Pull Request Builder Project");
+
+    List<Integer> requestedPages = new ArrayList<>();
+    when(stashApiClient.getPullRequestActivityPage(any(), any(), any(), anyInt()))
+        .thenAnswer(
+            invocation -> {
+              requestedPages.add(invocation.getArgument(3));
+              return makeActivityPage(
+                  Collections.singletonList(new StashPullRequestComment(2, "NO TEST")), 1);
+            });
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+    assertThat(requestedPages, contains(0));
+  }
+
   @Test
   public void getBuildTargets_ignores_Skip_Phrase_case() throws Exception {
     when(trigger.getCiSkipPhrases()).thenReturn("disable ANY Testing");
@@ -309,13 +436,116 @@ public class StashRepositoryTest {
 
   @Test
   public void getBuildTargets_skips_if_getPullRequestMergeStatus_throws() throws Exception {
-    when(trigger.getCheckProbeMergeStatus()).thenReturn(true);
+    when(trigger.getCheckNotConflicted()).thenReturn(true);
     when(stashApiClient.getPullRequestMergeStatus(pullRequest.getId()))
         .thenThrow(new StashApiException("Unknown Status"));
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
   }
 
+  @Test
+  public void getBuildTargets_probes_merge_status_in_background_once_per_commits()
+      throws Exception {
+    when(trigger.getCheckProbeMergeStatus()).thenReturn(true);
+    stubComments(Collections.emptyList());
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), hasSize(1));
+    assertThat(stashRepository.getBuildTargets(pullRequest), hasSize(1));
+
+    verify(probeExecutor, times(1))
+        .schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+    verify(stashApiClient, never()).getPullRequestMergeStatus(any());
+  }
+
+  @Test
+  public void getBuildTargets_reuses_conflicted_state_for_same_commits() throws Exception {
+    when(trigger.getCheckNotConflicted()).thenReturn(true);
+    StashPullRequestMergeableResponse mergeStatus = new StashPullRequestMergeableResponse();
+    mergeStatus.setConflicted(true);
+    when(stashApiClient.getPullRequestMergeStatus(pullRequest.getId())).thenReturn(mergeStatus);
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+    pullRequest.getToRef().setLatestCommit("fedcba");
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+
+    verify(stashApiClient, times(2)).getPullRequestMergeStatus(pullRequest.getId());
+  }
+
+  private void setMergeOutcome(String outcome) {
+    StashPullRequestProperties.MergeResult mergeResult =
+        new StashPullRequestProperties.MergeResult();
+    mergeResult.setOutcome(outcome);
+    mergeResult.setCurrent(true);
+    StashPullRequestProperties properties = new StashPullRequestProperties();
+    properties.setMergeResult(mergeResult);
+    pullRequest.setProperties(properties);
+  }
+
+  @Test
+  public void getBuildTargets_skips_conflicted_pull_request_without_requesting_merge_status()
+      throws Exception {
+    when(trigger.getCheckNotConflicted()).thenReturn(true);
+    setMergeOutcome("CONFLICTED");
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+
+    verify(stashApiClient, never()).getPullRequestMergeStatus(any());
+  }
+
+  @Test
+  public void getBuildTargets_doesnt_probe_merge_status_if_merge_outcome_is_known()
+      throws Exception {
+    when(trigger.getCheckProbeMergeStatus()).thenReturn(true);
+    when(trigger.getCheckNotConflicted()).thenReturn(true);
+    setMergeOutcome("CLEAN");
+    stubComments(Collections.emptyList());
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), hasSize(1));
+
+    verify(stashApiClient, never()).getPullRequestMergeStatus(any());
+  }
+
+  @Test
+  public void getBuildTargets_requests_merge_status_if_merge_outcome_is_unknown()
+      throws Exception {
+    when(trigger.getCheckNotConflicted()).thenReturn(true);
+    setMergeOutcome("UNKNOWN");
+    StashPullRequestMergeableResponse mergeStatus = new StashPullRequestMergeableResponse();
+    mergeStatus.setConflicted(true);
+    when(stashApiClient.getPullRequestMergeStatus(pullRequest.getId())).thenReturn(mergeStatus);
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+  }
+
+  @Test
+  public void getBuildTargets_cancels_comment_reading_if_pull_request_is_conflicted()
+      throws Exception {
+    when(trigger.getCheckNotConflicted()).thenReturn(true);
+    setMergeOutcome("UNKNOWN");
+    StashPullRequestMergeableResponse mergeStatus = new StashPullRequestMergeableResponse();
+    mergeStatus.setConflicted(true);
+    when(stashApiClient.getPullRequestMergeStatus(pullRequest.getId())).thenReturn(mergeStatus);
+    CompletableFuture<StashPullRequestActivityResponse> firstPage = new CompletableFuture<>();
+    when(stashApiClient.getPullRequestActivityPageAsync(any(), any(), any(), eq(0)))
+        .thenReturn(firstPage);
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+
+    assertThat(firstPage.isCancelled(), is(true));
+  }
+
+  @Test
+  public void getBuildTargets_requests_merge_status_if_checkMergeable() throws Exception {
+    when(trigger.getCheckMergeable()).thenReturn(true);
+    setMergeOutcome("CLEAN");
+    StashPullRequestMergeableResponse mergeStatus = new StashPullRequestMergeableResponse();
+    mergeStatus.setCanMerge(false);
+    when(stashApiClient.getPullRequestMergeStatus(pullRequest.getId())).thenReturn(mergeStatus);
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+  }
+
   @Test
   public void
       getBuildTargets_notOnlyBuildOnComment_resets_parameters_if_none_specified_in_build_command()
@@ -325,7 +555,7 @@ public class StashRepositoryTest {
         new StashPullRequestComment(1, "DO TEST\np:key1=value1\np:key2=value2");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST");
     List<StashPullRequestComment> comments = Arrays.asList(comment1, comment2);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
 
     Collection<StashPullRequestBuildTarget> buildTargets =
@@ -344,7 +574,7 @@ public class StashRepositoryTest {
     StashPullRequestComment comment1 = new StashPullRequestComment(1, "DO TEST\np:key1=value1");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST\np:key2=value2");
     List<StashPullRequestComment> comments = Arrays.asList(comment1, comment2);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
 
     Collection<StashPullRequestBuildTarget> buildTargets =
@@ -368,7 +598,7 @@ public class StashRepositoryTest {
         Arrays.asList(
             new StashPullRequestComment(
                 1, "[*BuildFinished* **MyProject**] DEADBEEF into 1BADFACE"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(project.getFullName()).thenReturn("MyProject");
     when(trigger.getOnlyBuildOnComment()).thenReturn(false);
     pullRequest.getFromRef().setLatestCommit("DEADBEEF");
@@ -382,7 +612,7 @@ public class StashRepositoryTest {
     List<StashPullRequestComment> comments =
         Arrays.asList(
             new StashPullRequestComment(1, "[*BuildQueued* **MyProject**] DEADBEEF into 1BADFACE"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(project.getFullName()).thenReturn("MyProject");
     when(trigger.getOnlyBuildOnComment()).thenReturn(false);
     pullRequest.getFromRef().setLatestCommit("DEADBEEF");
@@ -397,7 +627,7 @@ public class StashRepositoryTest {
         Arrays.asList(
             new StashPullRequestComment(
                 1, "[*BuildStarted* **MyProject**] DEADBEEF into 1BADFACE"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(project.getFullName()).thenReturn("MyProject");
     when(trigger.getOnlyBuildOnComment()).thenReturn(false);
     pullRequest.getFromRef().setLatestCommit("DEADBEEF");
@@ -412,7 +642,7 @@ public class StashRepositoryTest {
         Arrays.asList(
             new StashPullRequestComment(
                 1, "[*BuildFinished* **MyProject**] DEADBEEF into 1BADFACE"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(project.getFullName()).thenReturn("MyProject");
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
     when(trigger.getOnlyBuildOnComment()).thenReturn(false);
@@ -430,7 +660,7 @@ public class StashRepositoryTest {
     StashPullRequestComment comment1 = new StashPullRequestComment(1, "DO TEST\np:key=value1");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST\np:key=value2");
     List<StashPullRequestComment> comments = Arrays.asList(comment1, comment2);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
 
     Collection<StashPullRequestBuildTarget> buildTargets =
@@ -454,7 +684,7 @@ public class StashRepositoryTest {
     StashPullRequestComment comment1 = new StashPullRequestComment(1, "DO TEST\np:key=value1");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST\np:key=value2");
     List<StashPullRequestComment> comments = Arrays.asList(comment2, comment1);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
 
     stashRepository.getTargetPullRequests();
@@ -480,10 +710,62 @@ public class StashRepositoryTest {
         Arrays.asList(
             new StashPullRequestComment(
                 1, "Text before the build command. DO TEST\np:key1=value1"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
+    when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+  }
+
+  private void setCommentCount(int commentCount) {
+    StashPullRequestProperties properties = new StashPullRequestProperties();
+    properties.setCommentCount(commentCount);
+    pullRequest.setProperties(properties);
+  }
+
+  @Test
+  public void getBuildTargets_doesnt_read_comments_if_comment_count_and_commits_are_unchanged()
+      throws Exception {
+    when(trigger.getOnlyBuildOnComment()).thenReturn(true);
+    stubComments(Collections.singletonList(new StashPullRequestComment(1, "Looks good")));
+    when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
+    setCommentCount(1);
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+    pullRequest.setUpdatedDate("2000");
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+
+    verify(stashApiClient, times(1)).getPullRequestActivityPage(any(), any(), any(), anyInt());
+  }
+
+  @Test
+  public void getBuildTargets_reads_comments_if_comment_count_or_commits_change()
+      throws Exception {
+    when(trigger.getOnlyBuildOnComment()).thenReturn(true);
+    stubComments(Collections.singletonList(new StashPullRequestComment(1, "Looks good")));
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
+    setCommentCount(1);
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+    setCommentCount(2);
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+    pullRequest.getFromRef().setLatestCommit("abc");
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+
+    verify(stashApiClient, times(3)).getPullRequestActivityPage(any(), any(), any(), anyInt());
+  }
 
+  @Test
+  public void getBuildTargets_reads_comments_after_skipping_for_merge_status() throws Exception {
+    when(trigger.getCheckNotConflicted()).thenReturn(true);
+    setMergeOutcome("CONFLICTED");
+    pullRequest.getProperties().setCommentCount(0);
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+
+    setMergeOutcome("CLEAN");
+    pullRequest.getProperties().setCommentCount(0);
+    stubComments(Collections.emptyList());
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), hasSize(1));
   }
 
   @Test
@@ -493,7 +775,7 @@ public class StashRepositoryTest {
         new StashPullRequestComment(1, "DO TEST\np:key1=value1\np:key2=value2");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST");
     List<StashPullRequestComment> comments = Arrays.asList(comment1, comment2);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
     when(trigger.getOnlyBuildOnComment()).thenReturn(true);
     when(trigger.getCancelOutdatedJobsEnabled()).thenReturn(false);
@@ -518,7 +800,7 @@ public class StashRepositoryTest {
     StashPullRequestComment comment1 = new StashPullRequestComment(1, "DO TEST\np:key1=value1");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST\np:key2=value2");
     List<StashPullRequestComment> comments = Arrays.asList(comment2, comment1);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
     when(trigger.getOnlyBuildOnComment()).thenReturn(true);
     when(trigger.getCancelOutdatedJobsEnabled()).thenReturn(false);
@@ -532,6 +814,23 @@ public class StashRepositoryTest {
         buildTargets.get(1), hasProperty("additionalParameters", hasEntry("key2", "value2")));
   }
 
+  @Test
+  public void getBuildTargets_onlyBuildOnComment_skips_queued_build_command() throws Exception {
+    when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
+    when(trigger.getOnlyBuildOnComment()).thenReturn(true);
+    stubComments(Collections.singletonList(new StashPullRequestComment(1, "DO TEST")));
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(new StashPullRequestComment(2, null));
+    pullRequest.setId("123");
+
+    List<StashPullRequestBuildTarget> buildTargets = stashRepository.getBuildTargets(pullRequest);
+    assertThat(buildTargets, hasSize(1));
+    stashRepository.addFutureBuildTask(buildTargets.get(0));
+
+    // The comment has no status reply, but a build has been queued for it
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+  }
+
   @Test
   public void getBuildTargets_onlyBuildOnComment_skip_if_build_status_message() throws Exception {
     when(trigger.getOnlyBuildOnComment()).thenReturn(true);
@@ -551,7 +850,7 @@ public class StashRepositoryTest {
             new StashPullRequestComment("[*BuildCanceled* **MyProject**] DEADBEEF into 1BADFACE")));
     StashPullRequestComment comment4 = new StashPullRequestComment(2, "DO TEST\np:key4=value4");
     List<StashPullRequestComment> comments = Arrays.asList(comment1, comment2, comment3, comment4);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     Collection<StashPullRequestBuildTarget> buildTargets =
         stashRepository.getBuildTargets(pullRequest);
@@ -569,8 +868,8 @@ public class StashRepositoryTest {
     StashPullRequestComment comment1 = new StashPullRequestComment(1, "DO TEST\np:key1=value1");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST\np:key2=value2");
     List<StashPullRequestComment> comments = Arrays.asList(comment1, comment2);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
-    when(stashApiClient.postPullRequestComment(any(), any(), any()))
+    stubComments(comments);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
         .thenReturn(new StashPullRequestComment(3, null));
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
     when(trigger.getOnlyBuildOnComment()).thenReturn(true);
@@ -595,8 +894,8 @@ public class StashRepositoryTest {
     StashPullRequestComment comment1 = new StashPullRequestComment(1, "DO TEST\np:key1=value1");
     StashPullRequestComment comment2 = new StashPullRequestComment(2, "DO TEST\np:key2=value2");
     List<StashPullRequestComment> comments = Arrays.asList(comment1, comment2);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
-    when(stashApiClient.postPullRequestComment(any(), any(), any()))
+    stubComments(comments);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
         .thenReturn(new StashPullRequestComment(3, null));
     when(trigger.getCiBuildPhrases()).thenReturn("DO TEST");
     when(trigger.getOnlyBuildOnComment()).thenReturn(true);
@@ -605,7 +904,8 @@ public class StashRepositoryTest {
     stashRepository.getBuildTargets(pullRequest);
 
     verify(stashApiClient)
-        .postPullRequestComment(any(), argThat(containsString("BuildCanceled")), eq(1));
+        .postPullRequestComment(
+            any(), argThat(containsString("BuildCanceled")), eq(1), eq(WriteSource.POLL));
   }
 
   @Test
@@ -619,14 +919,16 @@ public class StashRepositoryTest {
             new StashPullRequestComment(
                 1, "[*BuildFinished* **MyProject**] DEADBEEF into 1BADFACE"));
     StashPullRequestComment response = new StashPullRequestComment(3, null);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
-    when(stashApiClient.postPullRequestComment(any(), any(), any())).thenReturn(response);
+    stubComments(comments);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
 
     pullRequest.setId("123");
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
 
-    verify(stashApiClient, times(1)).deletePullRequestComment(eq("123"), eq("1"));
-    verify(stashApiClient, times(0)).deletePullRequestComment(eq("123"), eq("2"));
+    verify(stashApiClient, times(1))
+        .deletePullRequestComment(eq("123"), eq("1"), eq(WriteSource.POLL));
+    verify(stashApiClient, times(0)).deletePullRequestComment(eq("123"), eq("2"), any());
   }
 
   @Test
@@ -635,7 +937,8 @@ public class StashRepositoryTest {
     when(trigger.getStashHost()).thenReturn("StashHost");
     when(project.getFullName()).thenReturn("MyProject");
     StashPullRequestComment response = new StashPullRequestComment(3, null);
-    when(stashApiClient.postPullRequestComment(any(), any(), any())).thenReturn(response);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
 
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
@@ -650,7 +953,8 @@ public class StashRepositoryTest {
     when(trigger.getStashHost()).thenReturn("StashHost");
     when(project.getFullName()).thenReturn("MyProject");
     StashPullRequestComment response = new StashPullRequestComment(3, null);
-    when(stashApiClient.postPullRequestComment(any(), any(), any())).thenReturn(response);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
 
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
@@ -663,7 +967,8 @@ public class StashRepositoryTest {
     when(trigger.getCancelOutdatedJobsEnabled()).thenReturn(true);
     when(trigger.getStashHost()).thenReturn("StashHost");
     StashPullRequestComment response = new StashPullRequestComment(3, null);
-    when(stashApiClient.postPullRequestComment(any(), any(), any())).thenReturn(response);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
     FreeStyleBuild runningBuild = mock(FreeStyleBuild.class);
     when(runningBuild.isBuilding()).thenReturn(true);
     when(runningBuild.getCauses())
@@ -671,7 +976,7 @@ public class StashRepositoryTest {
             Arrays.asList(
                 new StashCause(
                     "", null, null, null, null, null, null, null, null, null, null, null, null,
-                    null, null)));
+                    null, false, null)));
     when(project.getBuilds()).thenReturn(RunList.fromRuns(Arrays.asList(runningBuild)));
     Executor executor = mock(Executor.class);
     when(runningBuild.getExecutor()).thenReturn(executor);
@@ -688,7 +993,8 @@ public class StashRepositoryTest {
     when(trigger.getCancelOutdatedJobsEnabled()).thenReturn(false);
     when(trigger.getStashHost()).thenReturn("StashHost");
     StashPullRequestComment response = new StashPullRequestComment(3, null);
-    when(stashApiClient.postPullRequestComment(any(), any(), any())).thenReturn(response);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
 
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
 
@@ -704,13 +1010,14 @@ public class StashRepositoryTest {
     when(project.getFullName()).thenReturn("MyProject");
     doThrow(new StashApiException("Cannot Delete"))
         .when(stashApiClient)
-        .deletePullRequestComment(any(), any());
+        .deletePullRequestComment(any(), any(), any());
     List<StashPullRequestComment> comments =
         Collections.singletonList(
             new StashPullRequestComment(1, "[*BuildFinished* **MyProject**] DEF2 into DEF1"));
     StashPullRequestComment response = new StashPullRequestComment(2, null);
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
-    when(stashApiClient.postPullRequestComment(any(), any(), any())).thenReturn(response);
+    stubComments(comments);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
 
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
 
@@ -720,7 +1027,7 @@ public class StashRepositoryTest {
   @Test
   public void addFutureBuildTasks_doesnt_schedule_build_if_postPullRequestComment_throws()
       throws Exception {
-    when(stashApiClient.postPullRequestComment(any(), any(), any()))
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
         .thenThrow(new StashApiException("Cannot Post"));
 
     stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
@@ -728,9 +1035,169 @@ public class StashRepositoryTest {
     assertThat(Jenkins.getInstance().getQueue().getItems(), is(emptyArray()));
   }
 
+  @Test
+  public void getBuildTargets_reportBuildStatus_doesnt_read_comments_if_commit_was_built()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(project.getFullName()).thenReturn("MyProject");
+    pullRequest.getFromRef().setLatestCommit("DEADBEEF");
+    pullRequest.setUpdatedDate("1000");
+    stubBuildStatus("DEADBEEF", "Build queued: DEADBEEF into DEADBEEF", 2000);
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+
+    verify(stashApiClient, never()).getPullRequestActivityPage(any(), any(), any(), anyInt());
+  }
+
+  @Test
+  public void getBuildTargets_reportBuildStatus_builds_on_Build_Phrase_posted_after_status()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(trigger.getCiBuildPhrases()).thenReturn("test this please");
+    when(project.getFullName()).thenReturn("MyProject");
+    pullRequest.getFromRef().setLatestCommit("DEADBEEF");
+    pullRequest.setUpdatedDate("3000");
+    stubBuildStatus("DEADBEEF", "Build queued: DEADBEEF into DEADBEEF", 2000);
+    stubComments(
+        Arrays.asList(
+            makeCommentCreatedAt(2, "test this please\np:key=value", 2500),
+            makeCommentCreatedAt(1, "test this please", 1500)));
+
+    assertThat(
+        stashRepository.getBuildTargets(pullRequest),
+        contains(hasProperty("additionalParameters", hasEntry("key", "value"))));
+  }
+
+  @Test
+  public void getBuildTargets_reportBuildStatus_ignores_comments_older_than_status()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(trigger.getCiBuildPhrases()).thenReturn("test this please");
+    when(project.getFullName()).thenReturn("MyProject");
+    pullRequest.getFromRef().setLatestCommit("DEADBEEF");
+    pullRequest.setUpdatedDate("3000");
+    stubBuildStatus("DEADBEEF", "Build queued: DEADBEEF into DEADBEEF", 2000);
+    stubComments(Arrays.asList(makeCommentCreatedAt(1, "test this please", 1500)));
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+  }
+
+  @Test
+  public void getBuildTargets_reportBuildStatus_builds_if_destination_commit_changes()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(trigger.getCheckDestinationCommit()).thenReturn(true);
+    when(project.getFullName()).thenReturn("MyProject");
+    pullRequest.getFromRef().setLatestCommit("DEADBEEF");
+    pullRequest.setUpdatedDate("1000");
+    stubBuildStatus("DEADBEEF", "Build #1 started: DEADBEEF into 1BADFACE", 2000);
+    stubComments(Collections.emptyList());
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), hasSize(1));
+  }
+
+  @Test
+  public void getBuildTargets_reportBuildStatus_checks_comments_if_commit_has_no_status()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(trigger.getCiSkipPhrases()).thenReturn("NO TEST");
+    when(project.getFullName()).thenReturn("MyProject");
+    pullRequest.getFromRef().setLatestCommit("DEADBEEF");
+    when(stashApiClient.getCommitBuildStatus("DEADBEEF", "MyProject"))
+        .thenReturn(Optional.empty());
+    stubComments(Arrays.asList(new StashPullRequestComment(1, "NO TEST")));
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+  }
+
+  @Test
+  public void getBuildTargets_reportBuildStatus_skips_if_status_cannot_be_read()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(stashApiClient.getCommitBuildStatus(any(), any()))
+        .thenThrow(new StashApiException("Cannot read"));
+
+    assertThat(stashRepository.getBuildTargets(pullRequest), empty());
+  }
+
+  @Test
+  public void addFutureBuildTasks_reportBuildStatus_posts_status_instead_of_comment()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(trigger.getStashHost()).thenReturn("StashHost");
+    when(project.getFullName()).thenReturn("MyProject");
+    pullRequest.getFromRef().setLatestCommit("DEADBEEF");
+
+    stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
+
+    verify(stashApiClient)
+        .postCommitBuildStatus(
+            eq("DEADBEEF"),
+            argThat(
+                allOf(
+                    hasProperty("state", is("INPROGRESS")),
+                    hasProperty("key", is("MyProject")),
+                    hasProperty("description", is("Build queued: DEADBEEF into DEADBEEF")))),
+            eq(WriteSource.POLL));
+    verify(stashApiClient, never()).postPullRequestComment(any(), any(), any(), any());
+    assertThat(Jenkins.getInstance().getQueue().getItems(), is(arrayWithSize(1)));
+  }
+
+  @Test
+  public void addFutureBuildTasks_reportBuildStatus_doesnt_schedule_build_if_status_fails()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    doThrow(new StashApiException("Cannot Post"))
+        .when(stashApiClient)
+        .postCommitBuildStatus(any(), any(), any());
+
+    stashRepository.addFutureBuildTask(new StashPullRequestBuildTarget(pullRequest));
+
+    assertThat(Jenkins.getInstance().getQueue().getItems(), is(emptyArray()));
+  }
+
+  @Test
+  public void pollRepository_reportBuildStatus_counts_statuses_of_all_commits_at_once()
+      throws Exception {
+    when(trigger.getReportBuildStatus()).thenReturn(true);
+    when(trigger.getStashHost()).thenReturn("StashHost");
+    when(project.getFullName()).thenReturn("MyProject");
+    List<StashPullRequestResponseValue> pullRequests = new ArrayList<>();
+    for (String commit : Arrays.asList("AAAA", "BBBB")) {
+      StashPullRequestResponseValueRepository fromRef =
+          new StashPullRequestResponseValueRepository();
+      fromRef.setBranch(pullRequest.getFromRef().getBranch());
+      fromRef.setRepository(pullRequest.getFromRef().getRepository());
+      fromRef.setLatestCommit(commit);
+      StashPullRequestResponseValue value = new StashPullRequestResponseValue();
+      value.setId(commit);
+      value.setFromRef(fromRef);
+      value.setToRef(pullRequest.getToRef());
+      value.setState("OPEN");
+      value.setTitle("Add " + commit);
+      value.setUpdatedDate("1000");
+      pullRequests.add(value);
+    }
+    stubPullRequests(pullRequests);
+    StashCommitBuildStats stats = new StashCommitBuildStats();
+    stats.setSuccessful(1);
+    when(stashApiClient.getCommitBuildStats(any()))
+        .thenReturn(Collections.singletonMap("BBBB", stats));
+    stubBuildStatus("BBBB", "Build queued: BBBB into DEADBEEF", 2000);
+    stubComments(Collections.emptyList());
+
+    stashRepository.pollRepository();
+
+    verify(stashApiClient, times(1))
+        .getCommitBuildStats(eq(new HashSet<>(Arrays.asList("AAAA", "BBBB"))));
+    verify(stashApiClient, never()).getCommitBuildStatus(eq("AAAA"), any());
+    verify(stashApiClient).postCommitBuildStatus(eq("AAAA"), any(), eq(WriteSource.POLL));
+    assertThat(Jenkins.getInstance().getQueue().getItems(), is(arrayWithSize(1)));
+  }
+
   @Test
   public void pollRepository_logs_time_and_stats() throws Exception {
-    when(stashApiClient.getPullRequests()).thenReturn(Collections.emptyList());
+    stubPullRequests(Collections.emptyList());
 
     stashRepository.pollRepository();
 
@@ -743,18 +1210,150 @@ public class StashRepositoryTest {
     assertThat(logLines[3], containsString(": poll completed in "));
   }
 
+  @Test
+  public void pollRepository_skips_unchanged_pull_request() throws Exception {
+    when(trigger.getCiSkipPhrases()).thenReturn("NO TEST");
+    stubPullRequests(pullRequestList);
+    stubComments(Collections.singletonList(new StashPullRequestComment(1, "NO TEST")));
+
+    stashRepository.pollRepository();
+    stashRepository.pollRepository();
+
+    verify(stashApiClient, times(1)).getPullRequestActivityPage(any(), any(), any(), anyInt());
+    assertThat(
+        pollLog.toString(),
+        containsString("Number of pull requests unchanged since last check: 1"));
+  }
+
+  @Test
+  public void pollRepository_builds_pull_request_once_merge_veto_is_lifted() throws Exception {
+    when(trigger.getCheckMergeable()).thenReturn(true);
+    setMergeOutcome("CLEAN");
+    pullRequest.setId("123");
+    stubPullRequests(pullRequestList);
+    stubComments(Collections.emptyList());
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(new StashPullRequestComment(2, null));
+    StashPullRequestMergeableResponse vetoed = new StashPullRequestMergeableResponse();
+    vetoed.setCanMerge(false);
+    StashPullRequestMergeableResponse approved = new StashPullRequestMergeableResponse();
+    approved.setCanMerge(true);
+    when(stashApiClient.getPullRequestMergeStatus(pullRequest.getId()))
+        .thenReturn(vetoed, approved);
+
+    // Approved without any change to the pull request itself
+    stashRepository.pollRepository();
+    stashRepository.pollRepository();
+
+    verify(stashApiClient, times(2)).getPullRequestMergeStatus(pullRequest.getId());
+    verify(stashApiClient, times(1))
+        .postPullRequestComment(eq("123"), any(), any(), eq(WriteSource.POLL));
+  }
+
+  @Test
+  public void pollRepository_checks_pull_request_again_after_update() throws Exception {
+    when(trigger.getCiSkipPhrases()).thenReturn("NO TEST");
+    stubPullRequests(pullRequestList);
+    stubComments(Collections.singletonList(new StashPullRequestComment(1, "NO TEST")));
+
+    stashRepository.pollRepository();
+    pullRequest.setUpdatedDate("1510000000000");
+    stashRepository.pollRepository();
+
+    verify(stashApiClient, times(2)).getPullRequestActivityPage(any(), any(), any(), anyInt());
+  }
+
+  @Test
+  public void pollRepository_checks_pull_requests_in_parallel_keeping_log_order()
+      throws Exception {
+    List<StashPullRequestResponseValue> pullRequests = new ArrayList<>();
+    for (int i = 1; i <= 5; i++) {
+      StashPullRequestResponseValue value = new StashPullRequestResponseValue();
+      value.setId(Integer.toString(i));
+      value.setFromRef(pullRequest.getFromRef());
+      value.setToRef(pullRequest.getToRef());
+      value.setState("OPEN");
+      value.setTitle("NO TEST " + i);
+      pullRequests.add(value);
+    }
+    when(trigger.getPullRequestConcurrency()).thenReturn(3);
+    when(trigger.getCiSkipPhrases()).thenReturn("NO TEST");
+    stubPullRequests(pullRequests);
+
+    stashRepository.pollRepository();
+
+    String log = pollLog.toString();
+    int previous = -1;
+    for (int i = 1; i <= 5; i++) {
+      int index = log.indexOf("Not building PR #" + i + ", its title contains the skip phrase");
+      assertThat(index, is(greaterThan(previous)));
+      previous = index;
+    }
+    assertThat(log, containsString("Number of build targets to be built: 0"));
+  }
+
+  @Test
+  public void pollPullRequest_schedules_build_without_fetching_list() throws Exception {
+    when(trigger.getStashHost()).thenReturn("StashHost");
+    when(stashApiClient.getPullRequest("123")).thenReturn(pullRequest);
+    stubComments(Collections.emptyList());
+    StashPullRequestComment response = new StashPullRequestComment(1, null);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
+
+    stashRepository.pollPullRequest("123");
+
+    verify(stashApiClient, never()).forEachPullRequest(any());
+    assertThat(Jenkins.getInstance().getQueue().getItems(), is(arrayWithSize(1)));
+  }
+
+  @Test
+  public void pollPullRequest_logs_error_if_pull_request_cannot_be_fetched() throws Exception {
+    when(stashApiClient.getPullRequest("123")).thenThrow(new StashApiException("Not Found"));
+
+    stashRepository.pollPullRequest("123");
+
+    verify(stashApiClient, never()).getPullRequestActivityPage(any(), any(), any(), anyInt());
+    assertThat(pollLog.toString(), containsString("Cannot fetch PR #123"));
+  }
+
   @Test
   public void pollRepository_schedules_build_for_open_pull_request() throws Exception {
     when(trigger.getStashHost()).thenReturn("StashHost");
-    when(stashApiClient.getPullRequests()).thenReturn(pullRequestList);
-    when(stashApiClient.getPullRequestComments(any(), any(), any()))
-        .thenReturn(Collections.emptyList());
+    stubPullRequests(pullRequestList);
+    stubComments(Collections.emptyList());
+    StashPullRequestComment response = new StashPullRequestComment(1, null);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
+
+    stashRepository.pollRepository();
+
+    assertThat(Jenkins.getInstance().getQueue().getItems(), is(arrayWithSize(1)));
+  }
+
+  @Test
+  public void pollRepository_schedules_build_before_list_is_complete() throws Exception {
+    when(trigger.getStashHost()).thenReturn("StashHost");
+    stubComments(Collections.emptyList());
     StashPullRequestComment response = new StashPullRequestComment(1, null);
-    when(stashApiClient.postPullRequestComment(any(), any(), any())).thenReturn(response);
+    when(stashApiClient.postPullRequestComment(any(), any(), any(), eq(WriteSource.POLL)))
+        .thenReturn(response);
+    List<Integer> queuedBeforeSecondPage = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              Consumer<StashPullRequestResponseValue> consumer = invocation.getArgument(0);
+              consumer.accept(pullRequest);
+              queuedBeforeSecondPage.add(Jenkins.getInstance().getQueue().getItems().length);
+              throw new StashApiException("Second page not found");
+            })
+        .when(stashApiClient)
+        .forEachPullRequest(any());
 
     stashRepository.pollRepository();
 
+    assertThat(queuedBeforeSecondPage, contains(1));
     assertThat(Jenkins.getInstance().getQueue().getItems(), is(arrayWithSize(1)));
+    assertThat(pollLog.toString(), containsString("Cannot fetch pull request list"));
   }
 
   @Test
@@ -844,16 +1443,17 @@ public class StashRepositoryTest {
   }
 
   @Test
-  public void getTargetPullRequests_returns_empty_if_getPullRequests_throws() throws Exception {
-    when(stashApiClient.getPullRequests()).thenThrow(new StashApiException("cannot read PR list"));
+  public void getTargetPullRequests_returns_empty_if_forEachPullRequest_throws() throws Exception {
+    doThrow(new StashApiException("cannot read PR list"))
+        .when(stashApiClient)
+        .forEachPullRequest(any());
 
     assertThat(stashRepository.getTargetPullRequests(), is(empty()));
   }
 
   @Test
-  public void getBuildTargets_skips_pull_request_if_getPullRequestComments_throws()
-      throws Exception {
-    when(stashApiClient.getPullRequestComments(any(), any(), any()))
+  public void getBuildTargets_skips_pull_request_if_comments_cannot_be_read() throws Exception {
+    when(stashApiClient.getPullRequestActivityPage(any(), any(), any(), anyInt()))
         .thenThrow(new StashApiException("cannot read PR comments"));
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
@@ -877,7 +1477,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "bot-ci"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
   }
@@ -891,7 +1491,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "jsmith"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
@@ -907,7 +1507,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "bot-ci"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
@@ -923,7 +1523,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "bot-ci"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
@@ -938,7 +1538,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "NO TEST", "bot-ci"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     // The "NO TEST" comment from bot-ci should be ignored, so the build should proceed
     assertThat(
@@ -953,7 +1553,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "jenkins"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
   }
@@ -968,7 +1568,7 @@ public class StashRepositoryTest {
     // Comment with no author set (null author)
     List<StashPullRequestComment> comments =
         Collections.singletonList(new StashPullRequestComment(1, "DO TEST"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
@@ -983,7 +1583,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "svc-bitbucket"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
   }
@@ -998,7 +1598,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "jsmith"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
@@ -1014,7 +1614,7 @@ public class StashRepositoryTest {
     // bot-ci matches job-level regex
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "bot-ci"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
   }
@@ -1029,7 +1629,7 @@ public class StashRepositoryTest {
     // svc-bitbucket does not match job-level but matches global
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "svc-bitbucket"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(stashRepository.getBuildTargets(pullRequest), empty());
   }
@@ -1046,7 +1646,7 @@ public class StashRepositoryTest {
     // jsmith matches neither job-level nor global regex
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "jsmith"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
@@ -1063,7 +1663,7 @@ public class StashRepositoryTest {
 
     List<StashPullRequestComment> comments =
         Collections.singletonList(makeCommentWithAuthor(1, "DO TEST", "bot-ci"));
-    when(stashApiClient.getPullRequestComments(any(), any(), any())).thenReturn(comments);
+    stubComments(comments);
 
     assertThat(
         stashRepository.getBuildTargets(pullRequest),
@@ -0,0 +1,82 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.when;
+
+import java.util.regex.PatternSyntaxException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.mockito.quality.Strictness;
+
+public class StashTriggerConfigTest {
+
+  @Rule public JenkinsRule jenkinsRule = new JenkinsRule();
+  @Rule public MockitoRule rule = MockitoJUnit.rule().strictness(Strictness.STRICT_STUBS);
+
+  @Mock private StashBuildTrigger trigger;
+
+  @Test
+  public void isTargetBranch_matches_whole_name_against_any_pattern() throws Exception {
+    when(trigger.getTargetBranchesToBuild()).thenReturn("master, release/.*");
+    StashTriggerConfig config = StashTriggerConfig.of(trigger);
+
+    assertThat(config.isTargetBranch("master"), is(true));
+    assertThat(config.isTargetBranch("release/1.0"), is(true));
+    assertThat(config.isTargetBranch("master-old"), is(false));
+    assertThat(config.isTargetBranch("feature/release/1.0"), is(false));
+  }
+
+  @Test
+  public void isTargetBranch_accepts_any_branch_without_patterns() throws Exception {
+    when(trigger.getTargetBranchesToBuild()).thenReturn("");
+
+    assertThat(StashTriggerConfig.of(trigger).isTargetBranch("anything"), is(true));
+  }
+
+  @Test
+  public void isTargetBranch_throws_on_invalid_pattern_when_used() throws Exception {
+    when(trigger.getTargetBranchesToBuild()).thenReturn("master,release/(");
+    StashTriggerConfig config = StashTriggerConfig.of(trigger);
+
+    assertThrows(PatternSyntaxException.class, () -> config.isTargetBranch("master"));
+  }
+
+  @Test
+  public void isIgnoredCommenter_checks_job_and_global_patterns() throws Exception {
+    when(trigger.getIgnoredCommenters()).thenReturn("bot-.*");
+    when(trigger.getGlobalIgnoredCommenters()).thenReturn("jenkins");
+    StashTriggerConfig config = StashTriggerConfig.of(trigger);
+
+    assertThat(config.hasIgnoredCommenters(), is(true));
+    assertThat(config.isIgnoredCommenter("bot-1"), is(true));
+    assertThat(config.isIgnoredCommenter("jenkins"), is(true));
+    assertThat(config.isIgnoredCommenter("jenkins2"), is(false));
+    assertThat(config.isIgnoredCommenter(null), is(false));
+  }
+
+  @Test
+  public void getConfig_is_reused_until_settings_change() throws Exception {
+    StashBuildTrigger realTrigger =
+        new StashBuildTrigger("H/5 * * * *", "https://stash/", "", "PROJ", "ConfigRepo");
+
+    StashTriggerConfig config = realTrigger.getConfig();
+    assertThat(realTrigger.getConfig(), is(sameInstance(config)));
+
+    realTrigger.setTargetBranchesToBuild("master");
+    StashTriggerConfig updated = realTrigger.getConfig();
+    assertThat(updated, is(not(sameInstance(config))));
+    assertThat(updated.isTargetBranch("develop"), is(false));
+
+    ((StashBuildTrigger.DescriptorImpl) realTrigger.getDescriptor())
+        .setGlobalIgnoredCommenters("robot");
+    assertThat(realTrigger.getConfig().isIgnoredCommenter("robot"), is(true));
+  }
+}
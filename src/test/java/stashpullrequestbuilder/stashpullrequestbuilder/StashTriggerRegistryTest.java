@@ -0,0 +1,88 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+import hudson.model.FreeStyleProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import stashpullrequestbuilder.stashpullrequestbuilder.StashTriggerRegistry.Key;
+
+public class StashTriggerRegistryTest {
+
+  @Rule public JenkinsRule jenkinsRule = new JenkinsRule();
+
+  private StashTriggerRegistry registry;
+
+  @Before
+  public void before() throws Exception {
+    registry = new StashTriggerRegistry();
+  }
+
+  private StashBuildTrigger makeTrigger(String stashHost, String projectCode, String repository)
+      throws Exception {
+    return new StashBuildTrigger("H/5 * * * *", stashHost, "", projectCode, repository);
+  }
+
+  @Test
+  public void getTriggers_finds_registered_triggers() throws Exception {
+    StashBuildTrigger trigger1 = makeTrigger("https://stash/", "PROJ", "Repo");
+    StashBuildTrigger trigger2 = makeTrigger("https://stash", "proj", "repo");
+    StashBuildTrigger other = makeTrigger("https://stash/", "PROJ", "Other");
+    registry.register(trigger1);
+    registry.register(trigger2);
+    registry.register(other);
+
+    assertThat(
+        registry.getTriggers(new Key("HTTPS://STASH", "Proj", "REPO")),
+        containsInAnyOrder(trigger1, trigger2));
+    assertThat(registry.getTriggers(new Key("https://other", "PROJ", "Repo")), is(empty()));
+  }
+
+  @Test
+  public void getTriggers_by_repository_ignores_host() throws Exception {
+    StashBuildTrigger trigger1 = makeTrigger("https://stash1/", "PROJ", "Repo");
+    StashBuildTrigger trigger2 = makeTrigger("https://stash2/", "PROJ", "Repo");
+    registry.register(trigger1);
+    registry.register(trigger2);
+    registry.register(makeTrigger("https://stash1/", "PROJ", "Other"));
+
+    assertThat(registry.getTriggers("proj", "repo"), containsInAnyOrder(trigger1, trigger2));
+    assertThat(registry.getTriggers("PROJ", "None"), is(empty()));
+  }
+
+  @Test
+  public void unregister_removes_only_that_trigger() throws Exception {
+    StashBuildTrigger trigger1 = makeTrigger("https://stash/", "PROJ", "Repo");
+    StashBuildTrigger trigger2 = makeTrigger("https://stash/", "PROJ", "Repo");
+    registry.register(trigger1);
+    registry.register(trigger2);
+
+    registry.unregister(trigger1);
+    assertThat(registry.getTriggers(Key.of(trigger1)), contains(trigger2));
+    assertThat(registry.getTriggers("PROJ", "Repo"), contains(trigger2));
+
+    registry.unregister(trigger2);
+    registry.unregister(trigger2);
+    assertThat(registry.getTriggers(Key.of(trigger1)), is(empty()));
+    assertThat(registry.getTriggers("PROJ", "Repo"), is(empty()));
+  }
+
+  @Test
+  public void trigger_registers_on_start_and_unregisters_on_stop() throws Exception {
+    StashBuildTrigger trigger = makeTrigger("https://stash/", "PROJ", "RegistryRepo");
+    Key key = Key.of(trigger);
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    trigger.start(project, true);
+    assertThat(StashTriggerRegistry.getInstance().getTriggers(key), contains(trigger));
+
+    trigger.stop();
+    assertThat(StashTriggerRegistry.getInstance().getTriggers(key), is(empty()));
+  }
+}
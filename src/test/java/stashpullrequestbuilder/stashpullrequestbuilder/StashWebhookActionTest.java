@@ -0,0 +1,162 @@
+package stashpullrequestbuilder.stashpullrequestbuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThrows;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import hudson.model.FreeStyleProject;
+import hudson.util.Secret;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class StashWebhookActionTest {
+
+  @Rule public JenkinsRule jenkinsRule = new JenkinsRule();
+
+  private static final String PULL_REQUEST_EVENT =
+      "{\"eventKey\": \"pr:comment:added\","
+          + " \"date\": \"2020-01-01T00:00:00+0000\","
+          + " \"actor\": {\"name\": \"admin\"},"
+          + " \"pullRequest\": {\"id\": 42, \"state\": \"OPEN\", \"toRef\": {"
+          + "   \"id\": \"refs/heads/master\","
+          + "   \"repository\": {\"slug\": \"webhookrepo\", \"project\": {\"key\": \"PROJ\"}}}},"
+          + " \"comment\": {\"id\": 7, \"text\": \"test this please\"}}";
+
+  // HMAC-SHA256 test vector with the key "key"
+  private static final String FOX = "The quick brown fox jumps over the lazy dog";
+  private static final String FOX_SIGNATURE =
+      "sha256=f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8";
+
+  private static InputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Page post(String content) throws Exception {
+    return post(content, null);
+  }
+
+  private Page post(String content, String signature) throws Exception {
+    WebRequest request =
+        new WebRequest(
+            new URL(jenkinsRule.getURL(), StashWebhookAction.URL_NAME + "/notify"),
+            HttpMethod.POST);
+    request.setAdditionalHeader("Content-Type", "application/json");
+    if (signature != null) {
+      request.setAdditionalHeader(StashWebhookAction.SIGNATURE_HEADER, signature);
+    }
+    request.setRequestBody(content);
+
+    JenkinsRule.WebClient webClient = jenkinsRule.createWebClient();
+    webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
+    return webClient.getPage(request);
+  }
+
+  private void createProject(String projectCode, String repositoryName) throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    StashBuildTrigger trigger =
+        new StashBuildTrigger(
+            "H/5 * * * *", "https://localhost/", "", projectCode, repositoryName);
+    project.addTrigger(trigger);
+    trigger.start(project, true);
+  }
+
+  @Test
+  public void parseEvent_reads_pull_request() throws Exception {
+    StashWebhookAction.Event event = StashWebhookAction.parseEvent(stream(PULL_REQUEST_EVENT));
+
+    assertThat(event.eventKey, is("pr:comment:added"));
+    assertThat(event.pullRequest.getId(), is("42"));
+    assertThat(event.pullRequest.getToRef().getRepository().getProjectName(), is("PROJ"));
+    assertThat(
+        event.pullRequest.getToRef().getRepository().getRepositoryName(), is("webhookrepo"));
+  }
+
+  @Test
+  public void parseEvent_throws_on_malformed_payload() throws Exception {
+    assertThrows(IOException.class, () -> StashWebhookAction.parseEvent(stream("{\"eventKey\"")));
+    assertThrows(IOException.class, () -> StashWebhookAction.parseEvent(stream("")));
+  }
+
+  @Test
+  public void notify_accepts_pull_request_event_without_crumb() throws Exception {
+    createProject("PROJ", "WebhookRepo");
+
+    assertThat(post(PULL_REQUEST_EVENT).getWebResponse().getStatusCode(), is(200));
+  }
+
+  @Test
+  public void notify_ignores_other_events() throws Exception {
+    assertThat(
+        post("{\"eventKey\": \"repo:refs_changed\"}").getWebResponse().getStatusCode(), is(200));
+  }
+
+  @Test
+  public void notify_rejects_malformed_payload() throws Exception {
+    assertThat(post("not json").getWebResponse().getStatusCode(), is(400));
+    assertThat(
+        post("{\"eventKey\": \"pr:opened\"}").getWebResponse().getStatusCode(), is(400));
+  }
+
+  @Test
+  public void isSignatureValid_accepts_anything_without_secret() throws Exception {
+    byte[] payload = PULL_REQUEST_EVENT.getBytes(StandardCharsets.UTF_8);
+
+    assertThat(StashWebhookAction.isSignatureValid(payload, null, null), is(true));
+    assertThat(
+        StashWebhookAction.isSignatureValid(payload, "sha256=00", Secret.fromString("")),
+        is(true));
+  }
+
+  @Test
+  public void isSignatureValid_checks_signature_with_secret() throws Exception {
+    byte[] payload = FOX.getBytes(StandardCharsets.UTF_8);
+    Secret secret = Secret.fromString("key");
+
+    assertThat(StashWebhookAction.isSignatureValid(payload, FOX_SIGNATURE, secret), is(true));
+    assertThat(
+        StashWebhookAction.isSignatureValid(
+            (FOX + ".").getBytes(StandardCharsets.UTF_8), FOX_SIGNATURE, secret),
+        is(false));
+    assertThat(
+        StashWebhookAction.isSignatureValid(
+            payload, FOX_SIGNATURE, Secret.fromString("other key")),
+        is(false));
+    assertThat(StashWebhookAction.isSignatureValid(payload, "sha256=not hex", secret), is(false));
+    assertThat(StashWebhookAction.isSignatureValid(payload, null, secret), is(false));
+  }
+
+  @Test
+  public void isUnsignedNotificationDue_limits_notifications_per_pull_request() throws Exception {
+    long now = 1000000000000L;
+    long interval = StashWebhookAction.UNSIGNED_INTERVAL_MILLIS;
+
+    assertThat(StashWebhookAction.isUnsignedNotificationDue("PROJ", "Limited", "1", now), is(true));
+    assertThat(
+        StashWebhookAction.isUnsignedNotificationDue("proj", "limited", "1", now + 1), is(false));
+    assertThat(
+        StashWebhookAction.isUnsignedNotificationDue("PROJ", "Limited", "2", now + 1), is(true));
+    assertThat(
+        StashWebhookAction.isUnsignedNotificationDue("PROJ", "Limited", "1", now + interval),
+        is(true));
+  }
+
+  @Test
+  public void notify_rejects_unsigned_event_with_secret() throws Exception {
+    StashBuildTrigger.descriptor.setWebhookSecret(Secret.fromString("key"));
+    try {
+      assertThat(post(PULL_REQUEST_EVENT).getWebResponse().getStatusCode(), is(403));
+      assertThat(post(FOX, FOX_SIGNATURE).getWebResponse().getStatusCode(), is(400));
+    } finally {
+      StashBuildTrigger.descriptor.setWebhookSecret(null);
+    }
+  }
+}
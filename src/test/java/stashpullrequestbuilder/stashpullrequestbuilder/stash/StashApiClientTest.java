@@ -7,6 +7,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
 import static com.github.tomakehurst.wiremock.client.WireMock.delete;
 import static com.github.tomakehurst.wiremock.client.WireMock.deleteRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalToIgnoreCase;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalToJson;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
@@ -14,6 +15,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.noContent;
 import static com.github.tomakehurst.wiremock.client.WireMock.notFound;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.verify;
@@ -23,10 +25,12 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThrows;
@@ -35,7 +39,19 @@ import com.github.tomakehurst.wiremock.client.BasicCredentials;
 import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
 import com.github.tomakehurst.wiremock.http.Fault;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLException;
 import org.apache.http.client.ClientProtocolException;
 import org.junit.Before;
@@ -60,6 +76,7 @@ public class StashApiClientTest {
       new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
 
   private StashApiClient client;
+  private StashCircuitBreaker circuitBreaker;
 
   private String projectName = "PROJ";
   private String repositoryName = "Repo";
@@ -69,9 +86,21 @@ public class StashApiClientTest {
 
   @Before
   public void before() throws Exception {
-    client =
-        new StashApiClient(
-            wireMockRule.baseUrl(), "Username", "Password", projectName, repositoryName, true);
+    // Retries are sent without delay, so that failures are reported quickly
+    circuitBreaker = new StashCircuitBreaker(5, 30000, System::currentTimeMillis);
+    client = makeClient(new StashRetryPolicy(2, 0, 0));
+  }
+
+  private StashApiClient makeClient(StashRetryPolicy retryPolicy) throws StashApiException {
+    return new StashApiClient(
+        wireMockRule.baseUrl(),
+        "Username",
+        "Password",
+        projectName,
+        repositoryName,
+        true,
+        retryPolicy,
+        circuitBreaker);
   }
 
   private String pullRequestPath(int start) {
@@ -98,6 +127,12 @@ public class StashApiClientTest {
         projectName, repositoryName, pullRequestId);
   }
 
+  private String pullRequestSinglePath() {
+    return format(
+        "/rest/api/1.0/projects/%s/repos/%s/pull-requests/%s",
+        projectName, repositoryName, pullRequestId);
+  }
+
   private String pullRequestMergeStatusPath() {
     return format(
         "/rest/api/1.0/projects/%s/repos/%s/pull-requests/%s/merge",
@@ -110,6 +145,10 @@ public class StashApiClientTest {
         projectName, repositoryName, pullRequestId, version);
   }
 
+  private String commitBuildStatusPath(String commit) {
+    return format("/rest/build-status/1.0/commits/%s", commit);
+  }
+
   private ResponseDefinitionBuilder jsonResponse(String filename) {
     return aResponse()
         .withStatus(200)
@@ -126,7 +165,7 @@ public class StashApiClientTest {
     verify(
         getRequestedFor(urlEqualTo(pullRequestPath(0)))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
-            .withHeader("Connection", equalTo("close")));
+            .withHeader("Connection", equalToIgnoreCase("keep-alive")));
   }
 
   @Test
@@ -140,7 +179,6 @@ public class StashApiClientTest {
 
     assertThat(pullRequest.getClosed(), is(false));
     assertThat(pullRequest.getCreatedDate(), is("2017/11/20 8:20:59"));
-    assertThat(pullRequest.getDescription(), is("Expand code to make it slower"));
 
     // If "id" is present, the branch name is set from it, "refs/" and "heads/" is removed
     assertThat(pullRequest.getFromRef().getBranch().getName(), is("abc"));
@@ -155,6 +193,8 @@ public class StashApiClientTest {
     assertThat(pullRequest.getFromRef().getRepository().getSlug(), is("~Me"));
     assertThat(pullRequest.getId(), is("1001"));
     assertThat(pullRequest.getLocked(), is(false));
+    assertThat(pullRequest.getMergeOutcome(), is("CONFLICTED"));
+    assertThat(pullRequest.getCommentCount(), is(2));
     assertThat(pullRequest.getState(), is("OPEN"));
     assertThat(pullRequest.getTitle(), is("Add some bloat"));
 
@@ -185,6 +225,63 @@ public class StashApiClientTest {
     assertThat(pullRequests.get(10).getTitle(), is("Last PR"));
   }
 
+  @Test
+  public void forEachPullRequest_passes_pull_requests_from_multiple_pages() throws Exception {
+    stubFor(get(pullRequestPath(0)).willReturn(jsonResponse("PullRequestListPage1.json")));
+    stubFor(get(pullRequestPath(4)).willReturn(jsonResponse("PullRequestListPage2.json")));
+    stubFor(get(pullRequestPath(8)).willReturn(jsonResponse("PullRequestListPage3.json")));
+
+    List<String> titles = new ArrayList<>();
+    client.forEachPullRequest(pullRequest -> titles.add(pullRequest.getTitle()));
+    assertThat(titles, hasSize(11)); // 4 + 4 + 3
+    assertThat(titles.get(0), is("First PR"));
+    assertThat(titles.get(10), is("Last PR"));
+  }
+
+  @Test
+  public void forEachPullRequest_throws_if_next_page_cannot_be_fetched() throws Exception {
+    stubFor(get(pullRequestPath(0)).willReturn(jsonResponse("PullRequestListPage1.json")));
+    stubFor(get(pullRequestPath(4)).willReturn(notFound()));
+
+    List<String> titles = new ArrayList<>();
+    assertThat(
+        assertThrows(
+            StashApiException.class,
+            () -> client.forEachPullRequest(pullRequest -> titles.add(pullRequest.getTitle()))),
+        hasProperty("message", containsString("Response; '404' with message; Not Found")));
+    assertThat(titles, hasSize(4));
+  }
+
+  @Test
+  public void getPullRequestPageAsync_gets_page() throws Exception {
+    stubFor(get(pullRequestPath(4)).willReturn(jsonResponse("PullRequestListPage2.json")));
+
+    StashPullRequestResponse page = client.getPullRequestPageAsync(4).get(10, TimeUnit.SECONDS);
+
+    assertThat(page.getPrValues(), hasSize(4));
+    assertThat(page.getIsLastPage(), is(false));
+    assertThat(page.getNextPageStart(), is(8));
+  }
+
+  @Test
+  public void forEachPullRequest_throws_on_truncated_list() throws Exception {
+    stubFor(
+        get(pullRequestPath(0))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "application/json")
+                    .withBody("{\"isLastPage\": true, \"values\": [{\"id\": 1}, {\"id\"")));
+
+    List<StashPullRequestResponseValue> pullRequests = new ArrayList<>();
+    assertThat(
+        assertThrows(StashApiException.class, () -> client.forEachPullRequest(pullRequests::add)),
+        allOf(
+            hasProperty("cause", is(instanceOf(IOException.class))),
+            hasProperty("message", containsString("Cannot read list of pull requests"))));
+    assertThat(pullRequests, is(empty()));
+  }
+
   @Test
   public void getPullRequests_throws_on_not_found() throws Exception {
     stubFor(any(anyUrl()).willReturn(notFound()));
@@ -221,6 +318,139 @@ public class StashApiClientTest {
             hasProperty("message", containsString("Exception in GET request"))));
   }
 
+  @Test
+  public void getPullRequests_retries_on_service_unavailable() throws Exception {
+    stubFor(
+        get(pullRequestPath(0))
+            .inScenario("Restart")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(serviceUnavailable())
+            .willSetStateTo("Started"));
+    stubFor(
+        get(pullRequestPath(0))
+            .inScenario("Restart")
+            .whenScenarioStateIs("Started")
+            .willReturn(jsonResponse("PullRequestListSingle.json")));
+
+    assertThat(client.getPullRequests(), hasSize(1));
+
+    verify(2, getRequestedFor(urlEqualTo(pullRequestPath(0))));
+    assertThat(circuitBreaker.getState(), is(StashCircuitBreaker.State.CLOSED));
+  }
+
+  @Test
+  public void getPullRequests_throws_after_last_retry() throws Exception {
+    stubFor(get(pullRequestPath(0)).willReturn(serviceUnavailable()));
+
+    assertThat(
+        assertThrows(StashApiException.class, () -> client.getPullRequests()),
+        hasProperty("message", containsString("Response; '503'")));
+
+    verify(3, getRequestedFor(urlEqualTo(pullRequestPath(0))));
+  }
+
+  @Test
+  public void getPullRequests_retries_on_connection_reset() throws Exception {
+    stubFor(
+        get(pullRequestPath(0))
+            .inScenario("Reset")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER))
+            .willSetStateTo("Recovered"));
+    stubFor(
+        get(pullRequestPath(0))
+            .inScenario("Reset")
+            .whenScenarioStateIs("Recovered")
+            .willReturn(jsonResponse("PullRequestListEmpty.json")));
+
+    assertThat(client.getPullRequests(), is(empty()));
+  }
+
+  @Test
+  public void getPullRequests_waits_for_retry_after() throws Exception {
+    client = makeClient(new StashRetryPolicy(2, 0, 5000));
+    stubFor(
+        get(pullRequestPath(0))
+            .inScenario("Busy")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(aResponse().withStatus(429).withHeader("Retry-After", "1"))
+            .willSetStateTo("Available"));
+    stubFor(
+        get(pullRequestPath(0))
+            .inScenario("Busy")
+            .whenScenarioStateIs("Available")
+            .willReturn(jsonResponse("PullRequestListEmpty.json")));
+
+    long start = System.currentTimeMillis();
+    assertThat(client.getPullRequests(), is(empty()));
+
+    assertThat(System.currentTimeMillis() - start, is(greaterThanOrEqualTo(1000L)));
+  }
+
+  @Test
+  public void getPullRequests_doesnt_wait_for_too_long_retry_after() throws Exception {
+    stubFor(
+        get(pullRequestPath(0))
+            .willReturn(aResponse().withStatus(503).withHeader("Retry-After", "3600")));
+
+    assertThrows(StashApiException.class, () -> client.getPullRequests());
+
+    verify(1, getRequestedFor(urlEqualTo(pullRequestPath(0))));
+  }
+
+  @Test
+  public void requests_fail_without_reaching_server_while_circuit_is_open() throws Exception {
+    stubFor(get(pullRequestPath(0)).willReturn(serviceUnavailable()));
+
+    // Two lists with three attempts each open the breaker after five failures
+    assertThrows(StashApiException.class, () -> client.getPullRequests());
+    assertThat(
+        assertThrows(StashApiException.class, () -> client.getPullRequests()),
+        hasProperty("message", containsString("suspended after repeated failures")));
+    assertThat(
+        assertThrows(StashApiException.class, () -> client.getPullRequest(pullRequestId)),
+        hasProperty("message", containsString("suspended after repeated failures")));
+
+    verify(5, getRequestedFor(urlEqualTo(pullRequestPath(0))));
+    verify(0, getRequestedFor(urlEqualTo(pullRequestSinglePath())));
+    assertThat(circuitBreaker.getState(), is(StashCircuitBreaker.State.OPEN));
+  }
+
+  @Test
+  public void requests_rejected_by_open_circuit_dont_take_rate_limit_tokens() throws Exception {
+    stubFor(get(pullRequestPath(0)).willReturn(serviceUnavailable()));
+    assertThrows(StashApiException.class, () -> client.getPullRequests());
+    assertThrows(StashApiException.class, () -> client.getPullRequests());
+    long acquired =
+        StashApiClient.getRateLimiterStatistics(wireMockRule.baseUrl()).getAcquiredCount();
+
+    assertThrows(StashApiException.class, () -> client.getPullRequest(pullRequestId));
+    assertThat(
+        assertThrows(
+                ExecutionException.class,
+                () ->
+                    client
+                        .getPullRequestMergeStatusAsync(pullRequestId)
+                        .get(10, TimeUnit.SECONDS))
+            .getCause(),
+        hasProperty("message", containsString("suspended after repeated failures")));
+
+    assertThat(
+        StashApiClient.getRateLimiterStatistics(wireMockRule.baseUrl()).getAcquiredCount(),
+        is(acquired));
+  }
+
+  @Test
+  public void requests_failing_in_plugin_dont_open_circuit() throws Exception {
+    client.close();
+
+    for (int i = 0; i < 6; i++) {
+      assertThrows(IllegalStateException.class, () -> client.getPullRequest(pullRequestId));
+    }
+
+    assertThat(circuitBreaker.getState(), is(StashCircuitBreaker.State.CLOSED));
+  }
+
   @Test
   public void getPullRequestComments_gets_empty_list() throws Exception {
     stubFor(
@@ -233,7 +463,7 @@ public class StashApiClientTest {
     verify(
         getRequestedFor(urlEqualTo(pullRequestActivitiesPath(0)))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
-            .withHeader("Connection", equalTo("close")));
+            .withHeader("Connection", equalToIgnoreCase("keep-alive")));
   }
 
   @Test
@@ -255,6 +485,44 @@ public class StashApiClientTest {
     assertThat(comments.get(9).getText(), is("Last comment"));
   }
 
+  @Test
+  public void getPullRequestCommentIterator_gets_comments_from_multiple_pages()
+      throws Exception {
+    stubFor(
+        get(pullRequestActivitiesPath(0))
+            .willReturn(jsonResponse("PullRequestCommentsPage1.json")));
+    stubFor(
+        get(pullRequestActivitiesPath(4))
+            .willReturn(jsonResponse("PullRequestCommentsPage2.json")));
+    stubFor(
+        get(pullRequestActivitiesPath(8))
+            .willReturn(jsonResponse("PullRequestCommentsPage3.json")));
+
+    StashPullRequestCommentIterator comments =
+        client.getPullRequestCommentIterator(projectName, repositoryName, pullRequestId);
+    assertThat(comments.getPageCount(), is(0));
+    assertThat(comments.remaining(), hasSize(10)); // 4 + 4 + 2, not counting a broken comment
+    assertThat(comments.getPageCount(), is(3));
+    assertThat(comments.hasNext(), is(false));
+  }
+
+  @Test
+  public void getPullRequestCommentIterator_reads_pages_on_demand() throws Exception {
+    stubFor(
+        get(pullRequestActivitiesPath(0))
+            .willReturn(jsonResponse("PullRequestCommentsPage1.json")));
+    stubFor(
+        get(pullRequestActivitiesPath(4))
+            .willReturn(jsonResponse("PullRequestCommentsPage2.json")));
+
+    StashPullRequestCommentIterator comments =
+        client.getPullRequestCommentIterator(projectName, repositoryName, pullRequestId);
+    assertThat(comments.next().getText(), is("First comment"));
+
+    verify(1, getRequestedFor(urlEqualTo(pullRequestActivitiesPath(0))));
+    verify(0, getRequestedFor(urlEqualTo(pullRequestActivitiesPath(4))));
+  }
+
   @Test
   public void getPullRequestComments_gets_replies() throws Exception {
     stubFor(
@@ -325,7 +593,7 @@ public class StashApiClientTest {
     verify(
         deleteRequestedFor(urlEqualTo(pullRequestCommentPath(commentId)))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
-            .withHeader("Connection", equalTo("close")));
+            .withHeader("Connection", equalToIgnoreCase("keep-alive")));
   }
 
   @Test
@@ -337,7 +605,7 @@ public class StashApiClientTest {
     verify(
         deleteRequestedFor(urlEqualTo(pullRequestCommentPath(commentId)))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
-            .withHeader("Connection", equalTo("close")));
+            .withHeader("Connection", equalToIgnoreCase("keep-alive")));
   }
 
   @Test
@@ -382,7 +650,7 @@ public class StashApiClientTest {
         postRequestedFor(urlEqualTo(pullRequestPostCommentPath()))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
             .withHeader("Content-Type", equalTo("application/json; charset=UTF-8"))
-            .withHeader("Connection", equalTo("close"))
+            .withHeader("Connection", equalToIgnoreCase("keep-alive"))
             .withHeader("X-Atlassian-Token", equalTo("no-check"))
             .withRequestBody(equalToJson("{\"text\":\"" + commentString + "\"}")));
   }
@@ -405,7 +673,7 @@ public class StashApiClientTest {
         postRequestedFor(urlEqualTo(pullRequestPostCommentPath()))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
             .withHeader("Content-Type", equalTo("application/json; charset=UTF-8"))
-            .withHeader("Connection", equalTo("close"))
+            .withHeader("Connection", equalToIgnoreCase("keep-alive"))
             .withHeader("X-Atlassian-Token", equalTo("no-check"))
             .withRequestBody(
                 equalToJson(
@@ -416,6 +684,38 @@ public class StashApiClientTest {
                         + "}}")));
   }
 
+  @Test
+  public void postPullRequestComment_is_not_retried_on_service_unavailable() throws Exception {
+    stubFor(post(pullRequestPostCommentPath()).willReturn(serviceUnavailable()));
+
+    assertThrows(
+        StashApiException.class,
+        () -> client.postPullRequestComment(pullRequestId, "Some comment"));
+
+    // The server may have posted the comment before failing
+    verify(1, postRequestedFor(urlEqualTo(pullRequestPostCommentPath())));
+  }
+
+  @Test
+  public void postPullRequestComment_is_retried_on_too_many_requests() throws Exception {
+    stubFor(
+        post(pullRequestPostCommentPath())
+            .inScenario("Throttled")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(aResponse().withStatus(429))
+            .willSetStateTo("Accepted"));
+    stubFor(
+        post(pullRequestPostCommentPath())
+            .inScenario("Throttled")
+            .whenScenarioStateIs("Accepted")
+            .willReturn(jsonResponse("PostPullRequestComment.json")));
+
+    StashPullRequestComment comment = client.postPullRequestComment(pullRequestId, "Some comment");
+
+    assertThat(comment.getCommentId(), is(234));
+    verify(2, postRequestedFor(urlEqualTo(pullRequestPostCommentPath())));
+  }
+
   @Test
   public void postPullRequestComment_throws_on_no_content() throws Exception {
     stubFor(post(pullRequestPostCommentPath()).willReturn(noContent()));
@@ -471,6 +771,31 @@ public class StashApiClientTest {
             hasProperty("message", containsString("Exception in POST request"))));
   }
 
+  @Test
+  public void getPullRequest_gets_pull_request() throws Exception {
+    stubFor(get(pullRequestSinglePath()).willReturn(jsonResponse("PullRequestMerged.json")));
+
+    StashPullRequestResponseValue pullRequest = client.getPullRequest(pullRequestId);
+    assertThat(pullRequest.getId(), is("1001"));
+    assertThat(pullRequest.getState(), is("MERGED"));
+    assertThat(pullRequest.getToRef().getRepository().getProjectName(), is("PROJ"));
+
+    verify(
+        getRequestedFor(urlEqualTo(pullRequestSinglePath()))
+            .withBasicAuth(new BasicCredentials("Username", "Password")));
+  }
+
+  @Test
+  public void getPullRequest_throws_on_not_found() throws Exception {
+    stubFor(any(anyUrl()).willReturn(notFound()));
+
+    assertThat(
+        assertThrows(StashApiException.class, () -> client.getPullRequest(pullRequestId)),
+        allOf(
+            hasProperty("cause", is(nullValue())),
+            hasProperty("message", containsString("Response; '404'"))));
+  }
+
   @Test
   public void getPullRequestMergeStatus_gets_merge_status() throws Exception {
     stubFor(
@@ -485,7 +810,114 @@ public class StashApiClientTest {
     verify(
         getRequestedFor(urlEqualTo(pullRequestMergeStatusPath()))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
-            .withHeader("Connection", equalTo("close")));
+            .withHeader("Connection", equalToIgnoreCase("keep-alive")));
+  }
+
+  @Test
+  public void getPullRequestMergeStatus_shares_response_with_identical_request() throws Exception {
+    stubFor(
+        get(pullRequestMergeStatusPath())
+            .willReturn(jsonResponse("PullRequestMergeStatus.json").withFixedDelay(1000)));
+    StashApiClient otherClient = makeClient(new StashRetryPolicy(2, 0, 0));
+    RequestPatternBuilder mergeStatusRequest =
+        getRequestedFor(urlEqualTo(pullRequestMergeStatusPath()));
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    try {
+      Future<StashPullRequestMergeableResponse> first =
+          executor.submit(() -> client.getPullRequestMergeStatus(pullRequestId));
+      // Make the second request while the first one is waiting for the response
+      while (wireMockRule.findAll(mergeStatusRequest).isEmpty()) {
+        Thread.sleep(1);
+      }
+      Future<StashPullRequestMergeableResponse> second =
+          executor.submit(() -> otherClient.getPullRequestMergeStatus(pullRequestId));
+
+      assertThat(first.get(10, TimeUnit.SECONDS).getConflicted(), is(true));
+      assertThat(second.get(10, TimeUnit.SECONDS).getConflicted(), is(true));
+    } finally {
+      executor.shutdownNow();
+      otherClient.close();
+    }
+
+    verify(1, mergeStatusRequest);
+  }
+
+  @Test
+  public void getPullRequest_takes_hedged_response_when_first_request_stalls() throws Exception {
+    stubFor(
+        get(pullRequestMergeStatusPath()).willReturn(jsonResponse("PullRequestMergeStatus.json")));
+    stubFor(
+        get(pullRequestSinglePath())
+            .inScenario("Stall")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(jsonResponse("PullRequestMerged.json").withFixedDelay(5000))
+            .willSetStateTo("Stalled"));
+    stubFor(
+        get(pullRequestSinglePath())
+            .inScenario("Stall")
+            .whenScenarioStateIs("Stalled")
+            .willReturn(jsonResponse("PullRequestMerged.json")));
+
+    StashApiClient.setHedgingEnabled(true);
+    try {
+      // Hedges are only sent once the usual latency is known
+      for (int i = 0; i < StashRequestHedger.MIN_SAMPLES; i++) {
+        client.getPullRequestMergeStatus(pullRequestId);
+      }
+
+      long start = System.currentTimeMillis();
+      assertThat(client.getPullRequest(pullRequestId), is(notNullValue()));
+
+      assertThat(System.currentTimeMillis() - start, is(lessThan(5000L)));
+    } finally {
+      StashApiClient.setHedgingEnabled(false);
+    }
+
+    verify(2, getRequestedFor(urlEqualTo(pullRequestSinglePath())));
+    assertThat(StashRequestHedger.forHost(wireMockRule.baseUrl()).getHedgeWinCount(), is(1L));
+  }
+
+  @Test
+  public void getPullRequest_retries_after_hedged_response_with_server_error() throws Exception {
+    stubFor(
+        get(pullRequestMergeStatusPath()).willReturn(jsonResponse("PullRequestMergeStatus.json")));
+    stubFor(
+        get(pullRequestSinglePath())
+            .inScenario("Stall")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(jsonResponse("PullRequestMerged.json").withFixedDelay(5000))
+            .willSetStateTo("Stalled"));
+    stubFor(
+        get(pullRequestSinglePath())
+            .inScenario("Stall")
+            .whenScenarioStateIs("Stalled")
+            .willReturn(aResponse().withStatus(503))
+            .willSetStateTo("Recovered"));
+    stubFor(
+        get(pullRequestSinglePath())
+            .inScenario("Stall")
+            .whenScenarioStateIs("Recovered")
+            .willReturn(jsonResponse("PullRequestMerged.json")));
+
+    StashApiClient.setHedgingEnabled(true);
+    try {
+      for (int i = 0; i < StashRequestHedger.MIN_SAMPLES; i++) {
+        client.getPullRequestMergeStatus(pullRequestId);
+      }
+
+      long start = System.currentTimeMillis();
+      assertThat(client.getPullRequest(pullRequestId), is(notNullValue()));
+
+      assertThat(System.currentTimeMillis() - start, is(lessThan(5000L)));
+    } finally {
+      StashApiClient.setHedgingEnabled(false);
+    }
+
+    // The aborted request was reset for the retry
+    verify(3, getRequestedFor(urlEqualTo(pullRequestSinglePath())));
+    assertThat(StashRequestHedger.forHost(wireMockRule.baseUrl()).getHedgeWinCount(), is(1L));
+    assertThat(circuitBreaker.getState(), is(StashCircuitBreaker.State.CLOSED));
   }
 
   @Test
@@ -539,7 +971,7 @@ public class StashApiClientTest {
         postRequestedFor(urlEqualTo(pullRequestMergePath(mergeVersion)))
             .withBasicAuth(new BasicCredentials("Username", "Password"))
             .withHeader("Content-Type", absent())
-            .withHeader("Connection", equalTo("close"))
+            .withHeader("Connection", equalToIgnoreCase("keep-alive"))
             .withHeader("X-Atlassian-Token", equalTo("no-check"))
             .withRequestBody(absent()));
   }
@@ -603,4 +1035,236 @@ public class StashApiClientTest {
             hasProperty("cause", is(instanceOf(SSLException.class))),
             hasProperty("message", containsString("Exception in POST request"))));
   }
+
+  @Test
+  public void postCommitBuildStatus_posts_status() throws Exception {
+    stubFor(post(commitBuildStatusPath("13")).willReturn(noContent()));
+
+    client.postCommitBuildStatus(
+        "13",
+        new StashCommitBuildStatus(
+            StashCommitBuildStatus.INPROGRESS, "MyJob", "My Job", "http://url", "Build queued"));
+
+    verify(
+        postRequestedFor(urlEqualTo(commitBuildStatusPath("13")))
+            .withBasicAuth(new BasicCredentials("Username", "Password"))
+            .withHeader("Content-Type", equalTo("application/json; charset=UTF-8"))
+            .withHeader("X-Atlassian-Token", equalTo("no-check"))
+            .withRequestBody(
+                equalToJson(
+                    "{\"state\":\"INPROGRESS\",\"key\":\"MyJob\",\"name\":\"My Job\","
+                        + "\"url\":\"http://url\",\"description\":\"Build queued\"}")));
+  }
+
+  @Test
+  public void postCommitBuildStatus_throws_on_not_found() throws Exception {
+    stubFor(any(anyUrl()).willReturn(notFound()));
+
+    assertThrows(
+        StashApiException.class,
+        () -> client.postCommitBuildStatus("13", new StashCommitBuildStatus()));
+  }
+
+  @Test
+  public void getCommitBuildStatus_finds_status_by_key() throws Exception {
+    stubFor(
+        get(commitBuildStatusPath("13") + "?start=0")
+            .willReturn(jsonResponse("CommitBuildStatuses.json")));
+
+    StashCommitBuildStatus status = client.getCommitBuildStatus("13", "MyJob").get();
+
+    assertThat(status.getState(), is("INPROGRESS"));
+    assertThat(status.getDescription(), is("Build #12 started: 13 into ABCD"));
+    assertThat(status.getDateAdded(), is(1582000100000L));
+    assertThat(client.getCommitBuildStatus("13", "NoSuchJob").isPresent(), is(false));
+  }
+
+  @Test
+  public void getCommitBuildStatus_throws_on_not_found() throws Exception {
+    stubFor(any(anyUrl()).willReturn(notFound()));
+
+    assertThrows(StashApiException.class, () -> client.getCommitBuildStatus("13", "MyJob"));
+  }
+
+  @Test
+  public void getCommitBuildStats_counts_statuses_of_several_commits() throws Exception {
+    stubFor(
+        post(commitBuildStatusPath("stats")).willReturn(jsonResponse("CommitBuildStats.json")));
+
+    Map<String, StashCommitBuildStats> stats =
+        client.getCommitBuildStats(Arrays.asList("13", "ABCD"));
+
+    assertThat(stats.get("13").getTotal(), is(3));
+    assertThat(stats.get("ABCD").getTotal(), is(0));
+    verify(
+        postRequestedFor(urlEqualTo(commitBuildStatusPath("stats")))
+            .withRequestBody(equalToJson("[\"13\", \"ABCD\"]")));
+  }
+
+  @Test
+  public void getCommitBuildStats_throws_on_malformed_response() throws Exception {
+    stubFor(any(anyUrl()).willReturn(aResponse().withFault(Fault.MALFORMED_RESPONSE_CHUNK)));
+
+    assertThrows(
+        StashApiException.class, () -> client.getCommitBuildStats(Arrays.asList("13", "ABCD")));
+  }
+
+  @Test
+  public void getPullRequestActivityPageAsync_gets_page() throws Exception {
+    stubFor(
+        get(pullRequestActivitiesPath(0))
+            .willReturn(jsonResponse("PullRequestCommentsPage1.json")));
+
+    StashPullRequestActivityResponse page =
+        client
+            .getPullRequestActivityPageAsync(projectName, repositoryName, pullRequestId, 0)
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(page.getIsLastPage(), is(false));
+    assertThat(page.getNextPageStart(), is(4));
+    verify(
+        getRequestedFor(urlEqualTo(pullRequestActivitiesPath(0)))
+            .withBasicAuth(new BasicCredentials("Username", "Password")));
+  }
+
+  @Test
+  public void getPullRequestActivityPageAsync_retries_on_service_unavailable() throws Exception {
+    stubFor(
+        get(pullRequestActivitiesPath(0))
+            .inScenario("Restart")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(serviceUnavailable())
+            .willSetStateTo("Started"));
+    stubFor(
+        get(pullRequestActivitiesPath(0))
+            .inScenario("Restart")
+            .whenScenarioStateIs("Started")
+            .willReturn(jsonResponse("PullRequestCommentsPage1.json")));
+
+    StashPullRequestActivityResponse page =
+        client
+            .getPullRequestActivityPageAsync(projectName, repositoryName, pullRequestId, 0)
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(page.getNextPageStart(), is(4));
+    verify(2, getRequestedFor(urlEqualTo(pullRequestActivitiesPath(0))));
+    assertThat(circuitBreaker.getState(), is(StashCircuitBreaker.State.CLOSED));
+  }
+
+  @Test
+  public void getPullRequestActivityPageAsync_fails_on_not_found() throws Exception {
+    stubFor(any(anyUrl()).willReturn(notFound()));
+
+    assertThat(
+        assertThrows(
+                ExecutionException.class,
+                () ->
+                    client
+                        .getPullRequestActivityPageAsync(
+                            projectName, repositoryName, pullRequestId, 0)
+                        .get(10, TimeUnit.SECONDS))
+            .getCause(),
+        allOf(
+            is(instanceOf(StashApiException.class)),
+            hasProperty("message", containsString("Response; '404' with message; Not Found"))));
+  }
+
+  @Test
+  public void getPullRequestActivityPageAsync_fails_after_last_retry() throws Exception {
+    stubFor(any(anyUrl()).willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)));
+
+    assertThat(
+        assertThrows(
+                ExecutionException.class,
+                () ->
+                    client
+                        .getPullRequestActivityPageAsync(
+                            projectName, repositoryName, pullRequestId, 0)
+                        .get(10, TimeUnit.SECONDS))
+            .getCause(),
+        allOf(
+            is(instanceOf(StashApiException.class)),
+            hasProperty("message", containsString("Exception in GET request"))));
+
+    verify(3, getRequestedFor(urlEqualTo(pullRequestActivitiesPath(0))));
+  }
+
+  @Test
+  public void getPullRequestActivityPageAsync_shares_response_with_identical_request()
+      throws Exception {
+    stubFor(
+        get(pullRequestActivitiesPath(0))
+            .willReturn(jsonResponse("PullRequestCommentsPage1.json").withFixedDelay(1000)));
+    StashApiClient otherClient = makeClient(new StashRetryPolicy(2, 0, 0));
+
+    try {
+      CompletableFuture<StashPullRequestActivityResponse> first =
+          client.getPullRequestActivityPageAsync(projectName, repositoryName, pullRequestId, 0);
+      CompletableFuture<StashPullRequestActivityResponse> second =
+          otherClient.getPullRequestActivityPageAsync(
+              projectName, repositoryName, pullRequestId, 0);
+      // The request is kept for the caller that still waits for it
+      first.cancel(false);
+
+      assertThat(second.get(10, TimeUnit.SECONDS).getNextPageStart(), is(4));
+    } finally {
+      otherClient.close();
+    }
+
+    verify(1, getRequestedFor(urlEqualTo(pullRequestActivitiesPath(0))));
+  }
+
+  @Test
+  public void getPullRequestMergeStatusAsync_retries_on_service_unavailable() throws Exception {
+    stubFor(
+        get(pullRequestMergeStatusPath())
+            .inScenario("Restart")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(serviceUnavailable())
+            .willSetStateTo("Started"));
+    stubFor(
+        get(pullRequestMergeStatusPath())
+            .inScenario("Restart")
+            .whenScenarioStateIs("Started")
+            .willReturn(jsonResponse("PullRequestMergeStatus.json")));
+
+    StashPullRequestMergeableResponse mergeStatus =
+        client.getPullRequestMergeStatusAsync(pullRequestId).get(10, TimeUnit.SECONDS);
+
+    assertThat(mergeStatus.getConflicted(), is(true));
+    verify(2, getRequestedFor(urlEqualTo(pullRequestMergeStatusPath())));
+  }
+
+  @Test
+  public void getPullRequestMergeStatus_shares_response_with_identical_async_request()
+      throws Exception {
+    stubFor(
+        get(pullRequestMergeStatusPath())
+            .willReturn(jsonResponse("PullRequestMergeStatus.json").withFixedDelay(1000)));
+
+    CompletableFuture<StashPullRequestMergeableResponse> async =
+        client.getPullRequestMergeStatusAsync(pullRequestId);
+    StashPullRequestMergeableResponse blocking = client.getPullRequestMergeStatus(pullRequestId);
+
+    assertThat(blocking.getConflicted(), is(true));
+    assertThat(async.get(10, TimeUnit.SECONDS).getConflicted(), is(true));
+    verify(1, getRequestedFor(urlEqualTo(pullRequestMergeStatusPath())));
+  }
+
+  @Test
+  public void getPullRequestActivityPage_shares_response_with_identical_async_request()
+      throws Exception {
+    stubFor(
+        get(pullRequestActivitiesPath(0))
+            .willReturn(jsonResponse("PullRequestCommentsPage1.json").withFixedDelay(1000)));
+
+    CompletableFuture<StashPullRequestActivityResponse> async =
+        client.getPullRequestActivityPageAsync(projectName, repositoryName, pullRequestId, 0);
+    StashPullRequestActivityResponse blocking =
+        client.getPullRequestActivityPage(projectName, repositoryName, pullRequestId, 0);
+
+    assertThat(blocking.getNextPageStart(), is(4));
+    assertThat(async.get(10, TimeUnit.SECONDS).getNextPageStart(), is(4));
+    verify(1, getRequestedFor(urlEqualTo(pullRequestActivitiesPath(0))));
+  }
 }
@@ -0,0 +1,102 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import org.junit.Before;
+import org.junit.Test;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashCircuitBreaker.State;
+
+public class StashCircuitBreakerTest {
+
+  private long now = 10000;
+  private StashCircuitBreaker breaker;
+
+  @Before
+  public void before() throws Exception {
+    breaker = new StashCircuitBreaker(3, 1000, () -> now);
+  }
+
+  private void fail(int times) {
+    for (int i = 0; i < times; i++) {
+      assertThat(breaker.allowRequest(), is(true));
+      breaker.onFailure();
+    }
+  }
+
+  @Test
+  public void opens_after_failures_in_a_row() throws Exception {
+    fail(2);
+    assertThat(breaker.getState(), is(State.CLOSED));
+
+    fail(1);
+
+    assertThat(breaker.getState(), is(State.OPEN));
+    assertThat(breaker.allowRequest(), is(false));
+    assertThat(breaker.getRemainingOpenMillis(), is(1000L));
+  }
+
+  @Test
+  public void success_resets_failure_count() throws Exception {
+    fail(2);
+    breaker.allowRequest();
+    breaker.onSuccess();
+    fail(2);
+
+    assertThat(breaker.getState(), is(State.CLOSED));
+  }
+
+  @Test
+  public void lets_one_trial_through_after_open_period() throws Exception {
+    fail(3);
+    now += 1000;
+
+    assertThat(breaker.getRemainingOpenMillis(), is(0L));
+    assertThat(breaker.allowRequest(), is(true));
+    assertThat(breaker.getState(), is(State.HALF_OPEN));
+    assertThat(breaker.allowRequest(), is(false));
+
+    breaker.onSuccess();
+
+    assertThat(breaker.getState(), is(State.CLOSED));
+    assertThat(breaker.allowRequest(), is(true));
+  }
+
+  @Test
+  public void failed_trial_doubles_open_period() throws Exception {
+    fail(3);
+    now += 1000;
+    fail(1);
+
+    assertThat(breaker.getState(), is(State.OPEN));
+    assertThat(breaker.getRemainingOpenMillis(), is(2000L));
+
+    // A successful trial brings the open period back to the initial one
+    now += 2000;
+    assertThat(breaker.allowRequest(), is(true));
+    breaker.onSuccess();
+    fail(3);
+    assertThat(breaker.getRemainingOpenMillis(), is(1000L));
+  }
+
+  @Test
+  public void cancelled_trial_lets_another_through() throws Exception {
+    fail(3);
+    now += 1000;
+    assertThat(breaker.allowRequest(), is(true));
+
+    breaker.onCancel();
+
+    assertThat(breaker.allowRequest(), is(true));
+  }
+
+  @Test
+  public void forHost_shares_breaker_for_same_host() throws Exception {
+    StashCircuitBreaker first = StashCircuitBreaker.forHost("https://Breaker.example/");
+
+    assertThat(StashCircuitBreaker.forHost("https://breaker.example"), is(sameInstance(first)));
+    assertThat(StashCircuitBreaker.forHost("https://other.example"), is(not(sameInstance(first))));
+  }
+}
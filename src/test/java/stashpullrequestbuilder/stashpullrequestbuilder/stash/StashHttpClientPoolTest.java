@@ -0,0 +1,79 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+
+public class StashHttpClientPoolTest {
+
+  @Test
+  public void acquire_shares_client_for_same_host() throws Exception {
+    StashHttpClientPool.Lease first = StashHttpClientPool.acquire("https://shared.example/", true);
+    StashHttpClientPool.Lease second = StashHttpClientPool.acquire("https://shared.example", true);
+
+    assertThat(second.getHttpClient(), is(sameInstance(first.getHttpClient())));
+
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void acquire_shares_client_for_host_spelled_differently() throws Exception {
+    StashHttpClientPool.Lease first = StashHttpClientPool.acquire("https://spelled.example", true);
+    StashHttpClientPool.Lease second =
+        StashHttpClientPool.acquire(" HTTPS://Spelled.example/ ", true);
+
+    assertThat(second.getHttpClient(), is(sameInstance(first.getHttpClient())));
+
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void acquire_separates_clients_by_host_and_ssl_mode() throws Exception {
+    StashHttpClientPool.Lease first = StashHttpClientPool.acquire("https://one.example", false);
+    StashHttpClientPool.Lease second = StashHttpClientPool.acquire("https://two.example", false);
+    StashHttpClientPool.Lease third = StashHttpClientPool.acquire("https://one.example", true);
+
+    assertThat(second.getHttpClient(), is(not(sameInstance(first.getHttpClient()))));
+    assertThat(third.getHttpClient(), is(not(sameInstance(first.getHttpClient()))));
+
+    first.close();
+    second.close();
+    third.close();
+  }
+
+  @Test
+  public void client_is_recreated_after_last_lease_is_closed() throws Exception {
+    StashHttpClientPool.Lease first = StashHttpClientPool.acquire("https://closed.example", true);
+    StashHttpClientPool.Lease second = StashHttpClientPool.acquire("https://closed.example", true);
+
+    first.close();
+    // Closing the same lease twice must not release the client used by the other lease
+    first.close();
+
+    StashHttpClientPool.Lease third = StashHttpClientPool.acquire("https://closed.example", true);
+    assertThat(third.getHttpClient(), is(sameInstance(second.getHttpClient())));
+
+    second.close();
+    third.close();
+
+    StashHttpClientPool.Lease fourth = StashHttpClientPool.acquire("https://closed.example", true);
+    assertThat(fourth.getHttpClient(), is(not(sameInstance(second.getHttpClient()))));
+    fourth.close();
+  }
+
+  @Test
+  public void async_client_is_not_created_after_last_lease_is_closed() throws Exception {
+    StashHttpClientPool.Lease lease = StashHttpClientPool.acquire("https://async.example", true);
+    lease.getAsyncHttpClient();
+    lease.close();
+
+    assertThrows(StashApiException.class, lease::getAsyncHttpClient);
+  }
+}
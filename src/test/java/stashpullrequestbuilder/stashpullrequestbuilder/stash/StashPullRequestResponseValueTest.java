@@ -0,0 +1,49 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+public class StashPullRequestResponseValueTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private StashPullRequestResponseValue parse(String json) throws Exception {
+    return mapper.readValue(json, StashPullRequestResponseValue.class);
+  }
+
+  @Test
+  public void getMergeOutcome_returns_current_outcome() throws Exception {
+    StashPullRequestResponseValue pullRequest =
+        parse("{\"properties\":{\"mergeResult\":{\"outcome\":\"CLEAN\",\"current\":true}}}");
+
+    assertThat(pullRequest.getMergeOutcome(), is("CLEAN"));
+  }
+
+  @Test
+  public void getMergeOutcome_ignores_outdated_outcome() throws Exception {
+    StashPullRequestResponseValue pullRequest =
+        parse("{\"properties\":{\"mergeResult\":{\"outcome\":\"CLEAN\",\"current\":false}}}");
+
+    assertThat(pullRequest.getMergeOutcome(), is(nullValue()));
+  }
+
+  @Test
+  public void getMergeOutcome_ignores_unknown_outcome() throws Exception {
+    assertThat(
+        parse("{\"properties\":{\"mergeResult\":{\"outcome\":\"UNKNOWN\"}}}").getMergeOutcome(),
+        is(nullValue()));
+    assertThat(parse("{\"properties\":{}}").getMergeOutcome(), is(nullValue()));
+    assertThat(parse("{}").getMergeOutcome(), is(nullValue()));
+  }
+
+  @Test
+  public void getCommentCount_returns_count_from_properties() throws Exception {
+    assertThat(parse("{\"properties\":{\"commentCount\":3}}").getCommentCount(), is(3));
+    assertThat(parse("{\"properties\":{}}").getCommentCount(), is(nullValue()));
+    assertThat(parse("{}").getCommentCount(), is(nullValue()));
+  }
+}
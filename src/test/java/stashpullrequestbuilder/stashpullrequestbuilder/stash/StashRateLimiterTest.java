@@ -0,0 +1,168 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashRateLimiter.Priority;
+
+public class StashRateLimiterTest {
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Condition not met in time");
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  private static Thread startAcquiring(
+      StashRateLimiter limiter, Priority priority, List<Priority> order) {
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                limiter.acquire(priority);
+                order.add(priority);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void burst_is_let_through_without_waiting() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(1, 3, System::nanoTime);
+
+    for (int i = 0; i < 3; i++) {
+      limiter.acquire(Priority.READ);
+    }
+
+    StashRateLimiterStatistics statistics = limiter.getStatistics();
+    assertThat(statistics.getAcquiredCount(), is(3L));
+    assertThat(statistics.getDelayedCount(), is(0L));
+  }
+
+  @Test
+  public void acquire_waits_for_next_token() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(20, 1, System::nanoTime);
+    limiter.acquire(Priority.READ);
+
+    long start = System.nanoTime();
+    limiter.acquire(Priority.READ);
+
+    assertThat(
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(40L)));
+    assertThat(limiter.getStatistics().getDelayedCount(), is(1L));
+    assertThat(limiter.getStatistics().getMaxQueueDepth(), is(1));
+  }
+
+  @Test
+  public void writes_go_before_waiting_reads() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(4, 1, System::nanoTime);
+    List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+    limiter.acquire(Priority.READ);
+
+    List<Thread> threads = new ArrayList<>();
+    threads.add(startAcquiring(limiter, Priority.READ, order));
+    threads.add(startAcquiring(limiter, Priority.READ, order));
+    waitFor(() -> limiter.getStatistics().getWaitingReads() == 2);
+    threads.add(startAcquiring(limiter, Priority.WRITE, order));
+    waitFor(() -> limiter.getStatistics().getWaitingWrites() == 1);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(order, contains(Priority.WRITE, Priority.READ, Priority.READ));
+    assertThat(limiter.getStatistics().getMaxQueueDepth(), is(3));
+  }
+
+  @Test
+  public void no_limit_without_rate() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(0, 1, System::nanoTime);
+
+    for (int i = 0; i < 1000; i++) {
+      limiter.acquire(Priority.READ);
+    }
+
+    assertThat(limiter.getStatistics().getDelayedCount(), is(0L));
+  }
+
+  @Test
+  public void acquireAsync_completes_when_token_is_available() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(20, 1, System::nanoTime);
+
+    limiter.acquireAsync(Priority.WRITE).get(10, TimeUnit.SECONDS);
+    limiter.acquireAsync(Priority.WRITE).get(10, TimeUnit.SECONDS);
+
+    assertThat(limiter.getStatistics().getAcquiredCount(), is(2L));
+  }
+
+  @Test
+  public void acquireAsync_serves_writes_then_poll_writes_then_reads() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(20, 1, System::nanoTime);
+    List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+    limiter.acquire(Priority.READ);
+
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (Priority priority : Arrays.asList(Priority.READ, Priority.POLL_WRITE, Priority.WRITE)) {
+      futures.add(limiter.acquireAsync(priority).thenRun(() -> order.add(priority)));
+    }
+    for (CompletableFuture<Void> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+
+    assertThat(order, contains(Priority.WRITE, Priority.POLL_WRITE, Priority.READ));
+    assertThat(limiter.getStatistics().getDelayedCount(), is(3L));
+  }
+
+  @Test
+  public void acquireAsync_leaves_line_when_cancelled() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(1, 1, System::nanoTime);
+    limiter.acquire(Priority.READ);
+
+    CompletableFuture<Void> future = limiter.acquireAsync(Priority.READ);
+    assertThat(limiter.getStatistics().getWaitingReads(), is(1));
+    future.cancel(false);
+
+    assertThat(limiter.getStatistics().getWaitingReads(), is(0));
+  }
+
+  @Test
+  public void blocking_request_waits_behind_async_write() throws Exception {
+    StashRateLimiter limiter = new StashRateLimiter(20, 1, System::nanoTime);
+    List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+    limiter.acquire(Priority.READ);
+
+    CompletableFuture<Void> write =
+        limiter.acquireAsync(Priority.WRITE).thenRun(() -> order.add(Priority.WRITE));
+    Thread read = startAcquiring(limiter, Priority.READ, order);
+    write.get(10, TimeUnit.SECONDS);
+    read.join();
+
+    assertThat(order, contains(Priority.WRITE, Priority.READ));
+  }
+
+  @Test
+  public void forHost_shares_limiter_for_same_host() throws Exception {
+    StashRateLimiter first = StashRateLimiter.forHost("https://Limited.example/");
+
+    assertThat(StashRateLimiter.forHost("https://limited.example"), is(sameInstance(first)));
+    assertThat(StashRateLimiter.forHost("https://other.example"), is(not(sameInstance(first))));
+  }
+}
@@ -0,0 +1,174 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThrows;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Test;
+import stashpullrequestbuilder.stashpullrequestbuilder.stash.StashApiClient.StashApiException;
+
+public class StashRequestCoalescerTest {
+
+  // Token identifying the parser of the responses
+  private static final Object PARSER = new Object();
+
+  private final StashRequestCoalescer coalescer = new StashRequestCoalescer();
+  private final StashRequestCoalescer.Key key = makeKey("secret");
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final AtomicInteger calls = new AtomicInteger();
+
+  @After
+  public void after() throws Exception {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  private static StashRequestCoalescer.Key makeKey(String password) {
+    return makeKey(password, PARSER);
+  }
+
+  private static StashRequestCoalescer.Key makeKey(String password, Object parser) {
+    return new StashRequestCoalescer.Key(
+        "http://stash.example.com/rest/api/1.0/projects",
+        StashRequestCoalescer.digestCredentials("user", password),
+        parser);
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Condition not met in time");
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  // Starts a call that stays in flight until released
+  private Future<Object> startBlockedCall(StashRequestCoalescer.Call<Object> result)
+      throws InterruptedException {
+    Future<Object> future =
+        executor.submit(
+            () ->
+                coalescer.execute(
+                    key,
+                    () -> {
+                      calls.incrementAndGet();
+                      started.countDown();
+                      try {
+                        release.await();
+                      } catch (InterruptedException e) {
+                        throw new StashApiException("Interrupted", e);
+                      }
+                      return result.call();
+                    }));
+    assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+    return future;
+  }
+
+  private Future<Object> startCall(StashRequestCoalescer.Key callKey) {
+    return executor.submit(
+        () ->
+            coalescer.execute(
+                callKey,
+                () -> {
+                  calls.incrementAndGet();
+                  return new Object();
+                }));
+  }
+
+  @Test
+  public void identical_calls_in_flight_share_the_result() throws Exception {
+    Object result = new Object();
+    Future<Object> first = startBlockedCall(() -> result);
+
+    Future<Object> second = startCall(key);
+    waitFor(() -> coalescer.getCoalescedCount() == 1);
+    release.countDown();
+
+    assertThat(first.get(10, TimeUnit.SECONDS), is(sameInstance(result)));
+    assertThat(second.get(10, TimeUnit.SECONDS), is(sameInstance(result)));
+    assertThat(calls.get(), is(1));
+    assertThat(coalescer.getInFlightCount(), is(0));
+  }
+
+  @Test
+  public void calls_with_other_credentials_are_not_shared() throws Exception {
+    Future<Object> first = startBlockedCall(Object::new);
+
+    startCall(makeKey("other")).get(10, TimeUnit.SECONDS);
+    release.countDown();
+    first.get(10, TimeUnit.SECONDS);
+
+    assertThat(calls.get(), is(2));
+    assertThat(coalescer.getCoalescedCount(), is(0L));
+  }
+
+  @Test
+  public void calls_with_other_parser_are_not_shared() throws Exception {
+    Future<Object> first = startBlockedCall(Object::new);
+
+    startCall(makeKey("secret", new Object())).get(10, TimeUnit.SECONDS);
+    release.countDown();
+    first.get(10, TimeUnit.SECONDS);
+
+    assertThat(calls.get(), is(2));
+    assertThat(coalescer.getCoalescedCount(), is(0L));
+  }
+
+  @Test
+  public void digestCredentials_hides_password() throws Exception {
+    String digest = StashRequestCoalescer.digestCredentials("user", "secret");
+
+    assertThat(digest, is(StashRequestCoalescer.digestCredentials("user", "secret")));
+    assertThat(digest, is(not(StashRequestCoalescer.digestCredentials("user", "other"))));
+    assertThat(digest, is(not(StashRequestCoalescer.digestCredentials("use", "rsecret"))));
+    assertThat(digest, not(containsString("secret")));
+  }
+
+  @Test
+  public void failure_is_passed_to_waiting_calls() throws Exception {
+    Future<Object> first =
+        startBlockedCall(
+            () -> {
+              throw new StashApiException("Unavailable");
+            });
+
+    Future<Object> second = startCall(key);
+    waitFor(() -> coalescer.getCoalescedCount() == 1);
+    release.countDown();
+
+    ExecutionException firstError =
+        assertThrows(ExecutionException.class, () -> first.get(10, TimeUnit.SECONDS));
+    ExecutionException secondError =
+        assertThrows(ExecutionException.class, () -> second.get(10, TimeUnit.SECONDS));
+    assertThat(firstError.getCause(), is(instanceOf(StashApiException.class)));
+    assertThat(secondError.getCause(), is(instanceOf(StashApiException.class)));
+    assertThat(secondError.getCause().getCause(), is(sameInstance(firstError.getCause())));
+    assertThat(calls.get(), is(1));
+  }
+
+  @Test
+  public void completed_calls_are_not_reused() throws Exception {
+    Object first = startCall(key).get(10, TimeUnit.SECONDS);
+    Object second = startCall(key).get(10, TimeUnit.SECONDS);
+
+    assertThat(second, is(not(sameInstance(first))));
+    assertThat(calls.get(), is(2));
+  }
+}
@@ -0,0 +1,90 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import org.junit.Test;
+
+public class StashRequestHedgerTest {
+
+  private final StashRequestHedger hedger = new StashRequestHedger(90, 0.5);
+
+  private void recordLatencies(int count, long latencyMillis) {
+    for (int i = 0; i < count; i++) {
+      hedger.recordLatency(latencyMillis);
+    }
+  }
+
+  @Test
+  public void no_delay_without_enough_latencies() throws Exception {
+    recordLatencies(StashRequestHedger.MIN_SAMPLES - 1, 100);
+
+    assertThat(hedger.getHedgeDelayMillis(), is(-1L));
+  }
+
+  @Test
+  public void delay_is_percentile_of_recent_latencies() throws Exception {
+    // 90% of the latencies are 100 ms or less
+    recordLatencies(18, 100);
+    recordLatencies(2, 1000);
+
+    assertThat(hedger.getHedgeDelayMillis(), is(100L));
+
+    recordLatencies(1, 1000);
+
+    assertThat(hedger.getHedgeDelayMillis(), is(1000L));
+  }
+
+  @Test
+  public void old_latencies_are_forgotten() throws Exception {
+    recordLatencies(StashRequestHedger.WINDOW_SIZE, 1000);
+    recordLatencies(StashRequestHedger.WINDOW_SIZE, 50);
+
+    assertThat(hedger.getHedgeDelayMillis(), is(50L));
+  }
+
+  @Test
+  public void delay_is_not_too_short() throws Exception {
+    recordLatencies(StashRequestHedger.MIN_SAMPLES, 0);
+
+    assertThat(hedger.getHedgeDelayMillis(), is(10L));
+  }
+
+  @Test
+  public void hedges_are_limited_to_part_of_requests() throws Exception {
+    recordLatencies(4, 100);
+
+    // Every request earns half a hedge
+    assertThat(hedger.tryAcquireHedge(), is(true));
+    assertThat(hedger.tryAcquireHedge(), is(true));
+    assertThat(hedger.tryAcquireHedge(), is(false));
+
+    recordLatencies(1, 100);
+    assertThat(hedger.tryAcquireHedge(), is(false));
+    recordLatencies(1, 100);
+    assertThat(hedger.tryAcquireHedge(), is(true));
+    assertThat(hedger.getHedgeCount(), is(3L));
+  }
+
+  @Test
+  public void budget_is_capped_after_quiet_period() throws Exception {
+    recordLatencies(1000, 100);
+
+    int hedges = 0;
+    while (hedger.tryAcquireHedge()) {
+      hedges++;
+    }
+
+    assertThat(hedges, is(10));
+  }
+
+  @Test
+  public void forHost_shares_hedger_for_same_host() throws Exception {
+    StashRequestHedger first = StashRequestHedger.forHost("https://Hedged.example/");
+
+    assertThat(StashRequestHedger.forHost("https://hedged.example"), is(sameInstance(first)));
+    assertThat(StashRequestHedger.forHost("https://other.example"), is(not(sameInstance(first))));
+  }
+}
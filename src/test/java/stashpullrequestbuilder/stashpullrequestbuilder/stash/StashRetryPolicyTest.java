@@ -0,0 +1,81 @@
+package stashpullrequestbuilder.stashpullrequestbuilder.stash;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Date;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class StashRetryPolicyTest {
+
+  private long now = 1500000000000L;
+  private final StashRetryPolicy policy = new StashRetryPolicy(2, 100, 1000, () -> now);
+
+  private static HttpResponse response(int statusCode, String retryAfter) {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+    if (retryAfter != null) {
+      response.addHeader("Retry-After", retryAfter);
+    }
+    return response;
+  }
+
+  @Test
+  public void idempotent_requests_are_retried_on_unavailable_server() throws Exception {
+    assertThat(policy.mayRetry(0, true, 503), is(true));
+    assertThat(policy.mayRetry(1, true, 502), is(true));
+    assertThat(policy.mayRetry(0, true, 500), is(false));
+    assertThat(policy.mayRetry(0, true, 404), is(false));
+    assertThat(policy.mayRetry(0, true, new SocketTimeoutException()), is(true));
+  }
+
+  @Test
+  public void retries_are_limited() throws Exception {
+    assertThat(policy.mayRetry(2, true, 503), is(false));
+    assertThat(policy.mayRetry(2, true, new IOException()), is(false));
+  }
+
+  @Test
+  public void other_requests_are_retried_only_if_not_processed() throws Exception {
+    assertThat(policy.mayRetry(0, false, 503), is(false));
+    assertThat(policy.mayRetry(0, false, 429), is(true));
+    assertThat(policy.mayRetry(0, false, new SocketTimeoutException()), is(false));
+    assertThat(policy.mayRetry(0, false, new ConnectException()), is(true));
+  }
+
+  @Test
+  public void delay_is_random_and_grows_with_attempts() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      assertThat(
+          policy.getDelayMillis(0), is(allOf(greaterThanOrEqualTo(0L), lessThanOrEqualTo(100L))));
+      assertThat(policy.getDelayMillis(2), is(lessThanOrEqualTo(400L)));
+      assertThat(policy.getDelayMillis(10), is(lessThanOrEqualTo(1000L)));
+    }
+  }
+
+  @Test
+  public void retry_after_is_honored() throws Exception {
+    assertThat(policy.getDelayMillis(0, response(503, "1")), is(1000L));
+    assertThat(
+        policy.getDelayMillis(0, response(429, DateUtils.formatDate(new Date(now + 500000)))),
+        is(-1L));
+    assertThat(
+        policy.getDelayMillis(0, response(429, DateUtils.formatDate(new Date(now + 1000)))),
+        is(1000L));
+  }
+
+  @Test
+  public void invalid_retry_after_is_ignored() throws Exception {
+    assertThat(policy.getDelayMillis(0, response(503, "soon")), is(lessThanOrEqualTo(100L)));
+    assertThat(policy.getDelayMillis(0, response(503, null)), is(lessThanOrEqualTo(100L)));
+  }
+}